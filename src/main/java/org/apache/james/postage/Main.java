@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.postage;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -32,6 +33,8 @@ import org.apache.james.postage.configuration.PostageConfiguration;
  * bootstrapping the application
  */
 public class Main {
+    private static final String COMMAND_REPORT = "report";
+
     private static PostageRunner currentPostageRunner = null;
 
     public static void main(String... args) {
@@ -40,10 +43,18 @@ public class Main {
             return;
         }
 
-        String filename = args[0];
+        // 'report <config_file.xml> [<scenario> ...]' writes the reports of past runs instead of running
+        boolean report = COMMAND_REPORT.equals(args[0]);
+        int firstArgument = report ? 1 : 0;
+        if (args.length <= firstArgument) {
+            System.out.println("Please provide the configuration file");
+            return;
+        }
+
+        String filename = args[firstArgument];
 
         List<String> scenariosToRun = new ArrayList<String>();
-        for (int i = 1; i < args.length; i++) {
+        for (int i = firstArgument + 1; i < args.length; i++) {
             scenariosToRun.add(args[i]);
         }
 
@@ -60,6 +71,11 @@ public class Main {
             return;
         }
 
+        if (report) {
+            if (!reportScenarios(configurations, scenariosToRun)) System.exit(1);
+            return;
+        }
+
         // register shutdown hook if this app is terminated from outside
         Runtime.getRuntime().addShutdownHook(new Thread(){public void run() {shutdown();}});
 
@@ -90,6 +106,29 @@ public class Main {
         }
     }
 
+    /**
+     * @return TRUE, if all reported scenarios kept their thresholds
+     */
+    private static boolean reportScenarios(Map<String, PostageConfiguration> configurations, List<String> scenariosToReport) {
+        boolean passed = true;
+        int reportedScenarioCounter = 0;
+        Iterator<String> iterator = configurations.keySet().iterator();
+        while (iterator.hasNext()) {
+            String id = iterator.next();
+            if (!scenariosToReport.isEmpty() && !scenariosToReport.contains(id)) continue;
+
+            reportedScenarioCounter++;
+            try {
+                if (!PostageRunner.report(configurations.get(id))) passed = false;
+            } catch (IOException e) {
+                System.out.println("Could not write the report for scenario " + id + ": " + e.getMessage());
+                passed = false;
+            }
+        }
+        if (reportedScenarioCounter == 0) System.out.println("No scenario has been reported.");
+        return passed;
+    }
+
     private static void shutdown() {
         if (currentPostageRunner != null) currentPostageRunner.terminate();
     }
@@ -19,24 +19,41 @@
 package org.apache.james.postage;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.james.cli.probe.ServerProbe;
 import org.apache.james.cli.probe.impl.JmxServerProbe;
+import org.apache.james.postage.client.AbstractSMTPClient;
+import org.apache.james.postage.client.IMAPClient;
+import org.apache.james.postage.client.IMAPIdleClient;
 import org.apache.james.postage.client.POP3Client;
+import org.apache.james.postage.client.NIOSMTPClient;
 import org.apache.james.postage.client.SMTPClient;
+import org.apache.james.postage.configuration.IMAPUserBehaviour;
 import org.apache.james.postage.configuration.MailSender;
 import org.apache.james.postage.configuration.PostageConfiguration;
 import org.apache.james.postage.configuration.SendProfile;
+import org.apache.james.postage.dashboard.DashboardServer;
 import org.apache.james.postage.execution.SampleController;
+import org.apache.james.postage.execution.SampleScheduler;
+import org.apache.james.postage.execution.SaturationSearch;
 import org.apache.james.postage.jmx.JVMResourceSampler;
+import org.apache.james.postage.report.ReportGenerator;
+import org.apache.james.postage.result.LatencyHistogram;
+import org.apache.james.postage.result.LatencyStatistics;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailIdGenerator;
 import org.apache.james.postage.result.PostageRunnerResult;
 import org.apache.james.postage.result.PostageRunnerResultImpl;
 import org.apache.james.postage.smtpserver.SMTPMailSink;
@@ -58,32 +75,50 @@ public class PostageRunner implements Runnable {
     private int currentPhase = PHASE_CREATED;
 
     private final PostageConfiguration postageConfiguration;
-    private final PostageRunnerResult results = new PostageRunnerResultImpl();
+    private final PostageRunnerResult results;
 
     private POP3Client inboundMailingChecker;
-    private SampleController inboundMailingController;
+    private List<SampleController> inboundMailingControllers = new ArrayList<SampleController>();
+
+    private IMAPIdleClient inboundIdleChecker;
+    private SampleController inboundIdleController;
+
+    private List<SampleController> imapUserControllers = new ArrayList<SampleController>();
 
     private SMTPMailSink smtpMailSink;
     private SampleController outboundMailingInterceptorController;
 
     private List<SampleController> sendControllers = new ArrayList<SampleController>();
+    private Map<SampleController, MailSender> sendControllerMailSenders = new HashMap<SampleController, MailSender>();
 
     private JVMResourceSampler jvmResourceSampler = null;
     private SampleController jvmResourceController = null;
 
+    private DashboardServer dashboardServer = null;
+
     private int  minutesRunning = 0;
 
+    private SaturationSearch saturationSearch = null;
+    private int saturationStepMinutes = 0;
+    private long saturationStepBacklog = 0;
+
     /**
-     * defines the prefix for every mail id generated by the current runner, so they can be distinguished from
-     * next runs. the runner instance is responsable to initializing this value!
+     * defines the run id contained in every mail id generated by the current runner, so they can be distinguished
+     * from next runs. the runner instance is responsable to initializing this value!
      * NOTE: this construct becomes a problem when two runners are running in parallel
+     * @see MailId
      */
-    private static String messageIdPrefix = null;
+    private static int runId = 0;
 
-    public static String getMessageIdPrefix() {
-        return messageIdPrefix + "-";
+    public static int getRunId() {
+        return runId;
     }
 
+    /**
+     * number of mail id shards assigned to the senders of this run
+     */
+    private int mailIdShardCount = 0;
+
     /**
      * sends messages to James in two ways:
      * 1. internal users relay to internal or external users using (inbound) SMTP
@@ -96,16 +131,24 @@ public class PostageRunner implements Runnable {
      * @param postageConfiguration
      */
     public PostageRunner(PostageConfiguration postageConfiguration) {
-        this.messageIdPrefix = "" + System.currentTimeMillis();
+        runId = MailId.newRunId();
 
         this.postageConfiguration = postageConfiguration;
+        this.results = new PostageRunnerResultImpl(this.postageConfiguration.getMaxPendingMails(),
+                                                   this.postageConfiguration.getPendingOverflowPolicy());
 
         int totalMailsPerMin = this.postageConfiguration.getTotalMailsPerMin();
         int durationMinutes = this.postageConfiguration.getDurationMinutes();
 
         this.postageConfiguration.addDescriptionItem("mails_per_min", "" + totalMailsPerMin);
         this.postageConfiguration.addDescriptionItem("totally_running_min", "" + durationMinutes);
-        this.postageConfiguration.addDescriptionItem("totally_mails_target", "" + totalMailsPerMin * durationMinutes);
+        this.postageConfiguration.addDescriptionItem("totally_mails_target", "" + this.postageConfiguration.getTotalMailsTarget());
+
+        if (this.postageConfiguration.getSaturationSearch() != null) {
+            this.saturationSearch = new SaturationSearch(this.postageConfiguration.getSaturationSearch());
+            this.postageConfiguration.addDescriptionItem("saturation_search_mode", this.postageConfiguration.getSaturationSearch().getMode());
+            this.postageConfiguration.addDescriptionItem("saturation_search_sla_latency_ms", "" + this.postageConfiguration.getSaturationSearch().getSlaLatencyMillis());
+        }
 
         this.results.setEnvironmentDescription(this.postageConfiguration.getDescriptionItems());
     }
@@ -119,11 +162,20 @@ public class PostageRunner implements Runnable {
             setupExternalUserAccounts();
             setupInboundMailing();
             setupInboundMailingChecker();
+            setupInboundIdleChecker();
+            setupIMAPUsers();
             setupForwardedMailInterceptor();
             setupJMXRemoting();
+            setupDashboard();
             prepareResultFile(getCanonicalMailResultFileName());
             prepareResultFile(getCanonicalJVMStatisticsFileName());
             prepareResultFile(getCanonicalErrorsFileName());
+            prepareResultFile(getCanonicalIMAPCommandsFileName());
+            prepareResultFile(getCanonicalMailResultJournalFileName());
+            prepareResultFile(getCanonicalLatenciesFileName());
+            this.results.startMailResultJournal(getCanonicalMailResultJournalFileName());
+            setupColumnarResults();
+            this.results.startPendingMailReaper(this.postageConfiguration.getDeliveryTimeoutSeconds() * 1000L);
         } catch (StartupException e) {
             log.fatal("could not even start the runner successfully", e);
             return;
@@ -150,6 +202,22 @@ public class PostageRunner implements Runnable {
         // writeMatchedMailResults (remaining) collected data
         log.info("completing by writing data for scenario " + this.postageConfiguration.getId());
         writeData(false);
+        stopDashboard();
+    }
+
+    private void setupColumnarResults() {
+        // columnar files of previous runs are moved away in any case, the report would read them otherwise
+        prepareResultFile(getCanonicalMailResultColumnarFileName());
+        prepareResultFile(getCanonicalJVMStatisticsColumnarFileName());
+
+        String resultFormat = this.postageConfiguration.getResultFormat();
+        if (PostageConfiguration.RESULT_FORMAT_CSV.equals(resultFormat)) return;
+        if (!PostageConfiguration.RESULT_FORMAT_COLUMNAR.equals(resultFormat) && !PostageConfiguration.RESULT_FORMAT_BOTH.equals(resultFormat)) {
+            log.warn("unknown result format " + resultFormat + ", writing " + PostageConfiguration.RESULT_FORMAT_CSV);
+            return;
+        }
+        this.results.startColumnarResults(getCanonicalMailResultColumnarFileName(), getCanonicalJVMStatisticsColumnarFileName(),
+                                          PostageConfiguration.RESULT_FORMAT_BOTH.equals(resultFormat));
     }
 
     private void prepareResultFile(String canonicalMailResultFileName) {
@@ -173,10 +241,66 @@ public class PostageRunner implements Runnable {
         execute();
     }
 
+    /**
+     * writes the report for the results of the last run of the scenario, read from the result files
+     * @return TRUE, if the configured report thresholds are kept
+     */
+    public boolean report() throws IOException {
+        return report(this.postageConfiguration);
+    }
+
+    /**
+     * writes the report for the results of the last run of the scenario, without setting up a runner
+     * @return TRUE, if the configured report thresholds are kept
+     */
+    public static boolean report(PostageConfiguration postageConfiguration) throws IOException {
+        String id = postageConfiguration.getId();
+        ReportGenerator reportGenerator = new ReportGenerator(id, postageConfiguration.getReport());
+        reportGenerator.setMailResultFiles(getCanonicalMailResultFileName(id), getCanonicalMailResultJournalFileName(id),
+                                           getCanonicalMailResultColumnarFileName(id));
+        reportGenerator.setJVMStatisticsFiles(getCanonicalJVMStatisticsFileName(id), getCanonicalJVMStatisticsColumnarFileName(id));
+        reportGenerator.read();
+        reportGenerator.writeHTML(getCanonicalReportFileName(id) + ".html");
+        reportGenerator.writeText(getCanonicalReportFileName(id) + ".txt");
+
+        List<ReportGenerator.Check> checks = reportGenerator.checkThresholds();
+        Iterator<ReportGenerator.Check> iterator = checks.iterator();
+        while (iterator.hasNext()) {
+            log.info(iterator.next());
+        }
+        boolean passed = ReportGenerator.isPassed(checks);
+        log.info("scenario " + id + (passed ? " passed" : " failed") + ", report written to " + getCanonicalReportFileName(id) + ".html");
+        return passed;
+    }
+
     public PostageRunnerResult getResult() {
         return this.results;
     }
 
+    /**
+     * @return number of mails sent successfully so far by all senders
+     */
+    public long getMailsSent() {
+        long mailsSent = 0;
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            mailsSent += iterator.next().getSamplesSucceeded();
+        }
+        return mailsSent;
+    }
+
+    /**
+     * @return number of mails failed to be sent so far by all senders
+     */
+    public long getMailsSendFailed() {
+        long mailsSendFailed = 0;
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            mailsSendFailed += iterator.next().getSamplesFailed();
+        }
+        return mailsSendFailed;
+    }
+
     /**
      * set up a thread issueing one-minute events and finally shutting down data recording when time has run out.
      */
@@ -187,7 +311,7 @@ public class PostageRunner implements Runnable {
                         try {
                             int durationMinutes = postageConfiguration.getDurationMinutes();
                             log.info("running for " + durationMinutes + " minute(s)");
-                            for (int i = 0; i < durationMinutes; i++) {
+                            for (int i = 0; i < durationMinutes && !isSaturationSearchCompleted(); i++) {
                                 Thread.sleep(60*1000);
                                 oneMinuteCheckpoint();
                             }
@@ -209,10 +333,104 @@ public class PostageRunner implements Runnable {
         log.info("reached checkpoint after " + this.minutesRunning + " of "
          + this.postageConfiguration.getDurationMinutes() + " minute(s) running.");
 
+        if (this.saturationSearch != null) {
+            evaluateSaturationStep();
+        } else {
+            adjustSendRates();
+        }
+
         //TODO do this in a separate thread?
         writeData(true);
     }
 
+    /**
+     * applies the configured increase of mails per minute to all running senders
+     */
+    private void adjustSendRates() {
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            SampleController sendController = iterator.next();
+            MailSender mailSender = this.sendControllerMailSenders.get(sendController);
+            int sendPerMinute = mailSender.getSendPerMinute(this.minutesRunning);
+            if (sendPerMinute == sendController.getSamplesPerMinute()) continue;
+
+            log.info("changing send rate from " + sendController.getSamplesPerMinute() + " to " + sendPerMinute
+                     + " mails per minute for " + sendController.getSampler());
+            sendController.setSamplesPerMinute(sendPerMinute);
+        }
+    }
+
+    private boolean isSaturationSearchCompleted() {
+        return this.saturationSearch != null && this.saturationSearch.isCompleted();
+    }
+
+    /**
+     * when a saturation search step is complete, evaluates it and applies the next rate
+     */
+    private void evaluateSaturationStep() {
+        this.saturationStepMinutes++;
+        if (this.saturationStepMinutes < this.postageConfiguration.getSaturationSearch().getStepMinutes()) return;
+
+        LatencyHistogram latencies = this.results.takeDeliveryLatencies();
+        long backlogGrowth = getBacklog() - this.saturationStepBacklog;
+        boolean searchContinues = this.saturationSearch.evaluateStep(latencies, backlogGrowth);
+        if (searchContinues) startSaturationStep();
+    }
+
+    /**
+     * @return mails sent but not delivered: the ones pending and the ones given up as lost. lost mails are counted,
+     * so that the backlog does not shrink when mails are taken from the pending ones after the delivery timeout.
+     */
+    private long getBacklog() {
+        return this.results.getUnmatchedMails() + this.results.getLostMails();
+    }
+
+    private void startSaturationStep() {
+        this.saturationStepMinutes = 0;
+        this.saturationStepBacklog = getBacklog();
+        this.results.takeDeliveryLatencies(); // discard latencies of mails sent at the previous rate
+        applyTotalSendRate(this.saturationSearch.getCurrentRate());
+    }
+
+    /**
+     * distributes the total rate over all senders in proportion to their configured count-per-min
+     */
+    private void applyTotalSendRate(int totalSendPerMinute) {
+        if (this.sendControllers.isEmpty()) return;
+        log.info("sending " + totalSendPerMinute + " mails per minute in total");
+        int configuredTotal = 0;
+        Iterator<MailSender> mailSenders = this.sendControllerMailSenders.values().iterator();
+        while (mailSenders.hasNext()) {
+            configuredTotal += mailSenders.next().getSendPerMinute();
+        }
+
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            SampleController sendController = iterator.next();
+            int configured = this.sendControllerMailSenders.get(sendController).getSendPerMinute();
+            int share;
+            if (configuredTotal > 0) {
+                share = Math.round((float)configured * totalSendPerMinute / configuredTotal);
+            } else {
+                share = totalSendPerMinute / this.sendControllers.size();
+            }
+            sendController.setSamplesPerMinute(share);
+        }
+    }
+
+    private void recordSaturationSearchResult() {
+        if (this.saturationSearch == null) return;
+
+        Map<String, String> searchResult = new LinkedHashMap<String, String>();
+        searchResult.put("saturation_search_completed", "" + this.saturationSearch.isCompleted());
+        searchResult.put("max_sustainable_mails_per_min", "" + this.saturationSearch.getHighestSustainedRate());
+        this.results.setEnvironmentDescription(searchResult);
+
+        log.info("maximum sustainable rate for scenario " + this.postageConfiguration.getId() + ": "
+                 + this.saturationSearch.getHighestSustainedRate() + " mails/min"
+                 + (this.saturationSearch.isCompleted() ? "" : " (search did not complete within runtime)"));
+    }
+
     private void stopRecording() {
         log.info("stopping");
         if (this.sendControllers != null) {
@@ -220,14 +438,44 @@ public class PostageRunner implements Runnable {
             while (iterator.hasNext()) {
                 SampleController sendController = iterator.next();
                 sendController.stop();
+                ((AbstractSMTPClient)sendController.getSampler()).close();
             }
         }
-        if (this.inboundMailingController != null) this.inboundMailingController.stop();
+        Iterator<SampleController> inboundIterator = this.inboundMailingControllers.iterator();
+        while (inboundIterator.hasNext()) {
+            inboundIterator.next().stop();
+        }
+        if (this.inboundIdleController != null) this.inboundIdleController.stop();
+        if (this.inboundIdleChecker != null) this.inboundIdleChecker.close();
+        Iterator<SampleController> imapUserIterator = this.imapUserControllers.iterator();
+        while (imapUserIterator.hasNext()) {
+            imapUserIterator.next().stop();
+        }
 
         if (this.outboundMailingInterceptorController != null) this.outboundMailingInterceptorController.stop();
+        if (this.jvmResourceController != null) this.jvmResourceController.stop();
+        recordSendRates();
+        recordSaturationSearchResult();
         this.currentPhase = PHASE_COMPLETED;
     }
 
+    /**
+     * adds the really achieved send rates to the environment description written with the results
+     */
+    private void recordSendRates() {
+        Map<String, String> sendRates = new LinkedHashMap<String, String>();
+        int senderCount = 0;
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            SampleController sendController = iterator.next();
+            senderCount++;
+            sendRates.put("sender_" + senderCount + "_target_per_min", "" + sendController.getSamplesPerMinute());
+            sendRates.put("sender_" + senderCount + "_actual_per_min", "" + Math.round(sendController.getActualSamplesPerMinute()));
+            sendRates.put("sender_" + senderCount + "_late", "" + sendController.getSamplesLate());
+        }
+        this.results.setEnvironmentDescription(sendRates);
+    }
+
     /**
      * interrupt the runner from outside
      */
@@ -235,6 +483,7 @@ public class PostageRunner implements Runnable {
         stopRecording();
         this.currentPhase = PHASE_ABORTED;
         writeData(false);
+        stopDashboard();
     }
 
     private void writeData(boolean flushMatchedMailOnly) {
@@ -243,44 +492,124 @@ public class PostageRunner implements Runnable {
         String filenameMailResult = getCanonicalMailResultFileName();
         String filenameJVMStatistics = getCanonicalJVMStatisticsFileName();
         String filenameErrors = getCanonicalErrorsFileName();
-        this.results.writeResults(filenameMailResult, filenameJVMStatistics, filenameErrors, flushMatchedMailOnly);
+        String filenameIMAPCommands = getCanonicalIMAPCommandsFileName();
+        String filenameLatencies = getCanonicalLatenciesFileName();
+        this.results.writeResults(filenameMailResult, filenameJVMStatistics, filenameErrors, filenameIMAPCommands, filenameLatencies, flushMatchedMailOnly);
     }
 
     public String getCanonicalMailResultFileName() {
-        return "postage_mailResults." + this.postageConfiguration.getId() + ".csv";
+        return getCanonicalMailResultFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalMailResultFileName(String scenarioId) {
+        return "postage_mailResults." + scenarioId + ".csv";
     }
 
     public String getCanonicalJVMStatisticsFileName() {
-        return "postage_jvmStatistics." + this.postageConfiguration.getId() + ".csv";
+        return getCanonicalJVMStatisticsFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalJVMStatisticsFileName(String scenarioId) {
+        return "postage_jvmStatistics." + scenarioId + ".csv";
     }
 
     public String getCanonicalErrorsFileName() {
         return "postage_errors." + this.postageConfiguration.getId() + ".csv";
     }
 
+    public String getCanonicalIMAPCommandsFileName() {
+        return "postage_imapCommands." + this.postageConfiguration.getId() + ".csv";
+    }
+
+    public String getCanonicalLatenciesFileName() {
+        return "postage_latencies." + this.postageConfiguration.getId() + ".csv";
+    }
+
+    public String getCanonicalMailResultColumnarFileName() {
+        return getCanonicalMailResultColumnarFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalMailResultColumnarFileName(String scenarioId) {
+        return "postage_mailResults." + scenarioId + ".pcol";
+    }
+
+    public String getCanonicalJVMStatisticsColumnarFileName() {
+        return getCanonicalJVMStatisticsColumnarFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalJVMStatisticsColumnarFileName(String scenarioId) {
+        return "postage_jvmStatistics." + scenarioId + ".pcol";
+    }
+
+    /**
+     * report file name without extension, written as .html and .txt
+     */
+    public String getCanonicalReportFileName() {
+        return getCanonicalReportFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalReportFileName(String scenarioId) {
+        return "postage_report." + scenarioId;
+    }
+
+    /**
+     * binary journal the mail results are appended to while running, exported to the mail result file at the end
+     */
+    public String getCanonicalMailResultJournalFileName() {
+        return getCanonicalMailResultJournalFileName(this.postageConfiguration.getId());
+    }
+
+    public static String getCanonicalMailResultJournalFileName(String scenarioId) {
+        return "postage_mailResults." + scenarioId + ".journal";
+    }
+
     private void logElapsedData() {
         log.info("unmatched messages: " + this.results.getUnmatchedMails());
         log.info("matched messages:   " + this.results.getMatchedMails());
         log.info("valid matches:      " + this.results.getValidMails());
         log.info("recorded errors:    " + this.results.getErrorCount());
+        if (this.postageConfiguration.getDeliveryTimeoutSeconds() > 0) {
+            log.info("lost messages:      " + this.results.getLostMails());
+            log.info("late messages:      " + this.results.getLateMails());
+        }
+        log.info("delivery latency:   " + this.results.getLatencyStatistics().getSummary(LatencyStatistics.METRIC_DELIVERY));
+
+        Iterator<SampleController> iterator = this.sendControllers.iterator();
+        while (iterator.hasNext()) {
+            SampleController sendController = iterator.next();
+            log.info("sending " + sendController.getStatus());
+        }
     }
 
     private void recordData() {
 
+        if (this.saturationSearch != null) startSaturationStep();
+
         Iterator<SampleController> iterator = this.sendControllers.iterator();
         while (iterator.hasNext()) {
             SampleController sendController = iterator.next();
             sendController.runThreaded();
         }
 
-        this.inboundMailingController = new SampleController(this.inboundMailingChecker, this.postageConfiguration.getTestserverPOP3FetchesPerMinute());
-        this.inboundMailingController.runThreaded();
+        startInboundMailingControllers();
+
+        if (this.inboundIdleChecker != null) {
+            this.inboundIdleController = new SampleController(this.inboundIdleChecker, this.postageConfiguration.getTestserverIMAPSessionsPerMinute());
+            this.inboundIdleController.setMaxSamplesInFlight(1);
+            this.inboundIdleController.runThreaded();
+        }
+
+        Iterator<SampleController> imapUserIterator = this.imapUserControllers.iterator();
+        while (imapUserIterator.hasNext()) {
+            imapUserIterator.next().runThreaded();
+        }
 
         this.outboundMailingInterceptorController = new SampleController(this.smtpMailSink, 10, this.postageConfiguration.getTestserverSMTPForwardingWaitSeconds());
         this.outboundMailingInterceptorController.runThreaded();
 
         if (this.jvmResourceSampler != null) {
             this.jvmResourceController = new SampleController(this.jvmResourceSampler, 4);
+            this.jvmResourceController.setMaxSamplesInFlight(1);
             this.jvmResourceController.runThreaded();
         }
 
@@ -292,7 +621,7 @@ public class PostageRunner implements Runnable {
             }
         }
 
-        if (this.currentPhase == PHASE_COMPLETED) {
+        if (this.currentPhase == PHASE_COMPLETED && this.inboundMailingChecker != null) {
             // walk through all internal users and check for un-matched mails
             log.info("checking all internal accounts for unmatched mail...");
             this.inboundMailingChecker.doMatchMailForAllUsers();
@@ -330,28 +659,88 @@ public class PostageRunner implements Runnable {
                 MailSender mailSender = mailSenderIterator.next();
                 int sendPerMinute = mailSender.getSendPerMinute();
 
-                if (sendPerMinute < 1) continue;
-
-                SMTPClient smtpClient = new SMTPClient(this.postageConfiguration.getTestserverHost(),
-                        this.postageConfiguration.getTestserverPortSMTPInbound(),
-                        this.postageConfiguration.getInternalUsers(),
-                        this.postageConfiguration.getExternalUsers(),
-                        this.results,
-                        mailSender
-                );
+                if (sendPerMinute < 1 && mailSender.getIncreaseSendPerMinute() <= 0.0) continue;
+
+                AbstractSMTPClient smtpClient;
+                if (mailSender.isNonBlockingSmtpClient()) {
+                    smtpClient = new NIOSMTPClient(this.postageConfiguration.getTestserverHost(),
+                            this.postageConfiguration.getTestserverPortSMTPInbound(),
+                            this.postageConfiguration.getInternalUsers(),
+                            this.postageConfiguration.getExternalUsers(),
+                            this.results,
+                            mailSender,
+                            createMailIdGenerator()
+                    );
+                } else {
+                    smtpClient = new SMTPClient(this.postageConfiguration.getTestserverHost(),
+                            this.postageConfiguration.getTestserverPortSMTPInbound(),
+                            this.postageConfiguration.getInternalUsers(),
+                            this.postageConfiguration.getExternalUsers(),
+                            this.results,
+                            mailSender,
+                            createMailIdGenerator()
+                    );
+                }
 
                 boolean available = smtpClient.checkAvailability();
                 log.info("availability of inbound mailing " + (available ? "": "NOT ") + "verified");
                 if (!available) continue;
 
                 SampleController sendController = new SampleController(smtpClient, sendPerMinute);
+                sendController.setMaxSamplesInFlight(mailSender.getMaxConcurrent());
+                sendController.setOpenLoop(mailSender.isOpenLoop());
+                if (mailSender.isVirtualThreads()) sendController.setSampleExecutor(SampleScheduler.getVirtualThreadExecutor());
                 this.sendControllers.add(sendController);
+                this.sendControllerMailSenders.put(sendController, mailSender);
             }
         }
 
     }
 
 
+    /**
+     * every sender of the run gets its own shard of the mail ids, so that no two senders generate the same id
+     * @throws StartupException if there are more senders than shards
+     */
+    private MailIdGenerator createMailIdGenerator() throws StartupException {
+        if (this.mailIdShardCount > MailId.MAX_SHARD) {
+            throw new StartupException("more than " + (MailId.MAX_SHARD + 1) + " mail senders configured, mail ids would not be unique");
+        }
+        return new MailIdGenerator(runId, this.mailIdShardCount++);
+    }
+
+    /**
+     * starts one controller per POP3 worker. the configured fetch rate is shared by the workers. it is raised,
+     * if needed to access every account within the maximum poll interval.
+     */
+    private void startInboundMailingControllers() {
+        if (this.inboundMailingChecker == null) return;
+
+        int workers = Math.max(1, this.postageConfiguration.getTestserverPOP3Workers());
+        int maxPollIntervalSeconds = this.postageConfiguration.getTestserverPOP3MaxPollIntervalSeconds();
+        boolean sharded = PostageConfiguration.ACCOUNT_SELECTION_SHARDED.equals(this.postageConfiguration.getTestserverPOP3AccountSelection());
+        int fetchesPerMinute = (int)Math.ceil(this.postageConfiguration.getTestserverPOP3FetchesPerMinute() / (double)workers);
+        if (!sharded) {
+            this.inboundMailingChecker.setAccountSelection(this.postageConfiguration.getTestserverPOP3AccountSelection());
+            int neededPerWorker = (int)Math.ceil(this.inboundMailingChecker.getFetchesPerMinuteForPollInterval(maxPollIntervalSeconds) / (double)workers);
+            fetchesPerMinute = Math.max(fetchesPerMinute, neededPerWorker);
+        }
+
+        for (int worker = 0; worker < workers; worker++) {
+            POP3Client pop3Client = this.inboundMailingChecker;
+            int workerFetchesPerMinute = fetchesPerMinute;
+            if (sharded) {
+                pop3Client = this.inboundMailingChecker.createShard(worker, workers);
+                workerFetchesPerMinute = Math.max(fetchesPerMinute, pop3Client.getFetchesPerMinuteForPollInterval(maxPollIntervalSeconds));
+            }
+            SampleController inboundMailingController = new SampleController(pop3Client, workerFetchesPerMinute);
+            inboundMailingController.setMaxSamplesInFlight(1);
+            inboundMailingController.runThreaded();
+            this.inboundMailingControllers.add(inboundMailingController);
+        }
+        log.info("POP3 fetching started with " + workers + " worker(s) at " + fetchesPerMinute + " or more fetches per minute each");
+    }
+
     /**
      * sets up the part for checking accounts via POP3, which are then aligned with sent test mails
      * @throws StartupException
@@ -364,6 +753,8 @@ public class PostageRunner implements Runnable {
                 this.postageConfiguration.getInternalUsers(),
                 this.results
         );
+        this.inboundMailingChecker.setValidateBody(this.postageConfiguration.isTestserverPOP3ValidateBody());
+        this.inboundMailingChecker.setSessionReuseSeconds(this.postageConfiguration.getTestserverPOP3SessionReuseSeconds());
         this.inboundMailingChecker.checkAvailability();
         boolean available = this.inboundMailingChecker.checkAvailability();
         if (available) {
@@ -371,6 +762,58 @@ public class PostageRunner implements Runnable {
         }
     }
 
+    /**
+     * sets up the IMAP sessions idling on the internal accounts, if configured
+     * @throws StartupException
+     */
+    private void setupInboundIdleChecker() throws StartupException {
+        if (this.postageConfiguration.getTestserverPortIMAP() <= 0) return;
+        if (this.postageConfiguration.getTestserverIMAPSessionsPerMinute() <= 0) return;
+
+        this.inboundIdleChecker = new IMAPIdleClient(this.postageConfiguration.getTestserverHost(),
+                this.postageConfiguration.getTestserverPortIMAP(),
+                this.postageConfiguration.getInternalUsers(),
+                this.results,
+                this.postageConfiguration.getTestserverIMAPMaxSessions()
+        );
+        boolean available = this.inboundIdleChecker.checkAvailability();
+        if (available) {
+            log.info("availability of idling for inbound mailing (IMAP) verified");
+        }
+    }
+
+    /**
+     * sets up the simulated IMAP users of all profiles, working on the internal accounts
+     * @throws StartupException
+     */
+    private void setupIMAPUsers() throws StartupException {
+        if (this.postageConfiguration.getTestserverPortIMAP() <= 0) return;
+
+        Iterator<SendProfile> profileIterator = this.postageConfiguration.getProfiles().iterator();
+        while (profileIterator.hasNext()) {
+            SendProfile sendProfile = profileIterator.next();
+            Iterator<IMAPUserBehaviour> imapUserIterator = sendProfile.imapUserIterator();
+            while (imapUserIterator.hasNext()) {
+                IMAPUserBehaviour imapUserBehaviour = imapUserIterator.next();
+                if (imapUserBehaviour.getSessionsPerMinute() < 1) continue;
+
+                IMAPClient imapClient = new IMAPClient(this.postageConfiguration.getTestserverHost(),
+                        this.postageConfiguration.getTestserverPortIMAP(),
+                        this.postageConfiguration.getInternalUsers(),
+                        this.results,
+                        imapUserBehaviour
+                );
+                boolean available = imapClient.checkAvailability();
+                log.info("availability of IMAP users " + (available ? "": "NOT ") + "verified");
+                if (!available) continue;
+
+                SampleController imapUserController = new SampleController(imapClient, imapUserBehaviour.getSessionsPerMinute());
+                imapUserController.setMaxSamplesInFlight(imapUserBehaviour.getMaxConcurrent());
+                this.imapUserControllers.add(imapUserController);
+            }
+        }
+    }
+
     /**
      * This method makes sure the test accounts exist in the target James Server.
      * If the account does not already exist then the account is created; 
@@ -445,6 +888,22 @@ public class PostageRunner implements Runnable {
     }
 
 
+    private void setupDashboard() throws StartupException {
+        int dashboardPort = this.postageConfiguration.getDashboardPort();
+        if (dashboardPort <= 0) {
+            return;
+        }
+        DashboardServer dashboardServer = new DashboardServer(this, this.results, dashboardPort);
+        dashboardServer.start();
+        this.dashboardServer = dashboardServer;
+    }
+
+    private synchronized void stopDashboard() {
+        if (this.dashboardServer == null) return;
+        this.dashboardServer.stop();
+        this.dashboardServer = null;
+    }
+
     private void setupJMXRemoting() throws StartupException {
         int jmxPort = this.postageConfiguration.getTestserverPortJMXRemoting();
         if (jmxPort <= 0) {
@@ -0,0 +1,161 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.james.postage.SamplingException;
+import org.apache.james.postage.StartupException;
+import org.apache.james.postage.configuration.MailSender;
+import org.apache.james.postage.execution.TimedSampler;
+import org.apache.james.postage.result.MailIdGenerator;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.PostageRunnerResult;
+import org.apache.james.postage.user.UserList;
+
+/**
+ * common part of all SMTP clients: choosing sender and recipients and setting up the record for every mail.<br/>
+ * @see SMTPClient for sending with JavaMail
+ * @see NIOSMTPClient for sending many mails at the same time using non-blocking IO
+ */
+public abstract class AbstractSMTPClient implements TimedSampler {
+
+    protected String host;
+    protected int port;
+    protected UserList internalUsers;
+    protected UserList externalUsers;
+    protected PostageRunnerResult results;
+    private final MailIdGenerator mailIdGenerator;
+    protected MailSender mailSender;
+    private final Session mailSession;
+
+    public AbstractSMTPClient(String host, int port, UserList internalUsers, UserList externalUsers, PostageRunnerResult results, MailSender mailSender, MailIdGenerator mailIdGenerator) {
+        this.host = host;
+        this.port = port;
+        this.internalUsers = internalUsers;
+        this.externalUsers = externalUsers;
+        this.mailSender = mailSender;
+        this.results = results;
+        this.mailIdGenerator = mailIdGenerator;
+        this.mailSession = createMailSession();
+        this.results.registerProfile(this.mailIdGenerator.getShard(), mailSender.getParentProfile().getName());
+    }
+
+    /**
+     * checks, if the configured SMTP service is accessible by sending a startup check mail
+     */
+    public abstract boolean checkAvailability() throws StartupException;
+
+    public void doSample() throws SamplingException {
+        doSample(0);
+    }
+
+    /**
+     * releases connections kept open for further mails. called after sending has been stopped.
+     */
+    public void close() {
+        ; // nothing kept open by default
+    }
+
+    /**
+     * creates the record for a new mail and adds it to the results to be matched later on
+     * @param timeDue when the mail was due to be sent. recorded for open-loop load, ignored if 0
+     */
+    protected MailProcessingRecord createMailProcessingRecord(long timeDue) {
+        MailProcessingRecord mailProcessingRecord = new MailProcessingRecord();
+        mailProcessingRecord.setMailId(this.mailIdGenerator.next());
+        if (this.mailSender.isOpenLoop()) mailProcessingRecord.setTimeSendIntended(timeDue);
+        this.results.addNewMailRecord(mailProcessingRecord);
+        mailProcessingRecord.setTimeConnectStart(System.currentTimeMillis());
+        return mailProcessingRecord;
+    }
+
+    protected void setMailFromAndTo(Message message, MailProcessingRecord mailProcessingRecord) throws MessagingException {
+
+        String senderUsername;
+        String senderMailAddress;
+        if (this.mailSender.getParentProfile().isSourceInternal()) {
+            senderUsername = this.internalUsers.getRandomUsername();
+        } else {
+            senderUsername = this.externalUsers.getRandomUsername();
+        }
+        if (this.mailSender.getParentProfile().isSourceInternal()) {
+            senderMailAddress = this.internalUsers.getEmailAddress(senderUsername);
+        } else {
+            senderMailAddress = this.externalUsers.getEmailAddress(senderUsername);
+        }
+        mailProcessingRecord.setSender(senderUsername);
+        mailProcessingRecord.setSenderMailAddress(senderMailAddress);
+        message.setFrom(new InternetAddress(senderMailAddress));
+
+        UserList recipientUsers = this.mailSender.getParentProfile().isTargetInternal() ? this.internalUsers : this.externalUsers;
+        int recipientCount = this.mailSender.getRandomRecipientCount();
+        List<String> recepientUsernames = new ArrayList<String>(recipientCount);
+        // recipients must be different, give up if the user list does not contain enough
+        for (int attempt = 0; attempt < recipientCount * 10 && recepientUsernames.size() < recipientCount; attempt++) {
+            String recepientUsername = recipientUsers.getRandomUsername();
+            if (recepientUsername != null && !recepientUsernames.contains(recepientUsername)) recepientUsernames.add(recepientUsername);
+        }
+
+        String[] recepientMailAddresses = new String[recepientUsernames.size()];
+        for (int i = 0; i < recepientMailAddresses.length; i++) {
+            recepientMailAddresses[i] = recipientUsers.getEmailAddress(recepientUsernames.get(i));
+            message.addRecipient(Message.RecipientType.TO, new InternetAddress(recepientMailAddresses[i]));
+        }
+        if (recepientMailAddresses.length == 0) {
+            throw new MessagingException("no recipient available");
+        } else if (recepientMailAddresses.length == 1) {
+            mailProcessingRecord.setReceiver(recepientUsernames.get(0));
+            mailProcessingRecord.setReceiverMailAddress(recepientMailAddresses[0]);
+        } else {
+            mailProcessingRecord.setFanOutReceivers(recepientUsernames.toArray(new String[0]), recepientMailAddresses);
+        }
+    }
+
+    /**
+     * every client has its own session, so clients sending to different servers do not interfere.
+     * the system properties are neither used nor changed.
+     */
+    private Session createMailSession() {
+        Properties props = new Properties();
+        props.put("mail.transport.protocol", "smtp");
+        props.put("mail.smtp.host", this.host);
+        props.put("mail.smtp.port", Integer.toString(this.port));
+        return Session.getInstance(props);
+    }
+
+    protected Session getMailSession() {
+        return this.mailSession;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [host=" + host + ", port=" + port + ", profile="
+               + mailSender.getParentProfile().getName() + ", subject=" + mailSender.getSubject() + "]";
+    }
+}
@@ -0,0 +1,222 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.SamplingException;
+import org.apache.james.postage.StartupException;
+import org.apache.james.postage.configuration.IMAPUserBehaviour;
+import org.apache.james.postage.execution.Sampler;
+import org.apache.james.postage.mail.HeaderConstants;
+import org.apache.james.postage.result.IMAPCommandRecord;
+import org.apache.james.postage.result.PostageRunnerResult;
+import org.apache.james.postage.user.UserList;
+
+/**
+ * acts like a user working with a MUA on the internal accounts, generating IMAP load besides the mail
+ * being delivered.<br/>
+ * every sample logs in as a random internal user, selects the INBOX and issues a random mix of FETCH, SEARCH,
+ * STORE and EXPUNGE commands as configured by the IMAPUserBehaviour. every command is recorded with its
+ * duration.<br/>
+ * STORE only toggles the \Seen and \Flagged flags, it never marks mail as deleted, so that test mail still
+ * reaches the inbound checkers.
+ */
+public class IMAPClient implements Sampler {
+
+    private static Log log = LogFactory.getLog(IMAPClient.class);
+
+    private static final String COMMAND_FETCH = "FETCH";
+    private static final String COMMAND_SEARCH = "SEARCH";
+    private static final String COMMAND_STORE = "STORE";
+    private static final String COMMAND_EXPUNGE = "EXPUNGE";
+
+    private static final String[] SEARCH_CRITERIA = {"ALL", "UNSEEN", "SEEN", "FLAGGED", "LARGER 10000",
+                                                     "SMALLER 10000", "SUBJECT \"test\"",
+                                                     "HEADER " + HeaderConstants.MAIL_ID_HEADER + " \"\""};
+
+    private String host;
+    private int port;
+    private UserList internalUsers;
+    private PostageRunnerResult results;
+    private IMAPUserBehaviour userBehaviour;
+    private Random random = new Random();
+
+    public IMAPClient(String host, int port, UserList internalUsers, PostageRunnerResult results, IMAPUserBehaviour userBehaviour) {
+        this.host = host;
+        this.port = port;
+        this.internalUsers = internalUsers;
+        this.results = results;
+        this.userBehaviour = userBehaviour;
+    }
+
+    /**
+     * checks, if the configured IMAP service is accessable
+     */
+    public boolean checkAvailability() throws StartupException {
+        String username = this.internalUsers.getRandomUsername();
+        IMAPConnection connection = new IMAPConnection();
+        try {
+            connection.connect(this.host, this.port);
+            String status = connection.execute("LOGIN " + quote(this.internalUsers.getEmailAddress(username)) + " " + quote(this.internalUsers.getPassword()));
+            if (!IMAPCommandRecord.STATUS_OK.equals(status)) {
+                throw new StartupException("IMAP login failed for user " + username + " with " + this.toString());
+            }
+            connection.execute("LOGOUT");
+        } catch (IOException e) {
+            throw new StartupException("IMAP service not available with " + this.toString(), e);
+        } finally {
+            connection.close();
+        }
+        return true;
+    }
+
+    /**
+     * runs one session of a random internal user
+     */
+    public void doSample() throws SamplingException {
+        String username = this.internalUsers.getRandomUsername();
+        IMAPConnection connection = new IMAPConnection();
+        try {
+            connection.connect(this.host, this.port);
+            if (!IMAPCommandRecord.STATUS_OK.equals(record(connection, username, "LOGIN", "LOGIN " + quote(this.internalUsers.getEmailAddress(username)) + " " + quote(this.internalUsers.getPassword())))) {
+                throw new SamplingException("IMAP login failed for user " + username);
+            }
+            if (!IMAPCommandRecord.STATUS_OK.equals(record(connection, username, "SELECT", "SELECT INBOX"))) {
+                throw new SamplingException("IMAP INBOX could not be selected for user " + username);
+            }
+            int exists = parseExists(connection.getUntaggedResponses());
+
+            Iterator<String> commands = getRandomCommands().iterator();
+            while (commands.hasNext()) {
+                String command = commands.next();
+                if (COMMAND_FETCH.equals(command)) {
+                    if (exists == 0) continue;
+                    record(connection, username, COMMAND_FETCH, "FETCH " + getRandomRange(exists) + " (ENVELOPE FLAGS RFC822.SIZE)");
+                } else if (COMMAND_SEARCH.equals(command)) {
+                    String criteria = SEARCH_CRITERIA[this.random.nextInt(SEARCH_CRITERIA.length)];
+                    record(connection, username, COMMAND_SEARCH, "SEARCH " + criteria);
+                } else if (COMMAND_STORE.equals(command)) {
+                    if (exists == 0) continue;
+                    String flags = this.random.nextBoolean() ? "+FLAGS.SILENT" : "-FLAGS.SILENT";
+                    record(connection, username, COMMAND_STORE, "STORE " + getRandomRange(exists) + " " + flags + " (\\Seen \\Flagged)");
+                } else if (COMMAND_EXPUNGE.equals(command)) {
+                    record(connection, username, COMMAND_EXPUNGE, "EXPUNGE");
+                    exists -= countExpunged(connection.getUntaggedResponses());
+                }
+            }
+
+            record(connection, username, "LOGOUT", "LOGOUT");
+        } catch (IOException e) {
+            throw new SamplingException("IMAP session failed for user " + username, e);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * issues the command and records its duration and outcome
+     * @return the status of the command
+     */
+    private String record(IMAPConnection connection, String username, String commandName, String command) throws IOException {
+        IMAPCommandRecord commandRecord = new IMAPCommandRecord(System.currentTimeMillis(),
+                this.userBehaviour.getParentProfile().getName(), username, commandName);
+        long start = System.nanoTime();
+        try {
+            String status = connection.execute(command);
+            commandRecord.setDurationMicros((System.nanoTime() - start) / 1000);
+            commandRecord.setStatus(status);
+            commandRecord.setUntaggedResponses(connection.getUntaggedResponses().size());
+            if (!IMAPCommandRecord.STATUS_OK.equals(status)) log.debug(commandName + " for user " + username + " returned " + status);
+            return status;
+        } catch (IOException e) {
+            commandRecord.setDurationMicros((System.nanoTime() - start) / 1000);
+            commandRecord.setStatus(IMAPCommandRecord.STATUS_ERROR);
+            throw e;
+        } finally {
+            this.results.addIMAPCommandResult(commandRecord);
+        }
+    }
+
+    private List<String> getRandomCommands() {
+        List<String> commands = new ArrayList<String>();
+        addCommands(commands, COMMAND_FETCH, this.userBehaviour.getFetchesPerSession());
+        addCommands(commands, COMMAND_SEARCH, this.userBehaviour.getSearchesPerSession());
+        addCommands(commands, COMMAND_STORE, this.userBehaviour.getStoresPerSession());
+        addCommands(commands, COMMAND_EXPUNGE, this.userBehaviour.getExpungesPerSession());
+        Collections.shuffle(commands, this.random);
+        return commands;
+    }
+
+    private void addCommands(List<String> commands, String command, double perSession) {
+        int count = IMAPUserBehaviour.getRandomCommandCount(perSession);
+        for (int i = 0; i < count; i++) commands.add(command);
+    }
+
+    /**
+     * @return a sequence set of at most fetch-size messages within the mailbox
+     */
+    private String getRandomRange(int exists) {
+        int size = Math.max(1, Math.min(this.userBehaviour.getFetchSize(), exists));
+        int first = 1 + this.random.nextInt(exists - size + 1);
+        int last = first + size - 1;
+        return first == last ? "" + first : first + ":" + last;
+    }
+
+    private int parseExists(List<String> untaggedResponses) {
+        Iterator<String> iterator = untaggedResponses.iterator();
+        while (iterator.hasNext()) {
+            String response = iterator.next();
+            if (!response.endsWith(" EXISTS")) continue;
+            try {
+                return Integer.parseInt(response.substring(2, response.length() - " EXISTS".length()).trim());
+            } catch (NumberFormatException e) {
+                log.debug("could not parse " + response);
+            }
+        }
+        return 0;
+    }
+
+    private int countExpunged(List<String> untaggedResponses) {
+        int count = 0;
+        Iterator<String> iterator = untaggedResponses.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().endsWith(" EXPUNGE")) count++;
+        }
+        return count;
+    }
+
+    private String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public String toString() {
+        return "IMAPClient[" + this.host + ":" + this.port + "]";
+    }
+}
@@ -0,0 +1,153 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.postage.result.IMAPCommandRecord;
+
+/**
+ * a plain blocking IMAP connection, issuing one tagged command at a time and collecting its responses.<br/>
+ * literals sent by the server are read and kept with the response line they belong to.
+ */
+class IMAPConnection {
+
+    private static final int SO_TIMEOUT_MILLIS = 5 * 60 * 1000;
+
+    private Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    private int tagCount = 0;
+
+    private String status;
+    private List<String> untaggedResponses = new ArrayList<String>();
+
+    public void connect(String host, int port) throws IOException {
+        this.socket = new Socket();
+        this.socket.connect(new InetSocketAddress(host, port), SO_TIMEOUT_MILLIS);
+        this.socket.setSoTimeout(SO_TIMEOUT_MILLIS);
+        this.in = new BufferedInputStream(this.socket.getInputStream());
+        this.out = this.socket.getOutputStream();
+
+        String greeting = readLine();
+        if (greeting == null || !greeting.startsWith("* OK")) {
+            throw new IOException("unexpected IMAP greeting: " + greeting);
+        }
+    }
+
+    /**
+     * sends the command and reads all responses until the tagged one
+     * @return one of IMAPCommandRecord.STATUS_OK, STATUS_NO or STATUS_BAD
+     */
+    public String execute(String command) throws IOException {
+        String tag = "P" + (++this.tagCount);
+        this.untaggedResponses.clear();
+        this.out.write((tag + " " + command + "\r\n").getBytes("ISO-8859-1"));
+        this.out.flush();
+
+        while (true) {
+            String line = readResponse();
+            if (line == null) throw new IOException("connection closed by server during " + command);
+            if (line.startsWith(tag + " ")) {
+                String response = line.substring(tag.length() + 1);
+                if (response.startsWith("OK")) this.status = IMAPCommandRecord.STATUS_OK;
+                else if (response.startsWith("NO")) this.status = IMAPCommandRecord.STATUS_NO;
+                else this.status = IMAPCommandRecord.STATUS_BAD;
+                return this.status;
+            }
+            if (line.startsWith("* ")) this.untaggedResponses.add(line);
+        }
+    }
+
+    public String getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return the untagged responses received for the last command
+     */
+    public List<String> getUntaggedResponses() {
+        return this.untaggedResponses;
+    }
+
+    public void close() {
+        try {
+            if (this.socket != null) this.socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * reads one response line, including the literals it contains
+     */
+    private String readResponse() throws IOException {
+        String line = readLine();
+        if (line == null) return null;
+        StringBuffer response = new StringBuffer(line);
+        while (line.endsWith("}")) {
+            int literalStart = line.lastIndexOf('{');
+            if (literalStart < 0) break;
+            int literalSize;
+            try {
+                literalSize = Integer.parseInt(line.substring(literalStart + 1, line.length() - 1));
+            } catch (NumberFormatException e) {
+                break;
+            }
+            byte[] literal = new byte[literalSize];
+            int read = 0;
+            while (read < literalSize) {
+                int count = this.in.read(literal, read, literalSize - read);
+                if (count < 0) return null;
+                read += count;
+            }
+            response.append("\r\n").append(new String(literal, "ISO-8859-1"));
+            line = readLine();
+            if (line == null) return null;
+            response.append(line);
+        }
+        return response.toString();
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int c;
+        while ((c = this.in.read()) >= 0) {
+            if (c == '\n') {
+                byte[] bytes = line.toByteArray();
+                int length = bytes.length;
+                if (length > 0 && bytes[length - 1] == '\r') length--;
+                return new String(bytes, 0, length, "ISO-8859-1");
+            }
+            line.write(c);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,298 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.SamplingException;
+import org.apache.james.postage.StartupException;
+import org.apache.james.postage.execution.Sampler;
+import org.apache.james.postage.result.PostageRunnerResult;
+import org.apache.james.postage.user.UserList;
+
+/**
+ * acts like a MUA keeping IMAP sessions open, being notified of new mail using IDLE.<br/>
+ * every sample opens the session for one more internal account, until every account (or the configured
+ * maximum) has one. closed sessions are opened again by later samples. all sessions are served by a single
+ * selector thread, so that thousands of idling sessions do not need a thread each.<br/>
+ * the time new mail was announced by the server is recorded as the time it was received, independent of
+ * any polling interval.
+ */
+public class IMAPIdleClient implements Sampler {
+
+    private static Log log = LogFactory.getLog(IMAPIdleClient.class);
+
+    private static final long STARTUP_CHECK_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long RESPONSE_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final AtomicInteger selectorThreadCount = new AtomicInteger(0);
+
+    private String host;
+    private int port;
+    private UserList internalUsers;
+    private PostageRunnerResult results;
+    private int maxSessions;
+
+    private InetSocketAddress address;
+    private Selector selector = null;
+    private volatile boolean closing = false;
+    private List<String> accounts = null;
+    private int accountCursor = 0;
+    private final Set<String> accountsWithSession = Collections.synchronizedSet(new HashSet<String>());
+    private final Queue<IMAPIdleSession> sessionsToStart = new ConcurrentLinkedQueue<IMAPIdleSession>();
+    private final AtomicInteger readySessions = new AtomicInteger(0);
+
+    /**
+     * @param maxSessions how many accounts are kept open at most, 0 for all internal accounts
+     */
+    public IMAPIdleClient(String host, int port, UserList internalUsers, PostageRunnerResult results, int maxSessions) {
+        this.host = host;
+        this.port = port;
+        this.internalUsers = internalUsers;
+        this.results = results;
+        this.maxSessions = maxSessions;
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * checks, if the configured IMAP service is accessable
+     */
+    public boolean checkAvailability() throws StartupException {
+        String username = this.internalUsers.getRandomUsername();
+        IMAPIdleSession session = createSession(username, true);
+        try {
+            startSession(session);
+            if (!session.awaitCompletion(STARTUP_CHECK_TIMEOUT_MILLIS)) {
+                throw new StartupException("IMAP service did not respond in time with " + this.toString());
+            }
+        } catch (StartupException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StartupException("IMAP service not available with " + this.toString(), e);
+        }
+        if (session.getFailure() != null) {
+            throw new StartupException("IMAP service not available with " + this.toString() + ": " + session.getFailure());
+        }
+        return true;
+    }
+
+    /**
+     * opens the session for the next account not having one
+     */
+    public void doSample() throws SamplingException {
+        if (this.closing) return;
+        String username = nextUsernameWithoutSession();
+        if (username == null) return;
+
+        try {
+            startSession(createSession(username, false));
+        } catch (IOException e) {
+            this.accountsWithSession.remove(username);
+            throw new SamplingException("sample failed", e);
+        }
+    }
+
+    private synchronized String nextUsernameWithoutSession() {
+        if (this.accounts == null) {
+            this.accounts = new ArrayList<String>();
+            Iterator<String> usernames = this.internalUsers.getUsernames();
+            while (usernames.hasNext()) {
+                this.accounts.add(usernames.next());
+                if (this.maxSessions > 0 && this.accounts.size() >= this.maxSessions) break;
+            }
+        }
+        for (int i = 0; i < this.accounts.size(); i++) {
+            String username = this.accounts.get(this.accountCursor++ % this.accounts.size());
+            if (this.accountsWithSession.add(username)) return username;
+        }
+        return null;
+    }
+
+    private IMAPIdleSession createSession(String username, boolean checkOnly) {
+        return new IMAPIdleSession(this, this.results, username, this.internalUsers.getEmailAddress(username),
+                                   this.internalUsers.getPassword(), this.internalUsers.getEmailAddress(username),
+                                   checkOnly);
+    }
+
+    private void startSession(IMAPIdleSession session) throws IOException {
+        Selector selector;
+        synchronized (this) {
+            selector = getSelector();
+            this.sessionsToStart.add(session);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * called by the session when it is idling for the first time
+     */
+    void sessionReady(IMAPIdleSession session) {
+        int ready = this.readySessions.incrementAndGet();
+        if (ready % 100 == 0) log.info(ready + " IMAP sessions idling");
+    }
+
+    /**
+     * called by the session when a received mail could not be processed
+     */
+    void mailFailed(IMAPIdleSession session, Exception e) {
+        log.warn("error processing imap mail for user " + session.getUsername(), e);
+    }
+
+    /**
+     * called by the session when its connection has been closed
+     */
+    void sessionClosed(IMAPIdleSession session) {
+        if (session.getFailure() != null) {
+            log.warn("imap session for user " + session.getUsername() + " failed: " + session.getFailure());
+        }
+        if (session.isCheckOnly()) return;
+        if (session.isReady()) this.readySessions.decrementAndGet();
+        this.accountsWithSession.remove(session.getUsername());
+    }
+
+    public int getOpenSessions() {
+        return this.accountsWithSession.size();
+    }
+
+    /**
+     * logs out all sessions. no more sessions are opened afterwards. the selector thread ends when all sessions
+     * are closed, sessions not logged out within CLOSE_TIMEOUT_MILLIS are closed by force.
+     */
+    public void close() {
+        this.closing = true;
+        Selector selector;
+        synchronized (this) {
+            selector = this.selector;
+        }
+        if (selector != null) selector.wakeup();
+    }
+
+    /**
+     * the selector and its thread are created when first needed
+     */
+    private synchronized Selector getSelector() throws IOException {
+        if (this.selector != null && !this.selector.isOpen()) throw new IOException("client closed");
+        if (this.selector == null) {
+            this.selector = Selector.open();
+            Thread selectorThread = new Thread(new Runnable() {
+                public void run() {
+                    runSelector();
+                }
+            }, "postage-imap-idle-" + selectorThreadCount.incrementAndGet());
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+        }
+        return this.selector;
+    }
+
+    private void runSelector() {
+        long lastTimerCheck = System.currentTimeMillis();
+        long closeDeadline = -1;
+        while (true) {
+            try {
+                IMAPIdleSession sessionToStart;
+                while ((sessionToStart = this.sessionsToStart.poll()) != null) {
+                    if (this.closing) sessionToStart.fail("client closed");
+                    else sessionToStart.start(this.selector, this.address);
+                }
+
+                if (this.closing) {
+                    long now = System.currentTimeMillis();
+                    if (closeDeadline < 0) {
+                        closeDeadline = now + CLOSE_TIMEOUT_MILLIS;
+                        Iterator<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys()).iterator();
+                        while (keys.hasNext()) {
+                            ((IMAPIdleSession)keys.next().attachment()).logout();
+                        }
+                    }
+                    if (this.selector.keys().isEmpty()) break;
+                    if (now >= closeDeadline) {
+                        log.warn(this.selector.keys().size() + " IMAP sessions not logged out in time when closing " + this);
+                        break;
+                    }
+                }
+
+                this.selector.select(SELECT_TIMEOUT_MILLIS);
+
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((IMAPIdleSession)key.attachment()).handle();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTimerCheck >= SELECT_TIMEOUT_MILLIS) {
+                    lastTimerCheck = now;
+                    Iterator<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys()).iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        if (!key.isValid()) continue;
+                        ((IMAPIdleSession)key.attachment()).checkTimers(now, RESPONSE_TIMEOUT_MILLIS);
+                    }
+                }
+            } catch (IOException e) {
+                log.error("selector failed", e);
+            } catch (RuntimeException e) {
+                log.error("unexpected error handling IMAP connections", e);
+            }
+        }
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        synchronized (this) {
+            IMAPIdleSession sessionNotStarted;
+            while ((sessionNotStarted = this.sessionsToStart.poll()) != null) {
+                sessionNotStarted.fail("client closed");
+            }
+            Iterator<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys()).iterator();
+            while (keys.hasNext()) {
+                ((IMAPIdleSession)keys.next().attachment()).fail("client closed");
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                log.debug("failed to close selector", e);
+            }
+        }
+    }
+
+    public String toString() {
+        return "IMAPIdleClient[" + this.host + ":" + this.port + "]";
+    }
+}
@@ -0,0 +1,539 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.postage.mail.HeaderConstants;
+import org.apache.james.postage.mail.MailMatchingUtils;
+import org.apache.james.postage.mail.StreamedMail;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.PostageRunnerResult;
+
+/**
+ * the state of one non-blocking IMAP connection, idling on the INBOX of one account (RFC 2177).<br/>
+ * as soon as the server announces new mail (EXISTS), IDLE is ended and only the Postage headers of the new
+ * mails are fetched. matched mails are deleted, then the session is idling again.<br/>
+ * all methods besides the constructor and awaitCompletion() are called by the selector thread only.
+ */
+class IMAPIdleSession {
+
+    private static final int STATE_CONNECT    = 0;
+    private static final int STATE_GREETING   = 1;
+    private static final int STATE_LOGIN      = 2;
+    private static final int STATE_SELECT     = 3;
+    private static final int STATE_FETCH      = 4;
+    private static final int STATE_STORE      = 5;
+    private static final int STATE_EXPUNGE    = 6;
+    private static final int STATE_IDLE_START = 7;
+    private static final int STATE_IDLE       = 8;
+    private static final int STATE_IDLE_DONE  = 9;
+    private static final int STATE_LOGOUT     = 10;
+    private static final int STATE_CLOSED     = 11;
+
+    /**
+     * servers may drop idling clients after 30 minutes, so IDLE is restarted well before
+     */
+    private static final long IDLE_RESTART_MILLIS = 10 * 60 * 1000;
+
+    private static final int MAX_RESPONSE_LINE_LENGTH = 64 * 1024;
+
+    private static final String FETCH_ITEMS = "(RFC822.SIZE BODY.PEEK[HEADER.FIELDS ("
+                                              + HeaderConstants.MAIL_ID_HEADER + " "
+                                              + HeaderConstants.JAMES_POSTAGE_HEADER + " Subject)])";
+
+    private final IMAPIdleClient client;
+    private final PostageRunnerResult results;
+    private final String username;
+    private final String loginName;
+    private final String password;
+    private final String receiverMailAddress;
+    private final boolean checkOnly;
+
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+    private final StringBuffer responseLine = new StringBuffer();
+    private final StringBuffer response = new StringBuffer();
+    private final List<byte[]> literals = new ArrayList<byte[]>();
+    private ByteArrayOutputStream literal = null;
+    private int literalRemaining = 0;
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    private int state = STATE_CONNECT;
+    private int tagCount = 0;
+    private String pendingTag = null;
+    private int exists = 0;
+    private int fetched = 0;
+    private int fetchingUpTo = 0;
+    private boolean ready = false;
+    private long timeExists = 0;
+    private long timeExistsFetching = 0;
+    private long timeIdleStart = 0;
+    private final List<Integer> matchedMessages = new ArrayList<Integer>();
+    private long lastActivity = System.currentTimeMillis();
+    private String failure = null;
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    /**
+     * @param checkOnly if TRUE, the session logs out after selecting the INBOX
+     */
+    IMAPIdleSession(IMAPIdleClient client, PostageRunnerResult results, String username, String loginName,
+                    String password, String receiverMailAddress, boolean checkOnly) {
+        this.client = client;
+        this.results = results;
+        this.username = username;
+        this.loginName = loginName;
+        this.password = password;
+        this.receiverMailAddress = receiverMailAddress;
+        this.checkOnly = checkOnly;
+    }
+
+    String getUsername() {
+        return this.username;
+    }
+
+    /**
+     * @return TRUE, if the session only checks the availability of the server
+     */
+    boolean isCheckOnly() {
+        return this.checkOnly;
+    }
+
+    /**
+     * @return TRUE, if the INBOX has been selected
+     */
+    boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * initiates connecting to the server. the session is then driven by the selector.
+     */
+    void start(Selector selector, InetSocketAddress address) {
+        try {
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            if (this.channel.connect(address)) {
+                this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+                this.state = STATE_GREETING;
+            } else {
+                this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            fail("could not connect: " + e.getMessage());
+        }
+    }
+
+    /**
+     * called by the selector whenever the connection is ready for the operations of interest
+     */
+    void handle() {
+        try {
+            if (this.key.isValid() && this.key.isConnectable()) {
+                this.channel.finishConnect();
+                this.state = STATE_GREETING;
+                this.key.interestOps(SelectionKey.OP_READ);
+                this.lastActivity = System.currentTimeMillis();
+            }
+            if (this.key.isValid() && this.key.isReadable()) read();
+            if (this.key.isValid() && this.key.isWritable()) flush();
+        } catch (IOException e) {
+            fail("connection failed in state " + this.state + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * called by the selector regularly. restarts IDLE before the server drops the session and fails
+     * sessions waiting too long for a response.
+     */
+    void checkTimers(long now, long responseTimeoutMillis) {
+        if (this.state == STATE_IDLE) {
+            if (now - this.timeIdleStart > IDLE_RESTART_MILLIS) endIdle();
+        } else if (this.state != STATE_CLOSED && now - this.lastActivity > responseTimeoutMillis) {
+            fail("timed out in state " + this.state);
+        }
+    }
+
+    /**
+     * logs out, called when the client is closed
+     */
+    void logout() {
+        if (this.state == STATE_CLOSED || this.state == STATE_LOGOUT) return;
+        if (this.state == STATE_CONNECT || this.state == STATE_GREETING) {
+            close();
+            return;
+        }
+        if (this.state == STATE_IDLE) send("DONE");
+        sendCommand("LOGOUT");
+        this.state = STATE_LOGOUT;
+    }
+
+    private void read() throws IOException {
+        int count = this.channel.read(this.readBuffer);
+        if (count < 0) {
+            if (this.state == STATE_LOGOUT) close();
+            else fail("connection closed by server in state " + this.state);
+            return;
+        }
+        this.lastActivity = System.currentTimeMillis();
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining() && this.state != STATE_CLOSED) {
+            if (this.literalRemaining > 0) {
+                int length = Math.min(this.literalRemaining, this.readBuffer.remaining());
+                byte[] bytes = new byte[length];
+                this.readBuffer.get(bytes);
+                this.literal.write(bytes, 0, length);
+                this.literalRemaining -= length;
+                if (this.literalRemaining == 0) this.literals.add(this.literal.toByteArray());
+                continue;
+            }
+            char c = (char)(this.readBuffer.get() & 0xff);
+            if (c == '\n') {
+                String line = this.responseLine.toString();
+                this.responseLine.setLength(0);
+                lineReceived(line);
+            } else if (c != '\r') {
+                if (this.responseLine.length() >= MAX_RESPONSE_LINE_LENGTH) {
+                    fail("response line too long");
+                    return;
+                }
+                this.responseLine.append(c);
+            }
+        }
+        this.readBuffer.clear();
+    }
+
+    /**
+     * a line ending with a literal announcement {n} is continued after the literal
+     */
+    private void lineReceived(String line) {
+        this.response.append(line);
+        if (line.endsWith("}")) {
+            int open = line.lastIndexOf('{');
+            if (open >= 0) {
+                try {
+                    this.literalRemaining = Integer.parseInt(line.substring(open + 1, line.length() - 1));
+                    this.literal = new ByteArrayOutputStream(this.literalRemaining);
+                    if (this.literalRemaining == 0) this.literals.add(new byte[0]);
+                    return;
+                } catch (NumberFormatException e) {
+                    ; // not a literal
+                }
+            }
+        }
+        String completeResponse = this.response.toString();
+        List<byte[]> completeLiterals = new ArrayList<byte[]>(this.literals);
+        this.response.setLength(0);
+        this.literals.clear();
+        responseReceived(completeResponse, completeLiterals);
+    }
+
+    private void responseReceived(String response, List<byte[]> literals) {
+        if (response.startsWith("+")) {
+            if (this.state == STATE_IDLE_START) {
+                this.state = STATE_IDLE;
+                this.timeIdleStart = System.currentTimeMillis();
+                // mail may have arrived while IDLE was started
+                if (this.exists > this.fetched) endIdle();
+            }
+            return;
+        }
+        if (response.startsWith("* ")) {
+            untaggedReceived(response, literals);
+            return;
+        }
+        int separator = response.indexOf(' ');
+        if (separator < 0 || !response.substring(0, separator).equals(this.pendingTag)) {
+            if (this.state == STATE_LOGOUT) return; // completing a command interrupted by logging out
+            fail("unexpected response in state " + this.state + ": " + response);
+            return;
+        }
+        this.pendingTag = null;
+        boolean ok = response.substring(separator + 1).toUpperCase().startsWith("OK");
+        taggedReceived(ok, response);
+    }
+
+    private void untaggedReceived(String response, List<byte[]> literals) {
+        if (this.state == STATE_GREETING) {
+            if (!response.toUpperCase().startsWith("* OK")) {
+                fail("unexpected greeting: " + response);
+                return;
+            }
+            sendCommand("LOGIN " + quote(this.loginName) + " " + quote(this.password));
+            this.state = STATE_LOGIN;
+            return;
+        }
+        String[] tokens = response.split(" ", 4);
+        if (tokens.length < 3) return;
+        int number;
+        try {
+            number = Integer.parseInt(tokens[1]);
+        } catch (NumberFormatException e) {
+            return; // not a message status update
+        }
+        String type = tokens[2].toUpperCase();
+        if (type.equals("EXISTS")) {
+            boolean newMail = number > this.exists;
+            this.exists = number;
+            if (newMail && this.ready) {
+                if (this.timeExists == 0) this.timeExists = System.currentTimeMillis();
+                if (this.state == STATE_IDLE) endIdle();
+            }
+        } else if (type.equals("EXPUNGE")) {
+            this.exists--;
+            if (number <= this.fetched) this.fetched--;
+        } else if (type.equals("FETCH") && !literals.isEmpty()) {
+            headersReceived(number, response, literals.get(0));
+        }
+    }
+
+    private void taggedReceived(boolean ok, String response) {
+        switch (this.state) {
+            case STATE_LOGIN:
+                if (!ok) {
+                    fail("login failed for " + this.loginName + ": " + response);
+                    return;
+                }
+                sendCommand("SELECT INBOX");
+                this.state = STATE_SELECT;
+                break;
+            case STATE_SELECT:
+                if (!ok) {
+                    fail("INBOX not selected: " + response);
+                    return;
+                }
+                if (this.checkOnly) {
+                    sendCommand("LOGOUT");
+                    this.state = STATE_LOGOUT;
+                    return;
+                }
+                this.ready = true;
+                this.client.sessionReady(this);
+                fetchOrIdle();
+                break;
+            case STATE_FETCH:
+                if (!ok) {
+                    fail("FETCH failed: " + response);
+                    return;
+                }
+                this.fetched = Math.max(this.fetched, this.fetchingUpTo);
+                if (this.matchedMessages.isEmpty()) {
+                    fetchOrIdle();
+                    return;
+                }
+                StringBuffer sequenceSet = new StringBuffer();
+                for (int i = 0; i < this.matchedMessages.size(); i++) {
+                    if (i > 0) sequenceSet.append(',');
+                    sequenceSet.append(this.matchedMessages.get(i));
+                }
+                this.matchedMessages.clear();
+                sendCommand("STORE " + sequenceSet + " +FLAGS.SILENT (\\Deleted)");
+                this.state = STATE_STORE;
+                break;
+            case STATE_STORE:
+                if (!ok) {
+                    fail("deleting mail failed: " + response);
+                    return;
+                }
+                sendCommand("EXPUNGE");
+                this.state = STATE_EXPUNGE;
+                break;
+            case STATE_EXPUNGE:
+                if (!ok) {
+                    fail("EXPUNGE failed: " + response);
+                    return;
+                }
+                fetchOrIdle();
+                break;
+            case STATE_IDLE_START:
+            case STATE_IDLE_DONE:
+                if (!ok) {
+                    fail("IDLE failed: " + response);
+                    return;
+                }
+                fetchOrIdle();
+                break;
+            case STATE_LOGOUT:
+                close();
+                break;
+            default:
+                fail("unexpected response in state " + this.state + ": " + response);
+        }
+    }
+
+    /**
+     * fetches the headers of all mail not yet looked at, or starts idling if there is none
+     */
+    private void fetchOrIdle() {
+        if (this.exists > this.fetched) {
+            this.fetchingUpTo = this.exists;
+            this.timeExistsFetching = this.timeExists;
+            this.timeExists = 0;
+            sendCommand("FETCH " + (this.fetched + 1) + ":" + this.exists + " " + FETCH_ITEMS);
+            this.state = STATE_FETCH;
+        } else {
+            sendCommand("IDLE");
+            this.state = STATE_IDLE_START;
+        }
+    }
+
+    private void endIdle() {
+        send("DONE");
+        this.state = STATE_IDLE_DONE;
+    }
+
+    /**
+     * matches the mail by its headers. mail announced after the INBOX was selected records when it was announced.
+     */
+    private void headersReceived(int messageNumber, String response, byte[] headers) {
+        long now = System.currentTimeMillis();
+        try {
+            StreamedMail mail = StreamedMail.readHeaders(new ByteArrayInputStream(headers));
+            if (!MailMatchingUtils.isMatchCandidate(mail)) return;
+
+            MailProcessingRecord mailProcessingRecord = new MailProcessingRecord();
+            mailProcessingRecord.setReceivingQueue("imap");
+            mailProcessingRecord.setReceiverMailAddress(this.receiverMailAddress);
+            if (this.timeExistsFetching > 0) {
+                mailProcessingRecord.setTimeReceived(this.timeExistsFetching);
+                mailProcessingRecord.setTimeFetchStart(this.timeExistsFetching);
+            } else {
+                mailProcessingRecord.setTimeFetchStart(now);
+            }
+            mailProcessingRecord.setTimeFetchEnd(now);
+            mailProcessingRecord.setByteReceivedTotal(getMessageSize(response));
+            mailProcessingRecord.setMailId(MailMatchingUtils.getMailId(mail));
+            mailProcessingRecord.setSubject(mail.getSubject());
+
+            MailProcessingRecord matchedAndMergedRecord = this.results.matchMailRecord(mailProcessingRecord);
+            if (matchedAndMergedRecord != null) this.results.recordCompletedMatch(matchedAndMergedRecord);
+            this.matchedMessages.add(Integer.valueOf(messageNumber));
+        } catch (Exception e) {
+            this.client.mailFailed(this, e);
+        }
+    }
+
+    private static long getMessageSize(String response) {
+        int position = response.toUpperCase().indexOf("RFC822.SIZE ");
+        if (position < 0) return 0;
+        position += "RFC822.SIZE ".length();
+        int end = position;
+        while (end < response.length() && Character.isDigit(response.charAt(end))) end++;
+        try {
+            return Long.parseLong(response.substring(position, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String quote(String value) {
+        StringBuffer quoted = new StringBuffer("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') quoted.append('\\');
+            quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private void sendCommand(String command) {
+        this.pendingTag = "p" + (++this.tagCount);
+        send(this.pendingTag + " " + command);
+    }
+
+    private void send(String line) {
+        if (this.state == STATE_CLOSED) return;
+        try {
+            this.writeQueue.add(ByteBuffer.wrap((line + "\r\n").getBytes("US-ASCII")));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // US-ASCII is always supported
+        }
+        try {
+            flush();
+        } catch (IOException e) {
+            fail("connection failed in state " + this.state + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes as much as the connection accepts, the remainder is written as soon as the connection is writable
+     */
+    private void flush() throws IOException {
+        while (!this.writeQueue.isEmpty()) {
+            ByteBuffer buffer = this.writeQueue.getFirst();
+            this.channel.write(buffer);
+            this.lastActivity = System.currentTimeMillis();
+            if (buffer.hasRemaining()) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.writeQueue.removeFirst();
+        }
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void fail(String reason) {
+        if (this.state == STATE_CLOSED) return;
+        this.failure = reason;
+        close();
+    }
+
+    private void close() {
+        if (this.state == STATE_CLOSED) return;
+        this.state = STATE_CLOSED;
+        this.writeQueue.clear();
+        if (this.key != null) this.key.cancel();
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                ; // ignore
+            }
+        }
+        this.completion.countDown();
+        this.client.sessionClosed(this);
+    }
+
+    /**
+     * @return the reason for the failure, or NULL if the session was closed regularly
+     */
+    String getFailure() {
+        return this.failure;
+    }
+
+    boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        return this.completion.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
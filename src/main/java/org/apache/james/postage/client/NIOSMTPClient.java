@@ -0,0 +1,305 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.internet.InternetAddress;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.SampleSkippedException;
+import org.apache.james.postage.SamplingException;
+import org.apache.james.postage.StartupException;
+import org.apache.james.postage.configuration.MailSender;
+import org.apache.james.postage.execution.AsynchronousSampler;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailIdGenerator;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.PostageRunnerResult;
+import org.apache.james.postage.user.UserList;
+
+/**
+ * connects as a SMTP client using non-blocking IO.<br/>
+ * doSample() only prepares the mail and hands it over. all connections are then served by a single selector
+ * thread, so that many thousands of mails can be in transfer at the same time without needing a thread each.
+ * sending is completed asynchronously, the time sending ended is recorded when the server accepted the mail.
+ * the outcome is reported to the sample controller when the connection is closed.<br/>
+ * the number of open connections is limited by max-concurrent of the sender. mails due while the limit is
+ * reached are sent later under open-loop load, under closed-loop load the sample is skipped.<br/>
+ * close() lets the mails in transfer complete for a while, then fails the rest and ends the selector thread.<br/>
+ * pipelining and chunking are used if configured for the sender and supported by the server. messages-per-connection
+ * is not supported, every mail is sent on its own connection.
+ */
+public class NIOSMTPClient extends AbstractSMTPClient implements AsynchronousSampler {
+
+    private static Log log = LogFactory.getLog(NIOSMTPClient.class);
+
+    private static final long STARTUP_CHECK_TIMEOUT_MILLIS = 60 * 1000;
+    private static final long SESSION_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    private static final long SELECT_TIMEOUT_MILLIS = 1000;
+    private static final long CLOSE_TIMEOUT_MILLIS = 30 * 1000;
+
+    private static final AtomicInteger selectorThreadCount = new AtomicInteger(0);
+
+    private InetSocketAddress address;
+    private String heloName;
+    private Selector selector = null;
+    private volatile boolean closing = false;
+    private final Queue<NIOSMTPSession> sessionsToStart = new ConcurrentLinkedQueue<NIOSMTPSession>();
+    private final AtomicInteger openSessions = new AtomicInteger(0);
+    private volatile SampleListener sampleListener = null;
+
+    public NIOSMTPClient(String host, int port, UserList internalUsers, UserList externalUsers, PostageRunnerResult results, MailSender mailSender, MailIdGenerator mailIdGenerator) {
+        super(host, port, internalUsers, externalUsers, results, mailSender, mailIdGenerator);
+        this.address = new InetSocketAddress(host, port);
+        if (mailSender.getMessagesPerConnection() > 1) {
+            log.warn("messages-per-connection is not supported by the nio client, every mail is sent on a new connection");
+        }
+        try {
+            this.heloName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            this.heloName = "localhost";
+        }
+    }
+
+    public void setSampleListener(SampleListener sampleListener) {
+        this.sampleListener = sampleListener;
+    }
+
+    public boolean checkAvailability() throws StartupException {
+        NIOSMTPSession session;
+        try {
+            MailProcessingRecord proformaMailProcessingRecord = new MailProcessingRecord();
+            proformaMailProcessingRecord.setMailId(MailId.STARTUP_CHECK);
+            Message message = this.mailSender.createMail(getMailSession(), proformaMailProcessingRecord);
+            setMailFromAndTo(message, proformaMailProcessingRecord);
+            session = createSession(message, proformaMailProcessingRecord);
+            startSession(session);
+            if (!session.awaitCompletion(STARTUP_CHECK_TIMEOUT_MILLIS)) {
+                throw new StartupException("Inbound SMTP service did not respond in time with " + this.toString());
+            }
+        } catch (StartupException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new StartupException("Inbound SMTP service not available with " + this.toString() , e);
+        }
+        if (session.getFailure() != null) {
+            throw new StartupException("Inbound SMTP service not available with " + this.toString() + ": " + session.getFailure());
+        }
+        return true;
+    }
+
+    /**
+     * prepares one mail and starts sending it. returns before the mail is transferred.
+     * @param timeDue when the mail was due to be sent. recorded for open-loop load, ignored if 0
+     */
+    public void doSample(long timeDue) throws SamplingException {
+        if (this.closing) throw new SampleSkippedException("client closed");
+        int maxConcurrent = this.mailSender.getMaxConcurrent();
+        if (maxConcurrent > 0 && this.openSessions.get() >= maxConcurrent) {
+            // the limit is reached regularly under closed-loop load, this is not an error
+            throw new SampleSkippedException("already " + maxConcurrent + " connections open");
+        }
+
+        MailProcessingRecord mailProcessingRecord = createMailProcessingRecord(timeDue);
+
+        NIOSMTPSession session;
+        try {
+            Message message;
+            try {
+                message = this.mailSender.createMail(getMailSession(), mailProcessingRecord);
+            } catch (Exception e) {
+                mailProcessingRecord.setErrorTextSending("Could not send mail");
+                throw e;
+            }
+            try {
+                setMailFromAndTo(message, mailProcessingRecord);
+            } catch (Exception e) {
+                mailProcessingRecord.setErrorTextSending("Could not set recipient");
+                throw e;
+            }
+            session = createSession(message, mailProcessingRecord);
+        } catch (Exception e) {
+            this.results.recordSendCompleted(mailProcessingRecord);
+            throw new SamplingException("sample failed", e);
+        }
+
+        mailProcessingRecord.setTimeSendStart(System.currentTimeMillis());
+        try {
+            startSession(session);
+        } catch (IOException e) {
+            mailProcessingRecord.setErrorTextSending("Could not be transported.");
+            this.results.recordSendCompleted(mailProcessingRecord);
+            throw new SamplingException("sample failed", e);
+        }
+    }
+
+    private NIOSMTPSession createSession(Message message, MailProcessingRecord mailProcessingRecord) throws Exception {
+        Address[] recipientAddresses = message.getAllRecipients();
+        String[] recipients = new String[recipientAddresses.length];
+        for (int i = 0; i < recipientAddresses.length; i++) {
+            recipients[i] = ((InternetAddress)recipientAddresses[i]).getAddress();
+        }
+        return new NIOSMTPSession(this, this.mailSender, mailProcessingRecord, this.heloName,
+                                  mailProcessingRecord.getSenderMailAddress(), recipients,
+                                  NIOSMTPSession.toCanonicalBytes(message));
+    }
+
+    private void startSession(NIOSMTPSession session) throws IOException {
+        Selector selector;
+        synchronized (this) {
+            selector = getSelector();
+            this.openSessions.incrementAndGet();
+            this.sessionsToStart.add(session);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * called by the session when its connection has been closed
+     */
+    void sessionClosed(NIOSMTPSession session) {
+        this.openSessions.decrementAndGet();
+        if (session.getMailProcessingRecord().getMailId() == MailId.STARTUP_CHECK) return;
+
+        this.results.recordSendCompleted(session.getMailProcessingRecord());
+        if (session.getFailure() != null) {
+            log.warn("sending mail " + MailId.toToken(session.getMailProcessingRecord().getMailId()) + " failed: " + session.getFailure());
+        }
+        SampleListener sampleListener = this.sampleListener;
+        if (sampleListener != null) sampleListener.sampleCompleted(session.getFailure() == null);
+    }
+
+    public int getOpenSessions() {
+        return this.openSessions.get();
+    }
+
+    /**
+     * no more mails are sent. called after sending has been stopped.
+     */
+    @Override
+    public void close() {
+        this.closing = true;
+        Selector selector;
+        synchronized (this) {
+            selector = this.selector;
+        }
+        if (selector != null) selector.wakeup();
+    }
+
+    /**
+     * the selector and its thread are created when first needed
+     */
+    private synchronized Selector getSelector() throws IOException {
+        if (this.selector != null && !this.selector.isOpen()) throw new IOException("client closed");
+        if (this.selector == null) {
+            this.selector = Selector.open();
+            Thread selectorThread = new Thread(new Runnable() {
+                public void run() {
+                    runSelector();
+                }
+            }, "postage-nio-smtp-" + selectorThreadCount.incrementAndGet());
+            selectorThread.setDaemon(true);
+            selectorThread.start();
+        }
+        return this.selector;
+    }
+
+    private void runSelector() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+        long closeDeadline = -1;
+        while (true) {
+            try {
+                if (this.closing) {
+                    long now = System.currentTimeMillis();
+                    if (closeDeadline < 0) closeDeadline = now + CLOSE_TIMEOUT_MILLIS;
+                    if (this.sessionsToStart.isEmpty() && this.selector.keys().isEmpty()) break;
+                    if (now >= closeDeadline) {
+                        log.warn(this.openSessions.get() + " mails still in transfer when closing " + this);
+                        break;
+                    }
+                }
+
+                NIOSMTPSession sessionToStart;
+                while ((sessionToStart = this.sessionsToStart.poll()) != null) {
+                    sessionToStart.start(this.selector, this.address);
+                }
+
+                this.selector.select(SELECT_TIMEOUT_MILLIS);
+
+                Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((NIOSMTPSession)key.attachment()).handle();
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= SELECT_TIMEOUT_MILLIS) {
+                    lastTimeoutCheck = now;
+                    Iterator<SelectionKey> keys = this.selector.keys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        if (!key.isValid()) continue;
+                        NIOSMTPSession session = (NIOSMTPSession)key.attachment();
+                        if (session.isIdleFor(SESSION_TIMEOUT_MILLIS, now)) session.fail("timed out");
+                    }
+                }
+            } catch (IOException e) {
+                log.error("selector failed", e);
+            } catch (RuntimeException e) {
+                log.error("unexpected error handling SMTP connections", e);
+            }
+        }
+        closeSelector();
+    }
+
+    private void closeSelector() {
+        synchronized (this) {
+            NIOSMTPSession sessionNotStarted;
+            while ((sessionNotStarted = this.sessionsToStart.poll()) != null) {
+                sessionNotStarted.fail("client closed");
+            }
+            Iterator<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys()).iterator();
+            while (keys.hasNext()) {
+                ((NIOSMTPSession)keys.next().attachment()).fail("client closed");
+            }
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                log.debug("failed to close selector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+import org.apache.james.postage.configuration.MailSender;
+import org.apache.james.postage.result.MailProcessingRecord;
+
+/**
+ * the state of one non-blocking SMTP client connection, transferring a single mail.<br/>
+ * if configured and announced by the server, commands are pipelined (RFC 2920) and the mail is transferred
+ * in BDAT chunks instead of DATA (RFC 3030).<br/>
+ * all methods besides the constructor and awaitCompletion() are called by the selector thread only.
+ */
+class NIOSMTPSession {
+
+    private static final int STATE_CONNECT  = 0;
+    private static final int STATE_GREETING = 1;
+    private static final int STATE_EHLO     = 2;
+    private static final int STATE_MAIL     = 3;
+    private static final int STATE_RCPT     = 4;
+    private static final int STATE_DATA     = 5;
+    private static final int STATE_BODY     = 6;
+    private static final int STATE_BDAT     = 7;
+    private static final int STATE_QUIT     = 8;
+    private static final int STATE_CLOSED   = 9;
+
+    private static final int MAX_REPLY_LINE_LENGTH = 4096;
+
+    private final NIOSMTPClient client;
+    private final MailSender mailSender;
+    private final MailProcessingRecord mailProcessingRecord;
+    private final String heloName;
+    private final String mailFrom;
+    private final String[] recipients;
+    private final byte[] content;
+
+    private SocketChannel channel = null;
+    private SelectionKey key = null;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+    private final StringBuffer replyLine = new StringBuffer();
+    private final LinkedList<ByteBuffer> writeQueue = new LinkedList<ByteBuffer>();
+
+    private int state = STATE_CONNECT;
+    private int ehloLineCount = 0;
+    private final Set<String> extensions = new HashSet<String>();
+    private boolean pipelining = false;
+    private boolean chunking = false;
+    private int recipientIndex = 0;
+    private int chunkOffset = 0;
+    private int chunksSent = 0;
+    private int chunksAcknowledged = 0;
+    private long lastActivity = System.currentTimeMillis();
+    private String failure = null;
+    private final CountDownLatch completion = new CountDownLatch(1);
+
+    /**
+     * @param content the mail as returned by toCanonicalBytes()
+     */
+    NIOSMTPSession(NIOSMTPClient client, MailSender mailSender, MailProcessingRecord mailProcessingRecord,
+                   String heloName, String mailFrom, String[] recipients, byte[] content) {
+        this.client = client;
+        this.mailSender = mailSender;
+        this.mailProcessingRecord = mailProcessingRecord;
+        this.heloName = heloName;
+        this.mailFrom = mailFrom;
+        this.recipients = recipients;
+        this.content = content;
+    }
+
+    /**
+     * converts the message into its canonical form, where all lines are terminated by CRLF
+     */
+    static byte[] toCanonicalBytes(Message message) throws IOException, MessagingException {
+        ByteArrayOutputStream messageOut = new ByteArrayOutputStream();
+        message.writeTo(messageOut);
+        byte[] raw = messageOut.toByteArray();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length + 64);
+        boolean lineStart = true;
+        for (int i = 0; i < raw.length; i++) {
+            byte b = raw[i];
+            if (b == '\r') {
+                // CR is only written as part of a line break
+                if (i + 1 < raw.length && raw[i + 1] == '\n') continue;
+                b = '\n';
+            }
+            if (b == '\n') {
+                out.write('\r');
+                out.write('\n');
+                lineStart = true;
+                continue;
+            }
+            out.write(b);
+            lineStart = false;
+        }
+        if (!lineStart) {
+            out.write('\r');
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * converts canonical content into the form transferred after the DATA command: lines starting with a dot
+     * are dot-stuffed and the terminating line containing only a dot is appended.
+     */
+    static byte[] toDataBytes(byte[] content) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 64);
+        boolean lineStart = true;
+        for (int i = 0; i < content.length; i++) {
+            byte b = content[i];
+            if (lineStart && b == '.') out.write('.');
+            out.write(b);
+            lineStart = b == '\n';
+        }
+        out.write('.');
+        out.write('\r');
+        out.write('\n');
+        return out.toByteArray();
+    }
+
+    MailProcessingRecord getMailProcessingRecord() {
+        return this.mailProcessingRecord;
+    }
+
+    /**
+     * initiates connecting to the server. the session is then driven by the selector.
+     */
+    void start(Selector selector, InetSocketAddress address) {
+        this.mailProcessingRecord.setTimeSessionOpenStart(System.currentTimeMillis());
+        try {
+            this.channel = SocketChannel.open();
+            this.channel.configureBlocking(false);
+            if (this.channel.connect(address)) {
+                this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+                this.state = STATE_GREETING;
+            } else {
+                this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        } catch (IOException e) {
+            fail("could not connect: " + e.getMessage());
+        }
+    }
+
+    /**
+     * called by the selector whenever the connection is ready for the operations of interest
+     */
+    void handle() {
+        try {
+            if (this.key.isValid() && this.key.isConnectable()) {
+                this.channel.finishConnect();
+                this.state = STATE_GREETING;
+                this.key.interestOps(SelectionKey.OP_READ);
+                this.lastActivity = System.currentTimeMillis();
+            }
+            if (this.key.isValid() && this.key.isReadable()) read();
+            if (this.key.isValid() && this.key.isWritable()) flush();
+        } catch (IOException e) {
+            fail("connection failed in state " + this.state + ": " + e.getMessage());
+        }
+    }
+
+    boolean isIdleFor(long millis, long now) {
+        return now - this.lastActivity > millis;
+    }
+
+    private void read() throws IOException {
+        int count = this.channel.read(this.readBuffer);
+        if (count < 0) {
+            if (this.state == STATE_QUIT) close();
+            else fail("connection closed by server in state " + this.state);
+            return;
+        }
+        this.lastActivity = System.currentTimeMillis();
+        this.readBuffer.flip();
+        while (this.readBuffer.hasRemaining() && this.state != STATE_CLOSED) {
+            char c = (char)(this.readBuffer.get() & 0xff);
+            if (c == '\n') {
+                String line = this.replyLine.toString();
+                this.replyLine.setLength(0);
+                replyLineReceived(line);
+            } else if (c != '\r') {
+                if (this.replyLine.length() >= MAX_REPLY_LINE_LENGTH) {
+                    fail("reply line too long");
+                    return;
+                }
+                this.replyLine.append(c);
+            }
+        }
+        this.readBuffer.clear();
+    }
+
+    private void replyLineReceived(String line) {
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (RuntimeException e) {
+            fail("invalid reply: " + line);
+            return;
+        }
+        if (this.state == STATE_EHLO) extensionReceived(line);
+        // multi-line reply, only the last line completes it
+        if (line.length() > 3 && line.charAt(3) == '-') return;
+        replyReceived(code, line);
+    }
+
+    /**
+     * every line of the EHLO reply but the first one announces an extension
+     */
+    private void extensionReceived(String line) {
+        this.ehloLineCount++;
+        if (this.ehloLineCount == 1 || line.length() <= 4) return;
+        String extension = line.substring(4).trim();
+        int separator = extension.indexOf(' ');
+        if (separator > 0) extension = extension.substring(0, separator);
+        this.extensions.add(extension.toUpperCase());
+    }
+
+    private void replyReceived(int code, String reply) {
+        switch (this.state) {
+            case STATE_GREETING:
+                if (code != 220) {
+                    fail("unexpected greeting: " + reply);
+                    return;
+                }
+                send("EHLO " + this.heloName);
+                this.state = STATE_EHLO;
+                break;
+            case STATE_EHLO:
+                if (code != 250) {
+                    fail("EHLO rejected: " + reply);
+                    return;
+                }
+                this.mailProcessingRecord.setTimeSessionOpenEnd(System.currentTimeMillis());
+                this.pipelining = this.mailSender.isPipelining() && this.extensions.contains("PIPELINING");
+                this.chunking = this.mailSender.isChunking() && this.extensions.contains("CHUNKING");
+                send("MAIL FROM:<" + this.mailFrom + ">");
+                if (this.pipelining) {
+                    // the whole envelope is sent at once, the replies are then checked one by one
+                    for (int i = 0; i < this.recipients.length; i++) {
+                        send("RCPT TO:<" + this.recipients[i] + ">");
+                    }
+                    if (!this.chunking) send("DATA");
+                }
+                this.state = STATE_MAIL;
+                break;
+            case STATE_MAIL:
+                if (code != 250) {
+                    fail("MAIL FROM rejected: " + reply);
+                    return;
+                }
+                if (!this.pipelining) send("RCPT TO:<" + this.recipients[this.recipientIndex] + ">");
+                this.state = STATE_RCPT;
+                break;
+            case STATE_RCPT:
+                if (code != 250 && code != 251) {
+                    fail("RCPT TO rejected: " + reply);
+                    return;
+                }
+                this.recipientIndex++;
+                if (this.recipientIndex < this.recipients.length) {
+                    if (!this.pipelining) send("RCPT TO:<" + this.recipients[this.recipientIndex] + ">");
+                } else if (this.chunking) {
+                    this.state = STATE_BDAT;
+                    if (this.pipelining) {
+                        while (sendChunk()) ; // all chunks at once
+                    } else {
+                        sendChunk();
+                    }
+                } else {
+                    if (!this.pipelining) send("DATA");
+                    this.state = STATE_DATA;
+                }
+                break;
+            case STATE_DATA:
+                if (code != 354) {
+                    fail("DATA rejected: " + reply);
+                    return;
+                }
+                write(ByteBuffer.wrap(toDataBytes(this.content)));
+                this.state = STATE_BODY;
+                break;
+            case STATE_BODY:
+                if (code != 250) {
+                    fail("mail rejected: " + reply);
+                    return;
+                }
+                sent();
+                break;
+            case STATE_BDAT:
+                if (code != 250) {
+                    fail("BDAT rejected: " + reply);
+                    return;
+                }
+                this.chunksAcknowledged++;
+                if (this.chunksAcknowledged < this.chunksSent) break;
+                if (this.chunkOffset < this.content.length) {
+                    sendChunk();
+                } else {
+                    sent();
+                }
+                break;
+            case STATE_QUIT:
+                close();
+                break;
+            default:
+                fail("unexpected reply in state " + this.state + ": " + reply);
+        }
+    }
+
+    /**
+     * sends the next BDAT chunk, the last one is flagged accordingly
+     * @return TRUE, if there are more chunks to send
+     */
+    private boolean sendChunk() {
+        int length = Math.min(this.mailSender.getChunkSize(), this.content.length - this.chunkOffset);
+        boolean last = this.chunkOffset + length >= this.content.length;
+        send("BDAT " + length + (last ? " LAST" : ""));
+        write(ByteBuffer.wrap(this.content, this.chunkOffset, length));
+        this.chunkOffset += length;
+        this.chunksSent++;
+        return !last;
+    }
+
+    private void sent() {
+        this.mailProcessingRecord.setTimeSendEnd(System.currentTimeMillis());
+        send("QUIT");
+        this.state = STATE_QUIT;
+    }
+
+    private void send(String command) {
+        try {
+            write(ByteBuffer.wrap((command + "\r\n").getBytes("US-ASCII")));
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // US-ASCII is always supported
+        }
+    }
+
+    private void write(ByteBuffer buffer) {
+        if (this.state == STATE_CLOSED) return;
+        this.writeQueue.add(buffer);
+        try {
+            flush();
+        } catch (IOException e) {
+            fail("connection failed in state " + this.state + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes as much as the connection accepts, the remainder is written as soon as the connection is writable
+     */
+    private void flush() throws IOException {
+        while (!this.writeQueue.isEmpty()) {
+            ByteBuffer buffer = this.writeQueue.getFirst();
+            this.channel.write(buffer);
+            this.lastActivity = System.currentTimeMillis();
+            if (buffer.hasRemaining()) {
+                this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            this.writeQueue.removeFirst();
+        }
+        this.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    void fail(String reason) {
+        if (this.state == STATE_CLOSED) return;
+        this.failure = reason;
+        this.mailProcessingRecord.setErrorTextSending(reason);
+        close();
+    }
+
+    private void close() {
+        if (this.state == STATE_CLOSED) return;
+        this.state = STATE_CLOSED;
+        this.writeQueue.clear();
+        if (this.key != null) this.key.cancel();
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                ; // ignore
+            }
+        }
+        this.completion.countDown();
+        this.client.sessionClosed(this);
+    }
+
+    /**
+     * @return the reason for the failure, or NULL if the mail was sent successfully
+     */
+    String getFailure() {
+        return this.failure;
+    }
+
+    boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        return this.completion.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
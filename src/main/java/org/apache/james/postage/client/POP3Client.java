@@ -21,7 +21,16 @@
 package org.apache.james.postage.client;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,13 +38,21 @@ import org.apache.commons.net.pop3.POP3MessageInfo;
 import org.apache.james.postage.PostageException;
 import org.apache.james.postage.SamplingException;
 import org.apache.james.postage.StartupException;
+import org.apache.james.postage.configuration.PostageConfiguration;
 import org.apache.james.postage.execution.Sampler;
 import org.apache.james.postage.result.PostageRunnerResult;
 import org.apache.james.postage.user.UserList;
 
 /**
  * acts like a MUA using POP3 protocol.<br/>
- * fetches all mails for one (all) users and initiates adding to results
+ * fetches all mails for one (all) users and initiates adding to results<br/>
+ * accounts are picked randomly or one after the other. samples can run in parallel, but one account is never
+ * accessed by two samples at the same time. a shard only accesses its part of the accounts, so every account
+ * is always served by the same worker.<br/>
+ * unless the mail bodies are to be validated, only the headers are fetched (using TOP). messages not matched
+ * and dismissed are remembered by their unique id (UIDL), and not fetched again.<br/>
+ * optionally, sessions are kept logged in after an access not deleting any mail, and reused for the next access
+ * of the account within a limited time. before reuse, the session is checked using NOOP.
  */
 public class POP3Client implements Sampler {
 
@@ -46,6 +63,18 @@ public class POP3Client implements Sampler {
     private UserList internalUsers;
     private PostageRunnerResult results;
 
+    private String accountSelection = PostageConfiguration.ACCOUNT_SELECTION_RANDOM;
+    private int shard = 0;
+    private int shardCount = 1;
+    private List<String> accounts = null;
+    private final AtomicLong accountCursor = new AtomicLong(0);
+    private final Set<String> accountsInPoll = Collections.synchronizedSet(new HashSet<String>());
+    private Map<String, Long> lastPollTimes = new ConcurrentHashMap<String, Long>();
+    private boolean validateBody = true;
+    private Map<String, Set<String>> seenMessageIds = new ConcurrentHashMap<String, Set<String>>();
+    private int sessionReuseSeconds = 0;
+    private Map<String, POP3Session> idleSessions = new ConcurrentHashMap<String, POP3Session>();
+
     public POP3Client(String host, int port, UserList internalUsers, PostageRunnerResult results) {
         this.host = host;
         this.port = port;
@@ -53,6 +82,82 @@ public class POP3Client implements Sampler {
         this.results = results;
     }
 
+    /**
+     * @param accountSelection one of the PostageConfiguration.ACCOUNT_SELECTION_ values. for "sharded",
+     *        use createShard() to get the client for every worker.
+     */
+    public void setAccountSelection(String accountSelection) {
+        this.accountSelection = accountSelection;
+    }
+
+    /**
+     * @param validateBody if the complete mails are retrieved and validated (default), or only their headers
+     */
+    public void setValidateBody(boolean validateBody) {
+        this.validateBody = validateBody;
+    }
+
+    /**
+     * @param sessionReuseSeconds how long a logged in session may be reused for the next access of the same
+     *        account. 0 for opening a new session on every access (default).
+     */
+    public void setSessionReuseSeconds(int sessionReuseSeconds) {
+        this.sessionReuseSeconds = sessionReuseSeconds;
+    }
+
+    /**
+     * creates a client only accessing every shardCount-th account, starting with account number shard.
+     * accounts are accessed one after the other.
+     */
+    public POP3Client createShard(int shard, int shardCount) {
+        POP3Client shardClient = new POP3Client(this.host, this.port, this.internalUsers, this.results);
+        shardClient.accountSelection = PostageConfiguration.ACCOUNT_SELECTION_SHARDED;
+        shardClient.shard = shard;
+        shardClient.shardCount = shardCount;
+        shardClient.lastPollTimes = this.lastPollTimes; // all shards and the final check share the poll history
+        shardClient.seenMessageIds = this.seenMessageIds;
+        shardClient.validateBody = this.validateBody;
+        shardClient.sessionReuseSeconds = this.sessionReuseSeconds;
+        shardClient.idleSessions = this.idleSessions;
+        return shardClient;
+    }
+
+    /**
+     * @return number of accounts accessed by this client
+     */
+    public int getAccountCount() {
+        return getAccounts().size();
+    }
+
+    /**
+     * @return how many fetches per minute are needed to access every account within the given interval
+     */
+    public int getFetchesPerMinuteForPollInterval(int maxPollIntervalSeconds) {
+        if (maxPollIntervalSeconds <= 0) return 0;
+        return (int)Math.ceil(getAccountCount() * 60.0 / maxPollIntervalSeconds);
+    }
+
+    private synchronized List<String> getAccounts() {
+        if (this.accounts == null) {
+            this.accounts = new ArrayList<String>();
+            Iterator<String> usernames = this.internalUsers.getUsernames();
+            for (int index = 0; usernames.hasNext(); index++) {
+                String username = usernames.next();
+                if (index % this.shardCount == this.shard) this.accounts.add(username);
+            }
+        }
+        return this.accounts;
+    }
+
+    private String nextUsername() {
+        if (PostageConfiguration.ACCOUNT_SELECTION_RANDOM.equals(this.accountSelection)) {
+            return this.internalUsers.getRandomUsername();
+        }
+        List<String> accounts = getAccounts();
+        if (accounts.isEmpty()) return null;
+        return accounts.get((int)(this.accountCursor.getAndIncrement() % accounts.size()));
+    }
+
     /**
      * checks, if the configured POP3 services is accessable
      */
@@ -75,6 +180,67 @@ public class POP3Client implements Sampler {
         }
     }
 
+    /**
+     * takes the idle session of the account, if it is still alive and not too old. otherwise, a new session is
+     * opened and the time needed for login is recorded.
+     */
+    private POP3Session openSession(String username) throws PostageException {
+        POP3Session session = this.idleSessions.remove(username);
+        if (session != null) {
+            boolean alive = false;
+            if (System.currentTimeMillis() - session.timeLoginEnd < this.sessionReuseSeconds * 1000L) {
+                try {
+                    alive = session.pop3Client.noop();
+                } catch (IOException e) {
+                    log.debug("idle pop3 session no longer available for user " + username);
+                }
+            }
+            if (alive) {
+                session.reused = true;
+                return session;
+            }
+            closeSessionQuietly(session.pop3Client);
+        }
+
+        session = new POP3Session();
+        session.timeLoginStart = System.currentTimeMillis();
+        session.pop3Client = openConnection(username);
+        session.timeLoginEnd = System.currentTimeMillis();
+        return session;
+    }
+
+    /**
+     * keeps the session for reuse, if enabled and no mail was deleted. deletions only take effect when the
+     * session is closed.
+     */
+    private void releaseSession(String username, POP3Session session, boolean mailDeleted) throws PostageException {
+        if (this.sessionReuseSeconds <= 0 || mailDeleted) {
+            closeSession(session.pop3Client);
+            return;
+        }
+        POP3Session replaced = this.idleSessions.put(username, session);
+        if (replaced != null) closeSessionQuietly(replaced.pop3Client);
+    }
+
+    private void closeSessionQuietly(org.apache.commons.net.pop3.POP3Client pop3Client) {
+        try {
+            closeSession(pop3Client);
+        } catch (PostageException e) {
+            log.debug("failed to close idle pop3 session", e);
+        }
+    }
+
+    /**
+     * closes all idle sessions
+     */
+    public void close() {
+        Iterator<String> usernames = this.idleSessions.keySet().iterator();
+        while (usernames.hasNext()) {
+            POP3Session session = this.idleSessions.remove(usernames.next());
+            if (session != null) closeSessionQuietly(session.pop3Client);
+        }
+    }
+
     private org.apache.commons.net.pop3.POP3Client openConnection(String username) throws PostageException {
         org.apache.commons.net.pop3.POP3Client pop3Client = new org.apache.commons.net.pop3.POP3Client();
         try {
@@ -89,16 +255,23 @@ public class POP3Client implements Sampler {
     }
 
     /**
-     * take one POP3 sample for a random user
+     * take one POP3 sample for the next user
      */
     public void doSample() throws SamplingException {
-        String username = this.internalUsers.getRandomUsername();
+        String username = nextUsername();
+        if (username == null) return;
+        if (!this.accountsInPoll.add(username)) {
+            log.debug("skipping sample for user " + username + ", already being accessed");
+            return;
+        }
 
         try {
             findAllMatchingTestMail(username);
         } catch (SamplingException e) {
             log.warn("error sampling mail for user " + username);
             throw e;
+        } finally {
+            this.accountsInPoll.remove(username);
         }
     }
 
@@ -107,6 +280,7 @@ public class POP3Client implements Sampler {
      * unprocessed by the random access. this is done by iterating over all user accounts, looking for mail
      */
     public void doMatchMailForAllUsers() {
+        close(); // new sessions see all mail delivered until now
         Iterator<String> usernames = this.internalUsers.getUsernames();
         while (usernames.hasNext()) {
             String username = usernames.next();
@@ -116,6 +290,7 @@ public class POP3Client implements Sampler {
                 log.warn("error reading mail for user " + username);
             }
         }
+        close();
     }
 
     /**
@@ -124,8 +299,11 @@ public class POP3Client implements Sampler {
      * @throws SamplingException
      */
     private void findAllMatchingTestMail(String username) throws SamplingException {
+        long timePoll = System.currentTimeMillis();
+        Long timePreviousPoll = this.lastPollTimes.put(username, timePoll);
         try {
-            org.apache.commons.net.pop3.POP3Client pop3Client = openConnection(username);
+            POP3Session session = openSession(username);
+            org.apache.commons.net.pop3.POP3Client pop3Client = session.pop3Client;
 
             // retrieve all messages
             POP3MessageInfo[] entries = null;
@@ -135,23 +313,74 @@ public class POP3Client implements Sampler {
                 String errorMessage = "failed to read pop3 account mail list for " + username;
                 this.results.addError(500, errorMessage);
                 log.info(errorMessage);
+                closeSessionQuietly(pop3Client);
                 return;
             }
 
+            Map<Integer, String> uniqueIds = listUniqueIds(pop3Client);
+            Set<String> seenBefore = this.seenMessageIds.get(username);
+            Set<String> seen = new HashSet<String>();
+            boolean mailDeleted = false;
+
             for (int i = 0; entries != null && i < entries.length; i++) {
                 POP3MessageInfo entry = entries[i];
+                String uniqueId = uniqueIds == null ? null : uniqueIds.get(Integer.valueOf(entry.number));
+                if (uniqueId != null && seenBefore != null && seenBefore.contains(uniqueId)) {
+                    seen.add(uniqueId);
+                    continue;
+                }
 
                 try {
-                    new POP3MailAnalyzeStrategy("pop3", this.results, pop3Client, entry.number, i).handle();
+                    POP3MailAnalyzeStrategy strategy = new POP3MailAnalyzeStrategy("pop3", this.results, pop3Client, entry.number, i,
+                                                this.internalUsers.getEmailAddress(username),
+                                                timePreviousPoll == null ? 0 : timePreviousPoll.longValue());
+                    if (!this.validateBody) strategy.setHeadersOnly(entry.size);
+                    if (!session.reused) strategy.setLoginTimes(session.timeLoginStart, session.timeLoginEnd);
+                    strategy.handle();
+                    if (strategy.isDismissed()) mailDeleted = true;
+                    // matched mail is deleted, so only mail not to be handled is seen again
+                    if (uniqueId != null) seen.add(uniqueId);
                 } catch (Exception exception) {
                     log.warn("error processing pop3 mail", exception);
                 }
             }
+            // ids of messages no longer on the server are forgotten
+            this.seenMessageIds.put(username, seen);
 
-            closeSession(pop3Client);
+            releaseSession(username, session, mailDeleted);
         } catch (PostageException e) {
             throw new SamplingException("sample failed", e);
         }
     }
+
+    /**
+     * @return the unique id of every message by its number, NULL if the server does not support UIDL
+     */
+    private Map<Integer, String> listUniqueIds(org.apache.commons.net.pop3.POP3Client pop3Client) {
+        POP3MessageInfo[] uniqueIdEntries;
+        try {
+            uniqueIdEntries = pop3Client.listUniqueIdentifiers();
+        } catch (IOException e) {
+            log.debug("failed to list unique ids", e);
+            return null;
+        }
+        if (uniqueIdEntries == null) return null;
+
+        Map<Integer, String> uniqueIds = new HashMap<Integer, String>();
+        for (int i = 0; i < uniqueIdEntries.length; i++) {
+            uniqueIds.put(Integer.valueOf(uniqueIdEntries[i].number), uniqueIdEntries[i].identifier);
+        }
+        return uniqueIds;
+    }
+
+    /**
+     * a logged in POP3 session
+     */
+    private static class POP3Session {
+        private org.apache.commons.net.pop3.POP3Client pop3Client;
+        private long timeLoginStart;
+        private long timeLoginEnd;
+        private boolean reused = false;
+    }
 }
 
@@ -18,76 +18,97 @@
  ****************************************************************/
 package org.apache.james.postage.client;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
-
 import org.apache.james.postage.mail.MailAnalyzeStrategy;
+import org.apache.james.postage.result.MailProcessingRecord;
 import org.apache.james.postage.result.PostageRunnerResult;
 
 public class POP3MailAnalyzeStrategy extends MailAnalyzeStrategy {
 
     private int mailNumber;
     private int mailIndex;
+    private String receiverMailAddress;
+    private long timePreviousPoll;
+    private boolean headersOnly = false;
+    private long messageSize = -1;
+    private long timeLoginStart = 0;
+    private long timeLoginEnd = 0;
+    private boolean dismissed = false;
     private org.apache.commons.net.pop3.POP3Client pop3Client;
 
     public POP3MailAnalyzeStrategy(String receivingQueueName, PostageRunnerResult results, 
                                    org.apache.commons.net.pop3.POP3Client pop3Client, 
-                                   int mailNumber, int mailIndex) {
+                                   int mailNumber, int mailIndex, String receiverMailAddress,
+                                   long timePreviousPoll) {
         super(receivingQueueName, results);
+        this.receiverMailAddress = receiverMailAddress;
+        this.timePreviousPoll = timePreviousPoll;
         this.pop3Client = pop3Client;
         this.mailNumber = mailNumber;
         this.mailIndex = mailIndex;
     }
 
-    protected MimeMessage loadMessage() throws Exception {
-        Reader reader = pop3Client.retrieveMessage(mailNumber);
-        BufferedReader mailReader = new BufferedReader(reader);
-        InputStream in = new ReaderInputStream(mailReader);
-        MimeMessage message;
-        try {
-            message = new MimeMessage(null, in);
-            in.close();
-        } catch (IOException e) {
-            log.info("failed to close POP3 mail reader.");
-            throw e;
-        } catch (MessagingException e) {
-            log.info("failed to process POP3 mail. remains on server");
-            throw e;
-        } finally {
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (IOException e) {
-                    log.warn("error closing mail input stream");
-                }
-            }
-            if (mailReader != null) {
-                try {
-                    mailReader.close();
-                } catch (IOException e) {
-                    log.warn("error closing mail reader");
-                }
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    log.warn("error closing (mail) reader");
-                }
-            }
-        }
+    /**
+     * fetch only the headers using TOP, the body is not validated
+     * @param messageSize the size of the message as listed by the server
+     */
+    public void setHeadersOnly(long messageSize) {
+        this.headersOnly = true;
+        this.messageSize = messageSize;
+    }
+
+    /**
+     * records the login of the session the message is fetched with. not called for reused sessions.
+     */
+    public void setLoginTimes(long timeLoginStart, long timeLoginEnd) {
+        this.timeLoginStart = timeLoginStart;
+        this.timeLoginEnd = timeLoginEnd;
+    }
+
+    /**
+     * @return TRUE, if the message was deleted
+     */
+    public boolean isDismissed() {
+        return dismissed;
+    }
+
+    protected boolean isHeadersOnly() {
+        return headersOnly;
+    }
+
+    protected long getMessageSize() {
+        return messageSize;
+    }
 
-        return message;
+    protected MailProcessingRecord prepareRecord() {
+        MailProcessingRecord mailProcessingRecord = super.prepareRecord();
+        mailProcessingRecord.setTimePreviousPoll(timePreviousPoll);
+        mailProcessingRecord.setTimeLoginStart(timeLoginStart);
+        mailProcessingRecord.setTimeLoginEnd(timeLoginEnd);
+        return mailProcessingRecord;
+    }
+
+    /**
+     * the message is streamed as retrieved, without building it completely in memory.
+     * in headers only mode, only the headers are retrieved.
+     */
+    protected InputStream openMessageStream() throws Exception {
+        Reader reader = headersOnly ? pop3Client.retrieveMessageTop(mailNumber, 0) : pop3Client.retrieveMessage(mailNumber);
+        if (reader == null) throw new IOException("failed to retrieve POP3 mail " + mailNumber);
+        return new ReaderInputStream(reader);
     }
     
+    protected String[] getRecipientAddresses() {
+        return new String[] {receiverMailAddress};
+    }
+
     protected void dismissMessage() throws Exception {
         try {
             pop3Client.deleteMessage(mailIndex + 1); // don't retrieve again next time
+            dismissed = true;
         } catch (Exception e) {
             log.info("failed to delete POP3 mail.");
             throw e;
@@ -23,11 +23,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 /**
- * Simple class to allow a cast from a java.io.Reader to a java.io.InputStream
- * 
+ * Simple class to allow a cast from a java.io.Reader to a java.io.InputStream<br/>
+ * the reader must decode ISO-8859-1 (as the commons-net POP3 client does), so that every char stands for
+ * exactly one byte of the original data.
  */
 public class ReaderInputStream extends InputStream {
     private Reader reader = null;
+    private char[] chars = new char[8192];
     public ReaderInputStream(Reader reader) {
         this.reader = reader;
     }
@@ -35,6 +37,23 @@ public class ReaderInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        return reader.read();
+        int c = reader.read();
+        if (c < 0) return c;
+        return c & 0xff;
+    }
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        int count = reader.read(chars, 0, Math.min(length, chars.length));
+        for (int i = 0; i < count; i++) bytes[offset + i] = (byte)chars[i];
+        return count;
+    }
+    /**
+     * @see java.io.InputStream#close()
+     */
+    public void close() throws IOException {
+        reader.close();
     }
 }
@@ -20,19 +20,23 @@
 
 package org.apache.james.postage.client;
 
-import java.util.Properties;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Session;
 import javax.mail.Transport;
-import javax.mail.internet.InternetAddress;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.james.postage.SamplingException;
 import org.apache.james.postage.StartupException;
 import org.apache.james.postage.configuration.MailSender;
-import org.apache.james.postage.execution.Sampler;
-import org.apache.james.postage.mail.HeaderConstants;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailIdGenerator;
 import org.apache.james.postage.result.MailProcessingRecord;
 import org.apache.james.postage.result.PostageRunnerResult;
 import org.apache.james.postage.user.UserList;
@@ -40,23 +44,23 @@ import org.apache.james.postage.user.UserList;
 /**
  * connects as a SMTP client and handles all mail according to its configuration.<br/>
  * it is threadsafe and reentrant and thus can be reused over multiple parallel client session<br/>
+ * if the sender allows more than one message per connection, connections are not closed after sending but
+ * kept in a pool for the next mails. a connection taken from the pool is used by one sample at a time and is
+ * reset (RSET) before its next mail. a connection failing the reset has been dropped by the server and is
+ * replaced by a new one.<br/>
  */
-public class SMTPClient implements Sampler {
-
-    private String host;
-    private int port;
-    private UserList internalUsers;
-    private UserList externalUsers;
-    private PostageRunnerResult results;
-    private MailSender mailSender;
-
-    public SMTPClient(String host, int port, UserList internalUsers, UserList externalUsers, PostageRunnerResult results, MailSender mailSender) {
-        this.host = host;
-        this.port = port;
-        this.internalUsers = internalUsers;
-        this.externalUsers = externalUsers;
-        this.mailSender = mailSender;
-        this.results = results;
+public class SMTPClient extends AbstractSMTPClient {
+
+    private static Log log = LogFactory.getLog(SMTPClient.class);
+
+    private final Queue<PooledConnection> idleConnections = new ConcurrentLinkedQueue<PooledConnection>();
+
+    // javax.mail has no API for sending a command, the provider's issueCommand(String, int) is looked up once
+    private static Method issueCommandMethod = null;
+    private static boolean issueCommandLookedUp = false;
+
+    public SMTPClient(String host, int port, UserList internalUsers, UserList externalUsers, PostageRunnerResult results, MailSender mailSender, MailIdGenerator mailIdGenerator) {
+        super(host, port, internalUsers, externalUsers, results, mailSender, mailIdGenerator);
     }
 
     public boolean checkAvailability() throws StartupException {
@@ -64,7 +68,7 @@ public class SMTPClient implements Sampler {
 
             MailProcessingRecord proformaMailProcessingRecord = new MailProcessingRecord();
             Session session = getMailSession();
-            proformaMailProcessingRecord.setMailId(HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID);
+            proformaMailProcessingRecord.setMailId(MailId.STARTUP_CHECK);
             Message message = this.mailSender.createMail(session, proformaMailProcessingRecord);
             setMailFromAndTo(message, proformaMailProcessingRecord);
             Transport.send(message);
@@ -74,52 +78,18 @@ public class SMTPClient implements Sampler {
         return true;
     }
 
-    private void setMailFromAndTo(Message message, MailProcessingRecord mailProcessingRecord) throws MessagingException {
+    /**
+     * sends one mail
+     * @param timeDue when the mail was due to be sent. recorded for open-loop load, ignored if 0
+     */
+    public void doSample(long timeDue) throws SamplingException {
 
-        String senderUsername;
-        String senderMailAddress;
-        if (this.mailSender.getParentProfile().isSourceInternal()) {
-            senderUsername = this.internalUsers.getRandomUsername();
-        } else {
-            senderUsername = this.externalUsers.getRandomUsername();
-        }
-        if (this.mailSender.getParentProfile().isSourceInternal()) {
-            senderMailAddress = this.internalUsers.getEmailAddress(senderUsername);
-        } else {
-            senderMailAddress = this.externalUsers.getEmailAddress(senderUsername);
-        }
-        mailProcessingRecord.setSender(senderUsername);
-        mailProcessingRecord.setSenderMailAddress(senderMailAddress);
-        message.setFrom(new InternetAddress(senderMailAddress));
-
-        String recepientUsername;
-        String recepientMailAddress;
-        if (this.mailSender.getParentProfile().isTargetInternal()) {
-            recepientUsername = this.internalUsers.getRandomUsername();
-        } else {
-            recepientUsername = this.externalUsers.getRandomUsername();
-        }
-        if (this.mailSender.getParentProfile().isTargetInternal()) {
-            recepientMailAddress = this.internalUsers.getEmailAddress(recepientUsername);
-        } else {
-            recepientMailAddress = this.externalUsers.getEmailAddress(recepientUsername);
-        }
-        mailProcessingRecord.setReceiver(recepientUsername);
-        mailProcessingRecord.setReceiverMailAddress(recepientMailAddress);
-        message.addRecipient(Message.RecipientType.TO, new InternetAddress(recepientMailAddress));
-    }
-
-    public synchronized void doSample() throws SamplingException {
-
-        MailProcessingRecord mailProcessingRecord = new MailProcessingRecord();
-        mailProcessingRecord.setMailId(MailProcessingRecord.getNextId());
-        this.results.addNewMailRecord(mailProcessingRecord);
-        mailProcessingRecord.setTimeConnectStart(System.currentTimeMillis());
+        MailProcessingRecord mailProcessingRecord = createMailProcessingRecord(timeDue);
 
+        Session session = getMailSession();
         Message message = null;
         try {
             try {
-                Session session = getMailSession();
                 message = this.mailSender.createMail(session, mailProcessingRecord);
             } catch (Exception e) {
                 mailProcessingRecord.setErrorTextSending("Could not send mail");
@@ -131,29 +101,123 @@ public class SMTPClient implements Sampler {
                 mailProcessingRecord.setErrorTextSending("Could not set recipient");
                 throw e;
             }
+            mailProcessingRecord.setTimeSendStart(System.currentTimeMillis());
+            PooledConnection connection;
             try {
-                mailProcessingRecord.setTimeSendStart(System.currentTimeMillis());
-                Transport.send(message);
+                connection = getConnection(session, mailProcessingRecord);
+            } catch (MessagingException e) {
+                mailProcessingRecord.setErrorTextSending("Could not connect.");
+                throw e;
+            }
+            try {
+                message.saveChanges();
+                connection.transport.sendMessage(message, message.getAllRecipients());
                 mailProcessingRecord.setTimeSendEnd(System.currentTimeMillis());
             } catch (MessagingException e) {
                 mailProcessingRecord.setErrorTextSending("Could not be transported.");
+                closeConnection(connection);
                 throw e;
             }
+            releaseConnection(connection);
         } catch (Exception e) {
             throw new SamplingException("sample failed", e);
+        } finally {
+            this.results.recordSendCompleted(mailProcessingRecord);
         }
     }
 
-    private Session getMailSession() {
-        Properties props = System.getProperties();
-        props.put("mail.smtp.host", this.host);
-        props.put("mail.smtp.port", Integer.toString(this.port));
-        return Session.getDefaultInstance(props, null);
+    /**
+     * takes an open connection from the pool or opens a new one. opening the connection (connect and EHLO)
+     * is recorded with the mail.
+     */
+    private PooledConnection getConnection(Session session, MailProcessingRecord mailProcessingRecord) throws MessagingException {
+        PooledConnection connection;
+        while ((connection = this.idleConnections.poll()) != null) {
+            try {
+                reset(connection.transport);
+                return connection;
+            } catch (MessagingException e) {
+                log.debug("pooled SMTP connection failed to reset, opening a new one", e);
+                closeConnection(connection);
+            }
+        }
+
+        mailProcessingRecord.setTimeSessionOpenStart(System.currentTimeMillis());
+        Transport transport = session.getTransport("smtp");
+        transport.connect();
+        mailProcessingRecord.setTimeSessionOpenEnd(System.currentTimeMillis());
+        return new PooledConnection(transport);
+    }
+
+    /**
+     * ends the previous mail transaction on a reused connection with RSET. if the provider does not offer
+     * issueCommand(), the connection is reused without reset.
+     * @throws MessagingException if the server did not accept the reset, or the connection is dropped
+     */
+    private static void reset(Transport transport) throws MessagingException {
+        Method issueCommand = getIssueCommandMethod(transport);
+        if (issueCommand == null) return;
+        try {
+            issueCommand.invoke(transport, "RSET", Integer.valueOf(250));
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MessagingException) throw (MessagingException)cause;
+            if (cause instanceof Exception) throw new MessagingException("RSET failed", (Exception)cause);
+            throw (Error)cause;
+        } catch (IllegalAccessException e) {
+            throw new MessagingException("RSET failed", e);
+        }
+    }
+
+    private static synchronized Method getIssueCommandMethod(Transport transport) {
+        if (!issueCommandLookedUp) {
+            issueCommandLookedUp = true;
+            try {
+                issueCommandMethod = transport.getClass().getMethod("issueCommand", String.class, int.class);
+            } catch (NoSuchMethodException e) {
+                log.warn(transport.getClass().getName() + " does not support issueCommand(), reused SMTP connections are not reset");
+            }
+        }
+        return issueCommandMethod;
+    }
+
+    /**
+     * returns the connection to the pool, or closes it if it has been used for the configured number of mails
+     */
+    private void releaseConnection(PooledConnection connection) {
+        connection.messagesSent++;
+        if (connection.messagesSent >= this.mailSender.getMessagesPerConnection()) {
+            closeConnection(connection);
+        } else {
+            this.idleConnections.add(connection);
+        }
+    }
+
+    private void closeConnection(PooledConnection connection) {
+        try {
+            connection.transport.close();
+        } catch (MessagingException e) {
+            log.debug("failed to close SMTP connection", e);
+        }
     }
 
     @Override
-    public String toString() {
-        return "SMTPClient [host=" + host + ", port=" + port + "]";
+    public void close() {
+        PooledConnection connection;
+        while ((connection = this.idleConnections.poll()) != null) {
+            closeConnection(connection);
+        }
     }
 
+    /**
+     * an open SMTP connection, counting the mails sent over it
+     */
+    private static class PooledConnection {
+        private final Transport transport;
+        private int messagesSent = 0;
+
+        PooledConnection(Transport transport) {
+            this.transport = transport;
+        }
+    }
 }
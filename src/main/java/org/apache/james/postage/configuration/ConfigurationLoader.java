@@ -27,6 +27,7 @@ import java.util.Map;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.result.PendingMailIndex;
 import org.apache.james.postage.user.UserList;
 
 /**
@@ -60,6 +61,16 @@ public class ConfigurationLoader {
 
             postageConfiguration.setDurationMinutes(configuration.getInt(getAttributedPropertyName(scenario,
                     "runtimeMinutes")));
+            postageConfiguration.setMaxPendingMails(configuration.getInt(getAttributedPropertyName(scenario,
+                    "max-pending-mails"), 0));
+            postageConfiguration.setPendingOverflowPolicy(configuration.getString(getAttributedPropertyName(scenario,
+                    "pending-overflow"), PendingMailIndex.OVERFLOW_EVICT_OLDEST).toLowerCase().trim());
+            postageConfiguration.setDashboardPort(configuration.getInt(getAttributedPropertyName(scenario,
+                    "dashboard-port"), 0));
+            postageConfiguration.setDeliveryTimeoutSeconds(configuration.getInt(getAttributedPropertyName(scenario,
+                    "delivery-timeout-seconds"), 0));
+            postageConfiguration.setResultFormat(configuration.getString(getAttributedPropertyName(scenario,
+                    "result-format"), PostageConfiguration.RESULT_FORMAT_CSV).toLowerCase().trim());
 
             addDescription(postageConfiguration, configuration.subset(scenario + ".description"));
 
@@ -86,6 +97,26 @@ public class ConfigurationLoader {
                     scenarioTestserver + ".pop3", "port")));
             postageConfiguration.setTestserverPOP3FetchesPerMinute(configuration.getInt(getAttributedPropertyName(
                     scenarioTestserver + ".pop3", "count-per-min")));
+            postageConfiguration.setTestserverPOP3Workers(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".pop3", "workers"), 1));
+            postageConfiguration.setTestserverPOP3MaxPollIntervalSeconds(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".pop3", "max-poll-interval-sec"), 0));
+            // without a maximum interval, accounts are picked randomly as they always were
+            String defaultAccountSelection = postageConfiguration.getTestserverPOP3MaxPollIntervalSeconds() > 0
+                                             ? PostageConfiguration.ACCOUNT_SELECTION_ROUND_ROBIN
+                                             : PostageConfiguration.ACCOUNT_SELECTION_RANDOM;
+            postageConfiguration.setTestserverPOP3AccountSelection(configuration.getString(getAttributedPropertyName(
+                    scenarioTestserver + ".pop3", "account-selection"), defaultAccountSelection).toLowerCase().trim());
+            postageConfiguration.setTestserverPOP3ValidateBody(configuration.getBoolean(getAttributedPropertyName(
+                    scenarioTestserver + ".pop3", "validate-body"), true));
+            postageConfiguration.setTestserverPOP3SessionReuseSeconds(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".pop3", "session-reuse-sec"), 0));
+            postageConfiguration.setTestserverPortIMAP(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".imap", "port"), 0));
+            postageConfiguration.setTestserverIMAPSessionsPerMinute(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".imap", "count-per-min"), 60));
+            postageConfiguration.setTestserverIMAPMaxSessions(configuration.getInt(getAttributedPropertyName(
+                    scenarioTestserver + ".imap", "sessions"), 0));
             postageConfiguration.setTestserverPortSMTPInbound(configuration.getInt(getAttributedPropertyName(
                     scenarioTestserver + ".smtp-inbound", "port")));
             postageConfiguration.setTestserverPortSMTPForwarding(configuration.getInt(getAttributedPropertyName(
@@ -107,6 +138,9 @@ public class ConfigurationLoader {
 
             addSendProfiles(postageConfiguration, configuration, scenario);
 
+            addSaturationSearch(postageConfiguration, configuration, scenario);
+            addReport(postageConfiguration, configuration, scenario);
+
             postageConfigurations.put(postageConfiguration.getId(), postageConfiguration);
 
             scenarioCount++;
@@ -145,6 +179,7 @@ public class ConfigurationLoader {
                     profilePath, "target"))));
 
             addMailSender(profile, configuration, profilePath);
+            addIMAPUsers(profile, configuration, profilePath);
 
             postageConfiguration.addProfile(profile);
 
@@ -152,6 +187,35 @@ public class ConfigurationLoader {
         }
     }
 
+    private void addReport(PostageConfiguration postageConfiguration, Configuration configuration, String scenario) {
+        String reportPath = scenario + ".report";
+
+        ReportConfiguration report = new ReportConfiguration();
+        report.setSlaLatencyMillis(configuration.getLong(getAttributedPropertyName(reportPath, "sla-latency-ms"), -1));
+        report.setSlaPercentile(configuration.getDouble(getAttributedPropertyName(reportPath, "sla-percentile"), 99.0));
+        report.setMaxUnmatchedPercent(configuration.getDouble(getAttributedPropertyName(reportPath, "max-unmatched-percent"), -1));
+        report.setMaxSendErrorPercent(configuration.getDouble(getAttributedPropertyName(reportPath, "max-send-error-percent"), -1));
+
+        postageConfiguration.setReport(report);
+    }
+
+    private void addSaturationSearch(PostageConfiguration postageConfiguration, Configuration configuration, String scenario) {
+        String searchPath = scenario + ".saturation-search";
+        if (configuration.getList(getAttributedPropertyName(searchPath, "sla-latency-ms")).isEmpty()) return;
+
+        SaturationSearchConfiguration search = new SaturationSearchConfiguration();
+        search.setMode(configuration.getString(getAttributedPropertyName(searchPath, "mode"),
+                SaturationSearchConfiguration.MODE_STEP).toLowerCase().trim());
+        search.setSlaLatencyMillis(configuration.getLong(getAttributedPropertyName(searchPath, "sla-latency-ms"), 60000));
+        search.setSlaPercentile(configuration.getDouble(getAttributedPropertyName(searchPath, "sla-percentile"), 99.0));
+        search.setStartPerMinute(configuration.getInt(getAttributedPropertyName(searchPath, "start-per-min"), 60));
+        search.setStepPerMinute(configuration.getInt(getAttributedPropertyName(searchPath, "step-per-min"), 60));
+        search.setMaxPerMinute(configuration.getInt(getAttributedPropertyName(searchPath, "max-per-min"), -1));
+        search.setStepMinutes(configuration.getInt(getAttributedPropertyName(searchPath, "step-minutes"), 2));
+
+        postageConfiguration.setSaturationSearch(search);
+    }
+
     private void addMailSender(SendProfile profile, Configuration configuration, String profilePath) {
         List<Object> mailSenders = configuration.getList(profilePath + ".send[@count-per-min]");
 
@@ -167,6 +231,30 @@ public class ConfigurationLoader {
                     "Apache JAMES Postage test mail"));
             mailSender.setSendPerMinute(configuration
                     .getInt(getAttributedPropertyName(mailSenderPath, "count-per-min")));
+            mailSender.setIncreaseSendPerMinute(configuration.getDouble(
+                    getAttributedPropertyName(mailSenderPath, "increase-per-min"), 0.0));
+            mailSender.setMaxSendPerMinute(configuration.getInt(
+                    getAttributedPropertyName(mailSenderPath, "max-per-min"), -1));
+            mailSender.setLoadModel(configuration.getString(getAttributedPropertyName(mailSenderPath, "load-model"),
+                    MailSender.LOAD_MODEL_CLOSED).toLowerCase().trim());
+            mailSender.setThreads(configuration.getString(getAttributedPropertyName(mailSenderPath, "threads"),
+                    MailSender.THREADS_PLATFORM).toLowerCase().trim());
+            mailSender.setMaxConcurrent(configuration.getInt(getAttributedPropertyName(mailSenderPath, "max-concurrent"),
+                    0));
+            mailSender.setSmtpClient(configuration.getString(getAttributedPropertyName(mailSenderPath, "smtp-client"),
+                    MailSender.SMTP_CLIENT_JAVAMAIL).toLowerCase().trim());
+            mailSender.setMessagesPerConnection(configuration.getInt(
+                    getAttributedPropertyName(mailSenderPath, "messages-per-connection"), 1));
+            mailSender.setPipelining(configuration.getBoolean(getAttributedPropertyName(mailSenderPath, "pipelining"),
+                    false));
+            mailSender.setChunking(configuration.getBoolean(getAttributedPropertyName(mailSenderPath, "chunking"),
+                    false));
+            mailSender.setChunkSize(configuration.getInt(getAttributedPropertyName(mailSenderPath, "chunk-size"),
+                    64 * 1024));
+            mailSender.setRecipientsMin(configuration.getInt(getAttributedPropertyName(mailSenderPath, "recipients-min"),
+                    1));
+            mailSender.setRecipientsMax(configuration.getInt(getAttributedPropertyName(mailSenderPath, "recipients-max"),
+                    mailSender.getRecipientsMin()));
             mailSender.setSizeMinText(configuration.getInt(getAttributedPropertyName(mailSenderPath, "text-size-min"),
                     0));
             mailSender.setSizeMaxText(configuration.getInt(getAttributedPropertyName(mailSenderPath, "text-size-max"),
@@ -184,6 +272,25 @@ public class ConfigurationLoader {
         }
     }
 
+    private void addIMAPUsers(SendProfile profile, Configuration configuration, String profilePath) {
+        List<Object> imapUsers = configuration.getList(profilePath + ".imap-user[@count-per-min]");
+
+        for (int imapUserCount = 0; imapUserCount < imapUsers.size(); imapUserCount++) {
+            String imapUserPath = getIndexedPropertyName(profilePath + ".imap-user", imapUserCount);
+
+            IMAPUserBehaviour imapUser = new IMAPUserBehaviour(profile);
+            imapUser.setSessionsPerMinute(configuration.getInt(getAttributedPropertyName(imapUserPath, "count-per-min")));
+            imapUser.setFetchesPerSession(configuration.getDouble(getAttributedPropertyName(imapUserPath, "fetch"), 1.0));
+            imapUser.setSearchesPerSession(configuration.getDouble(getAttributedPropertyName(imapUserPath, "search"), 1.0));
+            imapUser.setStoresPerSession(configuration.getDouble(getAttributedPropertyName(imapUserPath, "store"), 1.0));
+            imapUser.setExpungesPerSession(configuration.getDouble(getAttributedPropertyName(imapUserPath, "expunge"), 0.0));
+            imapUser.setFetchSize(configuration.getInt(getAttributedPropertyName(imapUserPath, "fetch-size"), 10));
+            imapUser.setMaxConcurrent(configuration.getInt(getAttributedPropertyName(imapUserPath, "max-concurrent"), -1));
+
+            profile.addIMAPUser(imapUser);
+        }
+    }
+
     private boolean convertToInternalExternalFlag(String flagCleartext) {
         return flagCleartext == null || !"extern".equals(flagCleartext.toLowerCase().trim());
     }
@@ -0,0 +1,122 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.configuration;
+
+/**
+ * specifies, how simulated IMAP users access the internal accounts, as coming from the configuration
+ * (<imap-user> element)<br/>
+ * every session logs in and selects the INBOX, then issues the configured number of commands of every kind
+ * in random order. fractional numbers are taken as the probability of issuing one more command.
+ */
+public class IMAPUserBehaviour {
+
+    private SendProfile profile;
+    private int sessionsPerMinute = 1;
+    private double fetchesPerSession = 1.0;
+    private double searchesPerSession = 1.0;
+    private double storesPerSession = 1.0;
+    private double expungesPerSession = 0.0;
+    private int fetchSize = 10;
+    private int maxConcurrent = -1;
+
+    public IMAPUserBehaviour(SendProfile profile) {
+        this.profile = profile;
+    }
+
+    public SendProfile getParentProfile() {
+        return this.profile;
+    }
+
+    public int getSessionsPerMinute() {
+        return this.sessionsPerMinute;
+    }
+
+    public void setSessionsPerMinute(int sessionsPerMinute) {
+        this.sessionsPerMinute = sessionsPerMinute;
+    }
+
+    public double getFetchesPerSession() {
+        return this.fetchesPerSession;
+    }
+
+    public void setFetchesPerSession(double fetchesPerSession) {
+        this.fetchesPerSession = fetchesPerSession;
+    }
+
+    public double getSearchesPerSession() {
+        return this.searchesPerSession;
+    }
+
+    public void setSearchesPerSession(double searchesPerSession) {
+        this.searchesPerSession = searchesPerSession;
+    }
+
+    public double getStoresPerSession() {
+        return this.storesPerSession;
+    }
+
+    public void setStoresPerSession(double storesPerSession) {
+        this.storesPerSession = storesPerSession;
+    }
+
+    public double getExpungesPerSession() {
+        return this.expungesPerSession;
+    }
+
+    public void setExpungesPerSession(double expungesPerSession) {
+        this.expungesPerSession = expungesPerSession;
+    }
+
+    /**
+     * @return how many messages are fetched by one FETCH command
+     */
+    public int getFetchSize() {
+        return this.fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return how many sessions may be open at the same time, 0 for no limit. by default the sessions started
+     *         within one minute.
+     */
+    public int getMaxConcurrent() {
+        if (this.maxConcurrent < 0) return this.sessionsPerMinute;
+        return this.maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    /**
+     * @param perSession configured number of commands per session
+     * @return the number of commands to issue in one session
+     */
+    public static int getRandomCommandCount(double perSession) {
+        if (perSession <= 0) return 0;
+        int count = (int)Math.floor(perSession);
+        if (Math.random() < perSession - count) count++;
+        return count;
+    }
+}
@@ -32,16 +32,57 @@ import org.apache.james.postage.result.MailProcessingRecord;
 /**
  * specifies, how mail is to be generated and sent, as coming from the configuration (<send> element)<br/>
  * the source and target are specified by the parent SendProfile instance<br/>
- * <br/>
- * TODO init increaseSendPerMinute & maxSendPerMinute from config
+ * the send rate can be increased every minute (ramp-up) up to a maximum, see getSendPerMinute(int)
  */
 public class MailSender {
 
     private static Log log = LogFactory.getLog(MailSender.class);
 
+    /**
+     * mails are sent at the configured rate, regardless how long sending takes. latency is measured from the
+     * time each mail was due.
+     */
+    public static final String LOAD_MODEL_OPEN = "open";
+
+    /**
+     * the next mail is only sent after the previous one has been completed. when the server slows down, less
+     * mail is sent.
+     */
+    public static final String LOAD_MODEL_CLOSED = "closed";
+
+    /**
+     * mails are sent by a shared pool of platform threads
+     */
+    public static final String THREADS_PLATFORM = "platform";
+
+    /**
+     * every mail is sent on its own virtual thread (if supported by the JVM)
+     */
+    public static final String THREADS_VIRTUAL = "virtual";
+
+    /**
+     * mails are sent using JavaMail, blocking a thread per mail
+     */
+    public static final String SMTP_CLIENT_JAVAMAIL = "javamail";
+
+    /**
+     * mails are sent using non-blocking IO, a few threads serve all connections
+     */
+    public static final String SMTP_CLIENT_NIO = "nio";
+
     private int sendPerMinute = 1;
     private double increaseSendPerMinute = 0.0;
     private int maxSendPerMinute = -1;
+    private String loadModel = LOAD_MODEL_CLOSED;
+    private String threads = THREADS_PLATFORM;
+    private int maxConcurrent = 0;
+    private String smtpClient = SMTP_CLIENT_JAVAMAIL;
+    private int messagesPerConnection = 1;
+    private boolean pipelining = false;
+    private boolean chunking = false;
+    private int chunkSize = 64 * 1024;
+    private int recipientsMin = 1;
+    private int recipientsMax = 1;
     private String subject = "test";
     private int sizeMinText = 0;
     private int sizeMaxText = 1000;
@@ -94,6 +135,143 @@ public class MailSender {
         return increased;
     }
 
+    public String getLoadModel() {
+        return loadModel;
+    }
+
+    public void setLoadModel(String loadModel) {
+        if (!LOAD_MODEL_OPEN.equals(loadModel) && !LOAD_MODEL_CLOSED.equals(loadModel)) {
+            throw new IllegalArgumentException("unknown load model: " + loadModel);
+        }
+        this.loadModel = loadModel;
+    }
+
+    public boolean isOpenLoop() {
+        return LOAD_MODEL_OPEN.equals(loadModel);
+    }
+
+    public String getThreads() {
+        return threads;
+    }
+
+    public void setThreads(String threads) {
+        if (!THREADS_PLATFORM.equals(threads) && !THREADS_VIRTUAL.equals(threads)) {
+            throw new IllegalArgumentException("unknown threads type: " + threads);
+        }
+        this.threads = threads;
+    }
+
+    public boolean isVirtualThreads() {
+        return THREADS_VIRTUAL.equals(threads);
+    }
+
+    /**
+     * @return how many mails may be in the process of being sent at the same time, 0 for no limit.
+     *         the closed load model always allows only one.
+     */
+    public int getMaxConcurrent() {
+        if (!isOpenLoop()) return 1;
+        return maxConcurrent;
+    }
+
+    public void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = maxConcurrent;
+    }
+
+    public String getSmtpClient() {
+        return smtpClient;
+    }
+
+    public void setSmtpClient(String smtpClient) {
+        if (!SMTP_CLIENT_JAVAMAIL.equals(smtpClient) && !SMTP_CLIENT_NIO.equals(smtpClient)) {
+            throw new IllegalArgumentException("unknown SMTP client: " + smtpClient);
+        }
+        this.smtpClient = smtpClient;
+    }
+
+    /**
+     * JavaMail supports neither pipelining nor chunking, so these imply the non-blocking client
+     */
+    public boolean isNonBlockingSmtpClient() {
+        return SMTP_CLIENT_NIO.equals(smtpClient) || pipelining || chunking;
+    }
+
+    /**
+     * @return TRUE, if MAIL FROM, RCPT TO and DATA are sent without waiting for each reply (ESMTP PIPELINING),
+     *         as long as the server supports it
+     */
+    public boolean isPipelining() {
+        return pipelining;
+    }
+
+    public void setPipelining(boolean pipelining) {
+        this.pipelining = pipelining;
+    }
+
+    /**
+     * @return TRUE, if the mail is transferred using BDAT instead of DATA (ESMTP CHUNKING), as long as the
+     *         server supports it
+     */
+    public boolean isChunking() {
+        return chunking;
+    }
+
+    public void setChunking(boolean chunking) {
+        this.chunking = chunking;
+    }
+
+    /**
+     * @return the maximum size of one BDAT chunk in bytes
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunk size must be at least 1: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return how many mails are sent over one SMTP connection before it is closed. 1 (the default) opens a new
+     *         connection for every mail.
+     */
+    public int getMessagesPerConnection() {
+        return messagesPerConnection;
+    }
+
+    public void setMessagesPerConnection(int messagesPerConnection) {
+        if (messagesPerConnection < 1) {
+            throw new IllegalArgumentException("messages per connection must be at least 1: " + messagesPerConnection);
+        }
+        this.messagesPerConnection = messagesPerConnection;
+    }
+
+    public int getRecipientsMin() {
+        return recipientsMin;
+    }
+
+    public void setRecipientsMin(int recipientsMin) {
+        if (recipientsMin < 1) throw new IllegalArgumentException("mail needs at least one recipient: " + recipientsMin);
+        this.recipientsMin = recipientsMin;
+    }
+
+    public int getRecipientsMax() {
+        return recipientsMax;
+    }
+
+    public void setRecipientsMax(int recipientsMax) {
+        this.recipientsMax = recipientsMax;
+    }
+
+    /**
+     * @return random number of recipients for the next mail, within the configured range
+     */
+    public int getRandomRecipientCount() {
+        if (recipientsMax <= recipientsMin) return recipientsMin;
+        return recipientsMin + (int)(Math.random() * (recipientsMax - recipientsMin + 1));
+    }
+
     public String getSubject() {
         return subject;
     }
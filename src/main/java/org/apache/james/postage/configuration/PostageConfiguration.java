@@ -26,13 +26,44 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.james.postage.result.PendingMailIndex;
 import org.apache.james.postage.user.UserList;
 
 public class PostageConfiguration {
+
+    /**
+     * every POP3 fetch accesses a random account
+     */
+    public static final String ACCOUNT_SELECTION_RANDOM = "random";
+
+    /**
+     * POP3 fetches access all accounts one after the other, shared by all workers
+     */
+    public static final String ACCOUNT_SELECTION_ROUND_ROBIN = "round-robin";
+
+    /**
+     * every POP3 worker accesses its own share of the accounts one after the other
+     */
+    public static final String ACCOUNT_SELECTION_SHARDED = "sharded";
+
+    public static final String RESULT_FORMAT_CSV = "csv";
+    public static final String RESULT_FORMAT_COLUMNAR = "columnar";
+    public static final String RESULT_FORMAT_BOTH = "both";
+
     private String id;
 
     private int durationMinutes = 10;
 
+    private int maxPendingMails = 0;
+
+    private String pendingOverflowPolicy = PendingMailIndex.OVERFLOW_EVICT_OLDEST;
+
+    private int dashboardPort = 0;
+
+    private int deliveryTimeoutSeconds = 0;
+
+    private String resultFormat = RESULT_FORMAT_CSV;
+
     private boolean internalReuseExisting = true;
 
     private Map<String, String> descriptionItems = new LinkedHashMap<String, String>();
@@ -53,6 +84,22 @@ public class PostageConfiguration {
 
     private int testserverPOP3FetchesPerMinute = 1;
 
+    private int testserverPOP3Workers = 1;
+
+    private String testserverPOP3AccountSelection = ACCOUNT_SELECTION_RANDOM;
+
+    private int testserverPOP3MaxPollIntervalSeconds = 0;
+
+    private boolean testserverPOP3ValidateBody = true;
+
+    private int testserverPOP3SessionReuseSeconds = 0;
+
+    private int testserverPortIMAP = 0;
+
+    private int testserverIMAPSessionsPerMinute = 60;
+
+    private int testserverIMAPMaxSessions = 0;
+
     private int testserverRemoteManagerPort = -1;
 
     private String testserverRemoteManagerUsername = null;
@@ -67,6 +114,10 @@ public class PostageConfiguration {
 
     private List<SendProfile> profiles = new ArrayList<SendProfile>();
 
+    private SaturationSearchConfiguration saturationSearch = null;
+
+    private ReportConfiguration report = new ReportConfiguration();
+
     public PostageConfiguration(String id) {
         this.id = id;
     }
@@ -83,6 +134,61 @@ public class PostageConfiguration {
         this.durationMinutes = durationMinutes;
     }
 
+    /**
+     * @return how many sent mails are kept for matching at most, 0 for no limit
+     */
+    public int getMaxPendingMails() {
+        return this.maxPendingMails;
+    }
+
+    public void setMaxPendingMails(int maxPendingMails) {
+        this.maxPendingMails = maxPendingMails;
+    }
+
+    /**
+     * @return PendingMailIndex.OVERFLOW_EVICT_OLDEST or PendingMailIndex.OVERFLOW_REJECT
+     */
+    public String getPendingOverflowPolicy() {
+        return this.pendingOverflowPolicy;
+    }
+
+    public void setPendingOverflowPolicy(String pendingOverflowPolicy) {
+        this.pendingOverflowPolicy = pendingOverflowPolicy;
+    }
+
+    /**
+     * @return the local port the dashboard is served on, 0 for no dashboard
+     */
+    public int getDashboardPort() {
+        return this.dashboardPort;
+    }
+
+    public void setDashboardPort(int dashboardPort) {
+        this.dashboardPort = dashboardPort;
+    }
+
+    /**
+     * @return after how many seconds a mail not yet delivered is recorded as lost, 0 for never
+     */
+    public int getDeliveryTimeoutSeconds() {
+        return this.deliveryTimeoutSeconds;
+    }
+
+    public void setDeliveryTimeoutSeconds(int deliveryTimeoutSeconds) {
+        this.deliveryTimeoutSeconds = deliveryTimeoutSeconds;
+    }
+
+    /**
+     * @return RESULT_FORMAT_CSV, RESULT_FORMAT_COLUMNAR or RESULT_FORMAT_BOTH
+     */
+    public String getResultFormat() {
+        return this.resultFormat;
+    }
+
+    public void setResultFormat(String resultFormat) {
+        this.resultFormat = resultFormat;
+    }
+
     public boolean isInternalReuseExisting() {
         return this.internalReuseExisting;
     }
@@ -165,6 +271,97 @@ public class PostageConfiguration {
         this.testserverPOP3FetchesPerMinute = testserverPOP3FetchesPerMinute;
     }
 
+    /**
+     * @return number of POP3 fetches running in parallel
+     */
+    public int getTestserverPOP3Workers() {
+        return this.testserverPOP3Workers;
+    }
+
+    public void setTestserverPOP3Workers(int testserverPOP3Workers) {
+        this.testserverPOP3Workers = testserverPOP3Workers;
+    }
+
+    public String getTestserverPOP3AccountSelection() {
+        return this.testserverPOP3AccountSelection;
+    }
+
+    public void setTestserverPOP3AccountSelection(String testserverPOP3AccountSelection) {
+        if (!ACCOUNT_SELECTION_RANDOM.equals(testserverPOP3AccountSelection)
+            && !ACCOUNT_SELECTION_ROUND_ROBIN.equals(testserverPOP3AccountSelection)
+            && !ACCOUNT_SELECTION_SHARDED.equals(testserverPOP3AccountSelection)) {
+            throw new IllegalArgumentException("unknown account selection: " + testserverPOP3AccountSelection);
+        }
+        this.testserverPOP3AccountSelection = testserverPOP3AccountSelection;
+    }
+
+    /**
+     * @return the longest time in seconds any account may go without being polled, 0 if not limited.
+     *         the POP3 fetch rate is raised as needed.
+     */
+    public int getTestserverPOP3MaxPollIntervalSeconds() {
+        return this.testserverPOP3MaxPollIntervalSeconds;
+    }
+
+    public void setTestserverPOP3MaxPollIntervalSeconds(int testserverPOP3MaxPollIntervalSeconds) {
+        this.testserverPOP3MaxPollIntervalSeconds = testserverPOP3MaxPollIntervalSeconds;
+    }
+
+    /**
+     * @return TRUE, if POP3 mails are retrieved completely for validation. otherwise, only the headers are fetched.
+     */
+    public boolean isTestserverPOP3ValidateBody() {
+        return this.testserverPOP3ValidateBody;
+    }
+
+    public void setTestserverPOP3ValidateBody(boolean testserverPOP3ValidateBody) {
+        this.testserverPOP3ValidateBody = testserverPOP3ValidateBody;
+    }
+
+    /**
+     * @return how long a logged in POP3 session may be reused for the same account, 0 if never reused
+     */
+    public int getTestserverPOP3SessionReuseSeconds() {
+        return this.testserverPOP3SessionReuseSeconds;
+    }
+
+    public void setTestserverPOP3SessionReuseSeconds(int testserverPOP3SessionReuseSeconds) {
+        this.testserverPOP3SessionReuseSeconds = testserverPOP3SessionReuseSeconds;
+    }
+
+    /**
+     * @return port for IMAP sessions idling on the internal accounts, 0 if not used
+     */
+    public int getTestserverPortIMAP() {
+        return this.testserverPortIMAP;
+    }
+
+    public void setTestserverPortIMAP(int testserverPortIMAP) {
+        this.testserverPortIMAP = testserverPortIMAP;
+    }
+
+    /**
+     * @return how many IMAP sessions are opened per minute, until all are open
+     */
+    public int getTestserverIMAPSessionsPerMinute() {
+        return this.testserverIMAPSessionsPerMinute;
+    }
+
+    public void setTestserverIMAPSessionsPerMinute(int testserverIMAPSessionsPerMinute) {
+        this.testserverIMAPSessionsPerMinute = testserverIMAPSessionsPerMinute;
+    }
+
+    /**
+     * @return how many internal accounts are kept open using IMAP, 0 for all
+     */
+    public int getTestserverIMAPMaxSessions() {
+        return this.testserverIMAPMaxSessions;
+    }
+
+    public void setTestserverIMAPMaxSessions(int testserverIMAPMaxSessions) {
+        this.testserverIMAPMaxSessions = testserverIMAPMaxSessions;
+    }
+
     public int getTestserverRemoteManagerPort() {
         return this.testserverRemoteManagerPort;
     }
@@ -217,6 +414,29 @@ public class PostageConfiguration {
         this.testserverJMXRemotingPort = testserverJMXRemotingPort;
     }
 
+    /**
+     * @return the settings for searching the maximum sustainable send rate, or null if the scenario
+     *         sends at its configured rates
+     */
+    public SaturationSearchConfiguration getSaturationSearch() {
+        return this.saturationSearch;
+    }
+
+    public void setSaturationSearch(SaturationSearchConfiguration saturationSearch) {
+        this.saturationSearch = saturationSearch;
+    }
+
+    /**
+     * @return the thresholds checked by the report, never null
+     */
+    public ReportConfiguration getReport() {
+        return this.report;
+    }
+
+    public void setReport(ReportConfiguration report) {
+        this.report = report;
+    }
+
     public void addProfile(SendProfile profile) {
         this.profiles.add(profile);
     }
@@ -247,4 +467,19 @@ public class PostageConfiguration {
         }
         return total;
     }
+
+    /**
+     * @return all mails to be sent during the whole run, taking into account any ramp-up
+     */
+    public int getTotalMailsTarget() {
+        int total = 0;
+        for (int minute = 0; minute < this.durationMinutes; minute++) {
+            Iterator<SendProfile> iterator = this.profiles.iterator();
+            while (iterator.hasNext()) {
+                SendProfile sendProfile = iterator.next();
+                total += sendProfile.getTotalMailsPerMin(minute);
+            }
+        }
+        return total;
+    }
 }
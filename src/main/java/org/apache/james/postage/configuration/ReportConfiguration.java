@@ -0,0 +1,76 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.configuration;
+
+/**
+ * specifies the thresholds a run is checked against by the report, as coming from the configuration
+ * (<report> element).<br/>
+ * thresholds not configured are not checked, they are negative.
+ */
+public class ReportConfiguration {
+
+    private long slaLatencyMillis = -1;
+    private double slaPercentile = 99.0;
+    private double maxUnmatchedPercent = -1;
+    private double maxSendErrorPercent = -1;
+
+    /**
+     * @return the delivery latency the sla-percentile of all matched mails must not exceed
+     */
+    public long getSlaLatencyMillis() {
+        return this.slaLatencyMillis;
+    }
+
+    public void setSlaLatencyMillis(long slaLatencyMillis) {
+        this.slaLatencyMillis = slaLatencyMillis;
+    }
+
+    public double getSlaPercentile() {
+        return this.slaPercentile;
+    }
+
+    public void setSlaPercentile(double slaPercentile) {
+        this.slaPercentile = slaPercentile;
+    }
+
+    /**
+     * @return the percentage of mails sent, but not matched (lost or still pending at the end), allowed at most
+     */
+    public double getMaxUnmatchedPercent() {
+        return this.maxUnmatchedPercent;
+    }
+
+    public void setMaxUnmatchedPercent(double maxUnmatchedPercent) {
+        this.maxUnmatchedPercent = maxUnmatchedPercent;
+    }
+
+    /**
+     * @return the percentage of mails failed to be sent allowed at most
+     */
+    public double getMaxSendErrorPercent() {
+        return this.maxSendErrorPercent;
+    }
+
+    public void setMaxSendErrorPercent(double maxSendErrorPercent) {
+        this.maxSendErrorPercent = maxSendErrorPercent;
+    }
+}
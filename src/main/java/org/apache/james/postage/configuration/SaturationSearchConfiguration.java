@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.configuration;
+
+/**
+ * specifies how the highest sustainable send rate is searched for, as coming from the configuration
+ * (<saturation-search> element).<br/>
+ * rates are the total of mails per minute over all senders. each sender gets its share according to its
+ * configured count-per-min.
+ */
+public class SaturationSearchConfiguration {
+
+    /**
+     * the rate is raised by a fixed step until the SLA is missed
+     */
+    public static final String MODE_STEP = "step";
+
+    /**
+     * the rate is doubled until the SLA is missed, then the interval between the last good and the first bad
+     * rate is bisected
+     */
+    public static final String MODE_BINARY = "binary";
+
+    private String mode = MODE_STEP;
+    private int startPerMinute = 60;
+    private int stepPerMinute = 60;
+    private int maxPerMinute = -1;
+    private int stepMinutes = 2;
+    private long slaLatencyMillis = 60 * 1000;
+    private double slaPercentile = 99.0;
+
+    public String getMode() {
+        return this.mode;
+    }
+
+    public void setMode(String mode) {
+        if (!MODE_STEP.equals(mode) && !MODE_BINARY.equals(mode)) {
+            throw new IllegalArgumentException("unknown saturation search mode: " + mode);
+        }
+        this.mode = mode;
+    }
+
+    public boolean isBinarySearch() {
+        return MODE_BINARY.equals(this.mode);
+    }
+
+    public int getStartPerMinute() {
+        return this.startPerMinute;
+    }
+
+    public void setStartPerMinute(int startPerMinute) {
+        this.startPerMinute = startPerMinute;
+    }
+
+    /**
+     * in step mode, the increase from one step to the next. in binary mode, the resolution at which
+     * bisecting stops.
+     */
+    public int getStepPerMinute() {
+        return this.stepPerMinute;
+    }
+
+    public void setStepPerMinute(int stepPerMinute) {
+        this.stepPerMinute = stepPerMinute;
+    }
+
+    /**
+     * @return upper bound for the rate, or -1 if unbounded
+     */
+    public int getMaxPerMinute() {
+        return this.maxPerMinute;
+    }
+
+    public void setMaxPerMinute(int maxPerMinute) {
+        this.maxPerMinute = maxPerMinute;
+    }
+
+    /**
+     * how long each rate is kept before the results are evaluated
+     */
+    public int getStepMinutes() {
+        return this.stepMinutes;
+    }
+
+    public void setStepMinutes(int stepMinutes) {
+        this.stepMinutes = stepMinutes;
+    }
+
+    public long getSlaLatencyMillis() {
+        return this.slaLatencyMillis;
+    }
+
+    public void setSlaLatencyMillis(long slaLatencyMillis) {
+        this.slaLatencyMillis = slaLatencyMillis;
+    }
+
+    /**
+     * @return the percentile (0 < p <= 100) of the delivery latencies, which must not exceed the SLA latency
+     */
+    public double getSlaPercentile() {
+        return this.slaPercentile;
+    }
+
+    public void setSlaPercentile(double slaPercentile) {
+        this.slaPercentile = slaPercentile;
+    }
+}
@@ -25,7 +25,8 @@ import java.util.Iterator;
 import java.util.List;
 
 /**
- * specifies for the contained MailSenders, what are source and target of each mail they generate
+ * specifies for the contained MailSenders, what are source and target of each mail they generate<br/>
+ * a profile may also contain IMAP users accessing the internal accounts
  */
 public class SendProfile {
     private String profileName;
@@ -34,6 +35,8 @@ public class SendProfile {
 
     private final List<MailSender> mailSenders = new ArrayList<MailSender>();
 
+    private final List<IMAPUserBehaviour> imapUsers = new ArrayList<IMAPUserBehaviour>();
+
     public SendProfile(String profileName) {
         this.profileName = profileName;
     }
@@ -66,6 +69,14 @@ public class SendProfile {
         return this.mailSenders.iterator();
     }
 
+    public void addIMAPUser(IMAPUserBehaviour imapUser) {
+        this.imapUsers.add(imapUser);
+    }
+
+    public Iterator<IMAPUserBehaviour> imapUserIterator() {
+        return this.imapUsers.iterator();
+    }
+
     public int getTotalMailsPerMin() {
         Iterator<MailSender> iterator = this.mailSenders.iterator();
         int total = 0;
@@ -75,4 +86,18 @@ public class SendProfile {
         }
         return total;
     }
+
+    /**
+     * @param minute the minute of the run, starting with 0
+     * @return mails to be sent by all senders in the specified minute, taking into account any ramp-up
+     */
+    public int getTotalMailsPerMin(int minute) {
+        Iterator<MailSender> iterator = this.mailSenders.iterator();
+        int total = 0;
+        while (iterator.hasNext()) {
+            MailSender mailSender = iterator.next();
+            total += mailSender.getSendPerMinute(minute);
+        }
+        return total;
+    }
 }
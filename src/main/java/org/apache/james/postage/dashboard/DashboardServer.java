@@ -0,0 +1,257 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.dashboard;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.PostageRunner;
+import org.apache.james.postage.StartupException;
+import org.apache.james.postage.execution.SampleScheduler;
+import org.apache.james.postage.result.LatencyHistogram;
+import org.apache.james.postage.result.LatencyStatistics;
+import org.apache.james.postage.result.PostageRunnerResult;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * serves the current state of a running scenario over HTTP, only to the local host:<br/>
+ * /status as JSON, /metrics as Prometheus text.<br/>
+ * rates are per minute over the last minute, latency percentiles are for the mails sent in the last two
+ * minutes (current and previous minute). as mails not delivered yet are missing from the latencies, the number
+ * of pending mails and the age of the oldest one are shown next to them.
+ */
+public class DashboardServer {
+
+    private static Log log = LogFactory.getLog(DashboardServer.class);
+
+    private static final long SNAPSHOT_PERIOD_MILLIS = 10 * 1000;
+    private static final long RATE_WINDOW_MILLIS = 60 * 1000;
+    private static final int LATENCY_WINDOW_MINUTES = 2;
+
+    private final PostageRunner runner;
+    private final PostageRunnerResult results;
+    private final int port;
+
+    private HttpServer httpServer = null;
+    private ScheduledFuture<?> snapshotFuture = null;
+    private final LinkedList<Snapshot> snapshots = new LinkedList<Snapshot>();
+
+    public DashboardServer(PostageRunner runner, PostageRunnerResult results, int port) {
+        this.runner = runner;
+        this.results = results;
+        this.port = port;
+    }
+
+    public synchronized void start() throws StartupException {
+        try {
+            this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), this.port), 0);
+        } catch (IOException e) {
+            throw new StartupException("could not open dashboard on local port " + this.port, e);
+        }
+        this.httpServer.createContext("/status", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "application/json", writeStatus(takeSnapshot()).toString());
+            }
+        });
+        this.httpServer.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, "text/plain; version=0.0.4", writeMetrics(takeSnapshot()).toString());
+            }
+        });
+        this.httpServer.start();
+
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(SNAPSHOT_PERIOD_MILLIS);
+        this.snapshotFuture = SampleScheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                takeSnapshot();
+            }
+        }, periodNanos, periodNanos);
+        log.info("dashboard available at http://127.0.0.1:" + this.port + "/status and /metrics");
+    }
+
+    public synchronized void stop() {
+        if (this.snapshotFuture != null) this.snapshotFuture.cancel(false);
+        this.snapshotFuture = null;
+        if (this.httpServer != null) this.httpServer.stop(0);
+        this.httpServer = null;
+    }
+
+    private void respond(HttpExchange exchange, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(200, bytes.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        try {
+            outputStream.write(bytes);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * records the current counters and drops the ones no longer needed for the rates
+     * @return the current counters
+     */
+    private Snapshot takeSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        snapshot.time = System.currentTimeMillis();
+        snapshot.sent = this.runner.getMailsSent();
+        snapshot.sendFailed = this.runner.getMailsSendFailed();
+        snapshot.matched = this.results.getMatchedMails();
+        snapshot.valid = this.results.getValidMails();
+        snapshot.errors = this.results.getErrorCount();
+        snapshot.unmatched = this.results.getUnmatchedMails();
+        snapshot.lost = this.results.getLostMails();
+        snapshot.late = this.results.getLateMails();
+
+        synchronized (this.snapshots) {
+            this.snapshots.addLast(snapshot);
+            // keep the newest snapshot being at least the window old as base for the rates
+            while (this.snapshots.size() > 2 && snapshot.time - this.snapshots.get(1).time >= RATE_WINDOW_MILLIS) {
+                this.snapshots.removeFirst();
+            }
+            snapshot.base = this.snapshots.getFirst();
+        }
+        return snapshot;
+    }
+
+    private StringBuffer writeStatus(Snapshot snapshot) {
+        LatencyHistogram latencies = this.results.getLatencyStatistics().getRecent(LatencyStatistics.METRIC_DELIVERY, LATENCY_WINDOW_MINUTES);
+        long oldestPendingAge = getOldestPendingAge(snapshot);
+
+        StringBuffer json = new StringBuffer();
+        json.append("{");
+        json.append("\"phase\":").append(this.runner.getCurrentPhase()).append(",");
+        json.append("\"time\":").append(snapshot.time).append(",");
+        json.append("\"sent\":").append(snapshot.sent).append(",");
+        json.append("\"sendFailed\":").append(snapshot.sendFailed).append(",");
+        json.append("\"matched\":").append(snapshot.matched).append(",");
+        json.append("\"valid\":").append(snapshot.valid).append(",");
+        json.append("\"unmatched\":").append(snapshot.unmatched).append(",");
+        json.append("\"errors\":").append(snapshot.errors).append(",");
+        json.append("\"lost\":").append(snapshot.lost).append(",");
+        json.append("\"late\":").append(snapshot.late).append(",");
+        json.append("\"sendPerMinute\":").append(snapshot.getRate(snapshot.sent, snapshot.base.sent)).append(",");
+        json.append("\"sendFailedPerMinute\":").append(snapshot.getRate(snapshot.sendFailed, snapshot.base.sendFailed)).append(",");
+        json.append("\"matchPerMinute\":").append(snapshot.getRate(snapshot.matched, snapshot.base.matched)).append(",");
+        json.append("\"errorsPerMinute\":").append(snapshot.getRate(snapshot.errors, snapshot.base.errors)).append(",");
+        json.append("\"lostPerMinute\":").append(snapshot.getRate(snapshot.lost, snapshot.base.lost)).append(",");
+        json.append("\"deliveryLatency\":{");
+        json.append("\"count\":").append(latencies.getCount()).append(",");
+        json.append("\"p50\":").append(latencies.getValueAtPercentile(50.0)).append(",");
+        json.append("\"p99\":").append(latencies.getValueAtPercentile(99.0)).append(",");
+        json.append("\"p99.9\":").append(latencies.getValueAtPercentile(99.9)).append(",");
+        json.append("\"max\":").append(latencies.getMax());
+        json.append("},");
+        json.append("\"pending\":{");
+        json.append("\"count\":").append(snapshot.unmatched).append(",");
+        json.append("\"oldestAgeMillis\":").append(oldestPendingAge);
+        json.append("}}\n");
+        return json;
+    }
+
+    private StringBuffer writeMetrics(Snapshot snapshot) {
+        LatencyHistogram latencies = this.results.getLatencyStatistics().getRecent(LatencyStatistics.METRIC_DELIVERY, LATENCY_WINDOW_MINUTES);
+        long oldestPendingAge = getOldestPendingAge(snapshot);
+
+        StringBuffer metrics = new StringBuffer();
+        writeMetric(metrics, "postage_phase", "gauge", "phase of the runner, see PostageRunner.PHASE_*", this.runner.getCurrentPhase());
+        writeMetric(metrics, "postage_mails_sent_total", "counter", "mails sent successfully", snapshot.sent);
+        writeMetric(metrics, "postage_mails_send_failed_total", "counter", "mails failed to be sent", snapshot.sendFailed);
+        writeMetric(metrics, "postage_mails_matched_total", "counter", "mails received and matched to the sent ones", snapshot.matched);
+        writeMetric(metrics, "postage_mails_valid_total", "counter", "matched mails received unchanged", snapshot.valid);
+        writeMetric(metrics, "postage_mails_unmatched", "gauge", "sent mails not yet received", snapshot.unmatched);
+        writeMetric(metrics, "postage_errors_total", "counter", "errors recorded since the start", snapshot.errors);
+        writeMetric(metrics, "postage_mails_lost_total", "counter", "mails not delivered within the delivery timeout", snapshot.lost);
+        writeMetric(metrics, "postage_mails_late_total", "counter", "mails delivered after the delivery timeout", snapshot.late);
+        writeMetric(metrics, "postage_send_per_minute", "gauge", "send rate over the last minute", snapshot.getRate(snapshot.sent, snapshot.base.sent));
+        writeMetric(metrics, "postage_match_per_minute", "gauge", "match rate over the last minute", snapshot.getRate(snapshot.matched, snapshot.base.matched));
+        writeMetric(metrics, "postage_errors_per_minute", "gauge", "error rate over the last minute", snapshot.getRate(snapshot.errors, snapshot.base.errors));
+        writeMetric(metrics, "postage_lost_per_minute", "gauge", "rate of mails recorded as lost over the last minute", snapshot.getRate(snapshot.lost, snapshot.base.lost));
+
+        metrics.append("# HELP postage_delivery_latency_ms delivery latency of the mails sent in the last ").append(LATENCY_WINDOW_MINUTES).append(" minutes\n");
+        metrics.append("# TYPE postage_delivery_latency_ms summary\n");
+        if (latencies.getCount() > 0) {
+            metrics.append("postage_delivery_latency_ms{quantile=\"0.5\"} ").append(latencies.getValueAtPercentile(50.0)).append("\n");
+            metrics.append("postage_delivery_latency_ms{quantile=\"0.99\"} ").append(latencies.getValueAtPercentile(99.0)).append("\n");
+            metrics.append("postage_delivery_latency_ms{quantile=\"0.999\"} ").append(latencies.getValueAtPercentile(99.9)).append("\n");
+            metrics.append("postage_delivery_latency_ms{quantile=\"1\"} ").append(latencies.getMax()).append("\n");
+        }
+        metrics.append("postage_delivery_latency_ms_count ").append(latencies.getCount()).append("\n");
+        writeMetric(metrics, "postage_pending_oldest_age_ms", "gauge", "age of the oldest mail sent but not yet received", oldestPendingAge);
+        return metrics;
+    }
+
+    /**
+     * @return milliseconds since the oldest mail not yet matched was sent, 0 if there is none
+     */
+    private long getOldestPendingAge(Snapshot snapshot) {
+        long oldestTimeSent = this.results.getOldestUnmatchedTimeSent();
+        return oldestTimeSent <= 0 ? 0 : Math.max(0, snapshot.time - oldestTimeSent);
+    }
+
+    private static void writeMetric(StringBuffer metrics, String name, String type, String help, Number value) {
+        metrics.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        metrics.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+        metrics.append(name).append(" ").append(value).append("\n");
+    }
+
+    private static void writeMetric(StringBuffer metrics, String name, String type, String help, long value) {
+        writeMetric(metrics, name, type, help, Long.valueOf(value));
+    }
+
+    private static void writeMetric(StringBuffer metrics, String name, String type, String help, double value) {
+        writeMetric(metrics, name, type, help, Double.valueOf(value));
+    }
+
+    /**
+     * the counters at one time
+     */
+    private static class Snapshot {
+        long time;
+        long sent;
+        long sendFailed;
+        long matched;
+        long valid;
+        long errors;
+        long unmatched;
+        long lost;
+        long late;
+        Snapshot base; // older snapshot the rates are calculated from
+
+        double getRate(long value, long baseValue) {
+            long elapsedMillis = this.time - this.base.time;
+            if (elapsedMillis <= 0) return 0.0;
+            return Math.round((value - baseValue) * 60000.0 / elapsedMillis * 10) / 10.0;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.postage.execution;
+
+/**
+ * a Sampler whose doSample() only starts the sample, which then completes in the background. the outcome is
+ * reported to the listener later. the sample counts as running until then.
+ * @see SampleController
+ */
+public interface AsynchronousSampler extends Sampler {
+
+    /**
+     * receives the outcome of every sample started by doSample() without throwing an exception
+     */
+    interface SampleListener {
+        void sampleCompleted(boolean succeeded);
+    }
+
+    /**
+     * @param sampleListener to be called exactly once for every sample started
+     */
+    void setSampleListener(SampleListener sampleListener);
+}
@@ -20,28 +20,75 @@
 
 package org.apache.james.postage.execution;
 
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.postage.SampleSkippedException;
 import org.apache.james.postage.SamplingException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 /**
- * initiate one shot of sample data generation
+ * initiate samples of data generation at a fixed rate.<br/>
+ * the point in time every sample is due is calculated from the start of the schedule, so the rate does not
+ * drift when samples take longer than the period. samples starting later than one period after they were due
+ * are counted as late.<br/>
+ * the rate can be changed while running, this starts a new schedule.<br/>
+ * optionally, the number of samples running at the same time can be limited. ticks occuring while the limit
+ * is reached are skipped (closed-loop behavior). so are ticks finding no free worker thread.<br/>
+ * under open-loop load, no tick is skipped: ticks which cannot be taken right away, because of the limit, because
+ * no worker thread is free or because the sampler is busy, are queued and taken as soon as possible, still with the
+ * time they were due. so a stalling server shows in the latencies instead of in less samples. if more than
+ * MAX_SAMPLES_DUE ticks are queued, further ones are counted as failed.<br/>
+ * an AsynchronousSampler counts as running until it reports the outcome, only then the sample succeeded or failed.
  */
-public class SampleController extends TimerTask {
+public class SampleController {
 
     private static Log log = LogFactory.getLog(SampleController.class);
 
+    private static final long INITIAL_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    static final int MAX_SAMPLES_DUE = 100000;
+
     private Sampler sampler;
     private int samplesPerMinute;
-    private Timer timer;
     private int secondsDelayOnStop = 0;
 
+    private volatile boolean running = false;
+    private volatile boolean openLoop = false;
+    private volatile long periodNanos = 0;
+    private FixedRateSchedule schedule = null;
+    private long firstStartNanos = -1;
+    private int maxSamplesInFlight = 0;
+    private Executor sampleExecutor = SampleScheduler.getPlatformThreadExecutor();
+
+    private final AtomicInteger samplesInFlight = new AtomicInteger(0);
+
+    // times of open-loop ticks not yet taken, oldest first
+    private final LinkedList<Long> samplesDue = new LinkedList<Long>();
+
+    private final AtomicLong samplesStarted = new AtomicLong(0);
+    private final AtomicLong samplesCompleted = new AtomicLong(0);
+    private final AtomicLong samplesSucceeded = new AtomicLong(0);
+    private final AtomicLong samplesLate = new AtomicLong(0);
+    private final AtomicLong samplesFailed = new AtomicLong(0);
+    private final AtomicLong samplesSkipped = new AtomicLong(0);
+
     public SampleController(Sampler sampler, int samplesPerMinute) {
         this.sampler = sampler;
         this.samplesPerMinute = samplesPerMinute;
+        if (sampler instanceof AsynchronousSampler) {
+            ((AsynchronousSampler)sampler).setSampleListener(new AsynchronousSampler.SampleListener() {
+                public void sampleCompleted(boolean succeeded) {
+                    asynchronousSampleCompleted(succeeded);
+                }
+            });
+        }
     }
 
     public SampleController(Sampler sampler, int samplesPerMinute, int secondsDelayOnStop) {
@@ -49,17 +96,82 @@ public class SampleController extends TimerTask {
         this.secondsDelayOnStop = secondsDelayOnStop;
     }
 
-    public void runThreaded() {
+    /**
+     * @param maxSamplesInFlight how many samples may run at the same time. 0 for no limit (the default),
+     *        1 for the classic behavior where the next sample waits for the previous one to complete.
+     */
+    public void setMaxSamplesInFlight(int maxSamplesInFlight) {
+        this.maxSamplesInFlight = maxSamplesInFlight;
+    }
+
+    /**
+     * @param openLoop TRUE, if ticks which cannot be taken right away are queued instead of being skipped
+     */
+    public void setOpenLoop(boolean openLoop) {
+        this.openLoop = openLoop;
+    }
+
+    /**
+     * @param sampleExecutor runs the samples, for example SampleScheduler.getVirtualThreadExecutor().
+     *        default is the shared pool of platform threads.
+     */
+    public void setSampleExecutor(Executor sampleExecutor) {
+        this.sampleExecutor = sampleExecutor;
+    }
+
+    public synchronized void runThreaded() {
+        this.running = true;
         if (this.samplesPerMinute < 1) {
             log.warn("sample controller effectivly disabled with sample-per-minute value = " + this.samplesPerMinute);
             return;
         }
-        this.timer = new Timer(true);
-        this.timer.schedule(this, 5, 60*1000/this.samplesPerMinute);
+        startSchedule();
+    }
+
+    /**
+     * changes the rate. if already running, the current schedule is replaced by one having the new rate.
+     * a rate below 1 pauses sampling.
+     */
+    public synchronized void setSamplesPerMinute(int samplesPerMinute) {
+        if (samplesPerMinute == this.samplesPerMinute) return;
+        this.samplesPerMinute = samplesPerMinute;
+        if (!this.running) return;
+
+        cancelSchedule();
+        if (samplesPerMinute < 1) {
+            log.info("sampling paused with sample-per-minute value = " + samplesPerMinute + " (" + this.sampler + ")");
+            return;
+        }
+        startSchedule();
+    }
+
+    private void startSchedule() {
+        this.periodNanos = TimeUnit.MINUTES.toNanos(1) / this.samplesPerMinute;
+        this.schedule = new FixedRateSchedule(this.periodNanos);
+        if (this.firstStartNanos < 0) this.firstStartNanos = this.schedule.startNanos;
+    }
+
+    private void cancelSchedule() {
+        if (this.schedule != null) this.schedule.cancel();
+        this.schedule = null;
     }
 
     public void stop() {
-        if (this.timer != null) this.timer.cancel();
+        boolean wasStarted;
+        synchronized (this) {
+            this.running = false;
+            wasStarted = this.firstStartNanos >= 0;
+            cancelSchedule();
+        }
+        int notTaken;
+        synchronized (this.samplesDue) {
+            notTaken = this.samplesDue.size();
+            this.samplesDue.clear();
+        }
+        if (notTaken > 0) {
+            this.samplesSkipped.addAndGet(notTaken);
+            log.warn(notTaken + " samples due were not taken before stopping (" + this.sampler + ")");
+        }
 
         if (this.secondsDelayOnStop > 0) {
             try {
@@ -70,13 +182,251 @@ public class SampleController extends TimerTask {
                 ; // fall thru
             }
         }
+
+        if (wasStarted) log.info(getStatus());
+    }
+
+    private boolean acquireInFlight() {
+        if (this.maxSamplesInFlight <= 0) {
+            this.samplesInFlight.incrementAndGet();
+            return true;
+        }
+        while (true) {
+            int inFlight = this.samplesInFlight.get();
+            if (inFlight >= this.maxSamplesInFlight) return false;
+            if (this.samplesInFlight.compareAndSet(inFlight, inFlight + 1)) return true;
+        }
+    }
+
+    /**
+     * queues the time of an open-loop tick
+     * @param first TRUE, if the tick was queued before and is older than all others
+     */
+    private void addSampleDue(long timeDue, boolean first) {
+        synchronized (this.samplesDue) {
+            if (first) {
+                this.samplesDue.addFirst(Long.valueOf(timeDue));
+                return;
+            }
+            if (this.samplesDue.size() < MAX_SAMPLES_DUE) {
+                this.samplesDue.addLast(Long.valueOf(timeDue));
+                return;
+            }
+        }
+        if (this.samplesFailed.incrementAndGet() % 1000 == 1) {
+            log.warn("more than " + MAX_SAMPLES_DUE + " samples due not yet taken, counting further ones as failed (" + this.sampler + ")");
+        }
     }
 
-    public void run() {
+    /**
+     * hands queued open-loop ticks over to workers, as long as the limit allows
+     */
+    private void takeSamplesDue() {
+        while (this.running) {
+            if (!acquireInFlight()) return;
+            final Long timeDue;
+            synchronized (this.samplesDue) {
+                timeDue = this.samplesDue.poll();
+            }
+            if (timeDue == null) {
+                this.samplesInFlight.decrementAndGet();
+                return;
+            }
+            try {
+                this.sampleExecutor.execute(new Runnable() {
+                    public void run() {
+                        long delayNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - timeDue.longValue());
+                        takeSample(timeDue.longValue(), delayNanos > periodNanos);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // all worker threads are busy, the server is stalling. taken with the next tick or sample completed.
+                this.samplesInFlight.decrementAndGet();
+                addSampleDue(timeDue.longValue(), true);
+                return;
+            }
+        }
+    }
+
+    private void takeSample(long timeDue, boolean late) {
+        boolean taken = true;
+        boolean queued = false;
+        boolean pending = false;
         try {
-            this.sampler.doSample();
+            if (this.sampler instanceof TimedSampler) {
+                ((TimedSampler)this.sampler).doSample(timeDue);
+            } else {
+                this.sampler.doSample();
+            }
+            if (this.sampler instanceof AsynchronousSampler) {
+                // only started, the outcome is reported later
+                pending = true;
+            } else {
+                this.samplesSucceeded.incrementAndGet();
+            }
+        } catch (SampleSkippedException e) {
+            taken = false;
+            if (this.openLoop && this.running) {
+                // taken again when the next tick occurs
+                addSampleDue(timeDue, true);
+                queued = true;
+            } else {
+                this.samplesSkipped.incrementAndGet();
+                if (log.isDebugEnabled()) log.debug("sample skipped: " + e.getMessage());
+            }
         } catch (SamplingException e) {
+            this.samplesFailed.incrementAndGet();
             log.warn("taking sample failed", e);
+        } catch (RuntimeException e) {
+            this.samplesFailed.incrementAndGet();
+            log.error("taking sample aborted", e);
+        } finally {
+            // samples skipped by the sampler were not sent and do not count for the rate
+            if (taken) {
+                this.samplesStarted.incrementAndGet();
+                if (late) this.samplesLate.incrementAndGet();
+            }
+            if (!pending) {
+                this.samplesInFlight.decrementAndGet();
+                if (!queued) this.samplesCompleted.incrementAndGet();
+            }
+        }
+        if (this.openLoop && taken && !pending) takeSamplesDue();
+    }
+
+    /**
+     * an asynchronous sample has completed, it no more counts as running
+     */
+    private void asynchronousSampleCompleted(boolean succeeded) {
+        if (succeeded) {
+            this.samplesSucceeded.incrementAndGet();
+        } else {
+            this.samplesFailed.incrementAndGet();
+        }
+        this.samplesInFlight.decrementAndGet();
+        this.samplesCompleted.incrementAndGet();
+        if (this.openLoop) takeSamplesDue();
+    }
+
+    public Sampler getSampler() {
+        return this.sampler;
+    }
+
+    public int getSamplesPerMinute() {
+        return this.samplesPerMinute;
+    }
+
+    /**
+     * @return number of samples taken, successfully or not. samples skipped are not counted.
+     */
+    public long getSamplesStarted() {
+        return this.samplesStarted.get();
+    }
+
+    /**
+     * @return number of samples finished, successfully, failed or skipped by the sampler
+     */
+    public long getSamplesCompleted() {
+        return this.samplesCompleted.get();
+    }
+
+    /**
+     * @return number of samples finished without failure
+     */
+    public long getSamplesSucceeded() {
+        return this.samplesSucceeded.get();
+    }
+
+    public long getSamplesLate() {
+        return this.samplesLate.get();
+    }
+
+    public long getSamplesFailed() {
+        return this.samplesFailed.get();
+    }
+
+    /**
+     * @return number of ticks where no sample was taken because too many samples were still in flight, because
+     *         no worker thread was free or because the sampler was busy (SampleSkippedException)
+     */
+    public long getSamplesSkipped() {
+        return this.samplesSkipped.get();
+    }
+
+    /**
+     * @return number of open-loop ticks waiting to be taken
+     */
+    public int getSamplesDue() {
+        synchronized (this.samplesDue) {
+            return this.samplesDue.size();
+        }
+    }
+
+    /**
+     * @return the rate of samples taken since the controller was first started, or 0.0 if not yet started
+     */
+    public double getActualSamplesPerMinute() {
+        if (this.firstStartNanos < 0) return 0.0;
+        long elapsedNanos = System.nanoTime() - this.firstStartNanos;
+        if (elapsedNanos <= 0) return 0.0;
+        return this.samplesStarted.get() * (double)TimeUnit.MINUTES.toNanos(1) / elapsedNanos;
+    }
+
+    public String getStatus() {
+        return this.sampler + ": target " + this.samplesPerMinute + "/min, actual "
+               + Math.round(getActualSamplesPerMinute()) + "/min, started " + getSamplesStarted()
+               + ", completed " + getSamplesCompleted() + ", succeeded " + getSamplesSucceeded()
+               + ", late " + getSamplesLate() + ", failed " + getSamplesFailed() + ", skipped " + getSamplesSkipped()
+               + (this.openLoop ? ", queued " + getSamplesDue() : "");
+    }
+
+    /**
+     * one run at a constant rate. every tick hands the sample over to a worker, so that the tick thread is
+     * never blocked by the sampler.
+     */
+    private class FixedRateSchedule implements Runnable {
+        private final long periodNanos;
+        private final long startNanos;
+        private final long startMillis;
+        private final ScheduledFuture<?> future;
+        private long tickCount = 0;
+
+        FixedRateSchedule(long periodNanos) {
+            this.periodNanos = periodNanos;
+            this.startNanos = System.nanoTime() + INITIAL_DELAY_NANOS;
+            this.startMillis = System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(INITIAL_DELAY_NANOS);
+            this.future = SampleScheduler.scheduleAtFixedRate(this, INITIAL_DELAY_NANOS, periodNanos);
+        }
+
+        void cancel() {
+            this.future.cancel(false);
+        }
+
+        public void run() {
+            final long dueNanos = this.startNanos + this.tickCount * this.periodNanos;
+            this.tickCount++;
+            if (openLoop) {
+                addSampleDue(this.startMillis + TimeUnit.NANOSECONDS.toMillis(dueNanos - this.startNanos), false);
+                takeSamplesDue();
+                return;
+            }
+            if (!acquireInFlight()) {
+                samplesSkipped.incrementAndGet();
+                return;
+            }
+            try {
+                sampleExecutor.execute(new Runnable() {
+                    public void run() {
+                        boolean late = System.nanoTime() - dueNanos > periodNanos;
+                        long timeDue = startMillis + TimeUnit.NANOSECONDS.toMillis(dueNanos - startNanos);
+                        takeSample(timeDue, late);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // all worker threads are busy, the server is stalling
+                samplesInFlight.decrementAndGet();
+                if (samplesSkipped.incrementAndGet() % 1000 == 1) log.warn("no worker thread free, samples are skipped (" + sampler + ")");
+            }
         }
     }
 }
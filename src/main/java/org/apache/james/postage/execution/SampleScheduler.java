@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.execution;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * the threads shared by all SampleControllers.<br/>
+ * a small scheduler pool only issues the ticks at a fixed rate, the samples themselves are run by a worker pool.
+ * the worker pool is bounded, if all its threads are busy new samples are rejected (and skipped by the controller).
+ * so a slow sample never delays the next tick, and several samples (even of the same Sampler) can run at once.<br/>
+ * on JVMs supporting virtual threads (Java 21 and later), samples can alternatively be run on a virtual thread
+ * each, allowing for very many samples blocking at the same time.
+ */
+public class SampleScheduler {
+
+    private static Log log = LogFactory.getLog(SampleScheduler.class);
+
+    private static final int TICK_THREADS = 2;
+
+    private static final ScheduledExecutorService ticker = Executors.newScheduledThreadPool(TICK_THREADS,
+                                                                   new DaemonThreadFactory("postage-tick"));
+
+    // samples blocking on a stalled server must not create threads without limit
+    private static final int MAX_WORKER_THREADS = 1000;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 60;
+
+    private static final ExecutorService workers = new ThreadPoolExecutor(0, MAX_WORKER_THREADS, WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                                                          new SynchronousQueue<Runnable>(),
+                                                                          new DaemonThreadFactory("postage-sample"));
+
+    private static Executor virtualThreadWorkers = null;
+
+    /**
+     * issue the tick every periodNanos, not taking into account how long the previous tick took (fixed rate)
+     */
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable tick, long initialDelayNanos, long periodNanos) {
+        return ticker.scheduleAtFixedRate(tick, initialDelayNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the executor running every sample on its own virtual thread, or the shared worker pool if the
+     *         JVM does not support virtual threads
+     */
+    public static synchronized Executor getVirtualThreadExecutor() {
+        if (virtualThreadWorkers == null) {
+            try {
+                // looked up reflectively, so Postage still builds and runs on JVMs without virtual threads
+                Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualThreadWorkers = (Executor)factoryMethod.invoke(null);
+                log.info("running samples on virtual threads");
+            } catch (Exception e) {
+                log.warn("virtual threads are not supported by this JVM, using platform threads instead");
+                virtualThreadWorkers = workers;
+            }
+        }
+        return virtualThreadWorkers;
+    }
+
+    /**
+     * @return the executor running samples on pooled platform threads, at most MAX_WORKER_THREADS at a time
+     */
+    public static Executor getPlatformThreadExecutor() {
+        return workers;
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String namePrefix;
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        DaemonThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.namePrefix + "-" + this.threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
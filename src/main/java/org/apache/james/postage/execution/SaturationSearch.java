@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.execution;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.configuration.SaturationSearchConfiguration;
+import org.apache.james.postage.result.LatencyHistogram;
+
+/**
+ * searches the highest total send rate the server sustains within the configured latency SLA.<br/>
+ * every step runs one rate for a number of minutes. then the delivery latencies of the mails matched during
+ * that time and the growth of the unmatched backlog decide, if the rate was sustained. the next rate is
+ * chosen by stepping up or by binary search, until the search has converged.
+ */
+public class SaturationSearch {
+
+    private static Log log = LogFactory.getLog(SaturationSearch.class);
+
+    private final SaturationSearchConfiguration configuration;
+
+    private int currentRate;
+    private int highestSustainedRate = -1;
+    private int lowestFailedRate = -1;
+    private boolean completed = false;
+
+    public SaturationSearch(SaturationSearchConfiguration configuration) {
+        this.configuration = configuration;
+        this.currentRate = limit(Math.max(1, configuration.getStartPerMinute()));
+    }
+
+    /**
+     * @return the total mails per minute to be sent during the current step
+     */
+    public int getCurrentRate() {
+        return this.currentRate;
+    }
+
+    /**
+     * @return the highest rate sustained so far, or -1 if not even the start rate was sustained
+     */
+    public int getHighestSustainedRate() {
+        return this.highestSustainedRate;
+    }
+
+    public boolean isCompleted() {
+        return this.completed;
+    }
+
+    /**
+     * evaluates the step which has just been completed and determines the next rate.
+     * @param latencies delivery latencies (ms) of all mails matched during the step
+     * @param backlogGrowth how much the number of unmatched mails has grown during the step
+     * @return TRUE, if the search continues with getCurrentRate()
+     */
+    public boolean evaluateStep(LatencyHistogram latencies, long backlogGrowth) {
+        if (this.completed) return false;
+
+        boolean sustained = isSustained(latencies, backlogGrowth);
+        if (sustained) {
+            this.highestSustainedRate = Math.max(this.highestSustainedRate, this.currentRate);
+        } else {
+            if (this.lowestFailedRate < 0 || this.currentRate < this.lowestFailedRate) this.lowestFailedRate = this.currentRate;
+        }
+
+        int nextRate = nextRate(sustained);
+        if (nextRate < 0) {
+            this.completed = true;
+            log.info("saturation search completed. highest sustained rate: " + this.highestSustainedRate + " mails/min");
+            return false;
+        }
+        this.currentRate = nextRate;
+        return true;
+    }
+
+    private boolean isSustained(LatencyHistogram latencies, long backlogGrowth) {
+        if (latencies == null || latencies.getCount() == 0) {
+            log.info("rate " + this.currentRate + "/min not sustained: no mail delivered during step");
+            return false;
+        }
+        long percentileLatency = latencies.getValueAtPercentile(this.configuration.getSlaPercentile());
+        long slaLatency = this.configuration.getSlaLatencyMillis();
+
+        // mails in transit may legitimately be unmatched, but not more than can be sent within the SLA latency
+        long tolerableBacklogGrowth = Math.max(1, this.currentRate * slaLatency / (60 * 1000));
+
+        boolean sustained = percentileLatency <= slaLatency && backlogGrowth <= tolerableBacklogGrowth;
+        log.info("rate " + this.currentRate + "/min " + (sustained ? "" : "NOT ") + "sustained: p"
+                 + this.configuration.getSlaPercentile() + " latency = " + percentileLatency + "ms (SLA "
+                 + slaLatency + "ms), matched = " + latencies.getCount() + ", backlog growth = " + backlogGrowth
+                 + " (tolerated " + tolerableBacklogGrowth + ")");
+        return sustained;
+    }
+
+    /**
+     * @return the next rate to try or -1 if the search is complete
+     */
+    private int nextRate(boolean sustained) {
+        int step = Math.max(1, this.configuration.getStepPerMinute());
+        int maxRate = this.configuration.getMaxPerMinute();
+
+        if (this.configuration.isBinarySearch()) {
+            if (this.lowestFailedRate < 0) {
+                // not yet saturated: keep doubling
+                if (maxRate > 0 && this.currentRate >= maxRate) return -1;
+                return limit(this.currentRate * 2);
+            }
+            int lowerBound = Math.max(0, this.highestSustainedRate);
+            if (this.lowestFailedRate - lowerBound <= step) return -1;
+            return lowerBound + (this.lowestFailedRate - lowerBound) / 2;
+        }
+
+        if (!sustained) return -1;
+        if (maxRate > 0 && this.currentRate >= maxRate) return -1;
+        return limit(this.currentRate + step);
+    }
+
+    private int limit(int rate) {
+        int maxRate = this.configuration.getMaxPerMinute();
+        if (maxRate > 0 && rate > maxRate) return maxRate;
+        return rate;
+    }
+}
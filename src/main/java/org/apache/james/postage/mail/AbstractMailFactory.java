@@ -26,6 +26,7 @@ import javax.mail.internet.MimeMessage;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.james.postage.configuration.MailSender;
+import org.apache.james.postage.result.MailId;
 import org.apache.james.postage.result.MailProcessingRecord;
 
 /**
@@ -75,8 +76,8 @@ public abstract class AbstractMailFactory {
             message.addHeader("Message-ID", "Postage-" + System.currentTimeMillis());
             mailProcessingRecord.setSubject(mailSender.getSubject());
     
-            if (mailProcessingRecord.getMailId() != null) {
-                message.addHeader(HeaderConstants.MAIL_ID_HEADER, mailProcessingRecord.getMailId());
+            if (mailProcessingRecord.getMailId() != MailId.NONE) {
+                message.addHeader(HeaderConstants.MAIL_ID_HEADER, MailId.toHeaderValue(mailProcessingRecord.getMailId()));
             } else {
                 log.warn("ID header is NULL!");
                 throw new RuntimeException("could not create mail with ID = NULL");
@@ -20,9 +20,15 @@
 
 package org.apache.james.postage.mail;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.james.postage.configuration.MailSender;
 import org.apache.james.postage.result.MailProcessingRecord;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 import javax.activation.DataHandler;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -36,11 +42,14 @@ import javax.mail.util.ByteArrayDataSource;
  */
 public class DefaultMailFactory extends AbstractMailFactory implements MailFactory {
 
+    private static Log log = LogFactory.getLog(DefaultMailFactory.class);
+
     protected void populateMessage(MimeMessage message, MailSender mailSender, MailProcessingRecord mailProcessingRecord) throws MessagingException {
         message.addHeader("Mime-Version", "1.0");
         message.addHeader("Content-Type", "multipart/mixed");
 
         Multipart multipart = new MimeMultipart("mixed");
+        MessageDigest bodyDigest = createDigest();
 
         if (mailSender.sendTextPart()) {
             int sizeMinText = mailSender.getSizeMinText();
@@ -54,6 +63,7 @@ public class DefaultMailFactory extends AbstractMailFactory implements MailFacto
             for (int i = 0; i < mailSize; i++) textBody.append(getRandomChar());
 
             part.setText(textBody.toString());
+            if (bodyDigest != null) bodyDigest.update(toAsciiBytes(textBody.toString()));
 
 //                part.setDataHandler(new DataHandler(textBody.toString(), "text/plain"));
             
@@ -70,11 +80,31 @@ public class DefaultMailFactory extends AbstractMailFactory implements MailFacto
 
             byte[] bytes = new byte[mailSize];
             for (int i = 0; i < mailSize; i++) bytes[i] = getRandomByte();
+            if (bodyDigest != null) bodyDigest.update(bytes);
 
             part.setDataHandler(new DataHandler(new ByteArrayDataSource(bytes, "application/octet-stream")));
             multipart.addBodyPart(part);
         }
         message.setContent(multipart);
+        // lets the receiver check the content while streaming it, see StreamedMail
+        if (bodyDigest != null) message.addHeader(HeaderConstants.JAMES_POSTAGE_BODY_DIGEST_HEADER, StreamedMail.toHex(bodyDigest.digest()));
+    }
+
+    private MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(StreamedMail.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            log.warn("body digest not supported, mails are sent without", e);
+            return null;
+        }
+    }
+
+    private byte[] toAsciiBytes(String text) {
+        try {
+            return text.getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // US-ASCII is always supported
+        }
     }
     
     protected Class<? extends MailValidator> getValidatorClass() {
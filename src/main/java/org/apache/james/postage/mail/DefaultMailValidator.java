@@ -27,7 +27,7 @@ import javax.mail.internet.MimeMultipart;
 /**
  * this validator is used together with DefaultMailFactory
  */
-public class DefaultMailValidator implements MailValidator {
+public class DefaultMailValidator implements StreamingMailValidator {
 
     public boolean validate(Message message, MailProcessingRecord record) {
 
@@ -50,4 +50,21 @@ public class DefaultMailValidator implements MailValidator {
         return valid;
     }
 
+    /**
+     * checks the part sizes like validate(Message, MailProcessingRecord) and the digest of the content,
+     * if sent with the mail
+     */
+    public boolean validate(StreamedMail mail, MailProcessingRecord record) {
+        long textPartSize = mail.getPartSize("text/plain");
+        record.setByteReceivedText(textPartSize);
+        long binaryPartSize = mail.getPartSize("application/octet-stream");
+        record.setByteReceivedBinary(binaryPartSize);
+
+        boolean textPartValid = textPartSize == record.getByteSendText();
+        boolean binaryPartValid = binaryPartSize == record.getByteSendBinary();
+        String sentDigest = mail.getHeader(HeaderConstants.JAMES_POSTAGE_BODY_DIGEST_HEADER);
+        boolean digestValid = sentDigest == null || sentDigest.trim().equalsIgnoreCase(mail.getBodyDigest());
+        return textPartValid && binaryPartValid && digestValid;
+    }
+
 }
@@ -27,6 +27,7 @@ public class HeaderConstants {
     public static final String MAIL_ID_HEADER = "X-James-Postage-Count";
     public static final String JAMES_POSTAGE_HEADER = "X-James-Postage";
     public static final String JAMES_POSTAGE_VALIDATORCLASSNAME_HEADER = "X-James-Validator";
+    public static final String JAMES_POSTAGE_BODY_DIGEST_HEADER = "X-James-Postage-Body-Digest";
 
     public static final String JAMES_POSTAGE_STARTUPCHECK_HEADER_ID = "PROFORMA";
 }
@@ -18,6 +18,8 @@
  ****************************************************************/
 package org.apache.james.postage.mail;
 
+import java.io.InputStream;
+
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import org.apache.commons.logging.Log;
@@ -42,6 +44,12 @@ public abstract class MailAnalyzeStrategy {
     }
     
     public void handle() throws Exception { 
+        InputStream messageStream = openMessageStream();
+        if (messageStream != null) {
+            handleStreamed(messageStream);
+            return;
+        }
+
         MailProcessingRecord mailProcessingRecord = prepareRecord();
 
         MimeMessage message = loadMessage();
@@ -49,7 +57,11 @@ public abstract class MailAnalyzeStrategy {
         // do we _really_ have to handle this?
         if (!MailMatchingUtils.isMatchCandidate(message)) return;
 
-        String id = MailMatchingUtils.getMailIdHeader(message);
+        handleMessage(mailProcessingRecord, message);
+    }
+
+    private void handleMessage(MailProcessingRecord mailProcessingRecord, MimeMessage message) throws Exception {
+        long id = MailMatchingUtils.getMailId(message);
         try {
             mailProcessingRecord.setByteReceivedTotal(message.getSize());
     
@@ -62,23 +74,119 @@ public abstract class MailAnalyzeStrategy {
             log.info(queue + ": failed to process mail. remains on server");
             return;
         } finally {
-            MailProcessingRecord matchedAndMergedRecord = results.matchMailRecord(mailProcessingRecord);
-            if (matchedAndMergedRecord != null) {
-                MailMatchingUtils.validateMail(message, matchedAndMergedRecord);
-                results.recordValidatedMatch(matchedAndMergedRecord);
-            }
+            matchRecipients(mailProcessingRecord, message, null);
         }
     
         dismissMessage();
     }
 
+    /**
+     * analyzes the message while reading it from the stream. only if its validator requires the complete
+     * message, it is built.
+     */
+    private void handleStreamed(InputStream messageStream) throws Exception {
+        MailProcessingRecord mailProcessingRecord = prepareRecord();
+
+        StreamedMail mail;
+        try {
+            mail = StreamedMail.readHeaders(messageStream);
+
+            // do we _really_ have to handle this?
+            if (!MailMatchingUtils.isMatchCandidate(mail)) return;
+
+            if (isHeadersOnly()) {
+                handleHeaders(mailProcessingRecord, mail);
+                return;
+            }
+            if (!(MailMatchingUtils.getValidator(mail) instanceof StreamingMailValidator)) {
+                handleMessage(mailProcessingRecord, mail.toMimeMessage());
+                return;
+            }
+            mail.scanBody();
+        } finally {
+            messageStream.close();
+        }
+
+        mailProcessingRecord.setByteReceivedTotal(mail.getBodySize());
+        mailProcessingRecord.setMailId(MailMatchingUtils.getMailId(mail));
+        mailProcessingRecord.setSubject(mail.getSubject());
+        mailProcessingRecord.setTimeFetchEnd(System.currentTimeMillis());
+        matchRecipients(mailProcessingRecord, null, mail);
+
+        dismissMessage();
+    }
+
+    /**
+     * matches the mail by its headers only, there is no body to validate. the body size is recorded as known
+     * from the message size, so that it is comparable to mails read completely.
+     */
+    private void handleHeaders(MailProcessingRecord mailProcessingRecord, StreamedMail mail) throws Exception {
+        long messageSize = getMessageSize();
+        if (messageSize >= 0) mailProcessingRecord.setByteReceivedTotal(Math.max(0, messageSize - mail.getHeaderSize()));
+        mailProcessingRecord.setMailId(MailMatchingUtils.getMailId(mail));
+        mailProcessingRecord.setSubject(mail.getSubject());
+        mailProcessingRecord.setTimeFetchEnd(System.currentTimeMillis());
+        matchRecipients(mailProcessingRecord, null, null);
+
+        dismissMessage();
+    }
+
+    /**
+     * the delivery to every recipient is matched on its own. validated only if the message or mail is given.
+     */
+    private void matchRecipients(MailProcessingRecord mailProcessingRecord, MimeMessage message, StreamedMail mail) {
+        String[] recipients = getRecipientAddresses();
+        if (recipients == null) recipients = new String[] {null};
+        for (int i = 0; i < recipients.length; i++) {
+            mailProcessingRecord.setReceiverMailAddress(recipients[i]);
+            MailProcessingRecord matchedAndMergedRecord = results.matchMailRecord(mailProcessingRecord);
+            if (matchedAndMergedRecord == null) continue;
+
+            if (message != null) MailMatchingUtils.validateMail(message, matchedAndMergedRecord);
+            else if (mail != null) MailMatchingUtils.validateMail(mail, matchedAndMergedRecord);
+            results.recordCompletedMatch(matchedAndMergedRecord);
+        }
+    }
+
+    /**
+     * optional override making the message available as a stream, which is preferred over loadMessage().
+     * @return the stream of the raw message, or NULL if loadMessage() is to be used
+     */
+    protected InputStream openMessageStream() throws Exception {
+        return null;
+    }
+
+    /**
+     * optional override telling that the stream from openMessageStream() ends after the headers.
+     * such mails are matched, but not validated.
+     */
+    protected boolean isHeadersOnly() {
+        return false;
+    }
+
+    /**
+     * optional override giving the size of the complete message (headers and body), if known without reading it.
+     * @return size in bytes, -1 if not known
+     */
+    protected long getMessageSize() {
+        return -1;
+    }
+
     /** 
-     * mandatory override to make the message available
+     * mandatory override to make the message available, if openMessageStream() is not overridden
      */
     protected MimeMessage loadMessage() throws Exception {
         return null;
     }
 
+    /**
+     * optional override naming the recipients this message was delivered to.
+     * @return the recipient addresses, or NULL if not known
+     */
+    protected String[] getRecipientAddresses() {
+        return null;
+    }
+
     /**
      * optional override to delete the message.
      */
@@ -86,7 +194,10 @@ public abstract class MailAnalyzeStrategy {
         ; // empty body
     }
     
-    private MailProcessingRecord prepareRecord() {
+    /**
+     * creates the record for the received message. may be extended to record more data.
+     */
+    protected MailProcessingRecord prepareRecord() {
         MailProcessingRecord mailProcessingRecord = new MailProcessingRecord();
         mailProcessingRecord.setReceivingQueue(queue);
         mailProcessingRecord.setTimeFetchStart(System.currentTimeMillis());
@@ -34,6 +34,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.james.postage.PostageRunner;
 import org.apache.james.postage.PostageRuntimeException;
 import org.apache.james.postage.classloading.CachedInstanceFactory;
+import org.apache.james.postage.result.MailId;
 import org.apache.james.postage.result.MailProcessingRecord;
 
 /**
@@ -73,13 +74,20 @@ public class MailMatchingUtils {
         return getUniqueHeader(message, HeaderConstants.MAIL_ID_HEADER);
     }
 
+    /**
+     * @return the id as defined by MailId, MailId.NONE if the header is missing or not valid
+     */
+    public static long getMailId(MimeMessage message) {
+        return MailId.parseHeaderValue(getMailIdHeader(message));
+    }
+
     /**
      * if this mail was created by the currently running postage scenario - not by
      * any of those before.
      */
     public static boolean isCurrentRunnerMail(MimeMessage message) {
-        String headerValue = getMailIdHeader(message);
-        return headerValue != null && headerValue.startsWith(PostageRunner.getMessageIdPrefix());
+        long mailId = getMailId(message);
+        return mailId != MailId.NONE && MailId.getRunId(mailId) == PostageRunner.getRunId();
     }
 
     public static boolean matchHeader(MimeMessage message, String header, String valueRegex) {
@@ -116,6 +124,48 @@ public class MailMatchingUtils {
         return true;
     }
     
+    /**
+     * @see #isMatchCandidate(MimeMessage)
+     */
+    public static boolean isMatchCandidate(StreamedMail mail) {
+        String mailId = getMailIdHeader(mail);
+        if (mailId == null) {
+            if (mail.getHeader(HeaderConstants.JAMES_POSTAGE_HEADER) != null) {
+                log.warn(HeaderConstants.MAIL_ID_HEADER + " header is missing from James test mail");
+            }
+            else log.info("skipping non-postage mail. remains on server. subject was: " + mail.getSubject());
+            return false;
+        }
+        return !HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID.equals(mailId);
+    }
+
+    public static String getMailIdHeader(StreamedMail mail) {
+        return mail.getHeader(HeaderConstants.MAIL_ID_HEADER);
+    }
+
+    /**
+     * @see #getMailId(MimeMessage)
+     */
+    public static long getMailId(StreamedMail mail) {
+        return MailId.parseHeaderValue(getMailIdHeader(mail));
+    }
+
+    public static MailValidator getValidator(StreamedMail mail) {
+        String classname = mail.getHeader(HeaderConstants.JAMES_POSTAGE_VALIDATORCLASSNAME_HEADER);
+        return (MailValidator)CachedInstanceFactory.createInstance(classname);
+    }
+
+    public static boolean validateMail(StreamedMail mail, MailProcessingRecord mailProcessingRecord) {
+        MailValidator validator = getValidator(mail);
+        if (!(validator instanceof StreamingMailValidator)) return false;
+
+        boolean isValid = ((StreamingMailValidator)validator).validate(mail, mailProcessingRecord);
+        if (isValid) mailProcessingRecord.setValid();
+        else log.warn("failed to validate mail");
+
+        return isValid;
+    }
+
     public static boolean validateMail(MimeMessage message, MailProcessingRecord mailProcessingRecord) {
         String classname = getUniqueHeader(message, HeaderConstants.JAMES_POSTAGE_VALIDATORCLASSNAME_HEADER);
         MailValidator validator = (MailValidator)CachedInstanceFactory.createInstance(classname);
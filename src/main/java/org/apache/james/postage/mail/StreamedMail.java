@@ -0,0 +1,387 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * a received mail read from a stream, without ever keeping the whole mail in memory.<br/>
+ * first, only the headers are read. the body is then either scanned part by part, recording the size of
+ * every part and a digest over the decoded content of all parts, or handed over to a complete MimeMessage.
+ * only single level multipart mails (like those created by DefaultMailFactory) are split into parts, any other
+ * mail is taken as one part.
+ */
+public class StreamedMail {
+
+    public static final String DIGEST_ALGORITHM = "MD5";
+
+    private static final int MAX_HEADER_BYTES = 1024 * 1024;
+
+    private InputStream in;
+    private byte[] buffer = new byte[8192];
+    private int bufferPosition = 0;
+    private int bufferLength = 0;
+    private byte[] rawHeaders;
+    private InternetHeaders headers;
+    private long bodySize = 0;
+    private List<String> partContentTypes = new ArrayList<String>();
+    private List<Long> partSizes = new ArrayList<Long>();
+    private String bodyDigest = null;
+
+    private StreamedMail(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * reads the headers, the stream is then positioned at the start of the body
+     */
+    public static StreamedMail readHeaders(InputStream in) throws IOException, MessagingException {
+        StreamedMail mail = new StreamedMail(in);
+        mail.loadHeaders();
+        return mail;
+    }
+
+    private void loadHeaders() throws IOException, MessagingException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        this.headers = new InternetHeaders();
+        while (true) {
+            Line line = readLine();
+            if (line == null) break;
+            raw.write(line.bytes, 0, line.length);
+            if (line.terminated) raw.write('\r');
+            if (line.terminated) raw.write('\n');
+            if (line.length == 0) break; // end of headers
+            if (raw.size() > MAX_HEADER_BYTES) throw new MessagingException("mail headers exceed " + MAX_HEADER_BYTES + " bytes");
+            this.headers.addHeaderLine(line.toString() + "\r\n");
+        }
+        this.rawHeaders = raw.toByteArray();
+        this.bodySize = 0;
+    }
+
+    /**
+     * @return size of the headers in bytes, including the empty line ending them, with CRLF line breaks
+     */
+    public long getHeaderSize() {
+        return this.rawHeaders.length;
+    }
+
+    /**
+     * @return the first value of the header, NULL if not present
+     */
+    public String getHeader(String name) {
+        String[] values = this.headers.getHeader(name);
+        if (values == null || values.length == 0) return null;
+        return values[0];
+    }
+
+    public String getSubject() {
+        String subject = getHeader("Subject");
+        if (subject == null) return null;
+        try {
+            return MimeUtility.decodeText(subject);
+        } catch (UnsupportedEncodingException e) {
+            return subject;
+        }
+    }
+
+    /**
+     * reads the body, recording the size and digest of the decoded parts
+     */
+    public void scanBody() throws IOException, MessagingException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new MessagingException("digest not supported: " + DIGEST_ALGORITHM, e);
+        }
+
+        String boundary = getBoundary(getHeader("Content-Type"));
+        if (boundary == null) {
+            scanPart(getHeader("Content-Type"), getHeader("Content-Transfer-Encoding"), new PartInputStream(null), digest);
+        } else {
+            PartInputStream preamble = new PartInputStream(boundary);
+            skip(preamble);
+            while (!preamble.isLastPart() && !preamble.isAtEnd()) {
+                InternetHeaders partHeaders = new InternetHeaders();
+                Line line;
+                while ((line = readLine()) != null && line.length > 0) {
+                    partHeaders.addHeaderLine(line.toString() + "\r\n");
+                }
+                preamble = new PartInputStream(boundary);
+                scanPart(getFirst(partHeaders, "Content-Type"), getFirst(partHeaders, "Content-Transfer-Encoding"),
+                         preamble, digest);
+            }
+            skip(new PartInputStream(null)); // epilogue
+        }
+        this.bodyDigest = toHex(digest.digest());
+    }
+
+    private void scanPart(String contentType, String transferEncoding, PartInputStream partIn, MessageDigest digest) throws IOException, MessagingException {
+        InputStream decoded = transferEncoding == null ? partIn : MimeUtility.decode(partIn, transferEncoding.trim());
+        byte[] buffer = new byte[8192];
+        long size = 0;
+        int count;
+        while ((count = decoded.read(buffer)) >= 0) {
+            digest.update(buffer, 0, count);
+            size += count;
+        }
+        skip(partIn); // decoders might stop early
+        this.partContentTypes.add(contentType == null ? "text/plain" : contentType.trim().toLowerCase());
+        this.partSizes.add(size);
+    }
+
+    private void skip(InputStream partIn) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (partIn.read(buffer) >= 0) ; // skipping
+    }
+
+    /**
+     * @return size of the body as transferred, in bytes
+     */
+    public long getBodySize() {
+        return this.bodySize;
+    }
+
+    /**
+     * @return decoded size of the first part having the given mime type, 0 if no such part
+     */
+    public long getPartSize(String mimeType) {
+        for (int i = 0; i < this.partContentTypes.size(); i++) {
+            if (this.partContentTypes.get(i).startsWith(mimeType)) return this.partSizes.get(i);
+        }
+        return 0;
+    }
+
+    /**
+     * @return hex encoded digest over the decoded content of all parts, NULL if the body was not scanned
+     */
+    public String getBodyDigest() {
+        return this.bodyDigest;
+    }
+
+    /**
+     * builds the complete message for code requiring it. the remaining stream is consumed.
+     */
+    public MimeMessage toMimeMessage() throws MessagingException {
+        InputStream buffered = new ByteArrayInputStream(this.buffer, this.bufferPosition, this.bufferLength - this.bufferPosition);
+        InputStream remainder = new SequenceInputStream(buffered, this.in);
+        return new MimeMessage(null, new SequenceInputStream(new ByteArrayInputStream(this.rawHeaders), remainder));
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuffer hex = new StringBuffer(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            hex.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(bytes[i] & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    private static String getFirst(InternetHeaders headers, String name) {
+        String[] values = headers.getHeader(name);
+        if (values == null || values.length == 0) return null;
+        return values[0];
+    }
+
+    private static String getBoundary(String contentType) {
+        if (contentType == null) return null;
+        try {
+            ContentType type = new ContentType(contentType);
+            if (!type.getPrimaryType().equalsIgnoreCase("multipart")) return null;
+            return type.getParameter("boundary");
+        } catch (Exception e) {
+            return null; // not parseable, taken as a single part
+        }
+    }
+
+    /**
+     * @return the next byte of the stream, -1 at its end
+     */
+    private int nextByte() throws IOException {
+        if (this.bufferPosition >= this.bufferLength) {
+            this.bufferLength = this.in.read(this.buffer);
+            this.bufferPosition = 0;
+            if (this.bufferLength <= 0) {
+                this.bufferLength = 0;
+                return -1;
+            }
+        }
+        this.bodySize++;
+        return this.buffer[this.bufferPosition++] & 0xff;
+    }
+
+    /**
+     * reads one line, not including the line terminator (CRLF, or a single CR or LF). NULL at the end of the stream.
+     */
+    private Line readLine() throws IOException {
+        Line line = new Line();
+        while (true) {
+            int b = nextByte();
+            if (b < 0) {
+                if (line.length == 0) return null;
+                break;
+            }
+            if (b == '\n') {
+                line.terminated = true;
+                break;
+            }
+            if (b == '\r') {
+                line.terminated = true;
+                if (this.bufferPosition >= this.bufferLength) {
+                    int next = nextByte();
+                    if (next >= 0 && next != '\n') {
+                        // not part of the line break, put it back
+                        this.bufferPosition--;
+                        this.bodySize--;
+                    }
+                } else if (this.buffer[this.bufferPosition] == '\n') {
+                    nextByte();
+                }
+                break;
+            }
+            line.append((byte)b);
+        }
+        return line;
+    }
+
+    private static class Line {
+        byte[] bytes = new byte[128];
+        int length = 0;
+        boolean terminated = false;
+
+        void append(byte b) {
+            if (this.length == this.bytes.length) {
+                byte[] grown = new byte[this.bytes.length * 2];
+                System.arraycopy(this.bytes, 0, grown, 0, this.length);
+                this.bytes = grown;
+            }
+            this.bytes[this.length++] = b;
+        }
+
+        boolean isDelimiter(byte[] delimiter) {
+            if (this.length < delimiter.length) return false;
+            for (int i = 0; i < delimiter.length; i++) {
+                if (this.bytes[i] != delimiter[i]) return false;
+            }
+            return true;
+        }
+
+        public String toString() {
+            try {
+                return new String(this.bytes, 0, this.length, "ISO-8859-1");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e); // ISO-8859-1 is always supported
+            }
+        }
+    }
+
+    /**
+     * the content of one part, ending before the next boundary delimiter line or at the end of the stream.
+     * the line break preceding a delimiter belongs to the delimiter.
+     */
+    private class PartInputStream extends InputStream {
+        private final byte[] delimiter;
+        private Line current = null;
+        private int position = 0;
+        private boolean pendingLineBreak = false;
+        private boolean ended = false;
+        private boolean lastPart = false;
+        private boolean atEnd = false;
+
+        PartInputStream(String boundary) {
+            this.delimiter = boundary == null ? null : toBytes("--" + boundary);
+        }
+
+        boolean isLastPart() {
+            return this.lastPart;
+        }
+
+        boolean isAtEnd() {
+            return this.atEnd;
+        }
+
+        private boolean fill() throws IOException {
+            while (this.current == null || this.position >= this.current.length) {
+                if (this.ended) return false;
+                Line line = readLine();
+                if (line == null) {
+                    this.ended = true;
+                    this.atEnd = true;
+                    return false;
+                }
+                if (this.delimiter != null && line.isDelimiter(this.delimiter)) {
+                    this.ended = true;
+                    String rest = line.toString().substring(this.delimiter.length).trim();
+                    this.lastPart = rest.startsWith("--");
+                    return false;
+                }
+                Line content = new Line();
+                if (this.pendingLineBreak) {
+                    content.append((byte)'\r');
+                    content.append((byte)'\n');
+                }
+                for (int i = 0; i < line.length; i++) content.append(line.bytes[i]);
+                this.pendingLineBreak = line.terminated;
+                this.current = content;
+                this.position = 0;
+                if (content.length > 0) return true;
+            }
+            return true;
+        }
+
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return this.current.bytes[this.position++] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(length, this.current.length - this.position);
+            System.arraycopy(this.current.bytes, this.position, buffer, offset, count);
+            this.position += count;
+            return count;
+        }
+    }
+
+    private static byte[] toBytes(String value) {
+        try {
+            return value.getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e); // ISO-8859-1 is always supported
+        }
+    }
+}
@@ -0,0 +1,769 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.report;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.configuration.ReportConfiguration;
+import org.apache.james.postage.result.ColumnarReader;
+import org.apache.james.postage.result.LatencyHistogram;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.MailResultJournal;
+
+/**
+ * reads the result files of a run once and writes a report as HTML (with charts) and as text: mails sent and
+ * matched per minute, delivery latency percentiles per profile over time, JVM memory and threads per minute, and
+ * whether the run passed the configured thresholds.<br/>
+ * mail results are read from the columnar file, if present, otherwise from the journal or the CSV file. only
+ * the aggregates per minute are kept, so memory does not depend on the number of mails.
+ */
+public class ReportGenerator {
+
+    private static Log log = LogFactory.getLog(ReportGenerator.class);
+
+    private static final String SEPARATOR = ",";
+
+    // general data is at the end of the mail results CSV, read from there if the mails are read from elsewhere
+    private static final int GENERAL_DATA_TAIL_BYTES = 1024 * 1024;
+
+    private static final String[] COLORS = {"#1f77b4", "#ff7f0e", "#2ca02c", "#d62728", "#9467bd", "#8c564b", "#e377c2", "#7f7f7f"};
+
+    private final String scenarioId;
+    private final ReportConfiguration thresholds;
+
+    private String filenameMailResults;
+    private String filenameMailResultJournal;
+    private String filenameMailResultsColumnar;
+    private String filenameJVMStatistics;
+    private String filenameJVMStatisticsColumnar;
+
+    private String mailResultsSource = null;
+    private String jvmStatisticsSource = null;
+
+    private final TreeMap<Long, MinuteStatistics> minutes = new TreeMap<Long, MinuteStatistics>();
+    private final Map<Integer, LatencyHistogram> latenciesPerShard = new HashMap<Integer, LatencyHistogram>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final Map<Integer, String> profileNames = new HashMap<Integer, String>();
+    private final Map<String, String> generalData = new LinkedHashMap<String, String>();
+
+    private long mailsSent = 0;
+    private long mailsSendFailed = 0;
+    private long mailsMatched = 0;
+    private long mailsValid = 0;
+    private long mailsLost = 0;
+    private long mailsLate = 0;
+    private long linesSkipped = 0;
+
+    public ReportGenerator(String scenarioId, ReportConfiguration thresholds) {
+        this.scenarioId = scenarioId;
+        this.thresholds = thresholds;
+    }
+
+    public void setMailResultFiles(String filenameMailResults, String filenameMailResultJournal, String filenameMailResultsColumnar) {
+        this.filenameMailResults = filenameMailResults;
+        this.filenameMailResultJournal = filenameMailResultJournal;
+        this.filenameMailResultsColumnar = filenameMailResultsColumnar;
+    }
+
+    public void setJVMStatisticsFiles(String filenameJVMStatistics, String filenameJVMStatisticsColumnar) {
+        this.filenameJVMStatistics = filenameJVMStatistics;
+        this.filenameJVMStatisticsColumnar = filenameJVMStatisticsColumnar;
+    }
+
+    /**
+     * reads the result files
+     */
+    public void read() throws IOException {
+        if (exists(this.filenameMailResultsColumnar)) {
+            readColumnarMailResults(this.filenameMailResultsColumnar);
+            readGeneralData(this.filenameMailResults);
+        } else if (exists(this.filenameMailResultJournal)) {
+            this.mailResultsSource = this.filenameMailResultJournal;
+            MailResultJournal.read(this.filenameMailResultJournal, new MailResultJournal.RecordHandler() {
+                public void handle(MailProcessingRecord record) {
+                    add(record);
+                }
+            });
+            readGeneralData(this.filenameMailResults);
+        } else if (exists(this.filenameMailResults)) {
+            readCSVMailResults(this.filenameMailResults);
+        } else {
+            throw new IOException("no mail results found for scenario " + this.scenarioId);
+        }
+
+        if (exists(this.filenameJVMStatisticsColumnar)) {
+            readColumnarJVMStatistics(this.filenameJVMStatisticsColumnar);
+        } else if (exists(this.filenameJVMStatistics)) {
+            readCSVJVMStatistics(this.filenameJVMStatistics);
+        }
+        if (this.linesSkipped > 0) log.warn(this.linesSkipped + " lines of the result files could not be read");
+    }
+
+    private static boolean exists(String filename) {
+        return filename != null && new File(filename).length() > 0;
+    }
+
+    /**
+     * adds one mail (to one recipient) to the statistics
+     */
+    void add(MailProcessingRecord record) {
+        long timeSent = record.getTimeSent();
+        boolean sendFailed = record.getErrorNumberSending() != 0 || record.getErrorTextSending() != null;
+        MinuteStatistics sentInMinute = timeSent > 0 ? getMinute(timeSent) : null;
+
+        this.mailsSent++;
+        if (sentInMinute != null) sentInMinute.sent++;
+        if (sendFailed) {
+            this.mailsSendFailed++;
+            if (sentInMinute != null) sentInMinute.sendFailed++;
+        }
+
+        if (record.isMatchedSentAndReceived()) {
+            this.mailsMatched++;
+            if (record.isReceivedValid()) this.mailsValid++;
+            if (record.isTimedOut()) this.mailsLate++;
+            if (record.getTimeFetchEnd() > 0) getMinute(record.getTimeFetchEnd()).matched++;
+
+            long latency = record.getDeliveryLatency();
+            if (latency >= 0) {
+                Integer shard = Integer.valueOf(MailId.getShard(record.getMailId()));
+                this.latencies.record(latency);
+                getHistogram(this.latenciesPerShard, shard).record(latency);
+                if (sentInMinute != null) getHistogram(sentInMinute.latenciesPerShard, shard).record(latency);
+            }
+        } else if (record.isTimedOut()) {
+            this.mailsLost++;
+            if (sentInMinute != null) sentInMinute.lost++;
+        }
+    }
+
+    private MinuteStatistics getMinute(long time) {
+        Long minute = Long.valueOf(time - time % 60000);
+        MinuteStatistics statistics = this.minutes.get(minute);
+        if (statistics == null) {
+            statistics = new MinuteStatistics();
+            this.minutes.put(minute, statistics);
+        }
+        return statistics;
+    }
+
+    private static LatencyHistogram getHistogram(Map<Integer, LatencyHistogram> histograms, Integer key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+
+    private void readColumnarMailResults(String filename) throws IOException {
+        this.mailResultsSource = filename;
+        ColumnarReader reader = new ColumnarReader(filename);
+        try {
+            int timeConnectStart = reader.getColumnIndex("timeConnectStart");
+            int mailId = reader.getColumnIndex("mailId");
+            int matched = reader.getColumnIndex("ReceivedMatchedSent");
+            int timeSendStart = reader.getColumnIndex("timeSendStart");
+            int timeSendEnd = reader.getColumnIndex("timeSendEnd");
+            int errorNumberSending = reader.getColumnIndex("errorNumberSending");
+            int errorTextSending = reader.getColumnIndex("errorTextSending");
+            int timeFetchEnd = reader.getColumnIndex("timeFetchEnd");
+            int valid = reader.getColumnIndex("valid");
+            int timeSendIntended = reader.getColumnIndex("timeSendIntended");
+            int deliveryStatus = reader.getColumnIndex("deliveryStatus");
+
+            while (reader.nextRowGroup()) {
+                for (int row = 0; row < reader.getRowCount(); row++) {
+                    MailProcessingRecord record = new MailProcessingRecord();
+                    record.setTimeConnectStart(reader.getLong(timeConnectStart, row));
+                    record.setMailId(reader.getLong(mailId, row));
+                    record.setTimeSendStart(reader.getLong(timeSendStart, row));
+                    record.setTimeSendEnd(reader.getLong(timeSendEnd, row));
+                    record.setErrorNumberSending((int)reader.getLong(errorNumberSending, row));
+                    record.setErrorTextSending(reader.getString(errorTextSending, row));
+                    record.setTimeFetchEnd(reader.getLong(timeFetchEnd, row));
+                    record.setTimeSendIntended(reader.getLong(timeSendIntended, row));
+                    setStatus(record, reader.getString(matched, row), reader.getLong(valid, row) != 0,
+                              deliveryStatus < 0 ? null : reader.getString(deliveryStatus, row));
+                    add(record);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void setStatus(MailProcessingRecord record, String matched, boolean valid, String deliveryStatus) {
+        if ("MATCHED".equals(matched)) record.merge(new MailProcessingRecord());
+        if (valid) record.setValid();
+        if (MailProcessingRecord.STATUS_LATE.equals(deliveryStatus) || MailProcessingRecord.STATUS_LOST.equals(deliveryStatus)) {
+            record.setTimedOut();
+        }
+    }
+
+    private void readCSVMailResults(String filename) throws IOException {
+        this.mailResultsSource = filename;
+        BufferedReader reader = new BufferedReader(new FileReader(filename), 64 * 1024);
+        try {
+            Map<String, Integer> columns = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (line.startsWith("timeConnectStart" + SEPARATOR)) {
+                    columns = getColumnIndexes(fields);
+                } else if (isGeneralData(fields)) {
+                    addGeneralData(fields);
+                } else if (columns != null) {
+                    try {
+                        add(parseCSVMailResult(fields, columns));
+                    } catch (RuntimeException e) {
+                        this.linesSkipped++;
+                    }
+                } else {
+                    this.linesSkipped++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Map<String, Integer> getColumnIndexes(String[] header) {
+        Map<String, Integer> columns = new HashMap<String, Integer>();
+        for (int i = 0; i < header.length; i++) columns.put(header[i], Integer.valueOf(i));
+        return columns;
+    }
+
+    private static MailProcessingRecord parseCSVMailResult(String[] fields, Map<String, Integer> columns) {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setTimeConnectStart(getLong(fields, columns, "timeConnectStart"));
+        record.setMailId(MailId.parseToken(getString(fields, columns, "mailId")));
+        record.setTimeSendStart(getLong(fields, columns, "timeSendStart"));
+        record.setTimeSendEnd(getLong(fields, columns, "timeSendEnd"));
+        record.setErrorNumberSending((int)getLong(fields, columns, "errorNumberSending"));
+        record.setErrorTextSending(getString(fields, columns, "errorTextSending"));
+        record.setTimeFetchEnd(getLong(fields, columns, "timeFetchEnd"));
+        record.setTimeSendIntended(getLong(fields, columns, "timeSendIntended"));
+        setStatus(record, getString(fields, columns, "ReceivedMatchedSent"), "true".equals(getString(fields, columns, "valid")),
+                  getString(fields, columns, "deliveryStatus"));
+        return record;
+    }
+
+    private static String getString(String[] fields, Map<String, Integer> columns, String column) {
+        Integer index = columns.get(column);
+        if (index == null || index.intValue() >= fields.length) return null;
+        String value = fields[index.intValue()];
+        return "null".equals(value) ? null : value;
+    }
+
+    private static long getLong(String[] fields, Map<String, Integer> columns, String column) {
+        String value = getString(fields, columns, column);
+        return value == null || value.length() == 0 ? 0 : Long.parseLong(value);
+    }
+
+    /**
+     * general data lines, like start, end and the environment description, have few fields, mail results many
+     */
+    private static boolean isGeneralData(String[] fields) {
+        return fields.length < 10 && fields.length >= 2 && fields[0].length() > 0 && !Character.isDigit(fields[0].charAt(0));
+    }
+
+    private void addGeneralData(String[] fields) {
+        if ("mail_id_shard".equals(fields[0]) && fields.length >= 3) {
+            try {
+                this.profileNames.put(Integer.valueOf(fields[1]), fields[2]);
+            } catch (NumberFormatException e) {
+                this.linesSkipped++;
+            }
+            return;
+        }
+        if ("lost_in_minute".equals(fields[0])) return; // counted from the mails
+        StringBuffer value = new StringBuffer();
+        for (int i = 1; i < fields.length; i++) {
+            if (i > 1) value.append(SEPARATOR);
+            value.append(fields[i]);
+        }
+        this.generalData.put(fields[0], value.toString());
+    }
+
+    /**
+     * reads the general data from the end of the mail results CSV
+     */
+    private void readGeneralData(String filename) throws IOException {
+        if (!exists(filename)) return;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        BufferedReader reader = null;
+        try {
+            long start = Math.max(0, file.length() - GENERAL_DATA_TAIL_BYTES);
+            file.seek(start);
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file.getFD())));
+            if (start > 0) reader.readLine(); // most probably incomplete
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (isGeneralData(fields) && !line.startsWith("timeConnectStart" + SEPARATOR)) addGeneralData(fields);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    private void readColumnarJVMStatistics(String filename) throws IOException {
+        this.jvmStatisticsSource = filename;
+        ColumnarReader reader = new ColumnarReader(filename);
+        try {
+            int timestamp = reader.getColumnIndex("timestamp");
+            int memoryUsed = reader.getColumnIndex("memoryUsed");
+            int memoryMax = reader.getColumnIndex("memoryMax");
+            int threadCountCurrent = reader.getColumnIndex("threadCountCurrent");
+            while (reader.nextRowGroup()) {
+                for (int row = 0; row < reader.getRowCount(); row++) {
+                    addJVMStatistics(reader.getLong(timestamp, row), reader.getLong(memoryUsed, row),
+                                     reader.getLong(memoryMax, row), reader.getLong(threadCountCurrent, row));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readCSVJVMStatistics(String filename) throws IOException {
+        this.jvmStatisticsSource = filename;
+        BufferedReader reader = new BufferedReader(new FileReader(filename));
+        try {
+            Map<String, Integer> columns = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, -1);
+                if (line.startsWith("timestamp" + SEPARATOR)) {
+                    columns = getColumnIndexes(fields);
+                    continue;
+                }
+                if (columns == null) continue;
+                try {
+                    addJVMStatistics(getLong(fields, columns, "timestamp"), getLong(fields, columns, "memoryUsed"),
+                                     getLong(fields, columns, "memoryMax"), getLong(fields, columns, "threadCountCurrent"));
+                } catch (RuntimeException e) {
+                    this.linesSkipped++;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void addJVMStatistics(long timestamp, long memoryUsed, long memoryMax, long threadCount) {
+        if (timestamp <= 0) return;
+        MinuteStatistics minute = getMinute(timestamp);
+        minute.memoryUsed = Math.max(minute.memoryUsed, memoryUsed);
+        minute.memoryMax = Math.max(minute.memoryMax, memoryMax);
+        minute.threadCount = Math.max(minute.threadCount, threadCount);
+    }
+
+    /**
+     * checks the thresholds
+     * @return the result of every check configured, in the order checked
+     */
+    public List<Check> checkThresholds() {
+        List<Check> checks = new ArrayList<Check>();
+        if (this.thresholds.getSlaLatencyMillis() >= 0) {
+            long latency = this.latencies.getValueAtPercentile(this.thresholds.getSlaPercentile());
+            checks.add(new Check("delivery latency p" + this.thresholds.getSlaPercentile(),
+                                 latency < 0 ? "no mail matched" : latency + " ms",
+                                 "<= " + this.thresholds.getSlaLatencyMillis() + " ms",
+                                 latency >= 0 && latency <= this.thresholds.getSlaLatencyMillis()));
+        }
+        if (this.thresholds.getMaxUnmatchedPercent() >= 0) {
+            double unmatchedPercent = getPercent(this.mailsSent - this.mailsSendFailed - this.mailsMatched, this.mailsSent - this.mailsSendFailed);
+            checks.add(new Check("mails unmatched", formatPercent(unmatchedPercent), "<= " + this.thresholds.getMaxUnmatchedPercent() + " %",
+                                 unmatchedPercent <= this.thresholds.getMaxUnmatchedPercent()));
+        }
+        if (this.thresholds.getMaxSendErrorPercent() >= 0) {
+            double sendErrorPercent = getPercent(this.mailsSendFailed, this.mailsSent);
+            checks.add(new Check("mails failed to be sent", formatPercent(sendErrorPercent), "<= " + this.thresholds.getMaxSendErrorPercent() + " %",
+                                 sendErrorPercent <= this.thresholds.getMaxSendErrorPercent()));
+        }
+        return checks;
+    }
+
+    /**
+     * @return TRUE, if all configured thresholds are kept
+     */
+    public static boolean isPassed(List<Check> checks) {
+        Iterator<Check> iterator = checks.iterator();
+        while (iterator.hasNext()) {
+            if (!iterator.next().passed) return false;
+        }
+        return true;
+    }
+
+    private static double getPercent(long part, long total) {
+        if (total <= 0) return 0.0;
+        return part * 100.0 / total;
+    }
+
+    private static String formatPercent(double percent) {
+        return (Math.round(percent * 1000) / 1000.0) + " %";
+    }
+
+    private String getProfileName(Integer shard) {
+        String profileName = this.profileNames.get(shard);
+        return profileName != null ? profileName : "shard " + shard;
+    }
+
+    /**
+     * @return the latency histograms of the shards merged per profile
+     */
+    private Map<String, LatencyHistogram> getLatenciesPerProfile(Map<Integer, LatencyHistogram> latenciesPerShard) {
+        Map<String, LatencyHistogram> latenciesPerProfile = new TreeMap<String, LatencyHistogram>();
+        Iterator<Map.Entry<Integer, LatencyHistogram>> iterator = latenciesPerShard.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, LatencyHistogram> entry = iterator.next();
+            String profileName = getProfileName(entry.getKey());
+            LatencyHistogram merged = latenciesPerProfile.get(profileName);
+            if (merged == null) {
+                merged = new LatencyHistogram();
+                latenciesPerProfile.put(profileName, merged);
+            }
+            merged.add(entry.getValue());
+        }
+        return latenciesPerProfile;
+    }
+
+    public void writeText(String filename) throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(filename), "UTF-8");
+        try {
+            writer.write(createText().toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public void writeHTML(String filename) throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(filename), "UTF-8");
+        try {
+            writer.write(createHTML().toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    StringBuffer createText() {
+        StringBuffer text = new StringBuffer();
+        text.append("Postage report for scenario ").append(this.scenarioId).append("\n\n");
+        text.append("mail results: ").append(this.mailResultsSource).append("\n");
+        text.append("JVM statistics: ").append(this.jvmStatisticsSource).append("\n\n");
+
+        Iterator<Map.Entry<String, String>> generalIterator = this.generalData.entrySet().iterator();
+        while (generalIterator.hasNext()) {
+            Map.Entry<String, String> entry = generalIterator.next();
+            text.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+        }
+        text.append("\n");
+
+        text.append("mails sent: ").append(this.mailsSent).append(", failed: ").append(this.mailsSendFailed)
+            .append(", matched: ").append(this.mailsMatched).append(", valid: ").append(this.mailsValid)
+            .append(", late: ").append(this.mailsLate).append(", lost: ").append(this.mailsLost).append("\n\n");
+
+        text.append("delivery latency per profile (ms)\n");
+        text.append(pad("profile", 20)).append(pad("count", 10)).append(pad("p50", 10)).append(pad("p90", 10))
+            .append(pad("p99", 10)).append(pad("p99.9", 10)).append(pad("max", 10)).append("\n");
+        Map<String, LatencyHistogram> latenciesPerProfile = getLatenciesPerProfile(this.latenciesPerShard);
+        latenciesPerProfile.put("all", this.latencies);
+        Iterator<Map.Entry<String, LatencyHistogram>> profileIterator = latenciesPerProfile.entrySet().iterator();
+        while (profileIterator.hasNext()) {
+            Map.Entry<String, LatencyHistogram> entry = profileIterator.next();
+            LatencyHistogram histogram = entry.getValue();
+            text.append(pad(entry.getKey(), 20)).append(pad("" + histogram.getCount(), 10))
+                .append(pad("" + histogram.getValueAtPercentile(50.0), 10)).append(pad("" + histogram.getValueAtPercentile(90.0), 10))
+                .append(pad("" + histogram.getValueAtPercentile(99.0), 10)).append(pad("" + histogram.getValueAtPercentile(99.9), 10))
+                .append(pad("" + histogram.getMax(), 10)).append("\n");
+        }
+        text.append("\n");
+
+        text.append("per minute (latency of the mails sent in the minute)\n");
+        text.append(pad("minute", 18)).append(pad("sent", 8)).append(pad("failed", 8)).append(pad("matched", 9))
+            .append(pad("lost", 8)).append(pad("p50", 9)).append(pad("p99", 9)).append(pad("heap MB", 9))
+            .append(pad("threads", 8)).append("\n");
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        Iterator<Map.Entry<Long, MinuteStatistics>> minuteIterator = this.minutes.entrySet().iterator();
+        while (minuteIterator.hasNext()) {
+            Map.Entry<Long, MinuteStatistics> entry = minuteIterator.next();
+            MinuteStatistics minute = entry.getValue();
+            LatencyHistogram minuteLatencies = minute.getLatencies();
+            text.append(pad(format.format(new Date(entry.getKey().longValue())), 18))
+                .append(pad("" + minute.sent, 8)).append(pad("" + minute.sendFailed, 8)).append(pad("" + minute.matched, 9))
+                .append(pad("" + minute.lost, 8)).append(pad("" + minuteLatencies.getValueAtPercentile(50.0), 9))
+                .append(pad("" + minuteLatencies.getValueAtPercentile(99.0), 9))
+                .append(pad(minute.memoryUsed < 0 ? "-" : "" + minute.memoryUsed / (1024 * 1024), 9))
+                .append(pad(minute.threadCount < 0 ? "-" : "" + minute.threadCount, 8)).append("\n");
+        }
+        text.append("\n");
+
+        List<Check> checks = checkThresholds();
+        text.append("thresholds\n");
+        if (checks.isEmpty()) text.append("none configured\n");
+        Iterator<Check> checkIterator = checks.iterator();
+        while (checkIterator.hasNext()) {
+            Check check = checkIterator.next();
+            text.append(check.passed ? "PASS " : "FAIL ").append(check.name).append(": ").append(check.value)
+                .append(" (required ").append(check.required).append(")\n");
+        }
+        text.append("\nverdict: ").append(isPassed(checks) ? "PASS" : "FAIL").append("\n");
+        return text;
+    }
+
+    private static String pad(String value, int width) {
+        StringBuffer padded = new StringBuffer(value);
+        while (padded.length() < width - 1) padded.append(' ');
+        return padded.append(' ').toString();
+    }
+
+    StringBuffer createHTML() {
+        List<Long> minuteTimes = new ArrayList<Long>(this.minutes.keySet());
+        int count = minuteTimes.size();
+
+        double[] sent = new double[count];
+        double[] matched = new double[count];
+        double[] lost = new double[count];
+        double[] memoryUsed = new double[count];
+        double[] threads = new double[count];
+        double[] latencyP50 = new double[count];
+        Map<String, double[]> latencyP99PerProfile = new TreeMap<String, double[]>();
+        for (int i = 0; i < count; i++) {
+            MinuteStatistics minute = this.minutes.get(minuteTimes.get(i));
+            sent[i] = minute.sent;
+            matched[i] = minute.matched;
+            lost[i] = minute.lost;
+            memoryUsed[i] = minute.memoryUsed < 0 ? -1 : minute.memoryUsed / (1024.0 * 1024.0);
+            threads[i] = minute.threadCount;
+            latencyP50[i] = minute.getLatencies().getValueAtPercentile(50.0);
+
+            Iterator<Map.Entry<String, LatencyHistogram>> profileIterator = getLatenciesPerProfile(minute.latenciesPerShard).entrySet().iterator();
+            while (profileIterator.hasNext()) {
+                Map.Entry<String, LatencyHistogram> entry = profileIterator.next();
+                double[] values = latencyP99PerProfile.get(entry.getKey());
+                if (values == null) {
+                    values = new double[count];
+                    Arrays.fill(values, -1);
+                    latencyP99PerProfile.put(entry.getKey(), values);
+                }
+                values[i] = entry.getValue().getValueAtPercentile(99.0);
+            }
+        }
+
+        List<Check> checks = checkThresholds();
+        boolean passed = isPassed(checks);
+
+        StringBuffer html = new StringBuffer();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"UTF-8\"><title>Postage report ").append(escape(this.scenarioId)).append("</title>\n");
+        html.append("<style>body{font-family:sans-serif;margin:2em}table{border-collapse:collapse}td,th{border:1px solid #ccc;padding:2px 8px;text-align:right}")
+            .append("th{background:#eee}.pass{color:#2ca02c}.fail{color:#d62728}</style></head><body>\n");
+        html.append("<h1>Postage report for scenario ").append(escape(this.scenarioId)).append("</h1>\n");
+        html.append("<h2 class=\"").append(passed ? "pass\">PASS" : "fail\">FAIL").append("</h2>\n");
+
+        html.append("<table>\n");
+        Iterator<Check> checkIterator = checks.iterator();
+        while (checkIterator.hasNext()) {
+            Check check = checkIterator.next();
+            html.append("<tr><td class=\"").append(check.passed ? "pass\">PASS" : "fail\">FAIL").append("</td><td>")
+                .append(escape(check.name)).append("</td><td>").append(escape(check.value)).append("</td><td>required ")
+                .append(escape(check.required)).append("</td></tr>\n");
+        }
+        if (checks.isEmpty()) html.append("<tr><td>no thresholds configured</td></tr>\n");
+        html.append("</table>\n");
+
+        html.append("<p>mails sent: ").append(this.mailsSent).append(", failed: ").append(this.mailsSendFailed)
+            .append(", matched: ").append(this.mailsMatched).append(", valid: ").append(this.mailsValid)
+            .append(", late: ").append(this.mailsLate).append(", lost: ").append(this.mailsLost).append("</p>\n");
+
+        html.append("<h3>mails per minute</h3>\n");
+        appendChart(html, minuteTimes, new String[] {"sent", "matched", "lost"}, new double[][] {sent, matched, lost});
+
+        html.append("<h3>delivery latency (ms) of the mails sent per minute: p50 of all, p99 per profile</h3>\n");
+        String[] latencyNames = new String[latencyP99PerProfile.size() + 1];
+        double[][] latencyValues = new double[latencyP99PerProfile.size() + 1][];
+        latencyNames[0] = "p50 all";
+        latencyValues[0] = latencyP50;
+        int series = 1;
+        Iterator<Map.Entry<String, double[]>> seriesIterator = latencyP99PerProfile.entrySet().iterator();
+        while (seriesIterator.hasNext()) {
+            Map.Entry<String, double[]> entry = seriesIterator.next();
+            latencyNames[series] = "p99 " + entry.getKey();
+            latencyValues[series++] = entry.getValue();
+        }
+        appendChart(html, minuteTimes, latencyNames, latencyValues);
+
+        if (this.jvmStatisticsSource != null) {
+            html.append("<h3>James JVM heap used (MB)</h3>\n");
+            appendChart(html, minuteTimes, new String[] {"heap used"}, new double[][] {memoryUsed});
+            html.append("<h3>James JVM threads</h3>\n");
+            appendChart(html, minuteTimes, new String[] {"threads"}, new double[][] {threads});
+        }
+
+        html.append("<h3>run</h3>\n<table>\n");
+        html.append("<tr><th>mail results</th><td>").append(escape(this.mailResultsSource)).append("</td></tr>\n");
+        html.append("<tr><th>JVM statistics</th><td>").append(escape(this.jvmStatisticsSource)).append("</td></tr>\n");
+        Iterator<Map.Entry<String, String>> generalIterator = this.generalData.entrySet().iterator();
+        while (generalIterator.hasNext()) {
+            Map.Entry<String, String> entry = generalIterator.next();
+            html.append("<tr><th>").append(escape(entry.getKey())).append("</th><td>").append(escape(entry.getValue())).append("</td></tr>\n");
+        }
+        html.append("</table>\n");
+
+        html.append("<h3>per minute</h3>\n<pre>\n").append(escape(createText().toString())).append("</pre>\n");
+        html.append("</body></html>\n");
+        return html;
+    }
+
+    /**
+     * a line chart as inline SVG, one line per series. negative values are missing and left out.
+     */
+    private static void appendChart(StringBuffer html, List<Long> minuteTimes, String[] names, double[][] values) {
+        int width = 900;
+        int height = 260;
+        int left = 60;
+        int right = 20;
+        int top = 10;
+        int bottom = 40;
+
+        double max = 0;
+        for (int s = 0; s < values.length; s++) {
+            for (int i = 0; i < values[s].length; i++) max = Math.max(max, values[s][i]);
+        }
+        if (max <= 0) max = 1;
+        int count = minuteTimes.size();
+        double xStep = count > 1 ? (double)(width - left - right) / (count - 1) : 0;
+        double yScale = (height - top - bottom) / max;
+
+        html.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(width).append("\" height=\"").append(height).append("\">\n");
+        html.append("<line x1=\"").append(left).append("\" y1=\"").append(height - bottom).append("\" x2=\"").append(width - right)
+            .append("\" y2=\"").append(height - bottom).append("\" stroke=\"#000\"/>\n");
+        html.append("<line x1=\"").append(left).append("\" y1=\"").append(top).append("\" x2=\"").append(left)
+            .append("\" y2=\"").append(height - bottom).append("\" stroke=\"#000\"/>\n");
+        html.append("<text x=\"").append(left - 5).append("\" y=\"").append(top + 10).append("\" text-anchor=\"end\" font-size=\"11\">")
+            .append(Math.round(max)).append("</text>\n");
+        html.append("<text x=\"").append(left - 5).append("\" y=\"").append(height - bottom).append("\" text-anchor=\"end\" font-size=\"11\">0</text>\n");
+        if (count > 0) {
+            SimpleDateFormat format = new SimpleDateFormat("HH:mm");
+            html.append("<text x=\"").append(left).append("\" y=\"").append(height - bottom + 15).append("\" font-size=\"11\">")
+                .append(format.format(new Date(minuteTimes.get(0).longValue()))).append("</text>\n");
+            html.append("<text x=\"").append(width - right).append("\" y=\"").append(height - bottom + 15).append("\" text-anchor=\"end\" font-size=\"11\">")
+                .append(format.format(new Date(minuteTimes.get(count - 1).longValue()))).append("</text>\n");
+        }
+
+        for (int s = 0; s < values.length; s++) {
+            String color = COLORS[s % COLORS.length];
+            html.append("<polyline fill=\"none\" stroke=\"").append(color).append("\" stroke-width=\"1.5\" points=\"");
+            for (int i = 0; i < values[s].length; i++) {
+                if (values[s][i] < 0) continue;
+                html.append(Math.round(left + i * xStep)).append(",").append(Math.round(height - bottom - values[s][i] * yScale)).append(" ");
+            }
+            html.append("\"/>\n");
+            html.append("<text x=\"").append(left + 10 + s * 140).append("\" y=\"").append(height - 5).append("\" fill=\"").append(color)
+                .append("\" font-size=\"12\">").append(escape(names[s])).append("</text>\n");
+        }
+        html.append("</svg>\n");
+    }
+
+    private static String escape(String value) {
+        if (value == null) return "";
+        StringBuffer escaped = new StringBuffer(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '<') escaped.append("&lt;");
+            else if (c == '>') escaped.append("&gt;");
+            else if (c == '&') escaped.append("&amp;");
+            else if (c == '"') escaped.append("&quot;");
+            else escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * the result of checking one threshold
+     */
+    public static class Check {
+        final String name;
+        final String value;
+        final String required;
+        final boolean passed;
+
+        Check(String name, String value, String required, boolean passed) {
+            this.name = name;
+            this.value = value;
+            this.required = required;
+            this.passed = passed;
+        }
+
+        public boolean isPassed() {
+            return this.passed;
+        }
+
+        public String toString() {
+            return (this.passed ? "PASS " : "FAIL ") + this.name + ": " + this.value + " (required " + this.required + ")";
+        }
+    }
+
+    /**
+     * what happened in one minute. mails are counted in the minute they were sent, matches in the minute they
+     * were received.
+     */
+    private static class MinuteStatistics {
+        long sent = 0;
+        long sendFailed = 0;
+        long matched = 0;
+        long lost = 0;
+        long memoryUsed = -1;
+        long memoryMax = -1;
+        long threadCount = -1;
+        final Map<Integer, LatencyHistogram> latenciesPerShard = new HashMap<Integer, LatencyHistogram>();
+
+        LatencyHistogram getLatencies() {
+            LatencyHistogram merged = new LatencyHistogram();
+            Iterator<LatencyHistogram> iterator = this.latenciesPerShard.values().iterator();
+            while (iterator.hasNext()) merged.add(iterator.next());
+            return merged;
+        }
+    }
+}
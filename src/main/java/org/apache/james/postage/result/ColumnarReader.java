@@ -0,0 +1,196 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * reads a file written by ColumnarWriter, one row group at a time. columns are decoded when first accessed, so
+ * scanning a few columns does not pay for the others.
+ */
+public class ColumnarReader {
+
+    private final InputStream inputStream;
+    private final String filename;
+    private final String[] columnNames;
+    private final byte[] columnTypes;
+
+    private final List<String> strings = new ArrayList<String>();
+
+    private int rowCount = 0;
+    private final byte[][] encodedColumns;
+    private final long[][] decodedColumns;
+    private final boolean[] decoded;
+    private boolean ended = false;
+
+    public ColumnarReader(String filename) throws IOException {
+        this.filename = filename;
+        this.inputStream = new BufferedInputStream(new FileInputStream(filename), 64 * 1024);
+        try {
+            for (int i = 0; i < ColumnarWriter.MAGIC.length; i++) {
+                if (this.inputStream.read() != ColumnarWriter.MAGIC[i]) throw new IOException("not a columnar result file: " + filename);
+            }
+            int columnCount = (int)readVarLong();
+            this.columnNames = new String[columnCount];
+            this.columnTypes = new byte[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                this.columnTypes[i] = (byte)readByte();
+                this.columnNames[i] = new String(readBytes(), "UTF-8");
+            }
+        } catch (IOException e) {
+            this.inputStream.close();
+            throw e;
+        }
+        this.encodedColumns = new byte[this.columnNames.length][];
+        this.decodedColumns = new long[this.columnNames.length][];
+        this.decoded = new boolean[this.columnNames.length];
+        this.strings.add(null); // code 0
+    }
+
+    public String[] getColumnNames() {
+        return this.columnNames;
+    }
+
+    public byte getColumnType(int column) {
+        return this.columnTypes[column];
+    }
+
+    /**
+     * @return the index of the column, -1 if there is no such column
+     */
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < this.columnNames.length; i++) {
+            if (this.columnNames[i].equals(columnName)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * reads the next row group
+     * @return FALSE, if there are no more rows
+     */
+    public boolean nextRowGroup() throws IOException {
+        if (this.ended) return false;
+        int entry = this.inputStream.read();
+        if (entry == ColumnarWriter.END || entry < 0) {
+            // a file not closed properly ends without END, all complete row groups are read nevertheless
+            this.ended = true;
+            this.rowCount = 0;
+            return false;
+        }
+        if (entry != ColumnarWriter.ROW_GROUP) throw new IOException("corrupt columnar result file " + this.filename);
+
+        this.rowCount = (int)readVarLong();
+        long newStrings = readVarLong();
+        for (long i = 0; i < newStrings; i++) this.strings.add(new String(readBytes(), "UTF-8"));
+        for (int column = 0; column < this.columnNames.length; column++) {
+            this.encodedColumns[column] = readBytes();
+            this.decoded[column] = false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of rows in the current row group
+     */
+    public int getRowCount() {
+        return this.rowCount;
+    }
+
+    public long getLong(int column, int row) {
+        return getDecodedColumn(column)[row];
+    }
+
+    public String getString(int column, int row) {
+        return this.strings.get((int)getDecodedColumn(column)[row]);
+    }
+
+    public void close() throws IOException {
+        this.inputStream.close();
+    }
+
+    private long[] getDecodedColumn(int column) {
+        if (this.decoded[column]) return this.decodedColumns[column];
+
+        long[] values = this.decodedColumns[column];
+        if (values == null || values.length < this.rowCount) {
+            values = new long[this.rowCount];
+            this.decodedColumns[column] = values;
+        }
+        byte[] bytes = this.encodedColumns[column];
+        boolean delta = this.columnTypes[column] != ColumnarWriter.TYPE_STRING;
+        int position = 0;
+        long previous = 0;
+        for (int row = 0; row < this.rowCount; row++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[position++];
+                value |= (long)(b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (delta) {
+                previous += (value >>> 1) ^ -(value & 1); // zigzag
+                value = previous;
+            }
+            values[row] = value;
+        }
+        this.decoded[column] = true;
+        return values;
+    }
+
+    private int readByte() throws IOException {
+        int b = this.inputStream.read();
+        if (b < 0) throw new EOFException("columnar result file " + this.filename + " ends unexpectedly");
+        return b;
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            value |= (long)(b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private byte[] readBytes() throws IOException {
+        byte[] bytes = new byte[(int)readVarLong()];
+        int read = 0;
+        while (read < bytes.length) {
+            int n = this.inputStream.read(bytes, read, bytes.length - read);
+            if (n < 0) throw new EOFException("columnar result file " + this.filename + " ends unexpectedly");
+            read += n;
+        }
+        return bytes;
+    }
+}
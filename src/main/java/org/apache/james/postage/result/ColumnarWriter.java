@@ -0,0 +1,167 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * writes records column by column in a compact binary file, to be read by ColumnarReader.<br/>
+ * rows are collected in row groups of a fixed number of rows. every row group is written when complete, so
+ * memory does not depend on the number of rows.<br/>
+ * numbers are written as the difference to the value of the previous row, zigzag and variable length encoded.
+ * so timestamps and ids, which mostly increase by little, take one or two bytes. strings are written as codes
+ * of a dictionary, every row group carries the strings added to the dictionary by its rows.<br/>
+ * file layout:<br/>
+ * MAGIC, column count, per column: type, name<br/>
+ * per row group: 'G', row count, new string count, per new string: UTF-8 bytes, per column: encoded values<br/>
+ * 'E', total row count<br/>
+ * all counts and lengths are variable length encoded, byte arrays are preceded by their length.
+ */
+public class ColumnarWriter {
+
+    static final byte[] MAGIC = {'P', 'S', 'T', 'G', 'C', 'O', 'L', '1'};
+
+    public static final byte TYPE_LONG = 'L';
+    public static final byte TYPE_STRING = 'S';
+
+    static final byte ROW_GROUP = 'G';
+    static final byte END = 'E';
+
+    public static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    private final OutputStream outputStream;
+    private final byte[] columnTypes;
+    private final long[][] values;
+    private final int rowGroupSize;
+    private int rowCount = 0;
+    private long totalRowCount = 0;
+
+    private final StringDictionary dictionary = new StringDictionary();
+    private int stringsWritten = 0;
+
+    private final ByteArrayOutputStream columnBuffer = new ByteArrayOutputStream(64 * 1024);
+
+    public ColumnarWriter(String filename, String[] columnNames, byte[] columnTypes) throws IOException {
+        this(filename, columnNames, columnTypes, DEFAULT_ROW_GROUP_SIZE);
+    }
+
+    public ColumnarWriter(String filename, String[] columnNames, byte[] columnTypes, int rowGroupSize) throws IOException {
+        if (columnNames.length != columnTypes.length) throw new IllegalArgumentException("every column needs a type");
+        this.columnTypes = columnTypes;
+        this.rowGroupSize = rowGroupSize;
+        this.values = new long[columnNames.length][rowGroupSize];
+
+        this.outputStream = new BufferedOutputStream(new FileOutputStream(filename), 64 * 1024);
+        this.outputStream.write(MAGIC);
+        writeVarLong(this.outputStream, columnNames.length);
+        for (int i = 0; i < columnNames.length; i++) {
+            this.outputStream.write(columnTypes[i]);
+            writeBytes(this.outputStream, columnNames[i].getBytes("UTF-8"));
+        }
+    }
+
+    public void setLong(int column, long value) {
+        this.values[column][this.rowCount] = value;
+    }
+
+    public void setString(int column, String value) {
+        this.values[column][this.rowCount] = this.dictionary.encode(value);
+    }
+
+    /**
+     * completes the current row, values not set are 0 or NULL
+     */
+    public void endRow() throws IOException {
+        this.rowCount++;
+        this.totalRowCount++;
+        if (this.rowCount == this.rowGroupSize) writeRowGroup();
+    }
+
+    public long getRowCount() {
+        return this.totalRowCount;
+    }
+
+    /**
+     * writes the rows not yet written and closes the file
+     */
+    public void close() throws IOException {
+        try {
+            if (this.rowCount > 0) writeRowGroup();
+            this.outputStream.write(END);
+            writeVarLong(this.outputStream, this.totalRowCount);
+        } finally {
+            this.outputStream.close();
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        this.outputStream.write(ROW_GROUP);
+        writeVarLong(this.outputStream, this.rowCount);
+
+        int stringCount = this.dictionary.size();
+        writeVarLong(this.outputStream, stringCount - this.stringsWritten);
+        for (int code = this.stringsWritten + 1; code <= stringCount; code++) {
+            writeBytes(this.outputStream, this.dictionary.decode(code).getBytes("UTF-8"));
+        }
+        this.stringsWritten = stringCount;
+
+        for (int column = 0; column < this.values.length; column++) {
+            this.columnBuffer.reset();
+            long[] columnValues = this.values[column];
+            if (this.columnTypes[column] == TYPE_STRING) {
+                for (int row = 0; row < this.rowCount; row++) writeVarLong(this.columnBuffer, columnValues[row]);
+            } else {
+                long previous = 0;
+                for (int row = 0; row < this.rowCount; row++) {
+                    long delta = columnValues[row] - previous;
+                    writeVarLong(this.columnBuffer, (delta << 1) ^ (delta >> 63)); // zigzag
+                    previous = columnValues[row];
+                }
+            }
+            writeVarLong(this.outputStream, this.columnBuffer.size());
+            this.columnBuffer.writeTo(this.outputStream);
+            Arrays.fill(columnValues, 0, this.rowCount, 0);
+        }
+        this.rowCount = 0;
+    }
+
+    private static void writeBytes(OutputStream outputStream, byte[] bytes) throws IOException {
+        writeVarLong(outputStream, bytes.length);
+        outputStream.write(bytes);
+    }
+
+    /**
+     * 7 bits per byte, the highest bit set if more bytes follow
+     */
+    static void writeVarLong(OutputStream outputStream, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            outputStream.write((int)(value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        outputStream.write((int)value);
+    }
+}
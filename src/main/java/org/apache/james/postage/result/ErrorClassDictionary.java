@@ -0,0 +1,71 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+/**
+ * keeps error texts as their error class: numbers (like ids, ports and addresses) are replaced by '#' and the
+ * length is cut. as error texts often differ for every mail, at most MAX_ERROR_CLASSES classes are kept, all
+ * further ones are encoded as OTHER_ERROR_CLASS.
+ */
+public class ErrorClassDictionary extends StringDictionary {
+
+    public static final int MAX_ERROR_CLASSES = 1000;
+    public static final int MAX_ERROR_CLASS_LENGTH = 200;
+    public static final String OTHER_ERROR_CLASS = "other error";
+
+    public ErrorClassDictionary() {
+        super(MAX_ERROR_CLASSES, OTHER_ERROR_CLASS);
+    }
+
+    /**
+     * encodes the error class of the text
+     */
+    public int encode(String errorText) {
+        return super.encode(getErrorClass(errorText));
+    }
+
+    /**
+     * @return the error class kept for the text, NULL for NULL
+     */
+    public String toErrorClass(String errorText) {
+        return decode(encode(errorText));
+    }
+
+    /**
+     * @return the error text with all numbers replaced by '#', cut to MAX_ERROR_CLASS_LENGTH characters
+     */
+    public static String getErrorClass(String errorText) {
+        if (errorText == null) return null;
+        StringBuffer errorClass = new StringBuffer();
+        boolean inNumber = false;
+        for (int i = 0; i < errorText.length() && errorClass.length() < MAX_ERROR_CLASS_LENGTH; i++) {
+            char c = errorText.charAt(i);
+            if (Character.isDigit(c)) {
+                if (!inNumber) errorClass.append('#');
+                inNumber = true;
+            } else {
+                errorClass.append(c);
+                inNumber = false;
+            }
+        }
+        return errorClass.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.postage.result;
+
+/**
+ * records one command issued by a simulated IMAP user and how long the server took to complete it
+ */
+public class IMAPCommandRecord {
+    private static String SEPARATOR = ",";
+
+    public static final String STATUS_OK = "OK";
+    public static final String STATUS_NO = "NO";
+    public static final String STATUS_BAD = "BAD";
+    public static final String STATUS_ERROR = "ERROR";
+
+    private long timeStart;
+    private String profile;
+    private String username;
+    private String command;
+    private long durationMicros;
+    private String status;
+    private int untaggedResponses;
+
+    public IMAPCommandRecord(long timeStart, String profile, String username, String command) {
+        this.timeStart = timeStart;
+        this.profile = profile;
+        this.username = username;
+        this.command = command;
+    }
+
+    public long getTimeStart() {
+        return this.timeStart;
+    }
+
+    public String getProfile() {
+        return this.profile;
+    }
+
+    public String getUsername() {
+        return this.username;
+    }
+
+    /**
+     * @return the command name, like FETCH or SEARCH
+     */
+    public String getCommand() {
+        return this.command;
+    }
+
+    /**
+     * @return time from sending the command until its tagged response was received, in microseconds
+     */
+    public long getDurationMicros() {
+        return this.durationMicros;
+    }
+
+    public void setDurationMicros(long durationMicros) {
+        this.durationMicros = durationMicros;
+    }
+
+    /**
+     * @return one of the STATUS_ values
+     */
+    public String getStatus() {
+        return this.status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    /**
+     * @return number of untagged responses received for the command, like one per message fetched
+     */
+    public int getUntaggedResponses() {
+        return this.untaggedResponses;
+    }
+
+    public void setUntaggedResponses(int untaggedResponses) {
+        this.untaggedResponses = untaggedResponses;
+    }
+
+    public static StringBuffer writeHeader() {
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append("timeStart").append(SEPARATOR);
+        stringBuffer.append("profile").append(SEPARATOR);
+        stringBuffer.append("username").append(SEPARATOR);
+        stringBuffer.append("command").append(SEPARATOR);
+        stringBuffer.append("durationMicros").append(SEPARATOR);
+        stringBuffer.append("status").append(SEPARATOR);
+        stringBuffer.append("untaggedResponses").append(SEPARATOR);
+        stringBuffer.append("\r\n");
+
+        return stringBuffer;
+    }
+
+    public StringBuffer writeData() {
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append(this.timeStart).append(SEPARATOR);
+        stringBuffer.append(this.profile).append(SEPARATOR);
+        stringBuffer.append(this.username).append(SEPARATOR);
+        stringBuffer.append(this.command).append(SEPARATOR);
+        stringBuffer.append(this.durationMicros).append(SEPARATOR);
+        stringBuffer.append(this.status).append(SEPARATOR);
+        stringBuffer.append(this.untaggedResponses).append(SEPARATOR);
+        stringBuffer.append("\r\n");
+
+        return stringBuffer;
+    }
+}
@@ -20,6 +20,8 @@
 
 package org.apache.james.postage.result;
 
+import java.io.IOException;
+
 /**
  * records data of fundamental resource consumption of James' JVM
  */
@@ -133,4 +135,39 @@ public class JVMResourcesRecord {
         return stringBuffer;
     }
 
+    /**
+     * names of the columns written by writeColumns(), the same as in the CSV
+     */
+    public static final String[] COLUMN_NAMES = {
+        "timestamp",
+        "errorMessage",
+        "memoryMin",
+        "memoryMax",
+        "memoryCommitted",
+        "memoryUsed",
+        "threadCountPeak",
+        "threadCountCurrent",
+        "threadCountTotalStarted"
+    };
+
+    public static final byte[] COLUMN_TYPES = {
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG
+    };
+
+    public void writeColumns(ColumnarWriter writer) throws IOException {
+        int column = 0;
+        writer.setLong(column++, this.timestamp);
+        writer.setString(column++, this.errorMessage);
+        writer.setLong(column++, this.memoryInit);
+        writer.setLong(column++, this.memoryMax);
+        writer.setLong(column++, this.memoryCommitted);
+        writer.setLong(column++, this.memoryUsed);
+        writer.setLong(column++, this.threadCountPeak);
+        writer.setLong(column++, this.threadCountCurrent);
+        writer.setLong(column++, this.threadCountTotalStarted);
+        writer.endRow();
+    }
+
 }
@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+/**
+ * counts latencies in log-linear buckets, like HdrHistogram does: values below 128 are counted exactly, larger
+ * ones in buckets not wider than 1/64 of their value. so percentiles are known with less than 2% error, using
+ * memory only depending on the largest value, not on the number of values recorded.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+
+    private int[] counts = new int[SUB_BUCKET_COUNT];
+    private long totalCount = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+    private long sum = 0;
+
+    /**
+     * @param value negative values are ignored
+     */
+    public synchronized void record(long value) {
+        if (value < 0) return;
+        int index = indexOf(value);
+        if (index >= this.counts.length) {
+            int[] grown = new int[Math.max(index + 1, this.counts.length + SUB_BUCKET_HALF * 2)];
+            System.arraycopy(this.counts, 0, grown, 0, this.counts.length);
+            this.counts = grown;
+        }
+        this.counts[index]++;
+        this.totalCount++;
+        this.sum += value;
+        if (value < this.min) this.min = value;
+        if (value > this.max) this.max = value;
+    }
+
+    /**
+     * adds all values recorded by another histogram
+     */
+    public void add(LatencyHistogram other) {
+        int[] otherCounts;
+        long otherTotalCount, otherMin, otherMax, otherSum;
+        synchronized (other) {
+            otherCounts = other.counts.clone();
+            otherTotalCount = other.totalCount;
+            otherMin = other.min;
+            otherMax = other.max;
+            otherSum = other.sum;
+        }
+        synchronized (this) {
+            if (otherCounts.length > this.counts.length) {
+                int[] grown = new int[otherCounts.length];
+                System.arraycopy(this.counts, 0, grown, 0, this.counts.length);
+                this.counts = grown;
+            }
+            for (int i = 0; i < otherCounts.length; i++) this.counts[i] += otherCounts[i];
+            this.totalCount += otherTotalCount;
+            this.sum += otherSum;
+            if (otherMin < this.min) this.min = otherMin;
+            if (otherMax > this.max) this.max = otherMax;
+        }
+    }
+
+    public synchronized long getCount() {
+        return this.totalCount;
+    }
+
+    /**
+     * @return the smallest value recorded, -1 if none
+     */
+    public synchronized long getMin() {
+        return this.totalCount == 0 ? -1 : this.min;
+    }
+
+    /**
+     * @return the largest value recorded, -1 if none
+     */
+    public synchronized long getMax() {
+        return this.totalCount == 0 ? -1 : this.max;
+    }
+
+    /**
+     * @return the average of all values recorded, -1 if none
+     */
+    public synchronized double getMean() {
+        return this.totalCount == 0 ? -1 : (double)this.sum / this.totalCount;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value not exceeded by the given percentage of values recorded (the highest value of its
+     * bucket, but not more than the maximum), -1 if none
+     */
+    public synchronized long getValueAtPercentile(double percentile) {
+        if (this.totalCount == 0) return -1;
+        long countAtPercentile = (long)Math.ceil(Math.min(percentile, 100.0) / 100.0 * this.totalCount);
+        if (countAtPercentile < 1) countAtPercentile = 1;
+
+        long cumulatedCount = 0;
+        for (int i = 0; i < this.counts.length; i++) {
+            cumulatedCount += this.counts[i];
+            if (cumulatedCount >= countAtPercentile) return Math.min(highestEquivalentValue(i), this.max);
+        }
+        return this.max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int)value;
+        int bucket = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return bucket * SUB_BUCKET_HALF + (int)(value >>> bucket);
+    }
+
+    static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        int bucket = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - bucket * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+}
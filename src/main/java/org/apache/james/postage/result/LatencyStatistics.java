@@ -0,0 +1,286 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * keeps latency histograms per metric, send profile, receiving queue and minute, per minute for all profiles
+ * and queues, and for the whole run. the minute is the one the mail was sent in.<br/>
+ * metrics are the delivery latency (see MailProcessingRecord.getDeliveryLatency()), the time SMTP sending took
+ * and the polling lag (see MailProcessingRecord.getPollingLag()). all in milliseconds.<br/>
+ * the profile of a mail is known from the shard of its id, every sender registers the shard it generates ids for.
+ * histograms are kept per shard, the profile names are only looked up when the histograms are read, merging
+ * the shards of the same profile.
+ */
+public class LatencyStatistics {
+
+    private static String SEPARATOR = ",";
+
+    public static final String METRIC_DELIVERY = "delivery";
+    public static final String METRIC_SEND = "send";
+    public static final String METRIC_FETCH_LAG = "fetchLag";
+
+    private static final String[] METRICS = {METRIC_DELIVERY, METRIC_SEND, METRIC_FETCH_LAG};
+    private static final int DELIVERY = 0;
+    private static final int SEND = 1;
+    private static final int FETCH_LAG = 2;
+
+    public static final String ALL = "all";
+    private static final String UNKNOWN = "unknown";
+
+    private static final int ALL_SHARDS = -1;
+    private static final long ALL_MINUTES = -1;
+    private static final long UNKNOWN_MINUTE = -2;
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private final String[] profileNames = new String[MailId.MAX_SHARD + 1];
+
+    private final ConcurrentMap<HistogramKey, LatencyHistogram> histograms = new ConcurrentHashMap<HistogramKey, LatencyHistogram>();
+
+    public void registerProfile(int mailIdShard, String profileName) {
+        this.profileNames[mailIdShard & MailId.MAX_SHARD] = profileName;
+    }
+
+    /**
+     * @return one line per registered shard: mail_id_shard,shard,profile
+     */
+    public StringBuffer writeProfiles() {
+        StringBuffer stringBuffer = new StringBuffer();
+        for (int shard = 0; shard < this.profileNames.length; shard++) {
+            if (this.profileNames[shard] == null) continue;
+            stringBuffer.append("mail_id_shard").append(SEPARATOR).append(shard).append(SEPARATOR).append(this.profileNames[shard]).append("\r\n");
+        }
+        return stringBuffer;
+    }
+
+    public String getProfileName(long mailId) {
+        return getShardProfileName(MailId.getShard(mailId));
+    }
+
+    private String getShardProfileName(int shard) {
+        if (shard == ALL_SHARDS) return ALL;
+        String profileName = this.profileNames[shard];
+        return profileName == null ? UNKNOWN : profileName;
+    }
+
+    /**
+     * records the time sending took, if it succeeded
+     */
+    public void recordSent(MailProcessingRecord mailProcessingRecord) {
+        if (mailProcessingRecord.getTimeSendEnd() <= 0 || mailProcessingRecord.getTimeSendStart() <= 0) return;
+        record(SEND, mailProcessingRecord, ALL, mailProcessingRecord.getTimeSendEnd() - mailProcessingRecord.getTimeSendStart());
+    }
+
+    /**
+     * records the latencies known when the mail has been received
+     */
+    public void recordMatched(MailProcessingRecord mailProcessingRecord) {
+        String queue = mailProcessingRecord.getReceivingQueue();
+        if (queue == null) queue = UNKNOWN;
+        record(DELIVERY, mailProcessingRecord, queue, mailProcessingRecord.getDeliveryLatency());
+        record(FETCH_LAG, mailProcessingRecord, queue, mailProcessingRecord.getPollingLag());
+    }
+
+    /**
+     * @param metric index into METRICS
+     */
+    private void record(int metric, MailProcessingRecord mailProcessingRecord, String queue, long latency) {
+        if (latency < 0) return;
+        int shard = MailId.getShard(mailProcessingRecord.getMailId());
+        long timeSent = mailProcessingRecord.getTimeSendStart() > 0 ? mailProcessingRecord.getTimeSendStart() : mailProcessingRecord.getTimeConnectStart();
+        long minute = timeSent > 0 ? timeSent - timeSent % 60000 : UNKNOWN_MINUTE;
+
+        getHistogram(new HistogramKey(metric, shard, queue, minute)).record(latency);
+        getHistogram(new HistogramKey(metric, shard, queue, ALL_MINUTES)).record(latency);
+        getHistogram(new HistogramKey(metric, ALL_SHARDS, ALL, minute)).record(latency);
+        getHistogram(new HistogramKey(metric, ALL_SHARDS, ALL, ALL_MINUTES)).record(latency);
+    }
+
+    private LatencyHistogram getHistogram(HistogramKey key) {
+        LatencyHistogram histogram = this.histograms.get(key);
+        if (histogram != null) return histogram;
+        this.histograms.putIfAbsent(key, new LatencyHistogram());
+        return this.histograms.get(key);
+    }
+
+    private static int getMetricIndex(String metric) {
+        for (int i = 0; i < METRICS.length; i++) {
+            if (METRICS[i].equals(metric)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the histogram of all values of the metric recorded, NULL if there are none
+     */
+    public LatencyHistogram getTotal(String metric) {
+        return this.histograms.get(new HistogramKey(getMetricIndex(metric), ALL_SHARDS, ALL, ALL_MINUTES));
+    }
+
+    /**
+     * @return the histogram for the given profile, queue and minute (or ALL), NULL if there are no values.
+     * the values of all shards of the profile are merged into a new histogram.
+     */
+    public LatencyHistogram getHistogram(String metric, String profile, String queue, long minute) {
+        int metricIndex = getMetricIndex(metric);
+        if (minute < 0) minute = ALL_MINUTES;
+        if (ALL.equals(profile)) return this.histograms.get(new HistogramKey(metricIndex, ALL_SHARDS, queue, minute));
+
+        LatencyHistogram merged = null;
+        for (int shard = 0; shard <= MailId.MAX_SHARD; shard++) {
+            if (!getShardProfileName(shard).equals(profile)) continue;
+            LatencyHistogram histogram = this.histograms.get(new HistogramKey(metricIndex, shard, queue, minute));
+            if (histogram == null) continue;
+            if (merged == null) merged = new LatencyHistogram();
+            merged.add(histogram);
+        }
+        return merged;
+    }
+
+    /**
+     * @param minutes number of minutes, including the current one
+     * @return all values of the metric for mails sent in the last minutes, merged into a new histogram
+     */
+    public LatencyHistogram getRecent(String metric, int minutes) {
+        LatencyHistogram recent = new LatencyHistogram();
+        long currentMinute = System.currentTimeMillis() / 60000 * 60000;
+        for (int i = 0; i < minutes; i++) {
+            LatencyHistogram histogram = getHistogram(metric, ALL, ALL, currentMinute - i * 60000L);
+            if (histogram != null) recent.add(histogram);
+        }
+        return recent;
+    }
+
+    /**
+     * @return p50/p99/p99.9/max of the metric for logging
+     */
+    public String getSummary(String metric) {
+        LatencyHistogram histogram = getTotal(metric);
+        if (histogram == null) return "none";
+        return "count=" + histogram.getCount() + " p50=" + histogram.getValueAtPercentile(50.0)
+               + " p99=" + histogram.getValueAtPercentile(99.0) + " p99.9=" + histogram.getValueAtPercentile(99.9)
+               + " max=" + histogram.getMax();
+    }
+
+    public static StringBuffer writeHeader() {
+        StringBuffer stringBuffer = new StringBuffer();
+        stringBuffer.append("metric").append(SEPARATOR);
+        stringBuffer.append("profile").append(SEPARATOR);
+        stringBuffer.append("queue").append(SEPARATOR);
+        stringBuffer.append("minute").append(SEPARATOR);
+        stringBuffer.append("count").append(SEPARATOR);
+        stringBuffer.append("min").append(SEPARATOR);
+        stringBuffer.append("mean").append(SEPARATOR);
+        stringBuffer.append("p50").append(SEPARATOR);
+        stringBuffer.append("p90").append(SEPARATOR);
+        stringBuffer.append("p99").append(SEPARATOR);
+        stringBuffer.append("p99.9").append(SEPARATOR);
+        stringBuffer.append("max").append(SEPARATOR);
+        stringBuffer.append("\r\n");
+
+        return stringBuffer;
+    }
+
+    /**
+     * writes one line for every histogram, ordered by metric, profile, queue and minute. the histograms of
+     * shards having the same profile are merged.
+     */
+    public void writeData(Writer writer) throws IOException {
+        Map<String, LatencyHistogram> merged = new TreeMap<String, LatencyHistogram>();
+        Iterator<Map.Entry<HistogramKey, LatencyHistogram>> entries = this.histograms.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<HistogramKey, LatencyHistogram> entry = entries.next();
+            HistogramKey histogramKey = entry.getKey();
+            String key = METRICS[histogramKey.metric] + SEPARATOR + getShardProfileName(histogramKey.shard) + SEPARATOR
+                         + histogramKey.queue + SEPARATOR + formatMinute(histogramKey.minute);
+            LatencyHistogram histogram = merged.get(key);
+            if (histogram == null) {
+                histogram = new LatencyHistogram();
+                merged.put(key, histogram);
+            }
+            histogram.add(entry.getValue());
+        }
+
+        Iterator<Map.Entry<String, LatencyHistogram>> iterator = merged.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, LatencyHistogram> entry = iterator.next();
+            String key = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+
+            StringBuffer stringBuffer = new StringBuffer();
+            stringBuffer.append(key).append(SEPARATOR);
+            stringBuffer.append(histogram.getCount()).append(SEPARATOR);
+            stringBuffer.append(histogram.getMin()).append(SEPARATOR);
+            stringBuffer.append(Math.round(histogram.getMean())).append(SEPARATOR);
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                stringBuffer.append(histogram.getValueAtPercentile(PERCENTILES[i])).append(SEPARATOR);
+            }
+            stringBuffer.append(histogram.getMax()).append(SEPARATOR);
+            stringBuffer.append("\r\n");
+            writer.write(stringBuffer.toString());
+        }
+    }
+
+    private static String formatMinute(long minute) {
+        if (minute == ALL_MINUTES) return ALL;
+        if (minute == UNKNOWN_MINUTE) return UNKNOWN;
+        return Long.toString(minute);
+    }
+
+    /**
+     * identifies a histogram without building a string for every value recorded
+     */
+    private static final class HistogramKey {
+        private final int metric;
+        private final int shard;
+        private final String queue;
+        private final long minute;
+
+        HistogramKey(int metric, int shard, String queue, long minute) {
+            this.metric = metric;
+            this.shard = shard;
+            this.queue = queue;
+            this.minute = minute;
+        }
+
+        public boolean equals(Object other) {
+            if (!(other instanceof HistogramKey)) return false;
+            HistogramKey key = (HistogramKey)other;
+            return this.metric == key.metric && this.shard == key.shard && this.minute == key.minute
+                   && this.queue.equals(key.queue);
+        }
+
+        public int hashCode() {
+            int hash = this.metric * 31 + this.shard;
+            hash = hash * 31 + (int)(this.minute ^ (this.minute >>> 32));
+            return hash * 31 + this.queue.hashCode();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import org.apache.james.postage.mail.HeaderConstants;
+
+/**
+ * mail ids are longs combining the run, the sending shard and a sequence number:<br/>
+ * 24 bits run id | 8 bits shard | 32 bits sequence<br/>
+ * in the mail header they are written as a base-32 token of at most 13 characters. as the run id is never 0,
+ * small numbers are never generated and are used for special ids.
+ */
+public class MailId {
+
+    public static final int SHARD_BITS = 8;
+    public static final int SEQUENCE_BITS = 32;
+    public static final int MAX_SHARD = (1 << SHARD_BITS) - 1;
+    public static final long MAX_SEQUENCE = (1L << SEQUENCE_BITS) - 1;
+    public static final int MAX_RUN_ID = (1 << (64 - SHARD_BITS - SEQUENCE_BITS)) - 1;
+
+    /**
+     * no id known
+     */
+    public static final long NONE = 0;
+
+    /**
+     * the id of startup check mails, written as HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID
+     */
+    public static final long STARTUP_CHECK = 1;
+
+    private static final char[] DIGITS = "0123456789abcdefghjkmnpqrstvwxyz".toCharArray();
+    private static final int MAX_TOKEN_LENGTH = 13;
+    private static final byte[] DIGIT_VALUES = new byte[128];
+    static {
+        for (int i = 0; i < DIGIT_VALUES.length; i++) DIGIT_VALUES[i] = -1;
+        for (int i = 0; i < DIGITS.length; i++) {
+            DIGIT_VALUES[DIGITS[i]] = (byte)i;
+            DIGIT_VALUES[Character.toUpperCase(DIGITS[i])] = (byte)i;
+        }
+    }
+
+    private MailId() {
+        ; // static helpers only
+    }
+
+    /**
+     * @return a run id taken from the current time, never 0
+     */
+    public static int newRunId() {
+        int runId = (int)((System.currentTimeMillis() / 1000) & MAX_RUN_ID);
+        return runId == 0 ? 1 : runId;
+    }
+
+    public static long create(int runId, int shard, long sequence) {
+        return ((long)(runId & MAX_RUN_ID) << (SHARD_BITS + SEQUENCE_BITS))
+               | ((long)(shard & MAX_SHARD) << SEQUENCE_BITS)
+               | (sequence & MAX_SEQUENCE);
+    }
+
+    public static int getRunId(long mailId) {
+        return (int)(mailId >>> (SHARD_BITS + SEQUENCE_BITS));
+    }
+
+    public static int getShard(long mailId) {
+        return (int)(mailId >>> SEQUENCE_BITS) & MAX_SHARD;
+    }
+
+    public static long getSequence(long mailId) {
+        return mailId & MAX_SEQUENCE;
+    }
+
+    public static String toToken(long mailId) {
+        StringBuffer token = new StringBuffer(MAX_TOKEN_LENGTH);
+        appendToken(token, mailId);
+        return token.toString();
+    }
+
+    /**
+     * appends the base-32 token of the id, the id taken as unsigned
+     */
+    public static void appendToken(StringBuffer buffer, long mailId) {
+        int shift = 60;
+        while (shift > 0 && (mailId >>> shift) == 0) shift -= 5;
+        for (; shift >= 0; shift -= 5) {
+            buffer.append(DIGITS[(int)(mailId >>> shift) & 0x1f]);
+        }
+    }
+
+    /**
+     * @return the id, or NONE if the token is not valid
+     */
+    public static long parseToken(String token) {
+        if (token == null) return NONE;
+        int length = token.length();
+        if (length == 0 || length > MAX_TOKEN_LENGTH) return NONE;
+
+        long mailId = 0;
+        for (int i = 0; i < length; i++) {
+            char c = token.charAt(i);
+            int value = c < DIGIT_VALUES.length ? DIGIT_VALUES[c] : -1;
+            if (value < 0) return NONE;
+            if (i == 0 && length == MAX_TOKEN_LENGTH && value > 0xf) return NONE; // more than 64 bits
+            mailId = (mailId << 5) | value;
+        }
+        return mailId;
+    }
+
+    public static String toHeaderValue(long mailId) {
+        if (mailId == STARTUP_CHECK) return HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID;
+        return toToken(mailId);
+    }
+
+    /**
+     * @return the id written by toHeaderValue(), or NONE if the header is missing or not valid
+     */
+    public static long parseHeaderValue(String headerValue) {
+        if (headerValue == null) return NONE;
+        headerValue = headerValue.trim();
+        if (HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID.equals(headerValue)) return STARTUP_CHECK;
+        return parseToken(headerValue);
+    }
+}
@@ -0,0 +1,53 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * generates the ids of the mails of one sender without locking. every generator of a run must get its own shard
+ * of the id space, the shards are assigned by the PostageRunner.
+ * @see MailId
+ */
+public class MailIdGenerator {
+
+    private final int shard;
+    private final long base;
+    private final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * @param shard 0..MailId.MAX_SHARD, not used by any other generator of the run
+     */
+    public MailIdGenerator(int runId, int shard) {
+        if (shard < 0 || shard > MailId.MAX_SHARD) throw new IllegalArgumentException("shard out of range: " + shard);
+        this.shard = shard;
+        this.base = MailId.create(runId, this.shard, 0);
+    }
+
+    public int getShard() {
+        return this.shard;
+    }
+
+    public long next() {
+        return this.base | (this.sequence.incrementAndGet() & MailId.MAX_SEQUENCE);
+    }
+}
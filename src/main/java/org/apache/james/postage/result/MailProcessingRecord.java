@@ -20,7 +20,9 @@
 
 package org.apache.james.postage.result;
 
-import org.apache.james.postage.PostageRunner;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * contains all gathered data concerning one mail message
@@ -28,18 +30,30 @@ import org.apache.james.postage.PostageRunner;
 public class MailProcessingRecord {
 
     private static String SEPARATOR = ",";
-    private static int messageId = 1;
+
+    public static final String STATUS_DELIVERED = "DELIVERED";
+    public static final String STATUS_LATE = "LATE";
+    public static final String STATUS_LOST = "LOST";
+    public static final String STATUS_PENDING = "PENDING";
 
     boolean matchedSentAndReceived = false;
     boolean isReceivedValid = false;
+    boolean timedOut = false;
 
     long timeConnectStart;
-    String mailId;
+    long timeSendIntended;
+    long timeSessionOpenStart;
+    long timeSessionOpenEnd;
+    long mailId;
     String subject;
     String sender;
     String senderMailAddress;
     String receiver;
     String receiverMailAddress;
+    int recipientCount = 1;
+    String[] fanOutReceivers = null;
+    String[] fanOutReceiverMailAddresses = null;
+    boolean[] fanOutMatched = null;
     long timeSendEnd;
     long timeSendStart;
     long byteSendText;
@@ -51,14 +65,16 @@ public class MailProcessingRecord {
     long timeServerReceived;
     long timeFetchStart;
     long timeFetchEnd;
+    long timePreviousPoll;
+    long timeLoginStart;
+    long timeLoginEnd;
     long byteReceivedText;
     long byteReceivedBinary;
     long byteReceivedTotal;
     String receivingQueue;
 
-    public synchronized static String getNextId() {
-        return PostageRunner.getMessageIdPrefix() + (messageId++);
-    }
+    // set when the matched record has been written to the results
+    volatile boolean resultWritten = false;
 
     public boolean isMatchedSentAndReceived() {
         return matchedSentAndReceived;
@@ -72,6 +88,35 @@ public class MailProcessingRecord {
         return isReceivedValid;
     }
 
+    /**
+     * marks the mail as not delivered within the delivery timeout
+     */
+    public void setTimedOut() {
+        timedOut = true;
+    }
+
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * @return STATUS_DELIVERED or STATUS_LATE, if matched (within the delivery timeout or not), STATUS_LOST if
+     * given up after the timeout, STATUS_PENDING otherwise
+     */
+    public String getDeliveryStatus() {
+        if (matchedSentAndReceived) return timedOut ? STATUS_LATE : STATUS_DELIVERED;
+        return timedOut ? STATUS_LOST : STATUS_PENDING;
+    }
+
+    /**
+     * @return the time the mail was (intended to be) sent, 0 if not yet known
+     */
+    public long getTimeSent() {
+        if (timeSendIntended > 0) return timeSendIntended;
+        if (timeSendStart > 0) return timeSendStart;
+        return timeConnectStart;
+    }
+
     public long getTimeConnectStart() {
         return timeConnectStart;
     }
@@ -80,11 +125,63 @@ public class MailProcessingRecord {
         this.timeConnectStart = timeConnectStart;
     }
 
-    public String getMailId() {
+    /**
+     * when using open-loop load, this is the time the mail was due to be sent according to the configured rate.
+     * 0, if not recorded.
+     */
+    public long getTimeSendIntended() {
+        return timeSendIntended;
+    }
+
+    public void setTimeSendIntended(long timeSendIntended) {
+        this.timeSendIntended = timeSendIntended;
+    }
+
+    /**
+     * the latency from sending until the mail was completely fetched. it is measured from the time the mail was
+     * due to be sent if recorded (open-loop), so stalls in sending are not hidden. otherwise, it is measured
+     * from connecting.
+     * @return latency in milliseconds or -1, if the mail was not (yet) fetched
+     */
+    public long getDeliveryLatency() {
+        if (timeFetchEnd <= 0) return -1;
+        long timeStart = timeSendIntended > 0 ? timeSendIntended : timeConnectStart;
+        if (timeStart <= 0) return -1;
+        return timeFetchEnd - timeStart;
+    }
+
+    /**
+     * when the client started to open the SMTP session (connect and EHLO) used for sending this mail.
+     * 0, if the mail was sent on a session already opened for a previous mail.
+     */
+    public long getTimeSessionOpenStart() {
+        return timeSessionOpenStart;
+    }
+
+    public void setTimeSessionOpenStart(long timeSessionOpenStart) {
+        this.timeSessionOpenStart = timeSessionOpenStart;
+    }
+
+    /**
+     * when the SMTP session used for sending this mail was ready to send (greeting and EHLO completed).
+     * 0, if the mail was sent on a session already opened for a previous mail.
+     */
+    public long getTimeSessionOpenEnd() {
+        return timeSessionOpenEnd;
+    }
+
+    public void setTimeSessionOpenEnd(long timeSessionOpenEnd) {
+        this.timeSessionOpenEnd = timeSessionOpenEnd;
+    }
+
+    /**
+     * @return the id as defined by MailId, MailId.NONE if not known
+     */
+    public long getMailId() {
         return mailId;
     }
 
-    public void setMailId(String mailId) {
+    public void setMailId(long mailId) {
         this.mailId = mailId;
     }
 
@@ -128,6 +225,69 @@ public class MailProcessingRecord {
         this.receiverMailAddress = receiverMailAddress;
     }
 
+    /**
+     * records a mail sent to more than one recipient. every recipient's delivery is matched on its own, see
+     * claimRecipient() and forRecipient().
+     */
+    public synchronized void setFanOutReceivers(String[] receivers, String[] receiverMailAddresses) {
+        this.fanOutReceivers = receivers;
+        this.fanOutReceiverMailAddresses = receiverMailAddresses;
+        this.fanOutMatched = new boolean[receivers.length];
+        this.recipientCount = receivers.length;
+        this.receiver = receivers[0];
+        this.receiverMailAddress = receiverMailAddresses[0];
+    }
+
+    public int getRecipientCount() {
+        return recipientCount;
+    }
+
+    /**
+     * @return TRUE, if this is the record of a sent mail having more than one recipient
+     */
+    public synchronized boolean isFanOut() {
+        return fanOutReceivers != null;
+    }
+
+    /**
+     * marks the delivery to one recipient as matched
+     * @param receiverMailAddress the recipient of the delivery, NULL if not known
+     * @return index of the recipient, or -1 if the delivery to this recipient was matched before or the address
+     *         is not a recipient at all. if the address is not known, the first recipient not yet matched is taken.
+     */
+    public synchronized int claimRecipient(String receiverMailAddress) {
+        for (int i = 0; i < fanOutReceiverMailAddresses.length; i++) {
+            if (fanOutMatched[i]) continue;
+            if (receiverMailAddress == null || fanOutReceiverMailAddresses[i].equalsIgnoreCase(receiverMailAddress)) {
+                fanOutMatched[i] = true;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return indices of all recipients not yet matched
+     */
+    public synchronized List<Integer> getUnclaimedRecipients() {
+        List<Integer> unclaimed = new ArrayList<Integer>();
+        for (int i = 0; i < fanOutMatched.length; i++) {
+            if (!fanOutMatched[i]) unclaimed.add(i);
+        }
+        return unclaimed;
+    }
+
+    /**
+     * @return a copy of this record for the delivery to only one of its recipients
+     */
+    public synchronized MailProcessingRecord forRecipient(int index) {
+        MailProcessingRecord recipientRecord = new MailProcessingRecord();
+        recipientRecord.receiver = fanOutReceivers[index];
+        recipientRecord.receiverMailAddress = fanOutReceiverMailAddresses[index];
+        recipientRecord.copyMissing(this);
+        return recipientRecord;
+    }
+
     public long getTimeSendStart() {
         return timeSendStart;
     }
@@ -240,17 +400,74 @@ public class MailProcessingRecord {
         this.receivingQueue = receivingQueue;
     }
 
+    /**
+     * when the account the mail was fetched from was previously accessed by Postage, 0 if not known
+     */
+    public long getTimePreviousPoll() {
+        return timePreviousPoll;
+    }
+
+    public void setTimePreviousPoll(long timePreviousPoll) {
+        this.timePreviousPoll = timePreviousPoll;
+    }
+
+    /**
+     * when the client started to log into the account the mail was fetched from.
+     * 0, if the mail was fetched on a session already logged in for a previous access.
+     */
+    public long getTimeLoginStart() {
+        return timeLoginStart;
+    }
+
+    public void setTimeLoginStart(long timeLoginStart) {
+        this.timeLoginStart = timeLoginStart;
+    }
+
+    /**
+     * when the login to the account the mail was fetched from was completed (connect, greeting and authentication).
+     * 0, if the mail was fetched on a session already logged in for a previous access.
+     */
+    public long getTimeLoginEnd() {
+        return timeLoginEnd;
+    }
+
+    public void setTimeLoginEnd(long timeLoginEnd) {
+        this.timeLoginEnd = timeLoginEnd;
+    }
+
+    /**
+     * the time the mail may have waited in the mailbox before Postage accessed it: from the previous access
+     * of the account (or the end of sending, if later) until fetching started. this part of the delivery
+     * latency is caused by Postage, not by James.
+     * @return lag in milliseconds or -1, if not known
+     */
+    public long getPollingLag() {
+        if (timePreviousPoll <= 0 || timeFetchStart <= 0) return -1;
+        long timeStart = Math.max(timePreviousPoll, timeSendEnd);
+        return Math.max(0, timeFetchStart - timeStart);
+    }
+
     public void merge(MailProcessingRecord anotherRecord) {
         if (matchedSentAndReceived) throw new IllegalStateException("already merged");
         matchedSentAndReceived = true;
+        copyMissing(anotherRecord);
+    }
 
+    /**
+     * copies all data not yet set from another record
+     */
+    private void copyMissing(MailProcessingRecord anotherRecord) {
         if (timeConnectStart == 0) timeConnectStart = anotherRecord.timeConnectStart;
-        if (mailId == null) mailId = anotherRecord.mailId;
+        if (timeSendIntended == 0) timeSendIntended = anotherRecord.timeSendIntended;
+        if (timeSessionOpenStart == 0) timeSessionOpenStart = anotherRecord.timeSessionOpenStart;
+        if (timeSessionOpenEnd == 0) timeSessionOpenEnd = anotherRecord.timeSessionOpenEnd;
+        if (mailId == MailId.NONE) mailId = anotherRecord.mailId;
         if (subject == null) subject = anotherRecord.subject;
         if (sender == null) sender = anotherRecord.sender;
         if (senderMailAddress == null) senderMailAddress = anotherRecord.senderMailAddress;
         if (receiver == null) receiver = anotherRecord.receiver;
         if (receiverMailAddress == null) receiverMailAddress = anotherRecord.receiverMailAddress;
+        if (recipientCount == 1) recipientCount = anotherRecord.recipientCount;
         if (timeSendStart == 0) timeSendStart = anotherRecord.timeSendStart;
         if (timeSendEnd == 0) timeSendEnd = anotherRecord.timeSendEnd;
         if (byteSendText == 0) byteSendText = anotherRecord.byteSendText;
@@ -263,9 +480,13 @@ public class MailProcessingRecord {
         if (timeReceived == 0) timeReceived = anotherRecord.timeReceived;
         if (timeFetchStart == 0) timeFetchStart = anotherRecord.timeFetchStart;
         if (timeFetchEnd == 0) timeFetchEnd = anotherRecord.timeFetchEnd;
+        if (timePreviousPoll == 0) timePreviousPoll = anotherRecord.timePreviousPoll;
+        if (timeLoginStart == 0) timeLoginStart = anotherRecord.timeLoginStart;
+        if (timeLoginEnd == 0) timeLoginEnd = anotherRecord.timeLoginEnd;
         if (timeServerReceived == 0) timeServerReceived = anotherRecord.timeServerReceived;
         if (receivingQueue == null) receivingQueue = anotherRecord.receivingQueue;
         if (anotherRecord.isReceivedValid) isReceivedValid = anotherRecord.isReceivedValid;
+        if (anotherRecord.timedOut) timedOut = anotherRecord.timedOut;
     }
 
     public static StringBuffer writeHeader() {
@@ -293,6 +514,16 @@ public class MailProcessingRecord {
         stringBuffer.append("timeServerReceived").append(SEPARATOR);
         stringBuffer.append("receivingQueue").append(SEPARATOR);
         stringBuffer.append("valid").append(SEPARATOR);
+        stringBuffer.append("timeSendIntended").append(SEPARATOR);
+        stringBuffer.append("deliveryLatency").append(SEPARATOR);
+        stringBuffer.append("timeSessionOpenStart").append(SEPARATOR);
+        stringBuffer.append("timeSessionOpenEnd").append(SEPARATOR);
+        stringBuffer.append("recipientCount").append(SEPARATOR);
+        stringBuffer.append("timePreviousPoll").append(SEPARATOR);
+        stringBuffer.append("pollingLag").append(SEPARATOR);
+        stringBuffer.append("timeLoginStart").append(SEPARATOR);
+        stringBuffer.append("timeLoginEnd").append(SEPARATOR);
+        stringBuffer.append("deliveryStatus").append(SEPARATOR);
         stringBuffer.append("\r\n");
 
         return stringBuffer;
@@ -301,7 +532,8 @@ public class MailProcessingRecord {
     public StringBuffer writeData() {
         StringBuffer stringBuffer = new StringBuffer();
         stringBuffer.append(timeConnectStart).append(SEPARATOR);
-        stringBuffer.append(mailId).append(SEPARATOR);
+        MailId.appendToken(stringBuffer, mailId);
+        stringBuffer.append(SEPARATOR);
         stringBuffer.append(isMatchedSentAndReceived() ? "MATCHED" : "UNMATCHED").append(SEPARATOR);
         stringBuffer.append(subject).append(SEPARATOR);
         stringBuffer.append(sender).append(SEPARATOR);
@@ -323,9 +555,111 @@ public class MailProcessingRecord {
         stringBuffer.append(timeServerReceived).append(SEPARATOR);
         stringBuffer.append(receivingQueue).append(SEPARATOR);
         stringBuffer.append(isReceivedValid).append(SEPARATOR);
+        stringBuffer.append(timeSendIntended).append(SEPARATOR);
+        stringBuffer.append(getDeliveryLatency()).append(SEPARATOR);
+        stringBuffer.append(timeSessionOpenStart).append(SEPARATOR);
+        stringBuffer.append(timeSessionOpenEnd).append(SEPARATOR);
+        stringBuffer.append(recipientCount).append(SEPARATOR);
+        stringBuffer.append(timePreviousPoll).append(SEPARATOR);
+        stringBuffer.append(getPollingLag()).append(SEPARATOR);
+        stringBuffer.append(timeLoginStart).append(SEPARATOR);
+        stringBuffer.append(timeLoginEnd).append(SEPARATOR);
+        stringBuffer.append(getDeliveryStatus()).append(SEPARATOR);
         stringBuffer.append("\r\n");
 
         return stringBuffer;
     }
 
+    /**
+     * names of the columns written by writeColumns(), the same as in the CSV
+     */
+    public static final String[] COLUMN_NAMES = {
+        "timeConnectStart",
+        "mailId",
+        "ReceivedMatchedSent",
+        "subject",
+        "sender",
+        "senderMailAddress",
+        "receiver",
+        "receiverMailAddress",
+        "timeSendStart",
+        "timeSendEnd",
+        "byteSendText",
+        "byteSendBinary",
+        "byteReceivedText",
+        "byteReceivedBinary",
+        "byteReceivedTotal",
+        "errorNumberSending",
+        "errorTextSending",
+        "timeReceived",
+        "timeFetchStart",
+        "timeFetchEnd",
+        "timeServerReceived",
+        "receivingQueue",
+        "valid",
+        "timeSendIntended",
+        "deliveryLatency",
+        "timeSessionOpenStart",
+        "timeSessionOpenEnd",
+        "recipientCount",
+        "timePreviousPoll",
+        "pollingLag",
+        "timeLoginStart",
+        "timeLoginEnd",
+        "deliveryStatus"
+    };
+
+    public static final byte[] COLUMN_TYPES = {
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_STRING,
+        ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_STRING,
+        ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_LONG,
+        ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING
+    };
+
+    /**
+     * writes the record as a row of the COLUMN_NAMES. unlike the CSV, the mail id is written as the number.
+     */
+    public void writeColumns(ColumnarWriter writer) throws IOException {
+        int column = 0;
+        writer.setLong(column++, timeConnectStart);
+        writer.setLong(column++, mailId);
+        writer.setString(column++, isMatchedSentAndReceived() ? "MATCHED" : "UNMATCHED");
+        writer.setString(column++, subject);
+        writer.setString(column++, sender);
+        writer.setString(column++, senderMailAddress);
+        writer.setString(column++, receiver);
+        writer.setString(column++, receiverMailAddress);
+        writer.setLong(column++, timeSendStart);
+        writer.setLong(column++, timeSendEnd);
+        writer.setLong(column++, byteSendText);
+        writer.setLong(column++, byteSendBinary);
+        writer.setLong(column++, byteReceivedText);
+        writer.setLong(column++, byteReceivedBinary);
+        writer.setLong(column++, byteReceivedTotal);
+        writer.setLong(column++, errorNumberSending);
+        writer.setString(column++, errorTextSending);
+        writer.setLong(column++, timeReceived);
+        writer.setLong(column++, timeFetchStart);
+        writer.setLong(column++, timeFetchEnd);
+        writer.setLong(column++, timeServerReceived);
+        writer.setString(column++, receivingQueue);
+        writer.setLong(column++, isReceivedValid ? 1 : 0);
+        writer.setLong(column++, timeSendIntended);
+        writer.setLong(column++, getDeliveryLatency());
+        writer.setLong(column++, timeSessionOpenStart);
+        writer.setLong(column++, timeSessionOpenEnd);
+        writer.setLong(column++, recipientCount);
+        writer.setLong(column++, timePreviousPoll);
+        writer.setLong(column++, getPollingLag());
+        writer.setLong(column++, timeLoginStart);
+        writer.setLong(column++, timeLoginEnd);
+        writer.setString(column++, getDeliveryStatus());
+        writer.endRow();
+    }
+
 }
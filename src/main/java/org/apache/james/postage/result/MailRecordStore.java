@@ -0,0 +1,266 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+/**
+ * keeps mail records packed into primitive columns, addressed by row number, instead of one object per mail.<br/>
+ * ids are stored as longs, timestamps as int milliseconds relative to the creation of the store, sizes as int and
+ * strings as codes of a shared StringDictionary. one row takes about 120 bytes, a MailProcessingRecord with its
+ * strings several times that.<br/>
+ * int milliseconds limit the times to about 24 days before or after the creation of the store, records of longer runs
+ * cannot be packed. error texts are kept as their error class, see ErrorClassDictionary.<br/>
+ * rows are allocated and freed concurrently. reading and writing a row must be synchronized by the caller.
+ * rows freed are reused, so the store does not grow beyond the number of records kept at the same time.
+ */
+public class MailRecordStore {
+
+    private static final int PAGE_SIZE = 1024;
+
+    private static final int NOT_SET = Integer.MIN_VALUE;
+
+    private static final byte FLAG_MATCHED = 1;
+    private static final byte FLAG_VALID   = 2;
+    private static final byte FLAG_TIMED_OUT = 4;
+
+    private final long timeBase = System.currentTimeMillis();
+    private final StringDictionary dictionary = new StringDictionary();
+    private final ErrorClassDictionary errorDictionary = new ErrorClassDictionary();
+
+    private volatile Page[] pages = new Page[16];
+    private int rowCount = 0;
+    private int[] freeRows = new int[PAGE_SIZE];
+    private int freeRowCount = 0;
+
+    /**
+     * packs the record into a new row. if the record cannot be packed, no row is taken.
+     * @return the row number
+     */
+    public int add(MailProcessingRecord record) {
+        int row = allocate();
+        try {
+            write(row, record);
+        } catch (RuntimeException e) {
+            free(row);
+            throw e;
+        }
+        return row;
+    }
+
+    /**
+     * @return a new record containing the data of the row
+     */
+    public MailProcessingRecord read(int row) {
+        Page page = this.pages[row / PAGE_SIZE];
+        int i = row % PAGE_SIZE;
+
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.matchedSentAndReceived = (page.flags[i] & FLAG_MATCHED) != 0;
+        record.isReceivedValid = (page.flags[i] & FLAG_VALID) != 0;
+        record.timedOut = (page.flags[i] & FLAG_TIMED_OUT) != 0;
+        record.mailId = page.mailId[i];
+        record.recipientCount = page.recipientCount[i];
+        record.errorNumberSending = page.errorNumberSending[i];
+
+        record.timeConnectStart = decodeTime(page.timeConnectStart[i]);
+        record.timeSendIntended = decodeTime(page.timeSendIntended[i]);
+        record.timeSessionOpenStart = decodeTime(page.timeSessionOpenStart[i]);
+        record.timeSessionOpenEnd = decodeTime(page.timeSessionOpenEnd[i]);
+        record.timeSendStart = decodeTime(page.timeSendStart[i]);
+        record.timeSendEnd = decodeTime(page.timeSendEnd[i]);
+        record.timeReceived = decodeTime(page.timeReceived[i]);
+        record.timeServerReceived = decodeTime(page.timeServerReceived[i]);
+        record.timeFetchStart = decodeTime(page.timeFetchStart[i]);
+        record.timeFetchEnd = decodeTime(page.timeFetchEnd[i]);
+        record.timePreviousPoll = decodeTime(page.timePreviousPoll[i]);
+        record.timeLoginStart = decodeTime(page.timeLoginStart[i]);
+        record.timeLoginEnd = decodeTime(page.timeLoginEnd[i]);
+
+        record.byteSendText = page.byteSendText[i];
+        record.byteSendBinary = page.byteSendBinary[i];
+        record.byteReceivedText = page.byteReceivedText[i];
+        record.byteReceivedBinary = page.byteReceivedBinary[i];
+        record.byteReceivedTotal = page.byteReceivedTotal[i];
+
+        record.subject = this.dictionary.decode(page.subject[i]);
+        record.sender = this.dictionary.decode(page.sender[i]);
+        record.senderMailAddress = this.dictionary.decode(page.senderMailAddress[i]);
+        record.receiver = this.dictionary.decode(page.receiver[i]);
+        record.receiverMailAddress = this.dictionary.decode(page.receiverMailAddress[i]);
+        record.errorTextSending = this.errorDictionary.decode(page.errorTextSending[i]);
+        record.receivingQueue = this.dictionary.decode(page.receivingQueue[i]);
+        return record;
+    }
+
+    /**
+     * overwrites the row with the data of the record. mails sent to more than one recipient cannot be packed.
+     */
+    public void write(int row, MailProcessingRecord record) {
+        if (record.isFanOut()) throw new IllegalArgumentException("records of mails having more than one recipient cannot be packed");
+
+        Page page = this.pages[row / PAGE_SIZE];
+        int i = row % PAGE_SIZE;
+
+        byte flags = 0;
+        if (record.matchedSentAndReceived) flags |= FLAG_MATCHED;
+        if (record.isReceivedValid) flags |= FLAG_VALID;
+        if (record.timedOut) flags |= FLAG_TIMED_OUT;
+        page.flags[i] = flags;
+        page.mailId[i] = record.mailId;
+        page.recipientCount[i] = (short)record.recipientCount;
+        page.errorNumberSending[i] = record.errorNumberSending;
+
+        page.timeConnectStart[i] = encodeTime(record.timeConnectStart);
+        page.timeSendIntended[i] = encodeTime(record.timeSendIntended);
+        page.timeSessionOpenStart[i] = encodeTime(record.timeSessionOpenStart);
+        page.timeSessionOpenEnd[i] = encodeTime(record.timeSessionOpenEnd);
+        page.timeSendStart[i] = encodeTime(record.timeSendStart);
+        page.timeSendEnd[i] = encodeTime(record.timeSendEnd);
+        page.timeReceived[i] = encodeTime(record.timeReceived);
+        page.timeServerReceived[i] = encodeTime(record.timeServerReceived);
+        page.timeFetchStart[i] = encodeTime(record.timeFetchStart);
+        page.timeFetchEnd[i] = encodeTime(record.timeFetchEnd);
+        page.timePreviousPoll[i] = encodeTime(record.timePreviousPoll);
+        page.timeLoginStart[i] = encodeTime(record.timeLoginStart);
+        page.timeLoginEnd[i] = encodeTime(record.timeLoginEnd);
+
+        page.byteSendText[i] = encodeSize(record.byteSendText);
+        page.byteSendBinary[i] = encodeSize(record.byteSendBinary);
+        page.byteReceivedText[i] = encodeSize(record.byteReceivedText);
+        page.byteReceivedBinary[i] = encodeSize(record.byteReceivedBinary);
+        page.byteReceivedTotal[i] = encodeSize(record.byteReceivedTotal);
+
+        page.subject[i] = this.dictionary.encode(record.subject);
+        page.sender[i] = this.dictionary.encode(record.sender);
+        page.senderMailAddress[i] = this.dictionary.encode(record.senderMailAddress);
+        page.receiver[i] = this.dictionary.encode(record.receiver);
+        page.receiverMailAddress[i] = this.dictionary.encode(record.receiverMailAddress);
+        page.errorTextSending[i] = this.errorDictionary.encode(record.errorTextSending);
+        page.receivingQueue[i] = this.dictionary.encode(record.receivingQueue);
+    }
+
+    /**
+     * @return the time the mail of the row was (intended to be) sent, see MailProcessingRecord.getTimeSent()
+     */
+    public long getTimeSent(int row) {
+        Page page = this.pages[row / PAGE_SIZE];
+        int i = row % PAGE_SIZE;
+        if (page.timeSendIntended[i] != NOT_SET) return decodeTime(page.timeSendIntended[i]);
+        if (page.timeSendStart[i] != NOT_SET) return decodeTime(page.timeSendStart[i]);
+        return decodeTime(page.timeConnectStart[i]);
+    }
+
+    public long getMailId(int row) {
+        return this.pages[row / PAGE_SIZE].mailId[row % PAGE_SIZE];
+    }
+
+    /**
+     * makes the row available for reuse
+     */
+    public synchronized void free(int row) {
+        this.pages[row / PAGE_SIZE].mailId[row % PAGE_SIZE] = MailId.NONE;
+        if (this.freeRowCount == this.freeRows.length) {
+            int[] grown = new int[this.freeRows.length * 2];
+            System.arraycopy(this.freeRows, 0, grown, 0, this.freeRowCount);
+            this.freeRows = grown;
+        }
+        this.freeRows[this.freeRowCount++] = row;
+    }
+
+    /**
+     * @return number of rows in use
+     */
+    public synchronized int size() {
+        return this.rowCount - this.freeRowCount;
+    }
+
+    private synchronized int allocate() {
+        if (this.freeRowCount > 0) return this.freeRows[--this.freeRowCount];
+
+        int row = this.rowCount++;
+        int pageIndex = row / PAGE_SIZE;
+        if (pageIndex == this.pages.length) {
+            Page[] grown = new Page[this.pages.length * 2];
+            System.arraycopy(this.pages, 0, grown, 0, this.pages.length);
+            this.pages = grown;
+        }
+        if (this.pages[pageIndex] == null) {
+            Page[] pages = this.pages;
+            pages[pageIndex] = new Page();
+            this.pages = pages; // publish the new page
+        }
+        return row;
+    }
+
+    private int encodeTime(long time) {
+        if (time == 0) return NOT_SET;
+        long offset = time - this.timeBase;
+        if (offset <= NOT_SET || offset > Integer.MAX_VALUE) throw new IllegalArgumentException("time out of range: " + time);
+        return (int)offset;
+    }
+
+    private long decodeTime(int offset) {
+        if (offset == NOT_SET) return 0;
+        return this.timeBase + offset;
+    }
+
+    private int encodeSize(long size) {
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)size;
+    }
+
+    /**
+     * the columns of PAGE_SIZE rows
+     */
+    private static class Page {
+        private final byte[] flags = new byte[PAGE_SIZE];
+        private final long[] mailId = new long[PAGE_SIZE];
+        private final short[] recipientCount = new short[PAGE_SIZE];
+        private final int[] errorNumberSending = new int[PAGE_SIZE];
+
+        private final int[] timeConnectStart = new int[PAGE_SIZE];
+        private final int[] timeSendIntended = new int[PAGE_SIZE];
+        private final int[] timeSessionOpenStart = new int[PAGE_SIZE];
+        private final int[] timeSessionOpenEnd = new int[PAGE_SIZE];
+        private final int[] timeSendStart = new int[PAGE_SIZE];
+        private final int[] timeSendEnd = new int[PAGE_SIZE];
+        private final int[] timeReceived = new int[PAGE_SIZE];
+        private final int[] timeServerReceived = new int[PAGE_SIZE];
+        private final int[] timeFetchStart = new int[PAGE_SIZE];
+        private final int[] timeFetchEnd = new int[PAGE_SIZE];
+        private final int[] timePreviousPoll = new int[PAGE_SIZE];
+        private final int[] timeLoginStart = new int[PAGE_SIZE];
+        private final int[] timeLoginEnd = new int[PAGE_SIZE];
+
+        private final int[] byteSendText = new int[PAGE_SIZE];
+        private final int[] byteSendBinary = new int[PAGE_SIZE];
+        private final int[] byteReceivedText = new int[PAGE_SIZE];
+        private final int[] byteReceivedBinary = new int[PAGE_SIZE];
+        private final int[] byteReceivedTotal = new int[PAGE_SIZE];
+
+        private final int[] subject = new int[PAGE_SIZE];
+        private final int[] sender = new int[PAGE_SIZE];
+        private final int[] senderMailAddress = new int[PAGE_SIZE];
+        private final int[] receiver = new int[PAGE_SIZE];
+        private final int[] receiverMailAddress = new int[PAGE_SIZE];
+        private final int[] errorTextSending = new int[PAGE_SIZE];
+        private final int[] receivingQueue = new int[PAGE_SIZE];
+    }
+}
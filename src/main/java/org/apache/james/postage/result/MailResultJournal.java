@@ -0,0 +1,359 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * appends completed mail records to a binary file as they come in, instead of keeping them in memory until
+ * the results are written.<br/>
+ * records are collected in a buffer, which is written by a background thread every second (or when full), so a
+ * crash loses at most the last second. after the run, the journal is exported as CSV or columnar file.<br/>
+ * the file starts with MAGIC, followed by entries of two kinds:<br/>
+ * 'S' int code, short length, UTF-8 bytes: defines a string used by the following records<br/>
+ * 'R' and the fixed fields of a record, see writeRecord(). strings are written as their codes, 0 for NULL.<br/>
+ * error texts are written as their error class, see ErrorClassDictionary, so that the strings kept do not grow
+ * with every mail failing.
+ */
+public class MailResultJournal {
+
+    private static Log log = LogFactory.getLog(MailResultJournal.class);
+
+    private static final byte[] MAGIC = {'P', 'O', 'S', 'T', 'A', 'G', 'E', '1'};
+
+    private static final byte ENTRY_STRING = 'S';
+    private static final byte ENTRY_RECORD = 'R';
+
+    private static final int RECORD_SIZE = 1 + 1 + 8 + 2 + 4 + 13 * 8 + 5 * 8 + 7 * 4;
+    private static final int MAX_STRING_BYTES = 4096;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    private static final byte FLAG_MATCHED = 1;
+    private static final byte FLAG_VALID   = 2;
+    private static final byte FLAG_TIMED_OUT = 4;
+
+    private final String filename;
+    private final FileOutputStream outputStream;
+    private final FileChannel channel;
+    private final Object writeLock = new Object();
+    private final Object flusherLock = new Object();
+    private final StringDictionary dictionary = new StringDictionary();
+    private final ErrorClassDictionary errorClasses = new ErrorClassDictionary();
+    private final Thread flusher;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer spareBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private int stringsWritten = 0;
+    private long recordCount = 0;
+    private volatile boolean closed = false;
+
+    /**
+     * creates the journal, replacing an existing file, and starts flushing it in the background
+     */
+    public MailResultJournal(String filename) throws IOException {
+        this.filename = filename;
+        this.outputStream = new FileOutputStream(filename, false);
+        this.channel = this.outputStream.getChannel();
+        this.buffer.put(MAGIC);
+
+        this.flusher = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    // not interrupted for closing, an interrupt while writing would close the channel
+                    synchronized (flusherLock) {
+                        if (closed) break;
+                        try {
+                            flusherLock.wait(FLUSH_INTERVAL_MILLIS);
+                        } catch (InterruptedException e) {
+                            ; // flush anyway
+                        }
+                        if (closed) break;
+                    }
+                    try {
+                        flush();
+                    } catch (IOException e) {
+                        log.error("error writing mail result journal " + MailResultJournal.this.filename, e);
+                    }
+                }
+            }
+        }, "postage-journal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    public String getFilename() {
+        return this.filename;
+    }
+
+    public void append(MailProcessingRecord record) throws IOException {
+        while (true) {
+            synchronized (this) {
+                // checked while holding the buffer, so no record is appended after the last flush
+                if (this.closed) throw new IOException("journal already closed: " + this.filename);
+                if (appendToBuffer(record)) {
+                    this.recordCount++;
+                    return;
+                }
+            }
+            flush(); // the buffer is full
+        }
+    }
+
+    /**
+     * @return number of records appended
+     */
+    public synchronized long getRecordCount() {
+        return this.recordCount;
+    }
+
+    /**
+     * writes all records appended so far to the file
+     */
+    public void flush() throws IOException {
+        synchronized (this.writeLock) {
+            ByteBuffer full;
+            synchronized (this) {
+                full = this.buffer;
+                this.buffer = this.spareBuffer;
+                this.spareBuffer = full;
+            }
+            full.flip();
+            while (full.hasRemaining()) this.channel.write(full);
+            full.clear();
+        }
+    }
+
+    /**
+     * writes all records and closes the file. no more records can be appended.
+     */
+    public void close() throws IOException {
+        synchronized (this.flusherLock) {
+            if (this.closed) return;
+            this.closed = true;
+            this.flusherLock.notifyAll();
+        }
+        try {
+            this.flusher.join();
+        } catch (InterruptedException e) {
+            ; // flush anyway, writing is serialized with the flusher
+        }
+        flush();
+        this.channel.force(false);
+        this.outputStream.close();
+    }
+
+    /**
+     * @return FALSE, if the buffer does not have enough space
+     */
+    private boolean appendToBuffer(MailProcessingRecord record) throws IOException {
+        String[] strings = {record.subject, record.sender, record.senderMailAddress, record.receiver,
+                            record.receiverMailAddress, this.errorClasses.toErrorClass(record.errorTextSending),
+                            record.receivingQueue};
+        int[] codes = new int[strings.length];
+        for (int i = 0; i < strings.length; i++) {
+            // at most 4 bytes per character
+            if (strings[i] != null && strings[i].length() > MAX_STRING_BYTES / 4) {
+                strings[i] = strings[i].substring(0, MAX_STRING_BYTES / 4);
+            }
+            codes[i] = this.dictionary.encode(strings[i]);
+        }
+        int needed = RECORD_SIZE + (this.dictionary.size() - this.stringsWritten) * (1 + 4 + 2 + MAX_STRING_BYTES);
+        if (this.buffer.remaining() < needed) return false;
+
+        // strings not yet written are defined before the record
+        while (this.stringsWritten < this.dictionary.size()) {
+            int code = ++this.stringsWritten;
+            byte[] bytes = this.dictionary.decode(code).getBytes("UTF-8");
+            this.buffer.put(ENTRY_STRING);
+            this.buffer.putInt(code);
+            this.buffer.putShort((short)bytes.length);
+            this.buffer.put(bytes);
+        }
+        writeRecord(this.buffer, record, codes);
+        return true;
+    }
+
+    private static void writeRecord(ByteBuffer buffer, MailProcessingRecord record, int[] codes) {
+        byte flags = 0;
+        if (record.matchedSentAndReceived) flags |= FLAG_MATCHED;
+        if (record.isReceivedValid) flags |= FLAG_VALID;
+        if (record.timedOut) flags |= FLAG_TIMED_OUT;
+
+        buffer.put(ENTRY_RECORD);
+        buffer.put(flags);
+        buffer.putLong(record.mailId);
+        buffer.putShort((short)record.recipientCount);
+        buffer.putInt(record.errorNumberSending);
+
+        buffer.putLong(record.timeConnectStart);
+        buffer.putLong(record.timeSendIntended);
+        buffer.putLong(record.timeSessionOpenStart);
+        buffer.putLong(record.timeSessionOpenEnd);
+        buffer.putLong(record.timeSendStart);
+        buffer.putLong(record.timeSendEnd);
+        buffer.putLong(record.timeReceived);
+        buffer.putLong(record.timeServerReceived);
+        buffer.putLong(record.timeFetchStart);
+        buffer.putLong(record.timeFetchEnd);
+        buffer.putLong(record.timePreviousPoll);
+        buffer.putLong(record.timeLoginStart);
+        buffer.putLong(record.timeLoginEnd);
+
+        buffer.putLong(record.byteSendText);
+        buffer.putLong(record.byteSendBinary);
+        buffer.putLong(record.byteReceivedText);
+        buffer.putLong(record.byteReceivedBinary);
+        buffer.putLong(record.byteReceivedTotal);
+
+        for (int i = 0; i < codes.length; i++) buffer.putInt(codes[i]);
+    }
+
+    private static MailProcessingRecord readRecord(DataInputStream input, Map<Integer, String> strings) throws IOException {
+        MailProcessingRecord record = new MailProcessingRecord();
+        byte flags = input.readByte();
+        record.matchedSentAndReceived = (flags & FLAG_MATCHED) != 0;
+        record.isReceivedValid = (flags & FLAG_VALID) != 0;
+        record.timedOut = (flags & FLAG_TIMED_OUT) != 0;
+        record.mailId = input.readLong();
+        record.recipientCount = input.readShort();
+        record.errorNumberSending = input.readInt();
+
+        record.timeConnectStart = input.readLong();
+        record.timeSendIntended = input.readLong();
+        record.timeSessionOpenStart = input.readLong();
+        record.timeSessionOpenEnd = input.readLong();
+        record.timeSendStart = input.readLong();
+        record.timeSendEnd = input.readLong();
+        record.timeReceived = input.readLong();
+        record.timeServerReceived = input.readLong();
+        record.timeFetchStart = input.readLong();
+        record.timeFetchEnd = input.readLong();
+        record.timePreviousPoll = input.readLong();
+        record.timeLoginStart = input.readLong();
+        record.timeLoginEnd = input.readLong();
+
+        record.byteSendText = input.readLong();
+        record.byteSendBinary = input.readLong();
+        record.byteReceivedText = input.readLong();
+        record.byteReceivedBinary = input.readLong();
+        record.byteReceivedTotal = input.readLong();
+
+        record.subject = strings.get(input.readInt());
+        record.sender = strings.get(input.readInt());
+        record.senderMailAddress = strings.get(input.readInt());
+        record.receiver = strings.get(input.readInt());
+        record.receiverMailAddress = strings.get(input.readInt());
+        record.errorTextSending = strings.get(input.readInt());
+        record.receivingQueue = strings.get(input.readInt());
+        return record;
+    }
+
+    /**
+     * handles the records read from a journal
+     */
+    public interface RecordHandler {
+        void handle(MailProcessingRecord record) throws IOException;
+    }
+
+    /**
+     * writes every record of the journal as a CSV line. an incomplete last entry, like left by a crash,
+     * is skipped.
+     * @return number of records exported
+     */
+    public static long exportCSV(String filename, final OutputStreamWriter outputStreamWriter) throws IOException {
+        return read(filename, new RecordHandler() {
+            public void handle(MailProcessingRecord record) throws IOException {
+                outputStreamWriter.write(record.writeData().toString());
+            }
+        });
+    }
+
+    /**
+     * writes every record of the journal as a row of a columnar file, see ColumnarWriter
+     * @return number of records exported
+     */
+    public static long exportColumnar(String filename, String filenameColumnar) throws IOException {
+        final ColumnarWriter writer = new ColumnarWriter(filenameColumnar, MailProcessingRecord.COLUMN_NAMES, MailProcessingRecord.COLUMN_TYPES);
+        try {
+            return read(filename, new RecordHandler() {
+                public void handle(MailProcessingRecord record) throws IOException {
+                    record.writeColumns(writer);
+                }
+            });
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * reads the records of the journal one after the other. an incomplete last entry, like left by a crash,
+     * is skipped.
+     * @return number of records read
+     */
+    public static long read(String filename, RecordHandler handler) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 64 * 1024));
+        long count = 0;
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) throw new IOException("not a mail result journal: " + filename);
+            }
+
+            Map<Integer, String> strings = new HashMap<Integer, String>();
+            while (true) {
+                int entry = input.read();
+                if (entry < 0) break;
+                if (entry == ENTRY_STRING) {
+                    int code = input.readInt();
+                    byte[] bytes = new byte[input.readShort() & 0xffff];
+                    input.readFully(bytes);
+                    strings.put(Integer.valueOf(code), new String(bytes, "UTF-8"));
+                } else if (entry == ENTRY_RECORD) {
+                    handler.handle(readRecord(input, strings));
+                    count++;
+                } else {
+                    throw new IOException("corrupt mail result journal " + filename + " after " + count + " records");
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("mail result journal " + filename + " ends with an incomplete entry, skipped");
+        } finally {
+            input.close();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,452 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * holds the records of all mails sent but not yet (completely) matched, keyed by mail id.<br/>
+ * the index is split into segments, each having its own lock, so that senders and receivers running on
+ * different threads rarely wait for each other. every segment is an open addressing hash table of the
+ * (long) mail ids, so looking up a mail allocates nothing.<br/>
+ * once the sender is done with a mail, its record is packed into a MailRecordStore, so that the many mails
+ * waiting for delivery take little memory. records of mails sent to more than one recipient are kept as they are.<br/>
+ * the number of pending mails can be limited. a full segment either drops its oldest mail (evict-oldest) or
+ * does not take the new one (reject). either way, the mail no longer pending is handed over by
+ * takeOverflowRecords() to be written as unmatched.<br/>
+ * mails not delivered in time are taken out by takeSentBefore().
+ */
+public class PendingMailIndex {
+
+    private static Log log = LogFactory.getLog(PendingMailIndex.class);
+
+    public static final String OVERFLOW_EVICT_OLDEST = "evict-oldest";
+    public static final String OVERFLOW_REJECT = "reject";
+
+    private final MailRecordStore store = new MailRecordStore();
+
+    private final Segment[] segments;
+    private final int segmentMask;
+    private final int maxPendingPerSegment;
+    private final boolean evictOldest;
+
+    private final Queue<MailProcessingRecord> overflowRecords = new ConcurrentLinkedQueue<MailProcessingRecord>();
+    private final AtomicLong overflowCount = new AtomicLong(0);
+
+    /**
+     * @param maxPending maximum number of pending mails, 0 for no limit
+     * @param overflowPolicy OVERFLOW_EVICT_OLDEST or OVERFLOW_REJECT
+     */
+    public PendingMailIndex(int maxPending, String overflowPolicy) {
+        int segmentCount = 16;
+        while (segmentCount < Runtime.getRuntime().availableProcessors() * 4) segmentCount <<= 1;
+        this.segmentMask = segmentCount - 1;
+
+        this.maxPendingPerSegment = maxPending <= 0 ? 0 : Math.max(1, (maxPending + segmentCount - 1) / segmentCount);
+        if (overflowPolicy != null && !OVERFLOW_EVICT_OLDEST.equals(overflowPolicy) && !OVERFLOW_REJECT.equals(overflowPolicy)) {
+            log.warn("unknown pending mail overflow policy " + overflowPolicy + ", using " + OVERFLOW_EVICT_OLDEST);
+        }
+        this.evictOldest = !OVERFLOW_REJECT.equals(overflowPolicy);
+
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            this.segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @return FALSE, if the record is not pending because of the limit, or because its id is already pending
+     */
+    public boolean add(MailProcessingRecord mailProcessingRecord) {
+        long mailId = mailProcessingRecord.getMailId();
+        if (mailId == MailId.NONE) {
+            log.error("mail result without id cannot be matched");
+            return false;
+        }
+        long hash = hash(mailId);
+        Segment segment = segmentFor(hash);
+        MailProcessingRecord overflow = null;
+        synchronized (segment) {
+            if (segment.find(mailId, hash) >= 0) {
+                log.error("mail result already contained in unmatched list!");
+                return false;
+            }
+            if (this.maxPendingPerSegment > 0 && segment.count >= this.maxPendingPerSegment) {
+                if (!this.evictOldest) {
+                    overflow = mailProcessingRecord;
+                } else {
+                    long oldestId = segment.takeOldest();
+                    int slot = segment.find(oldestId, hash(oldestId));
+                    overflow = unpack(segment, slot);
+                    segment.remove(slot);
+                }
+            }
+            if (overflow != mailProcessingRecord) {
+                segment.insert(mailId, hash, mailProcessingRecord);
+            }
+        }
+        if (overflow != null) {
+            if (this.overflowCount.incrementAndGet() == 1) {
+                log.warn("more mails pending than configured, no longer matching some of them (" + (this.evictOldest ? OVERFLOW_EVICT_OLDEST : OVERFLOW_REJECT) + ")");
+            }
+            this.overflowRecords.add(overflow);
+        }
+        return overflow != mailProcessingRecord;
+    }
+
+    /**
+     * marks the mail as sent completely and packs its record, if it is still pending. the sender must not
+     * change the record afterwards. records which cannot be packed are kept as they are.
+     */
+    public void pack(MailProcessingRecord mailProcessingRecord) {
+        long mailId = mailProcessingRecord.getMailId();
+        if (mailId == MailId.NONE) return;
+        long hash = hash(mailId);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(mailId, hash);
+            if (slot < 0 || segment.records[slot] != mailProcessingRecord) return; // matched already
+            segment.sent[slot] = true;
+            if (mailProcessingRecord.isFanOut()) return;
+            try {
+                segment.rows[slot] = this.store.add(mailProcessingRecord);
+                segment.records[slot] = null;
+            } catch (IllegalArgumentException e) {
+                log.debug("keeping record unpacked: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * takes the pending mail for the delivery to one of its recipients. a mail sent to more than one recipient
+     * stays pending until every recipient has been claimed.
+     * @param receiverMailAddress recipient of the delivery, NULL if not known
+     * @return the record of the delivery, NULL if the mail (or delivery to this recipient) is not pending
+     */
+    public MailProcessingRecord claim(long mailId, String receiverMailAddress) {
+        long hash = hash(mailId);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(mailId, hash);
+            if (slot < 0) return null;
+            MailProcessingRecord pending = segment.records[slot];
+            if (pending == null || !pending.isFanOut()) {
+                pending = unpack(segment, slot);
+                segment.remove(slot);
+                return pending;
+            }
+
+            int recipientIndex = pending.claimRecipient(receiverMailAddress);
+            if (recipientIndex < 0) {
+                log.warn("mail already matched for mailId = " + MailId.toToken(mailId) + " and recipient = " + receiverMailAddress);
+                return null;
+            }
+            if (pending.getUnclaimedRecipients().isEmpty()) segment.remove(slot);
+            return pending.forRecipient(recipientIndex);
+        }
+    }
+
+    public boolean contains(long mailId) {
+        long hash = hash(mailId);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            return segment.find(mailId, hash) >= 0;
+        }
+    }
+
+    /**
+     * @return number of pending mails, read without locking
+     */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < this.segments.length; i++) size += this.segments[i].size;
+        return size;
+    }
+
+    /**
+     * @return a copy of all pending records
+     */
+    public List<MailProcessingRecord> values() {
+        List<MailProcessingRecord> values = new ArrayList<MailProcessingRecord>(size());
+        for (int i = 0; i < this.segments.length; i++) {
+            Segment segment = this.segments[i];
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot++) {
+                    if (segment.keys[slot] == MailId.NONE) continue;
+                    MailProcessingRecord record = segment.records[slot];
+                    values.add(record != null ? record : this.store.read(segment.rows[slot]));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * removes the mails sent before the given time. records of mails still being sent are kept.
+     * @return the records removed. for mails sent to more than one recipient, the record of all recipients
+     * not yet claimed
+     */
+    public List<MailProcessingRecord> takeSentBefore(long timeSent) {
+        List<MailProcessingRecord> taken = new ArrayList<MailProcessingRecord>();
+        for (int i = 0; i < this.segments.length; i++) {
+            Segment segment = this.segments[i];
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.keys.length; slot++) {
+                    if (segment.keys[slot] == MailId.NONE) continue;
+                    if (!segment.sent[slot]) continue; // still being sent
+                    MailProcessingRecord record = segment.records[slot];
+                    long recordTimeSent = record != null ? record.getTimeSent() : this.store.getTimeSent(segment.rows[slot]);
+                    if (recordTimeSent <= 0 || recordTimeSent >= timeSent) continue;
+
+                    taken.add(unpack(segment, slot));
+                    segment.remove(slot);
+                    slot--; // the slot may now hold a key moved up from further on
+                }
+            }
+        }
+        return taken;
+    }
+
+    /**
+     * looks only at the mail added first to every segment, which is sent completely, so this is cheap enough
+     * to be called for every status update.
+     * @return about the earliest time a pending mail was sent, 0 if no mail is pending. mails still being
+     * sent are not considered. the mails are taken in the order they were added, which may differ from
+     * the order sending was completed by the time sending took.
+     */
+    public long getOldestTimeSent() {
+        long oldest = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            Segment segment = this.segments[i];
+            long segmentOldest;
+            synchronized (segment) {
+                int slot = segment.findOldestSent();
+                if (slot < 0) continue;
+                MailProcessingRecord record = segment.records[slot];
+                segmentOldest = record != null ? record.getTimeSent() : this.store.getTimeSent(segment.rows[slot]);
+            }
+            if (segmentOldest > 0 && (oldest == 0 || segmentOldest < oldest)) oldest = segmentOldest;
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the records which were evicted or rejected since the last call
+     */
+    public List<MailProcessingRecord> takeOverflowRecords() {
+        List<MailProcessingRecord> overflow = new ArrayList<MailProcessingRecord>();
+        MailProcessingRecord record;
+        while ((record = this.overflowRecords.poll()) != null) overflow.add(record);
+        return overflow;
+    }
+
+    /**
+     * @return total number of mails evicted or rejected because of the limit
+     */
+    public long getOverflowCount() {
+        return this.overflowCount.get();
+    }
+
+    /**
+     * @return the record kept in the slot, the one read from the store frees its row
+     */
+    private MailProcessingRecord unpack(Segment segment, int slot) {
+        MailProcessingRecord record = segment.records[slot];
+        if (record != null) return record;
+        int row = segment.rows[slot];
+        record = this.store.read(row);
+        this.store.free(row);
+        return record;
+    }
+
+    private Segment segmentFor(long hash) {
+        return this.segments[(int)hash & this.segmentMask];
+    }
+
+    /**
+     * spreads the ids, which differ mostly in their lowest bits. the lower half selects the segment, the upper
+     * half the slot within the segment.
+     */
+    static long hash(long mailId) {
+        long z = mailId;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * a hash table using linear probing. a slot holds either the record, while it is being sent, or its row in
+     * the store. records which could not be packed are kept after sending, too, so whether sending has been
+     * completed is flagged separately. MailId.NONE marks free slots.<br/>
+     * the ids are also kept in the order they were added, for finding the oldest mail. ids no longer pending
+     * are dropped from there lazily.
+     */
+    private static class Segment {
+        private long[] keys = new long[16];
+        private int[] rows = new int[16];
+        private MailProcessingRecord[] records = new MailProcessingRecord[16];
+        private boolean[] sent = new boolean[16];
+        private int count = 0;
+        private volatile int size = 0;
+
+        private long[] order = new long[16];
+        private int orderHead = 0;
+        private int orderCount = 0;
+
+        int find(long key, long hash) {
+            int mask = this.keys.length - 1;
+            for (int slot = slotFor(hash, mask); ; slot = (slot + 1) & mask) {
+                long slotKey = this.keys[slot];
+                if (slotKey == key) return slot;
+                if (slotKey == MailId.NONE) return -1;
+            }
+        }
+
+        /**
+         * adds the key, which must not be contained already
+         */
+        void insert(long key, long hash, MailProcessingRecord record) {
+            if ((this.count + 1) * 2 > this.keys.length) resize(this.keys.length * 2);
+            int mask = this.keys.length - 1;
+            int slot = slotFor(hash, mask);
+            while (this.keys[slot] != MailId.NONE) slot = (slot + 1) & mask;
+            this.keys[slot] = key;
+            this.records[slot] = record;
+            this.rows[slot] = -1;
+            this.sent[slot] = false;
+            this.count++;
+            this.size = this.count;
+            addOrder(key);
+        }
+
+        /**
+         * empties the slot, moving following keys of the same probe sequence up
+         */
+        void remove(int slot) {
+            int mask = this.keys.length - 1;
+            int free = slot;
+            int next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                long key = this.keys[next];
+                if (key == MailId.NONE) break;
+                int home = slotFor(hash(key), mask);
+                boolean stays = free <= next ? (free < home && home <= next) : (free < home || home <= next);
+                if (stays) continue;
+                this.keys[free] = key;
+                this.rows[free] = this.rows[next];
+                this.records[free] = this.records[next];
+                this.sent[free] = this.sent[next];
+                free = next;
+            }
+            this.keys[free] = MailId.NONE;
+            this.records[free] = null;
+            this.count--;
+            this.size = this.count;
+        }
+
+        /**
+         * @return the id of the oldest mail still pending
+         */
+        long takeOldest() {
+            while (this.orderCount > 0) {
+                long key = this.order[this.orderHead];
+                this.orderHead = (this.orderHead + 1) & (this.order.length - 1);
+                this.orderCount--;
+                if (find(key, hash(key)) >= 0) return key;
+            }
+            throw new IllegalStateException("segment is empty");
+        }
+
+        /**
+         * @return the slot of the mail added first which is sent completely, -1 if there is none
+         */
+        int findOldestSent() {
+            // ids no longer pending are dropped as long as they are the oldest
+            while (this.orderCount > 0 && find(this.order[this.orderHead], hash(this.order[this.orderHead])) < 0) {
+                this.orderHead = (this.orderHead + 1) & (this.order.length - 1);
+                this.orderCount--;
+            }
+            for (int i = 0; i < this.orderCount; i++) {
+                long key = this.order[(this.orderHead + i) & (this.order.length - 1)];
+                int slot = find(key, hash(key));
+                if (slot >= 0 && this.sent[slot]) return slot;
+            }
+            return -1;
+        }
+
+        private void addOrder(long key) {
+            if (this.orderCount == this.order.length) compactOrder();
+            this.order[(this.orderHead + this.orderCount) & (this.order.length - 1)] = key;
+            this.orderCount++;
+        }
+
+        /**
+         * drops the ids no longer pending, growing the order if it is still more than half full
+         */
+        private void compactOrder() {
+            int length = 16;
+            while (length < this.count * 2) length <<= 1;
+            long[] compacted = new long[length];
+            int compactedCount = 0;
+            for (int i = 0; i < this.orderCount; i++) {
+                long key = this.order[(this.orderHead + i) & (this.order.length - 1)];
+                if (find(key, hash(key)) >= 0) compacted[compactedCount++] = key;
+            }
+            this.order = compacted;
+            this.orderHead = 0;
+            this.orderCount = compactedCount;
+        }
+
+        private void resize(int length) {
+            long[] oldKeys = this.keys;
+            int[] oldRows = this.rows;
+            MailProcessingRecord[] oldRecords = this.records;
+            boolean[] oldSent = this.sent;
+            this.keys = new long[length];
+            this.rows = new int[length];
+            this.records = new MailProcessingRecord[length];
+            this.sent = new boolean[length];
+            int mask = length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == MailId.NONE) continue;
+                int slot = slotFor(hash(oldKeys[i]), mask);
+                while (this.keys[slot] != MailId.NONE) slot = (slot + 1) & mask;
+                this.keys[slot] = oldKeys[i];
+                this.rows[slot] = oldRows[i];
+                this.records[slot] = oldRecords[i];
+                this.sent[slot] = oldSent[i];
+            }
+        }
+
+        private static int slotFor(long hash, int mask) {
+            return (int)(hash >>> 32) & mask;
+        }
+    }
+}
@@ -29,12 +29,58 @@ public interface PostageRunnerResult {
 
     void setEnvironmentDescription(Map<String, String> descriptionItems);
 
+    /**
+     * from now on, completed mail records are appended to the journal file, instead of being kept in memory until
+     * the results are written. the journal is exported to the mail results file when writing the final results.
+     */
+    void startMailResultJournal(String filenameJournal);
+
+    /**
+     * writes mail results and JVM statistics also (or only) to columnar files, see ColumnarWriter. mail results
+     * are exported from the journal, which must have been started before.
+     * @param writeCSV FALSE, if the mail results and JVM statistics are not to be written as CSV. general data is
+     * always written to the mail results CSV.
+     */
+    void startColumnarResults(String filenameMailResultsColumnar, String filenameJVMStatisticsColumnar, boolean writeCSV);
+
+    /**
+     * from now on, mails not delivered within the timeout are taken from the pending ones and recorded as lost.
+     * mails delivered after the timeout are recorded as late.
+     */
+    void startPendingMailReaper(long deliveryTimeoutMillis);
+
+    /**
+     * @return number of mails not delivered within the delivery timeout
+     */
+    long getLostMails();
+
+    /**
+     * @return number of mails delivered, but not within the delivery timeout
+     */
+    long getLateMails();
+
+    /**
+     * latencies of mails having ids of the given shard are recorded for the profile
+     */
+    void registerProfile(int mailIdShard, String profileName);
+
+    /**
+     * @return latency histograms per profile, queue and minute of all mails sent and matched so far
+     */
+    LatencyStatistics getLatencyStatistics();
+
     /**
      * add a record to be matched later on
      * @param mailProcessingRecord
      */
     void addNewMailRecord(MailProcessingRecord mailProcessingRecord);
 
+    /**
+     * tells that the sender is done with the record, successfully or not. the record may then be kept in a more
+     * compact form until it is matched.
+     */
+    void recordSendCompleted(MailProcessingRecord mailProcessingRecord);
+
     /**
      * retrieve the matching record, if existing
      * @param mailProcessingRecord record for whom a match is searched
@@ -43,15 +89,33 @@ public interface PostageRunnerResult {
     MailProcessingRecord matchMailRecord(MailProcessingRecord mailProcessingRecord);
 
     /**
-     * count the valid matches
-     * @param mailProcessingRecord
+     * completes the match of a record returned by matchMailRecord(), after the mail has been validated or not.
+     * the record is written then and must not be changed afterwards. valid matches are counted.
+     * @param matchedAndMergedRecord
      */
-    void recordValidatedMatch(MailProcessingRecord matchedAndMergedRecord);    
+    void recordCompletedMatch(MailProcessingRecord matchedAndMergedRecord);
     
+    /**
+     * delivery latencies of all mails matched since the previous call
+     * @return latencies in milliseconds
+     * @see MailProcessingRecord#getDeliveryLatency()
+     */
+    LatencyHistogram takeDeliveryLatencies();
+
     void addJVMResult(JVMResourcesRecord jvmResourcesRecord);
 
+    /**
+     * records a command of a simulated IMAP user. may be called by many threads.
+     */
+    void addIMAPCommandResult(IMAPCommandRecord imapCommandRecord);
+
     long getUnmatchedMails();
 
+    /**
+     * @return the earliest time a mail not yet matched was sent, 0 if there is none
+     */
+    long getOldestUnmatchedTimeSent();
+
     long getMatchedMails();
 
     long getValidMails();
@@ -62,7 +126,10 @@ public interface PostageRunnerResult {
 
     void addError(int errorNumber, String errorMessage);
 
+    /**
+     * @return number of errors recorded since the start, not reset when the errors are written
+     */
     long getErrorCount();
 
-    void writeResults(String filenameMailResults, String filenameJVMStatistics, String filenameErros, boolean flushMatchedMailOnly);
+    void writeResults(String filenameMailResults, String filenameJVMStatistics, String filenameErros, String filenameIMAPCommands, String filenameLatencies, boolean flushMatchedMailOnly);
 }
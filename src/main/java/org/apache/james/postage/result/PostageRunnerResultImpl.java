@@ -25,88 +25,334 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.commons.collections.map.HashedMap;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.james.postage.execution.SampleScheduler;
 
 public class PostageRunnerResultImpl implements PostageRunnerResult {
 
     private static Log log = LogFactory.getLog(PostageRunnerResultImpl.class);
 
-    private Map<String, MailProcessingRecord> matchedMailResults = initMatchedMailResultContainer();
+    // how many mails recorded as lost are kept, so that they are recorded as late when still delivered
+    private static final int MAX_REAPED_MAILS = 100000;
 
-    private final Map<String, MailProcessingRecord> unmatchedMailResults = new HashMap<String, MailProcessingRecord>();
+    // completed results not yet written, matched or timed out
+    private volatile Queue<MailProcessingRecord> matchedMailResults = initMatchedMailResultContainer();
+
+    // matching threads share the read lock, writing the results takes over the matched records using the write lock
+    private final ReadWriteLock matchedMailResultsLock = new ReentrantReadWriteLock();
+
+    private final PendingMailIndex unmatchedMailResults;
+
+    // mails recorded as lost, written when dropped from here or at the end of the run, see reapPendingMails(long)
+    private final PendingMailIndex reapedMailResults = new PendingMailIndex(MAX_REAPED_MAILS, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+
+    // completed records are appended to the journal, if started. otherwise they are kept in matchedMailResults.
+    private volatile MailResultJournal journal = null;
+
+    // columnar result files, see startColumnarResults()
+    private String filenameMailResultsColumnar = null;
+    private ColumnarWriter jvmStatisticsColumnar = null;
+    private boolean writeCSV = true;
 
     private List<ErrorRecord> errors = initErrorResultContainer();
 
+    private final AtomicLong errorCounter = new AtomicLong(0);
+
     private List<JVMResourcesRecord> jvmStatistics = initMatchedJVMStatisticsResultContainer();
 
-    private long TimestampFirstResult = -1;
+    private List<IMAPCommandRecord> imapCommands = new ArrayList<IMAPCommandRecord>();
+
+    private volatile long TimestampFirstResult = -1;
+
+    private volatile long TimestampLastResult = -1;
+
+    private final AtomicLong matchedMailCounter = new AtomicLong(0);
+
+    private final AtomicLong validMailCounter = new AtomicLong(0);
+
+    private volatile long deliveryTimeoutMillis = 0;
+
+    private ScheduledFuture<?> pendingMailReaper = null;
 
-    private long TimestampLastResult = -1;
+    private final AtomicLong lostMailCounter = new AtomicLong(0);
 
-    private long matchedMailCounter = 0;
+    private final AtomicLong lateMailCounter = new AtomicLong(0);
 
-    private long validMailCounter = 0;
+    // lost mails by the minute they were sent in
+    private final ConcurrentMap<Long, AtomicLong> lostMailsPerMinute = new ConcurrentHashMap<Long, AtomicLong>();
+
+    private final LatencyStatistics latencyStatistics = new LatencyStatistics();
+
+    private final Object deliveryLatencyLock = new Object();
+
+    // latencies since the last call to takeDeliveryLatencies(), bounded in size however many mails are matched
+    private LatencyHistogram deliveryLatencies = new LatencyHistogram();
 
     private Map<String, String> environmentInfo = new LinkedHashMap<String, String>();
 
+    public PostageRunnerResultImpl() {
+        this(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+    }
+
+    /**
+     * @param maxPendingMails how many sent mails are kept for matching at most, 0 for no limit
+     * @param pendingOverflowPolicy what to do when the limit is reached, see PendingMailIndex
+     */
+    public PostageRunnerResultImpl(int maxPendingMails, String pendingOverflowPolicy) {
+        this.unmatchedMailResults = new PendingMailIndex(maxPendingMails, pendingOverflowPolicy);
+    }
+
     public void addNewMailRecord(MailProcessingRecord mailProcessingRecord) {
 
         if (this.TimestampFirstResult <= 0) this.TimestampFirstResult = System.currentTimeMillis();
         this.TimestampLastResult = System.currentTimeMillis();
 
-        MailProcessingRecord prevMailProcessingRecord = this.unmatchedMailResults.put(mailProcessingRecord.getMailId(), mailProcessingRecord);
-        if (prevMailProcessingRecord != null) {
-            log.error("mail result already contained in unmatched list!");
+        this.unmatchedMailResults.add(mailProcessingRecord);
+    }
+
+    public void startMailResultJournal(String filenameJournal) {
+        try {
+            this.journal = new MailResultJournal(filenameJournal);
+            log.info("appending mail results to journal " + filenameJournal);
+        } catch (IOException e) {
+            log.error("could not create mail result journal " + filenameJournal + ", keeping mail results in memory", e);
         }
     }
 
-    public synchronized MailProcessingRecord matchMailRecord(MailProcessingRecord mailProcessingRecord) {
-        if (mailProcessingRecord == null) return null;
-        String mailId = mailProcessingRecord.getMailId();
-        if (mailId == null) return null;
+    /**
+     * every now and then, the mails not delivered within the timeout are no longer kept pending, but recorded as
+     * lost. mails delivered after the timeout are recorded as late, even if they were recorded as lost before.
+     */
+    public synchronized void startPendingMailReaper(long deliveryTimeoutMillis) {
+        if (deliveryTimeoutMillis <= 0 || this.pendingMailReaper != null) return;
+        setDeliveryTimeout(deliveryTimeoutMillis);
+        long periodMillis = Math.max(1000, Math.min(deliveryTimeoutMillis / 4, 30 * 1000));
+        long periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        this.pendingMailReaper = SampleScheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    reapPendingMails(System.currentTimeMillis());
+                } catch (RuntimeException e) {
+                    log.error("error reaping pending mails", e);
+                }
+            }
+        }, periodNanos, periodNanos);
+        log.info("mails not delivered within " + deliveryTimeoutMillis + " ms are recorded as lost");
+    }
+
+    void setDeliveryTimeout(long deliveryTimeoutMillis) {
+        this.deliveryTimeoutMillis = deliveryTimeoutMillis;
+    }
+
+    private synchronized void stopPendingMailReaper() {
+        if (this.pendingMailReaper == null) return;
+        this.pendingMailReaper.cancel(false);
+        this.pendingMailReaper = null;
+    }
+
+    /**
+     * records the mails not delivered within the timeout as lost. they are kept packed, up to MAX_REAPED_MAILS,
+     * so that a mail still delivered is recorded as late instead. the oldest ones dropped from there are written
+     * as lost right away, the others when the results are written at the end.
+     * @param now the current time, the timeout is counted back from
+     */
+    void reapPendingMails(long now) {
+        List<MailProcessingRecord> timedOut = this.unmatchedMailResults.takeSentBefore(now - this.deliveryTimeoutMillis);
+        if (timedOut.isEmpty()) return;
+
+        long lostMails = 0;
+        List<MailProcessingRecord> droppedMails = new ArrayList<MailProcessingRecord>();
+        Iterator<MailProcessingRecord> iterator = timedOut.iterator();
+        while (iterator.hasNext()) {
+            MailProcessingRecord record = iterator.next();
+            record.setTimedOut();
+            int recipients = record.isFanOut() ? record.getUnclaimedRecipients().size() : 1;
+            getLostInMinute(record.getTimeSent()).addAndGet(recipients);
+            lostMails += recipients;
+            if (this.reapedMailResults.add(record)) {
+                this.reapedMailResults.pack(record);
+            } else {
+                droppedMails.add(record);
+            }
+        }
+        this.lostMailCounter.addAndGet(lostMails);
+        log.info(lostMails + " mails not delivered within " + this.deliveryTimeoutMillis + " ms recorded as lost");
+
+        droppedMails.addAll(this.reapedMailResults.takeOverflowRecords());
+        if (droppedMails.isEmpty()) return;
+        MailResultJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journalMailResults(journal, droppedMails);
+                return;
+            } catch (IOException e) {
+                log.error("error appending to mail result journal, keeping mail results in memory", e);
+            }
+        }
+        this.matchedMailResultsLock.readLock().lock();
+        try {
+            this.matchedMailResults.addAll(expandFanOut(droppedMails));
+        } finally {
+            this.matchedMailResultsLock.readLock().unlock();
+        }
+    }
+
+    private AtomicLong getLostInMinute(long timeSent) {
+        Long minute = Long.valueOf(timeSent - timeSent % 60000);
+        AtomicLong lostInMinute = this.lostMailsPerMinute.get(minute);
+        if (lostInMinute == null) {
+            this.lostMailsPerMinute.putIfAbsent(minute, new AtomicLong(0));
+            lostInMinute = this.lostMailsPerMinute.get(minute);
+        }
+        return lostInMinute;
+    }
+
+    public void registerProfile(int mailIdShard, String profileName) {
+        this.latencyStatistics.registerProfile(mailIdShard, profileName);
+    }
+
+    public LatencyStatistics getLatencyStatistics() {
+        return this.latencyStatistics;
+    }
+
+    public synchronized void startColumnarResults(String filenameMailResultsColumnar, String filenameJVMStatisticsColumnar, boolean writeCSV) {
+        if (this.journal == null) {
+            log.warn("mail results are exported to a columnar file from the journal only, writing CSV");
+        } else {
+            this.filenameMailResultsColumnar = filenameMailResultsColumnar;
+            this.writeCSV = writeCSV;
+        }
+        try {
+            this.jvmStatisticsColumnar = new ColumnarWriter(filenameJVMStatisticsColumnar, JVMResourcesRecord.COLUMN_NAMES, JVMResourcesRecord.COLUMN_TYPES);
+        } catch (IOException e) {
+            log.error("could not create columnar JVM statistic results file " + filenameJVMStatisticsColumnar, e);
+        }
+    }
+
+    public void recordSendCompleted(MailProcessingRecord mailProcessingRecord) {
+        this.latencyStatistics.recordSent(mailProcessingRecord);
+        this.unmatchedMailResults.pack(mailProcessingRecord);
+    }
 
-        if (this.unmatchedMailResults.containsKey(mailId)) {
-            // merge both mail result objects into one and move it to matched list
-            MailProcessingRecord match = this.unmatchedMailResults.remove(mailId);
-            log.info("matched test mail having id = " + mailId + " received by queue = " + mailProcessingRecord.getReceivingQueue());
+    public MailProcessingRecord matchMailRecord(MailProcessingRecord mailProcessingRecord) {
+        if (mailProcessingRecord == null) return null;
+        long mailId = mailProcessingRecord.getMailId();
+        if (mailId == MailId.NONE) return null;
+
+        // every recipient of a fan-out mail is matched on its own, the sent mail stays pending until all are
+        MailProcessingRecord match = this.unmatchedMailResults.claim(mailId, mailProcessingRecord.getReceiverMailAddress());
+        if (match != null) {
+            // merge both mail result objects into one, it is completed by recordCompletedMatch()
+            if (log.isInfoEnabled()) {
+                log.info("matched test mail having id = " + MailId.toToken(mailId) + " received by queue = " + mailProcessingRecord.getReceivingQueue());
+            }
 
             match.merge(mailProcessingRecord); // copy new data to saved record
+            if (this.deliveryTimeoutMillis > 0 && match.getDeliveryLatency() > this.deliveryTimeoutMillis) {
+                match.setTimedOut();
+                this.lateMailCounter.incrementAndGet();
+            }
 
-            this.matchedMailResults.put(mailId, match);
-            this.matchedMailCounter++;
+            this.matchedMailCounter.incrementAndGet();
+            recordDeliveryLatency(match.getDeliveryLatency());
+            this.latencyStatistics.recordMatched(match);
             return match;
-        } else if (this.matchedMailResults.containsKey(mailId)) {
-            log.warn("mail already matched for mailId = " + mailId);
-        } else {
-            log.warn("mail match candidate has unknown (purged?) mailId = " + mailId);
+        }
+
+        // delivered after having been recorded as lost
+        match = this.reapedMailResults.claim(mailId, mailProcessingRecord.getReceiverMailAddress());
+        if (match != null) {
+            log.info("matched test mail having id = " + MailId.toToken(mailId) + " recorded as lost before, now late");
+            match.merge(mailProcessingRecord);
+            this.lostMailCounter.decrementAndGet();
+            getLostInMinute(match.getTimeSent()).decrementAndGet();
+            this.lateMailCounter.incrementAndGet();
+
+            this.matchedMailCounter.incrementAndGet();
+            recordDeliveryLatency(match.getDeliveryLatency());
+            this.latencyStatistics.recordMatched(match);
+            return match;
+        } else if (!this.unmatchedMailResults.contains(mailId) && !this.reapedMailResults.contains(mailId)) {
+            log.warn("mail match candidate has unknown (already matched or purged?) mailId = " + MailId.toToken(mailId));
         }
 
         return null;
     }
     
-    public void recordValidatedMatch(MailProcessingRecord matchedAndMergedRecord) {
-        if (!this.matchedMailResults.values().contains(matchedAndMergedRecord)) {
+    private void recordDeliveryLatency(long latency) {
+        if (latency < 0) return;
+        synchronized (this.deliveryLatencyLock) {
+            this.deliveryLatencies.record(latency);
+        }
+    }
+
+    public LatencyHistogram takeDeliveryLatencies() {
+        synchronized (this.deliveryLatencyLock) {
+            LatencyHistogram latencies = this.deliveryLatencies;
+            this.deliveryLatencies = new LatencyHistogram();
+            return latencies;
+        }
+    }
+
+    public void recordCompletedMatch(MailProcessingRecord matchedAndMergedRecord) {
+        if (!matchedAndMergedRecord.isMatchedSentAndReceived() || matchedAndMergedRecord.resultWritten) {
             log.error("cannot record validation result for (already written?) result having id " 
-                       + matchedAndMergedRecord.getMailId());
+                       + MailId.toToken(matchedAndMergedRecord.getMailId()));
             return;
         }
         
-        if (matchedAndMergedRecord.isReceivedValid()) this.validMailCounter++;
+        if (matchedAndMergedRecord.isReceivedValid()) this.validMailCounter.incrementAndGet();
+
+        MailResultJournal journal = this.journal;
+        if (journal != null) {
+            try {
+                journal.append(matchedAndMergedRecord);
+                matchedAndMergedRecord.resultWritten = true;
+                return;
+            } catch (IOException e) {
+                log.error("error appending to mail result journal, keeping mail result in memory", e);
+            }
+        }
+        this.matchedMailResultsLock.readLock().lock();
+        try {
+            this.matchedMailResults.add(matchedAndMergedRecord);
+        } finally {
+            this.matchedMailResultsLock.readLock().unlock();
+        }
     }
 
     public void addJVMResult(JVMResourcesRecord jvmResourcesRecord) {
         this.jvmStatistics.add(jvmResourcesRecord);
     }
 
+    public synchronized void addIMAPCommandResult(IMAPCommandRecord imapCommandRecord) {
+        this.imapCommands.add(imapCommandRecord);
+    }
+
+    private synchronized List<IMAPCommandRecord> takeIMAPCommandResults() {
+        List<IMAPCommandRecord> unwrittenResults = this.imapCommands;
+        this.imapCommands = new ArrayList<IMAPCommandRecord>();
+        return unwrittenResults;
+    }
+
     public void setEnvironmentDescription(Map<String, String> descriptionItems) {
         this.environmentInfo.putAll(descriptionItems);
     }
@@ -115,12 +361,31 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         return this.unmatchedMailResults.size();
     }
 
+    public long getOldestUnmatchedTimeSent() {
+        return this.unmatchedMailResults.getOldestTimeSent();
+    }
+
     public long getMatchedMails() {
-        return this.matchedMailCounter;
+        return this.matchedMailCounter.get();
     }
 
     public long getValidMails() {
-        return this.validMailCounter;
+        return this.validMailCounter.get();
+    }
+
+    public long getLostMails() {
+        return this.lostMailCounter.get();
+    }
+
+    public long getLateMails() {
+        return this.lateMailCounter.get();
+    }
+
+    /**
+     * @return number of sent mails no longer kept for matching, because too many were pending
+     */
+    public long getPendingOverflows() {
+        return this.unmatchedMailResults.getOverflowCount();
     }
 
     public void writeMailResults(OutputStreamWriter outputStreamWriter, boolean flushOnlyMatched) throws IOException {
@@ -132,14 +397,23 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
     }
 
     private void writeUnmatchedMailResults(OutputStreamWriter outputStreamWriter) throws IOException {
-        writeMailResults(this.unmatchedMailResults, outputStreamWriter);
+        writeMailResults(this.unmatchedMailResults.values(), outputStreamWriter);
+        writeMailResults(this.reapedMailResults.values(), outputStreamWriter);
         outputStreamWriter.flush();
     }
 
     private void writeMatchedMailResults(OutputStreamWriter outputStreamWriter) throws IOException {
-        Map<String, MailProcessingRecord> writeResults = this.matchedMailResults; // keep current results for writing
-        this.matchedMailResults = initMatchedMailResultContainer(); // establish new map for further unwritten results
+        Queue<MailProcessingRecord> writeResults;
+        this.matchedMailResultsLock.writeLock().lock();
+        try {
+            writeResults = this.matchedMailResults; // keep current results for writing
+            this.matchedMailResults = initMatchedMailResultContainer(); // establish new map for further unwritten results
+        } finally {
+            this.matchedMailResultsLock.writeLock().unlock();
+        }
         writeMailResults(writeResults, outputStreamWriter);
+        // mails dropped from the pending ones will never be matched
+        writeMailResults(this.unmatchedMailResults.takeOverflowRecords(), outputStreamWriter);
         outputStreamWriter.flush();
     }
 
@@ -147,6 +421,20 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         outputStreamWriter.write("start," + this.TimestampFirstResult + "," + new Date(this.TimestampFirstResult) + "\r\n");
         outputStreamWriter.write("end," + this.TimestampLastResult + "," + new Date(this.TimestampLastResult) + "\r\n");
         outputStreamWriter.write("current," + System.currentTimeMillis() + "," + new Date() + "\r\n");
+        outputStreamWriter.write("pending_overflows," + getPendingOverflows() + "\r\n");
+        outputStreamWriter.write(this.latencyStatistics.writeProfiles().toString());
+        if (this.deliveryTimeoutMillis > 0) {
+            outputStreamWriter.write("delivery_timeout_ms," + this.deliveryTimeoutMillis + "\r\n");
+            outputStreamWriter.write("lost," + getLostMails() + "\r\n");
+            outputStreamWriter.write("late," + getLateMails() + "\r\n");
+            List<Long> minutes = new ArrayList<Long>(this.lostMailsPerMinute.keySet());
+            Collections.sort(minutes);
+            Iterator<Long> minuteIterator = minutes.iterator();
+            while (minuteIterator.hasNext()) {
+                Long minute = minuteIterator.next();
+                outputStreamWriter.write("lost_in_minute," + minute + "," + new Date(minute.longValue()) + "," + this.lostMailsPerMinute.get(minute) + "\r\n");
+            }
+        }
 
         Iterator<String> iterator = this.environmentInfo.keySet().iterator();
         while (iterator.hasNext()) {
@@ -164,25 +452,41 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         return this.TimestampLastResult;
     }
 
-    public void addError(int errorNumber, String errorMessage) {
+    public synchronized void addError(int errorNumber, String errorMessage) {
         this.errors.add(new ErrorRecord(errorNumber, errorMessage));
+        this.errorCounter.incrementAndGet();
+    }
+
+    private synchronized List<ErrorRecord> takeErrors() {
+        List<ErrorRecord> unwrittenResults = this.errors;
+        this.errors = initErrorResultContainer();
+        return unwrittenResults;
     }
 
     public long getErrorCount() {
-        return this.errors.size();
+        return this.errorCounter.get();
     }
 
-    private void writeMailResults(Map<String, MailProcessingRecord> mailResults, OutputStreamWriter outputStreamWriter) throws IOException {
-        Iterator<MailProcessingRecord> iterator = mailResults.values().iterator();
+    private void writeMailResults(Collection<MailProcessingRecord> mailResults, OutputStreamWriter outputStreamWriter) throws IOException {
+        Iterator<MailProcessingRecord> iterator = mailResults.iterator();
         while (iterator.hasNext()) {
             MailProcessingRecord record = iterator.next();
+            record.resultWritten = true;
+            if (record.isFanOut()) {
+                // one line for every recipient not yet matched
+                Iterator<Integer> recipients = record.getUnclaimedRecipients().iterator();
+                while (recipients.hasNext()) {
+                    outputStreamWriter.write(record.forRecipient(recipients.next()).writeData().toString());
+                }
+                continue;
+            }
             String resultString = record.writeData().toString();
             outputStreamWriter.write(resultString);
         }
     }
 
-    private Map<String, MailProcessingRecord> initMatchedMailResultContainer() {
-        return new HashedMap();
+    private Queue<MailProcessingRecord> initMatchedMailResultContainer() {
+        return new ConcurrentLinkedQueue<MailProcessingRecord>();
     }
 
     private List<JVMResourcesRecord> initMatchedJVMStatisticsResultContainer() {
@@ -193,13 +497,106 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         return new ArrayList<ErrorRecord>();
     }
 
-    public void writeResults(String filenameMailResults, String filenameJVMStatistics, String filenameErrors, boolean flushMatchedMailOnly) {
+    public void writeResults(String filenameMailResults, String filenameJVMStatistics, String filenameErrors, String filenameIMAPCommands, String filenameLatencies, boolean flushMatchedMailOnly) {
         if (filenameMailResults != null) writeMailResults(filenameMailResults, flushMatchedMailOnly);
         if (filenameJVMStatistics != null) writeJVMStatistics(filenameJVMStatistics);
+        if (!flushMatchedMailOnly) closeColumnarJVMStatistics();
         if (filenameErrors != null) writeErrors(filenameErrors);
+        if (filenameIMAPCommands != null) writeIMAPCommands(filenameIMAPCommands);
+        if (filenameLatencies != null) writeLatencies(filenameLatencies);
     }
 
+    /**
+     * with the journal started, mails dropped from the pending ones are appended to the journal. finally, the
+     * journal is closed and exported to the CSV file and/or the columnar file. general data is always written to
+     * the CSV file.
+     */
     public void writeMailResults(String filenameMailResults, boolean flushMatchedMailOnly) {
+        MailResultJournal journal = this.journal;
+        if (journal == null) {
+            writeMailResultsFile(filenameMailResults, flushMatchedMailOnly);
+            return;
+        }
+
+        try {
+            journalMailResults(journal, this.unmatchedMailResults.takeOverflowRecords());
+            if (flushMatchedMailOnly) {
+                journal.flush();
+                return;
+            }
+            stopPendingMailReaper();
+            journalMailResults(journal, this.unmatchedMailResults.values());
+            journalMailResults(journal, this.reapedMailResults.values());
+            this.journal = null;
+            journal.close();
+        } catch (IOException e) {
+            log.error("error writing mail result journal " + journal.getFilename(), e);
+            return;
+        }
+
+        if (this.filenameMailResultsColumnar != null) {
+            try {
+                long exported = MailResultJournal.exportColumnar(journal.getFilename(), this.filenameMailResultsColumnar);
+                log.info(exported + " mail results exported from journal " + journal.getFilename() + " to columnar file " + this.filenameMailResultsColumnar);
+            } catch (IOException e) {
+                log.error("error exporting mail result journal to columnar file " + this.filenameMailResultsColumnar, e);
+            }
+        }
+
+        FileOutputStream outputStream = null;
+        OutputStreamWriter outputStreamWriter = null;
+        try {
+            outputStream = new FileOutputStream(filenameMailResults, true);
+            outputStreamWriter = new OutputStreamWriter(outputStream);
+            if (new File(filenameMailResults).length() <= 0) outputStreamWriter.write(MailProcessingRecord.writeHeader().toString());
+            if (this.writeCSV) {
+                long exported = MailResultJournal.exportCSV(journal.getFilename(), outputStreamWriter);
+                log.info(exported + " mail results exported from journal " + journal.getFilename());
+            }
+            writeMatchedMailResults(outputStreamWriter); // not journaled because of errors
+            writeGeneralData(outputStreamWriter);
+        } catch (IOException e) {
+            log.error("error exporting mail result journal to file " + filenameMailResults, e);
+        } finally {
+            try {
+                if (outputStreamWriter != null) outputStreamWriter.close();
+                if (outputStream != null) outputStream.close();
+            } catch (IOException e) {
+                log.error("error closing stream", e);
+            }
+        }
+    }
+
+    private void journalMailResults(MailResultJournal journal, Collection<MailProcessingRecord> mailResults) throws IOException {
+        Iterator<MailProcessingRecord> iterator = expandFanOut(mailResults).iterator();
+        while (iterator.hasNext()) {
+            journal.append(iterator.next());
+        }
+    }
+
+    /**
+     * @return the records, having the record of a mail sent to more than one recipient replaced by one record for
+     * every recipient not yet matched
+     */
+    private static List<MailProcessingRecord> expandFanOut(Collection<MailProcessingRecord> mailResults) {
+        List<MailProcessingRecord> expanded = new ArrayList<MailProcessingRecord>(mailResults.size());
+        Iterator<MailProcessingRecord> iterator = mailResults.iterator();
+        while (iterator.hasNext()) {
+            MailProcessingRecord record = iterator.next();
+            if (record.isFanOut()) {
+                Iterator<Integer> recipients = record.getUnclaimedRecipients().iterator();
+                while (recipients.hasNext()) {
+                    expanded.add(record.forRecipient(recipients.next()));
+                }
+                continue;
+            }
+            expanded.add(record);
+        }
+        return expanded;
+    }
+
+    private void writeMailResultsFile(String filenameMailResults, boolean flushMatchedMailOnly) {
+       if (!flushMatchedMailOnly) stopPendingMailReaper();
        FileOutputStream outputStream = null;
        OutputStreamWriter outputStreamWriter = null;
        try {
@@ -221,13 +618,18 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
     }
 
     public void writeJVMStatistics(String filenameJVMStatistics) {
+        List<JVMResourcesRecord> unwrittenResults = this.jvmStatistics;
+        this.jvmStatistics = initMatchedJVMStatisticsResultContainer();
+        writeColumnarJVMStatistics(unwrittenResults);
+        if (!this.writeCSV) return;
+
         FileOutputStream outputStream = null;
         OutputStreamWriter outputStreamWriter = null;
         try {
             outputStream = new FileOutputStream(filenameJVMStatistics, true);
             outputStreamWriter = new OutputStreamWriter(outputStream);
             if (new File(filenameJVMStatistics).length() <= 0) outputStreamWriter.write(JVMResourcesRecord.writeHeader().toString());
-            writeJVMStatisticsResults(outputStreamWriter);
+            writeJVMStatisticsResults(unwrittenResults, outputStreamWriter);
         } catch (IOException e) {
             log.error("error writing JVM statistic results to file " + filenameJVMStatistics, e);
         } finally {
@@ -241,9 +643,29 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         }
     }
 
-    private void writeJVMStatisticsResults(OutputStreamWriter outputStreamWriter) throws IOException {
-        List<JVMResourcesRecord> unwrittenResults = this.jvmStatistics;
-        this.jvmStatistics = initMatchedJVMStatisticsResultContainer();
+    private synchronized void writeColumnarJVMStatistics(List<JVMResourcesRecord> unwrittenResults) {
+        if (this.jvmStatisticsColumnar == null) return;
+        try {
+            Iterator<JVMResourcesRecord> iterator = unwrittenResults.iterator();
+            while (iterator.hasNext()) {
+                iterator.next().writeColumns(this.jvmStatisticsColumnar);
+            }
+        } catch (IOException e) {
+            log.error("error writing columnar JVM statistic results", e);
+        }
+    }
+
+    private synchronized void closeColumnarJVMStatistics() {
+        if (this.jvmStatisticsColumnar == null) return;
+        try {
+            this.jvmStatisticsColumnar.close();
+        } catch (IOException e) {
+            log.error("error closing columnar JVM statistic results", e);
+        }
+        this.jvmStatisticsColumnar = null;
+    }
+
+    private void writeJVMStatisticsResults(List<JVMResourcesRecord> unwrittenResults, OutputStreamWriter outputStreamWriter) throws IOException {
         Iterator<JVMResourcesRecord> iterator = unwrittenResults.iterator();
         while (iterator.hasNext()) {
             JVMResourcesRecord record = iterator.next();
@@ -252,6 +674,57 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
         }
     }
 
+    public void writeIMAPCommands(String filenameIMAPCommands) {
+        List<IMAPCommandRecord> unwrittenResults = takeIMAPCommandResults();
+        if (unwrittenResults.isEmpty() && new File(filenameIMAPCommands).length() <= 0) return; // no IMAP users
+
+        FileOutputStream outputStream = null;
+        OutputStreamWriter outputStreamWriter = null;
+        try {
+            outputStream = new FileOutputStream(filenameIMAPCommands, true);
+            outputStreamWriter = new OutputStreamWriter(outputStream);
+            if (new File(filenameIMAPCommands).length() <= 0) outputStreamWriter.write(IMAPCommandRecord.writeHeader().toString());
+            Iterator<IMAPCommandRecord> iterator = unwrittenResults.iterator();
+            while (iterator.hasNext()) {
+                outputStreamWriter.write(iterator.next().writeData().toString());
+            }
+        } catch (IOException e) {
+            log.error("error writing IMAP command results to file " + filenameIMAPCommands, e);
+        } finally {
+            try {
+                if (outputStreamWriter != null) outputStreamWriter.close();
+                if (outputStream != null) outputStream.close();
+                log.info("postage IMAP command results completely written to file " + filenameIMAPCommands);
+            } catch (IOException e) {
+                log.error("error closing stream", e);
+            }
+        }
+    }
+
+    /**
+     * the latency histograms are small, the file is written anew every time
+     */
+    public void writeLatencies(String filenameLatencies) {
+        FileOutputStream outputStream = null;
+        OutputStreamWriter outputStreamWriter = null;
+        try {
+            outputStream = new FileOutputStream(filenameLatencies, false);
+            outputStreamWriter = new OutputStreamWriter(outputStream);
+            outputStreamWriter.write(LatencyStatistics.writeHeader().toString());
+            this.latencyStatistics.writeData(outputStreamWriter);
+        } catch (IOException e) {
+            log.error("error writing latency statistics to file " + filenameLatencies, e);
+        } finally {
+            try {
+                if (outputStreamWriter != null) outputStreamWriter.close();
+                if (outputStream != null) outputStream.close();
+                log.info("postage latency statistics completely written to file " + filenameLatencies);
+            } catch (IOException e) {
+                log.error("error closing stream", e);
+            }
+        }
+    }
+
     public void writeErrors(String filenameErrors) {
         FileOutputStream outputStream = null;
         OutputStreamWriter outputStreamWriter = null;
@@ -263,8 +736,7 @@ public class PostageRunnerResultImpl implements PostageRunnerResult {
                 outputStreamWriter.write("timestamp,number,message\r\n");
             }
 
-            List<ErrorRecord> unwrittenResults = this.errors;
-            this.errors = initErrorResultContainer();
+            List<ErrorRecord> unwrittenResults = takeErrors();
             Iterator<ErrorRecord> iterator = unwrittenResults.iterator();
             while (iterator.hasNext()) {
                 ErrorRecord record = iterator.next();
@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+
+package org.apache.james.postage.result;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * assigns every distinct string a number, so that the many repetitions of user names, addresses, subjects and
+ * queue names are kept only once. 0 stands for NULL.<br/>
+ * entries are never removed. a dictionary for values not repeating often can be bounded, once full every new value
+ * is encoded as the overflow value.
+ */
+public class StringDictionary {
+
+    private final ConcurrentMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] strings = new String[256];
+    private int size = 1;
+    private final int maxSize;
+    private int overflowCode = 0;
+
+    public StringDictionary() {
+        this.maxSize = -1;
+    }
+
+    /**
+     * @param maxSize the most distinct values kept, including the overflow value
+     * @param overflowValue stands for all values not fitting in anymore
+     */
+    public StringDictionary(int maxSize, String overflowValue) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1");
+        this.maxSize = maxSize;
+        this.overflowCode = add(overflowValue);
+    }
+
+    public int encode(String value) {
+        if (value == null) return 0;
+        Integer code = this.codes.get(value);
+        if (code != null) return code.intValue();
+        return add(value);
+    }
+
+    public String decode(int code) {
+        if (code == 0) return null;
+        return this.strings[code];
+    }
+
+    public int size() {
+        return this.size - 1;
+    }
+
+    private synchronized int add(String value) {
+        Integer code = this.codes.get(value);
+        if (code != null) return code.intValue();
+        if (this.maxSize > 0 && size() >= this.maxSize) return this.overflowCode;
+
+        if (this.size == this.strings.length) {
+            String[] grown = new String[this.strings.length * 2];
+            System.arraycopy(this.strings, 0, grown, 0, this.size);
+            this.strings = grown;
+        }
+        int newCode = this.size++;
+        String[] strings = this.strings;
+        strings[newCode] = value;
+        this.strings = strings; // publish the new string before its code
+        this.codes.put(value, Integer.valueOf(newCode));
+        return newCode;
+    }
+}
@@ -18,6 +18,9 @@
  ****************************************************************/
 package org.apache.james.postage.smtpserver;
 
+import java.util.Collection;
+import java.util.Iterator;
+
 import javax.mail.internet.MimeMessage;
 
 import org.apache.james.postage.mail.MailAnalyzeStrategy;
@@ -26,14 +29,31 @@ import org.apache.james.postage.result.PostageRunnerResult;
 public class SMTPMailAnalyzeStrategy extends MailAnalyzeStrategy {
 
     private MimeMessage message = null;
+    private String[] recipients = null;
     
     public SMTPMailAnalyzeStrategy(String receivingQueueName, PostageRunnerResult results, MimeMessage message) {
         super(receivingQueueName, results);
         this.message = message;
     }
     
+    public SMTPMailAnalyzeStrategy(String receivingQueueName, PostageRunnerResult results, MimeMessage message,
+                                   Collection<?> recipients) {
+        this(receivingQueueName, results, message);
+        if (recipients != null) {
+            this.recipients = new String[recipients.size()];
+            Iterator<?> iterator = recipients.iterator();
+            for (int i = 0; iterator.hasNext(); i++) {
+                this.recipients[i] = iterator.next().toString();
+            }
+        }
+    }
+    
     protected MimeMessage loadMessage() throws Exception {
         return message;
     }
 
+    protected String[] getRecipientAddresses() {
+        return recipients;
+    }
+
 }
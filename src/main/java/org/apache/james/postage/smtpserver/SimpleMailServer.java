@@ -46,7 +46,7 @@ public class SimpleMailServer {
 
     public void sendMail(MailAddress sender, Collection recipients, MimeMessage message) throws MessagingException {
         try {
-            new SMTPMailAnalyzeStrategy("smtpOutbound", this.results, message).handle();
+            new SMTPMailAnalyzeStrategy("smtpOutbound", this.results, message, recipients).handle();
         } catch (Exception e) {
             throw new MessagingException("error handling message", e);
         }
@@ -0,0 +1,329 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.postage.configuration.MailSender;
+import org.apache.james.postage.configuration.SendProfile;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailIdGenerator;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.PostageRunnerResultImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class NIOSMTPSessionTest {
+
+    private static final String[] RECIPIENTS = {"first@example.org", "second@example.org"};
+
+    private ScriptedServer server;
+    private MailSender mailSender;
+
+    @Before
+    public void startServer() throws IOException {
+        this.server = new ScriptedServer();
+        this.mailSender = new MailSender(new SendProfile("test"));
+    }
+
+    @After
+    public void stopServer() throws Exception {
+        this.server.close();
+    }
+
+    private static byte[] toBytes(String text) throws IOException {
+        return text.getBytes("US-ASCII");
+    }
+
+    /**
+     * drives the session by a selector of its own until it is closed
+     */
+    private NIOSMTPSession runSession(byte[] content) throws Exception {
+        NIOSMTPClient client = new NIOSMTPClient("localhost", this.server.getPort(), null, null, new PostageRunnerResultImpl(),
+                                                 this.mailSender, new MailIdGenerator(MailId.newRunId(), 0));
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(MailId.STARTUP_CHECK); // not recorded as result
+        NIOSMTPSession session = new NIOSMTPSession(client, this.mailSender, record, "client.example.org",
+                                                    "sender@example.org", RECIPIENTS, content);
+        this.server.start();
+        Selector selector = Selector.open();
+        try {
+            session.start(selector, new InetSocketAddress("localhost", this.server.getPort()));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!session.awaitCompletion(0) && System.currentTimeMillis() < deadline) {
+                selector.select(100);
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    ((NIOSMTPSession)key.attachment()).handle();
+                }
+            }
+        } finally {
+            selector.close();
+        }
+        assertTrue(session.awaitCompletion(0));
+        this.server.join();
+        return session;
+    }
+
+    @Test
+    public void dataWithMultilineReplies() throws Exception {
+        byte[] content = toBytes("Subject: dots\r\n\r\n.first\r\nmiddle.\r\n..\r\n.\r\n");
+        NIOSMTPSession session = runSession(content);
+
+        assertNull(session.getFailure());
+        assertTrue(session.getMailProcessingRecord().getTimeSendEnd() > 0);
+        assertEquals("[EHLO client.example.org, MAIL FROM:<sender@example.org>, RCPT TO:<first@example.org>, "
+                     + "RCPT TO:<second@example.org>, DATA, QUIT]", this.server.getCommands().toString());
+        assertArrayEquals(NIOSMTPSession.toDataBytes(content), this.server.getData());
+    }
+
+    @Test
+    public void rcptRejectedWithinPipeline() throws Exception {
+        this.mailSender.setPipelining(true);
+        this.server.extensions = new String[] {"PIPELINING", "SIZE 1000000"};
+        this.server.rcptReplies = new String[] {"250 ok", "550 no such user"};
+        NIOSMTPSession session = runSession(toBytes("Subject: rejected\r\n\r\nbody\r\n"));
+
+        assertTrue(session.getFailure().startsWith("RCPT TO rejected: 550"));
+        // the envelope was sent at once, without waiting for the replies
+        assertEquals("[EHLO client.example.org, MAIL FROM:<sender@example.org>, RCPT TO:<first@example.org>, "
+                     + "RCPT TO:<second@example.org>, DATA]", this.server.getCommands().toString());
+        assertEquals(0, session.getMailProcessingRecord().getTimeSendEnd());
+    }
+
+    @Test
+    public void pipelinedChunks() throws Exception {
+        this.mailSender.setPipelining(true);
+        this.mailSender.setChunking(true);
+        this.mailSender.setChunkSize(10);
+        this.server.extensions = new String[] {"PIPELINING", "CHUNKING"};
+        byte[] content = toBytes("Subject: chunks\r\n\r\n.not stuffed\r\n");
+        NIOSMTPSession session = runSession(content);
+
+        assertNull(session.getFailure());
+        assertEquals("[EHLO client.example.org, MAIL FROM:<sender@example.org>, RCPT TO:<first@example.org>, "
+                     + "RCPT TO:<second@example.org>, BDAT 10, BDAT 10, BDAT 10, BDAT 3 LAST, QUIT]",
+                     this.server.getCommands().toString());
+        assertArrayEquals(content, this.server.getData());
+    }
+
+    @Test
+    public void chunkingNotAnnouncedUsesData() throws Exception {
+        this.mailSender.setChunking(true);
+        byte[] content = toBytes("Subject: data\r\n\r\nbody\r\n");
+        NIOSMTPSession session = runSession(content);
+
+        assertNull(session.getFailure());
+        assertTrue(this.server.getCommands().contains("DATA"));
+        assertArrayEquals(NIOSMTPSession.toDataBytes(content), this.server.getData());
+    }
+
+    @Test
+    public void bdatRejected() throws Exception {
+        this.mailSender.setChunking(true);
+        this.mailSender.setChunkSize(10);
+        this.server.extensions = new String[] {"CHUNKING"};
+        this.server.bdatReplies = new String[] {"250 ok", "552 too big"};
+        NIOSMTPSession session = runSession(toBytes("Subject: too big\r\n\r\nbody\r\n"));
+
+        assertTrue(session.getFailure().startsWith("BDAT rejected: 552"));
+        // without pipelining, every chunk waits for the previous one to be acknowledged
+        assertEquals("[EHLO client.example.org, MAIL FROM:<sender@example.org>, RCPT TO:<first@example.org>, "
+                     + "RCPT TO:<second@example.org>, BDAT 10, BDAT 10]", this.server.getCommands().toString());
+    }
+
+    @Test
+    public void greetingRejected() throws Exception {
+        this.server.greeting = new String[] {"554 go away"};
+        NIOSMTPSession session = runSession(toBytes("Subject: none\r\n\r\n"));
+
+        assertTrue(session.getFailure().startsWith("unexpected greeting: 554"));
+        assertTrue(this.server.getCommands().isEmpty());
+    }
+
+    @Test
+    public void linesStartingWithDotAreStuffed() throws Exception {
+        assertArrayEquals(toBytes("..a\r\nb.\r\n...\r\n.\r\n"), NIOSMTPSession.toDataBytes(toBytes(".a\r\nb.\r\n..\r\n")));
+        assertArrayEquals(toBytes("a\r\n..\r\n.\r\n"), NIOSMTPSession.toDataBytes(toBytes("a\r\n.\r\n")));
+        assertArrayEquals(toBytes(".\r\n"), NIOSMTPSession.toDataBytes(new byte[0]));
+        // a dot following a CR only does not start a line
+        assertArrayEquals(toBytes("a\r.b\r\n.\r\n"), NIOSMTPSession.toDataBytes(toBytes("a\r.b\r\n")));
+    }
+
+    /**
+     * a blocking SMTP server for one connection, replying as scripted and recording the commands and the mail
+     */
+    private static class ScriptedServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private Thread thread;
+        private final List<String> commands = new ArrayList<String>();
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        String[] greeting = {"220-mail.example.org", "220 ready"};
+        String[] extensions = {};
+        String[] rcptReplies = {};
+        String[] bdatReplies = {};
+
+        ScriptedServer() throws IOException {
+            this.serverSocket = new ServerSocket(0);
+        }
+
+        int getPort() {
+            return this.serverSocket.getLocalPort();
+        }
+
+        void start() {
+            this.thread = new Thread(this, "scripted-smtp-server");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        void join() throws InterruptedException {
+            this.thread.join(10000);
+        }
+
+        void close() throws IOException {
+            this.serverSocket.close();
+        }
+
+        synchronized List<String> getCommands() {
+            return new ArrayList<String>(this.commands);
+        }
+
+        synchronized byte[] getData() {
+            return this.data.toByteArray();
+        }
+
+        public void run() {
+            try {
+                Socket socket = this.serverSocket.accept();
+                try {
+                    serve(new BufferedInputStream(socket.getInputStream()), socket.getOutputStream());
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                ; // the client closed the connection
+            }
+        }
+
+        private void serve(InputStream in, OutputStream out) throws IOException {
+            reply(out, this.greeting);
+            int rcptCount = 0;
+            int bdatCount = 0;
+            while (true) {
+                byte[] line = readLine(in);
+                if (line == null) return;
+                String command = new String(line, "US-ASCII").trim();
+                synchronized (this) {
+                    this.commands.add(command);
+                }
+                if (command.startsWith("EHLO")) {
+                    String[] lines = new String[this.extensions.length + 1];
+                    lines[0] = "250 mail.example.org";
+                    for (int i = 0; i < this.extensions.length; i++) lines[i + 1] = "250 " + this.extensions[i];
+                    reply(out, lines);
+                } else if (command.startsWith("RCPT")) {
+                    reply(out, rcptCount < this.rcptReplies.length ? this.rcptReplies[rcptCount] : "250 ok");
+                    rcptCount++;
+                } else if (command.equals("DATA")) {
+                    reply(out, "354 go ahead");
+                    while (true) {
+                        byte[] dataLine = readLine(in);
+                        if (dataLine == null) return;
+                        synchronized (this) {
+                            this.data.write(dataLine);
+                        }
+                        if (new String(dataLine, "US-ASCII").equals(".\r\n")) break;
+                    }
+                    reply(out, new String[] {"250 queued", "250 as 1"});
+                } else if (command.startsWith("BDAT")) {
+                    byte[] chunk = new byte[Integer.parseInt(command.split(" ")[1])];
+                    for (int read = 0; read < chunk.length; ) {
+                        int count = in.read(chunk, read, chunk.length - read);
+                        if (count < 0) return;
+                        read += count;
+                    }
+                    synchronized (this) {
+                        this.data.write(chunk);
+                    }
+                    reply(out, bdatCount < this.bdatReplies.length ? this.bdatReplies[bdatCount] : "250 ok");
+                    bdatCount++;
+                } else if (command.equals("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                } else {
+                    reply(out, "250 ok");
+                }
+            }
+        }
+
+        private static void reply(OutputStream out, String reply) throws IOException {
+            reply(out, new String[] {reply});
+        }
+
+        /**
+         * writes a multi-line reply, all lines but the last one are marked as continued
+         */
+        private static void reply(OutputStream out, String[] lines) throws IOException {
+            StringBuffer reply = new StringBuffer();
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i];
+                if (i < lines.length - 1 && line.length() > 3) line = line.substring(0, 3) + "-" + line.substring(4);
+                reply.append(line).append("\r\n");
+            }
+            out.write(reply.toString().getBytes("US-ASCII"));
+            out.flush();
+        }
+
+        /**
+         * @return the line including its line break, NULL at the end of the stream
+         */
+        private static byte[] readLine(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0) {
+                line.write(b);
+                if (b == '\n') break;
+            }
+            return line.size() == 0 ? null : line.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+public class ReaderInputStreamTest {
+
+    private static String createChars(int size) {
+        StringBuffer chars = new StringBuffer(size);
+        for (int i = 0; i < size; i++) chars.append((char)(i % 256));
+        return chars.toString();
+    }
+
+    @Test
+    public void bulkReadKeepsEveryByte() throws IOException {
+        String chars = createChars(20000);
+        ReaderInputStream in = new ReaderInputStream(new StringReader(chars));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[10000];
+        int count;
+        while ((count = in.read(buffer, 3, buffer.length - 3)) >= 0) out.write(buffer, 3, count);
+        in.close();
+
+        byte[] bytes = out.toByteArray();
+        assertEquals(chars.length(), bytes.length);
+        for (int i = 0; i < bytes.length; i++) assertEquals(i % 256, bytes[i] & 0xff);
+    }
+
+    @Test
+    public void singleReadsMatchBulkRead() throws IOException {
+        ReaderInputStream in = new ReaderInputStream(new StringReader(createChars(300)));
+        for (int i = 0; i < 100; i++) assertEquals(i, in.read());
+        byte[] buffer = new byte[500];
+        assertEquals(0, in.read(buffer, 0, 0));
+        assertEquals(200, in.read(buffer, 0, buffer.length));
+        assertEquals(100, buffer[0] & 0xff);
+        assertEquals(299 % 256, buffer[199] & 0xff);
+        assertEquals(-1, in.read(buffer, 0, buffer.length));
+        assertEquals(-1, in.read());
+    }
+}
@@ -0,0 +1,134 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.postage.SampleSkippedException;
+import org.apache.james.postage.SamplingException;
+import org.junit.Test;
+
+public class SampleControllerTest {
+
+    private static void awaitCompleted(SampleController controller, long samples) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (controller.getSamplesCompleted() < samples && System.currentTimeMillis() < deadline) Thread.sleep(10);
+    }
+
+    @Test
+    public void skippedSamplesDoNotCountAsStarted() throws Exception {
+        final AtomicInteger calls = new AtomicInteger(0);
+        SampleController controller = new SampleController(new Sampler() {
+            public void doSample() throws SamplingException {
+                if (calls.incrementAndGet() % 2 == 0) throw new SampleSkippedException("busy");
+            }
+        }, 6000);
+        controller.runThreaded();
+        awaitCompleted(controller, 20);
+        controller.stop();
+        awaitCompleted(controller, calls.get());
+
+        assertTrue(controller.getSamplesSkipped() > 0);
+        assertEquals(controller.getSamplesCompleted() - controller.getSamplesSkipped(), controller.getSamplesStarted());
+        assertEquals(controller.getSamplesStarted(), controller.getSamplesSucceeded());
+    }
+
+    @Test
+    public void openLoopQueuesTicksWhileStalled() throws Exception {
+        final List<Long> timesDue = new ArrayList<Long>();
+        SampleController controller = new SampleController(new TimedSampler() {
+            public void doSample() throws SamplingException {
+                doSample(0);
+            }
+
+            public void doSample(long timeDue) throws SamplingException {
+                boolean first;
+                synchronized (timesDue) {
+                    first = timesDue.isEmpty();
+                    timesDue.add(Long.valueOf(timeDue));
+                }
+                if (first) {
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        throw new SamplingException(e);
+                    }
+                }
+            }
+        }, 6000);
+        controller.setMaxSamplesInFlight(1);
+        controller.setOpenLoop(true);
+        controller.runThreaded();
+        awaitCompleted(controller, 40);
+        controller.stop();
+
+        assertTrue(controller.getSamplesLate() > 0);
+        synchronized (timesDue) {
+            assertTrue(timesDue.size() >= 40);
+            // every tick was taken in order, none was left out while the first sample stalled
+            for (int i = 1; i < timesDue.size(); i++) {
+                long gap = timesDue.get(i).longValue() - timesDue.get(i - 1).longValue();
+                assertTrue(gap > 0 && gap <= 11);
+            }
+        }
+    }
+
+    @Test
+    public void asynchronousSamplesCountWhenReported() throws Exception {
+        final LinkedBlockingQueue<Boolean> outcomes = new LinkedBlockingQueue<Boolean>();
+        final AsynchronousSampler.SampleListener[] listeners = new AsynchronousSampler.SampleListener[1];
+        final AtomicInteger calls = new AtomicInteger(0);
+        SampleController controller = new SampleController(new AsynchronousSampler() {
+            public void setSampleListener(SampleListener sampleListener) {
+                listeners[0] = sampleListener;
+            }
+
+            public void doSample() throws SamplingException {
+                outcomes.add(Boolean.valueOf(calls.incrementAndGet() % 2 == 0));
+            }
+        }, 6000);
+        assertTrue(listeners[0] != null);
+        controller.setMaxSamplesInFlight(1);
+        controller.runThreaded();
+        Thread.sleep(100);
+
+        // nothing reported yet, so the first sample is still running and blocks all others
+        assertEquals(1, calls.get());
+        assertEquals(0, controller.getSamplesSucceeded());
+        assertEquals(0, controller.getSamplesCompleted());
+
+        for (int i = 0; i < 10; i++) {
+            Boolean succeeded = outcomes.poll(5, TimeUnit.SECONDS);
+            listeners[0].sampleCompleted(succeeded.booleanValue());
+        }
+        controller.stop();
+
+        assertEquals(10, controller.getSamplesCompleted());
+        assertEquals(5, controller.getSamplesSucceeded());
+        assertEquals(5, controller.getSamplesFailed());
+    }
+}
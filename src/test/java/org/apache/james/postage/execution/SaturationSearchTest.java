@@ -0,0 +1,134 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.postage.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.james.postage.configuration.SaturationSearchConfiguration;
+import org.apache.james.postage.result.LatencyHistogram;
+import org.junit.Test;
+
+public class SaturationSearchTest {
+
+    private static SaturationSearchConfiguration createConfiguration(String mode, int start, int step) {
+        SaturationSearchConfiguration configuration = new SaturationSearchConfiguration();
+        configuration.setMode(mode);
+        configuration.setStartPerMinute(start);
+        configuration.setStepPerMinute(step);
+        configuration.setSlaLatencyMillis(1000);
+        configuration.setSlaPercentile(99.0);
+        return configuration;
+    }
+
+    private static LatencyHistogram latencies(long latency, int count) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < count; i++) histogram.record(latency);
+        return histogram;
+    }
+
+    @Test
+    public void stepModeRaisesRateUntilSlaIsMissed() {
+        SaturationSearch search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_STEP, 60, 60));
+        assertEquals(60, search.getCurrentRate());
+        assertEquals(-1, search.getHighestSustainedRate());
+
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(120, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(500, 100), 0));
+        assertEquals(180, search.getCurrentRate());
+
+        assertFalse(search.evaluateStep(latencies(5000, 100), 0));
+        assertTrue(search.isCompleted());
+        assertEquals(120, search.getHighestSustainedRate());
+        assertFalse(search.evaluateStep(latencies(100, 100), 0));
+    }
+
+    @Test
+    public void stepWithoutDeliveredMailIsNotSustained() {
+        SaturationSearch search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_STEP, 60, 60));
+        assertFalse(search.evaluateStep(new LatencyHistogram(), 0));
+        assertTrue(search.isCompleted());
+        assertEquals(-1, search.getHighestSustainedRate());
+
+        search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_STEP, 60, 60));
+        assertFalse(search.evaluateStep(null, 0));
+    }
+
+    @Test
+    public void growingBacklogIsNotSustained() {
+        // tolerated growth is what is sent within the SLA latency: 600/min * 1s = 10 mails, 660/min = 11 mails
+        SaturationSearch search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_STEP, 600, 60));
+        assertTrue(search.evaluateStep(latencies(100, 100), 10));
+        assertFalse(search.evaluateStep(latencies(100, 100), 12));
+        assertEquals(600, search.getHighestSustainedRate());
+    }
+
+    @Test
+    public void percentileDecides() {
+        SaturationSearch search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_STEP, 60, 60));
+        LatencyHistogram onePercentSlow = latencies(100, 99);
+        onePercentSlow.record(5000);
+        assertTrue(search.evaluateStep(onePercentSlow, 0));
+
+        LatencyHistogram twoPercentSlow = latencies(100, 98);
+        twoPercentSlow.record(5000);
+        twoPercentSlow.record(5000);
+        assertFalse(search.evaluateStep(twoPercentSlow, 0));
+        assertEquals(60, search.getHighestSustainedRate());
+    }
+
+    @Test
+    public void binaryModeDoublesThenBisects() {
+        SaturationSearch search = new SaturationSearch(createConfiguration(SaturationSearchConfiguration.MODE_BINARY, 100, 10));
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(200, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(400, search.getCurrentRate());
+
+        assertTrue(search.evaluateStep(latencies(5000, 100), 0));
+        assertEquals(300, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(350, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(5000, 100), 0));
+        assertEquals(325, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(337, search.getCurrentRate());
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(343, search.getCurrentRate());
+
+        // interval 337..343 is within the resolution of 10
+        assertFalse(search.evaluateStep(latencies(5000, 100), 0));
+        assertTrue(search.isCompleted());
+        assertEquals(337, search.getHighestSustainedRate());
+    }
+
+    @Test
+    public void maximumRateIsNotExceeded() {
+        SaturationSearchConfiguration configuration = createConfiguration(SaturationSearchConfiguration.MODE_STEP, 60, 60);
+        configuration.setMaxPerMinute(150);
+        SaturationSearch search = new SaturationSearch(configuration);
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertTrue(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(150, search.getCurrentRate());
+        assertFalse(search.evaluateStep(latencies(100, 100), 0));
+        assertEquals(150, search.getHighestSustainedRate());
+    }
+}
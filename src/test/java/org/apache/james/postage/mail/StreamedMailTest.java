@@ -0,0 +1,205 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+public class StreamedMailTest {
+
+    private static final String BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private static byte[] toBytes(String text) throws IOException {
+        return text.getBytes("ISO-8859-1");
+    }
+
+    private static String toBase64(byte[] bytes) {
+        StringBuffer encoded = new StringBuffer();
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b = (bytes[i] & 0xff) << 16;
+            if (i + 1 < bytes.length) b |= (bytes[i + 1] & 0xff) << 8;
+            if (i + 2 < bytes.length) b |= bytes[i + 2] & 0xff;
+            encoded.append(BASE64.charAt((b >> 18) & 0x3f));
+            encoded.append(BASE64.charAt((b >> 12) & 0x3f));
+            encoded.append(i + 1 < bytes.length ? BASE64.charAt((b >> 6) & 0x3f) : '=');
+            encoded.append(i + 2 < bytes.length ? BASE64.charAt(b & 0x3f) : '=');
+            if ((i / 3 + 1) % 19 == 0) encoded.append("\r\n"); // 76 characters per line
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * encodes '=' and breaks lines longer than 70 characters with soft line breaks
+     */
+    private static String toQuotedPrintable(String text) {
+        StringBuffer encoded = new StringBuffer();
+        int lineLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            String c = text.charAt(i) == '=' ? "=3D" : text.substring(i, i + 1);
+            if (lineLength + c.length() > 70) {
+                encoded.append("=\r\n");
+                lineLength = 0;
+            }
+            encoded.append(c);
+            lineLength += c.length();
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @return the digest as calculated by DefaultMailFactory, over the text and the binary content
+     */
+    private static String digest(byte[] text, byte[] binary) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance(StreamedMail.DIGEST_ALGORITHM);
+        digest.update(text);
+        if (binary != null) digest.update(binary);
+        return StreamedMail.toHex(digest.digest());
+    }
+
+    private static String createText(int size) {
+        StringBuffer text = new StringBuffer(size);
+        for (int i = 0; i < size; i++) text.append(i % 13 == 0 ? '=' : (char)('a' + i % 26));
+        return text.toString();
+    }
+
+    private static byte[] createBinary(int size) {
+        byte[] binary = new byte[size];
+        for (int i = 0; i < size; i++) binary[i] = (byte)(i * 7);
+        return binary;
+    }
+
+    private static StreamedMail scan(byte[] mail) throws Exception {
+        StreamedMail streamedMail = StreamedMail.readHeaders(new ByteArrayInputStream(mail));
+        streamedMail.scanBody();
+        return streamedMail;
+    }
+
+    private static String createMultipart(String text, byte[] binary, boolean closed) {
+        return "Subject: multipart\r\n"
+               + "Content-Type: multipart/mixed; boundary=\"----=_Part_0\"\r\n"
+               + "\r\n"
+               + "This is a multi-part message in MIME format.\r\n"
+               + "------=_Part_0\r\n"
+               + "Content-Type: text/plain; charset=us-ascii\r\n"
+               + "Content-Transfer-Encoding: quoted-printable\r\n"
+               + "\r\n"
+               + toQuotedPrintable(text) + "\r\n"
+               + "------=_Part_0\r\n"
+               + "Content-Type: application/octet-stream\r\n"
+               + "Content-Transfer-Encoding: base64\r\n"
+               + "\r\n"
+               + toBase64(binary) + "\r\n"
+               + (closed ? "------=_Part_0--\r\nepilogue\r\n" : "");
+    }
+
+    @Test
+    public void multipartDigestMatchesSentContent() throws Exception {
+        String text = createText(1000);
+        byte[] binary = createBinary(20000);
+        byte[] mail = toBytes(createMultipart(text, binary, true));
+
+        StreamedMail streamedMail = scan(mail);
+        assertEquals("multipart", streamedMail.getSubject());
+        assertEquals(text.length(), streamedMail.getPartSize("text/plain"));
+        assertEquals(binary.length, streamedMail.getPartSize("application/octet-stream"));
+        assertEquals(0, streamedMail.getPartSize("image/png"));
+        assertEquals(digest(toBytes(text), binary), streamedMail.getBodyDigest());
+        assertEquals(mail.length, streamedMail.getHeaderSize() + streamedMail.getBodySize());
+    }
+
+    @Test
+    public void missingClosingBoundaryEndsWithStream() throws Exception {
+        String text = createText(100);
+        byte[] binary = createBinary(1000);
+        StreamedMail streamedMail = scan(toBytes(createMultipart(text, binary, false)));
+
+        assertEquals(text.length(), streamedMail.getPartSize("text/plain"));
+        assertEquals(binary.length, streamedMail.getPartSize("application/octet-stream"));
+        assertEquals(digest(toBytes(text), binary), streamedMail.getBodyDigest());
+    }
+
+    @Test
+    public void foldedHeaderIsOneHeader() throws Exception {
+        String mail = "Subject: first\r\n"
+                      + " second\r\n"
+                      + "Content-Type: multipart/mixed;\r\n"
+                      + "\tboundary=\"folded\"\r\n"
+                      + "X-Other: value\r\n"
+                      + "\r\n"
+                      + "--folded\r\n"
+                      + "\r\n"
+                      + "body\r\n"
+                      + "--folded--\r\n";
+        StreamedMail streamedMail = scan(toBytes(mail));
+
+        String subject = streamedMail.getHeader("Subject");
+        assertTrue(subject.startsWith("first"));
+        assertTrue(subject.endsWith("second"));
+        assertEquals("value", streamedMail.getHeader("X-Other"));
+        assertEquals(mail.indexOf("\r\n\r\n") + 4, streamedMail.getHeaderSize());
+        // the boundary is taken from the folded line, so the body is split
+        assertEquals(4, streamedMail.getPartSize("text/plain"));
+        assertEquals(digest(toBytes("body"), null), streamedMail.getBodyDigest());
+    }
+
+    @Test
+    public void eightBitBodyIsKept() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i = 0; i < 3000; i++) {
+            int b = 0x80 + i % 0x80;
+            body.write(b == 0x8d || b == 0x8a ? 0xe9 : b);
+            if (i % 100 == 99) {
+                body.write('\r');
+                body.write('\n');
+            }
+        }
+        byte[] bodyBytes = body.toByteArray();
+        ByteArrayOutputStream mail = new ByteArrayOutputStream();
+        mail.write(toBytes("Subject: 8bit\r\nContent-Type: text/plain; charset=iso-8859-1\r\nContent-Transfer-Encoding: 8bit\r\n\r\n"));
+        mail.write(bodyBytes);
+        StreamedMail streamedMail = scan(mail.toByteArray());
+
+        // the line break ending the mail is not content
+        byte[] content = new byte[bodyBytes.length - 2];
+        System.arraycopy(bodyBytes, 0, content, 0, content.length);
+        assertEquals(content.length, streamedMail.getPartSize("text/plain"));
+        assertEquals(bodyBytes.length, streamedMail.getBodySize());
+        assertEquals(digest(content, null), streamedMail.getBodyDigest());
+    }
+
+    @Test
+    public void headersOnly() throws Exception {
+        StreamedMail streamedMail = StreamedMail.readHeaders(new ByteArrayInputStream(toBytes("Subject: none\r\n\r\n")));
+        assertNull(streamedMail.getBodyDigest());
+        streamedMail.scanBody();
+        assertEquals(0, streamedMail.getBodySize());
+        assertNotNull(streamedMail.getBodyDigest());
+        assertEquals(digest(new byte[0], null), streamedMail.getBodyDigest());
+    }
+}
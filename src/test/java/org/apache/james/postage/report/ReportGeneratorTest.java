@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.report;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.james.postage.configuration.ReportConfiguration;
+import org.apache.james.postage.result.MailId;
+import org.apache.james.postage.result.MailIdGenerator;
+import org.apache.james.postage.result.MailProcessingRecord;
+import org.apache.james.postage.result.MailResultJournal;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReportGeneratorTest {
+
+    private static final long MINUTE = 1700000000000L - 1700000000000L % 60000;
+
+    private final List<File> files = new ArrayList<File>();
+    private String journal;
+    private String csv;
+    private String columnar;
+
+    @Before
+    public void writeResults() throws IOException {
+        this.journal = createFile(".bin");
+        this.csv = createFile(".csv");
+        this.columnar = createFile(".pcol");
+
+        MailResultJournal mailResultJournal = new MailResultJournal(this.journal);
+        Iterator<MailProcessingRecord> records = createRecords().iterator();
+        while (records.hasNext()) mailResultJournal.append(records.next());
+        mailResultJournal.close();
+        MailResultJournal.exportColumnar(this.journal, this.columnar);
+    }
+
+    @After
+    public void deleteFiles() {
+        Iterator<File> iterator = this.files.iterator();
+        while (iterator.hasNext()) iterator.next().delete();
+    }
+
+    private String createFile(String suffix) throws IOException {
+        File file = File.createTempFile("postage-report", suffix);
+        this.files.add(file);
+        return file.getPath();
+    }
+
+    private static MailProcessingRecord createRecord(MailIdGenerator mailIdGenerator, long timeSent) {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(mailIdGenerator.next());
+        record.setTimeConnectStart(timeSent);
+        record.setTimeSendStart(timeSent);
+        record.setTimeSendEnd(timeSent + 10);
+        record.setReceiverMailAddress("receiver@example.org");
+        return record;
+    }
+
+    private static void match(MailProcessingRecord record, long timeFetchEnd, boolean valid) {
+        MailProcessingRecord received = new MailProcessingRecord();
+        received.setTimeFetchEnd(timeFetchEnd);
+        record.setTimeFetchEnd(timeFetchEnd);
+        record.merge(received);
+        if (valid) record.setValid();
+    }
+
+    /**
+     * first minute: 3 sent, 1 of them failed, 1 matched, 1 lost<br/>
+     * second minute: 2 sent and matched, 1 of them late and fetched in the third minute
+     */
+    private static List<MailProcessingRecord> createRecords() {
+        int runId = MailId.newRunId();
+        MailIdGenerator first = new MailIdGenerator(runId, 1);
+        MailIdGenerator second = new MailIdGenerator(runId, 2);
+        List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+
+        MailProcessingRecord matched = createRecord(first, MINUTE + 1000);
+        match(matched, MINUTE + 3000, true);
+        records.add(matched);
+        MailProcessingRecord failed = createRecord(first, MINUTE + 2000);
+        failed.setTimeSendEnd(0);
+        failed.setErrorTextSending("connection refused");
+        records.add(failed);
+        MailProcessingRecord lost = createRecord(second, MINUTE + 5000);
+        lost.setTimedOut();
+        records.add(lost);
+
+        MailProcessingRecord late = createRecord(second, MINUTE + 61000);
+        late.setTimedOut();
+        match(late, MINUTE + 125000, false);
+        records.add(late);
+        MailProcessingRecord fast = createRecord(first, MINUTE + 62000);
+        match(fast, MINUTE + 63000, true);
+        records.add(fast);
+        return records;
+    }
+
+    private static ReportConfiguration createThresholds(long slaLatencyMillis, double maxUnmatchedPercent, double maxSendErrorPercent) {
+        ReportConfiguration thresholds = new ReportConfiguration();
+        thresholds.setSlaLatencyMillis(slaLatencyMillis);
+        thresholds.setMaxUnmatchedPercent(maxUnmatchedPercent);
+        thresholds.setMaxSendErrorPercent(maxSendErrorPercent);
+        return thresholds;
+    }
+
+    private ReportGenerator read(ReportConfiguration thresholds, String csv, String journal, String columnar) throws IOException {
+        ReportGenerator reportGenerator = new ReportGenerator("test", thresholds);
+        reportGenerator.setMailResultFiles(csv, journal, columnar);
+        reportGenerator.read();
+        return reportGenerator;
+    }
+
+    /**
+     * @return the values of the line for the minute in the per minute table
+     */
+    private static String[] getMinuteLine(String text, long minute) {
+        String formatted = new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(minute));
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith(formatted)) return lines[i].substring(formatted.length()).trim().split(" +");
+        }
+        return null;
+    }
+
+    private void assertCounts(ReportGenerator reportGenerator) {
+        String text = reportGenerator.createText().toString();
+        assertTrue(text.indexOf("mails sent: 5, failed: 1, matched: 3, valid: 2, late: 1, lost: 1") >= 0);
+
+        // sent, failed, matched, lost
+        String[] first = getMinuteLine(text, MINUTE);
+        assertEquals("3", first[0]);
+        assertEquals("1", first[1]);
+        assertEquals("1", first[2]);
+        assertEquals("1", first[3]);
+        String[] second = getMinuteLine(text, MINUTE + 60000);
+        assertEquals("2", second[0]);
+        assertEquals("0", second[1]);
+        assertEquals("1", second[2]);
+        assertEquals("0", second[3]);
+        String[] third = getMinuteLine(text, MINUTE + 120000);
+        assertEquals("0", third[0]);
+        assertEquals("1", third[2]);
+    }
+
+    @Test
+    public void journalIsRead() throws IOException {
+        assertCounts(read(new ReportConfiguration(), null, this.journal, null));
+    }
+
+    @Test
+    public void columnarFileIsPreferred() throws IOException {
+        ReportGenerator reportGenerator = read(new ReportConfiguration(), this.csv, this.journal, this.columnar);
+        assertCounts(reportGenerator);
+        assertTrue(reportGenerator.createText().toString().indexOf("mail results: " + this.columnar) >= 0);
+    }
+
+    @Test
+    public void csvFileIsRead() throws IOException {
+        OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(this.csv), "UTF-8");
+        try {
+            writer.write(MailProcessingRecord.writeHeader().toString());
+            MailResultJournal.exportCSV(this.journal, writer);
+            writer.write("mail_id_shard,1,fast profile\r\n");
+            writer.write("mail_id_shard,2,slow profile\r\n");
+        } finally {
+            writer.close();
+        }
+        ReportGenerator reportGenerator = read(new ReportConfiguration(), this.csv, null, null);
+        assertCounts(reportGenerator);
+        String text = reportGenerator.createText().toString();
+        assertTrue(text.indexOf("fast profile") >= 0);
+        assertTrue(text.indexOf("slow profile") >= 0);
+    }
+
+    @Test
+    public void noThresholdsPass() throws IOException {
+        List<ReportGenerator.Check> checks = read(new ReportConfiguration(), null, this.journal, null).checkThresholds();
+        assertTrue(checks.isEmpty());
+        assertTrue(ReportGenerator.isPassed(checks));
+    }
+
+    @Test
+    public void unmatchedAtThresholdPasses() throws IOException {
+        // 1 of the 4 mails sent successfully is not matched
+        List<ReportGenerator.Check> checks = read(createThresholds(-1, 25.0, -1), null, this.journal, null).checkThresholds();
+        assertEquals(1, checks.size());
+        assertEquals("25.0 %", checks.get(0).value);
+        assertTrue(ReportGenerator.isPassed(checks));
+
+        checks = read(createThresholds(-1, 24.99, -1), null, this.journal, null).checkThresholds();
+        assertFalse(ReportGenerator.isPassed(checks));
+    }
+
+    @Test
+    public void everyThresholdIsChecked() throws IOException {
+        // latencies are 2000, 64000 and 1000 ms, 1 of 5 mails failed to be sent
+        List<ReportGenerator.Check> checks = read(createThresholds(70000, 30.0, 20.0), null, this.journal, null).checkThresholds();
+        assertEquals(3, checks.size());
+        assertTrue(ReportGenerator.isPassed(checks));
+
+        checks = read(createThresholds(10000, 30.0, 19.0), null, this.journal, null).checkThresholds();
+        assertFalse(checks.get(0).passed);
+        assertTrue(checks.get(1).passed);
+        assertFalse(checks.get(2).passed);
+        assertFalse(ReportGenerator.isPassed(checks));
+    }
+}
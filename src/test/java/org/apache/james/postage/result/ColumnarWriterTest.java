@@ -0,0 +1,211 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarWriterTest {
+
+    private static final String[] COLUMN_NAMES = {"time", "name", "size", "unset", "unsetName"};
+    private static final byte[] COLUMN_TYPES = {ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING, ColumnarWriter.TYPE_LONG,
+                                                ColumnarWriter.TYPE_LONG, ColumnarWriter.TYPE_STRING};
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        this.file = File.createTempFile("postage-columnar", ".pcol");
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    private String getName(int row) {
+        if (row % 5 == 0) return null;
+        return "user\u00e9" + (row % 13);
+    }
+
+    @Test
+    public void valuesAreReadBackAcrossRowGroups() throws IOException {
+        Random random = new Random(24);
+        long[] times = new long[1000];
+        long[] sizes = new long[times.length];
+        long time = System.currentTimeMillis();
+        for (int row = 0; row < times.length; row++) {
+            time += random.nextInt(2000) - 1000; // negative deltas as well
+            times[row] = time;
+            sizes[row] = row % 100 == 0 ? (row % 200 == 0 ? Long.MAX_VALUE : Long.MIN_VALUE) : random.nextInt(100000) - 50000;
+        }
+
+        ColumnarWriter writer = new ColumnarWriter(this.file.getPath(), COLUMN_NAMES, COLUMN_TYPES, 64);
+        for (int row = 0; row < times.length; row++) {
+            writer.setLong(0, times[row]);
+            writer.setString(1, getName(row));
+            writer.setLong(2, sizes[row]);
+            writer.endRow();
+        }
+        assertEquals(times.length, writer.getRowCount());
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(this.file.getPath());
+        try {
+            assertEquals(COLUMN_NAMES.length, reader.getColumnNames().length);
+            assertEquals(2, reader.getColumnIndex("size"));
+            assertEquals(-1, reader.getColumnIndex("missing"));
+            assertEquals(ColumnarWriter.TYPE_STRING, reader.getColumnType(1));
+
+            int row = 0;
+            int rowGroups = 0;
+            while (reader.nextRowGroup()) {
+                rowGroups++;
+                for (int i = 0; i < reader.getRowCount(); i++, row++) {
+                    assertEquals(times[row], reader.getLong(0, i));
+                    assertEquals(getName(row), reader.getString(1, i));
+                    assertEquals(sizes[row], reader.getLong(2, i));
+                    assertEquals(0, reader.getLong(3, i));
+                    assertNull(reader.getString(4, i));
+                }
+            }
+            assertEquals(times.length, row);
+            assertEquals(16, rowGroups);
+            assertFalse(reader.nextRowGroup());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fileWithoutRows() throws IOException {
+        new ColumnarWriter(this.file.getPath(), COLUMN_NAMES, COLUMN_TYPES).close();
+
+        ColumnarReader reader = new ColumnarReader(this.file.getPath());
+        try {
+            assertEquals(COLUMN_NAMES.length, reader.getColumnNames().length);
+            assertFalse(reader.nextRowGroup());
+            assertEquals(0, reader.getRowCount());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fileWithoutColumns() throws IOException {
+        ColumnarWriter writer = new ColumnarWriter(this.file.getPath(), new String[0], new byte[0], 4);
+        for (int row = 0; row < 10; row++) writer.endRow();
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(this.file.getPath());
+        try {
+            int rows = 0;
+            while (reader.nextRowGroup()) rows += reader.getRowCount();
+            assertEquals(10, rows);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void fileNotClosedProperlyIsRead() throws IOException {
+        ColumnarWriter writer = new ColumnarWriter(this.file.getPath(), COLUMN_NAMES, COLUMN_TYPES, 10);
+        for (int row = 0; row < 25; row++) {
+            writer.setLong(0, 1000 - row);
+            writer.setString(1, getName(row));
+            writer.endRow();
+        }
+        writer.close();
+
+        // cut off the end marker and the total row count
+        RandomAccessFile truncated = new RandomAccessFile(this.file, "rw");
+        truncated.setLength(truncated.length() - 2);
+        truncated.close();
+
+        ColumnarReader reader = new ColumnarReader(this.file.getPath());
+        int rows = 0;
+        try {
+            while (reader.nextRowGroup()) {
+                for (int i = 0; i < reader.getRowCount(); i++, rows++) {
+                    assertEquals(1000 - rows, reader.getLong(0, i));
+                    assertEquals(getName(rows), reader.getString(1, i));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(25, rows);
+    }
+
+    @Test
+    public void varLongsUseSevenBitsPerByte() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ColumnarWriter.writeVarLong(bytes, 127);
+        assertEquals(1, bytes.size());
+        bytes.reset();
+        ColumnarWriter.writeVarLong(bytes, 128);
+        assertEquals(2, bytes.size());
+        bytes.reset();
+        ColumnarWriter.writeVarLong(bytes, -1L);
+        assertEquals(10, bytes.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsRejected() throws IOException {
+        FileOutputStream output = new FileOutputStream(this.file);
+        output.write("POSTAGE1".getBytes("US-ASCII"));
+        output.close();
+        new ColumnarReader(this.file.getPath());
+    }
+
+    @Test
+    public void mailRecordsAreReadBack() throws IOException {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(new MailIdGenerator(MailId.newRunId(), 5).next());
+        record.setTimeSendStart(System.currentTimeMillis());
+        record.setSubject("subject");
+        ColumnarWriter writer = new ColumnarWriter(this.file.getPath(), MailProcessingRecord.COLUMN_NAMES, MailProcessingRecord.COLUMN_TYPES);
+        record.writeColumns(writer);
+        writer.close();
+
+        ColumnarReader reader = new ColumnarReader(this.file.getPath());
+        try {
+            assertTrue(reader.nextRowGroup());
+            assertEquals(1, reader.getRowCount());
+            assertEquals(record.getTimeSendStart(), reader.getLong(reader.getColumnIndex("timeSendStart"), 0));
+            assertEquals("subject", reader.getString(reader.getColumnIndex("subject"), 0));
+        } finally {
+            reader.close();
+        }
+    }
+}
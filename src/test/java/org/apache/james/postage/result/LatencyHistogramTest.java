@@ -0,0 +1,125 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(-1, histogram.getMin());
+        assertEquals(-1, histogram.getMax());
+        assertEquals(-1.0, histogram.getMean(), 0.0);
+        assertEquals(-1, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) histogram.record(i);
+        histogram.record(-5);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.0001);
+        assertEquals(50, histogram.getValueAtPercentile(50));
+        assertEquals(95, histogram.getValueAtPercentile(95));
+        assertEquals(100, histogram.getValueAtPercentile(100));
+        assertEquals(1, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void bucketsAreNarrowerThanOneSixtyFourth() {
+        long previousIndex = -1;
+        for (long value = 0; value < 10000000; value = value < 1000 ? value + 1 : value + value / 1000) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(index >= previousIndex);
+            previousIndex = index;
+            long highest = LatencyHistogram.highestEquivalentValue(index);
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 64);
+        }
+    }
+
+    @Test
+    public void percentilesWithinPrecision() {
+        Random random = new Random(21);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long)Math.abs(random.nextGaussian() * 200000) + random.nextInt(50);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        double[] percentiles = {1, 10, 50, 90, 99, 99.9, 100};
+        for (int i = 0; i < percentiles.length; i++) {
+            long exact = values[(int)Math.ceil(percentiles[i] / 100.0 * values.length) - 1];
+            long estimate = histogram.getValueAtPercentile(percentiles[i]);
+            assertTrue(estimate >= exact);
+            assertTrue("percentile " + percentiles[i] + ": " + estimate + " for " + exact, estimate - exact <= exact / 64);
+        }
+        assertEquals(values[0], histogram.getMin());
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void mergeEqualsRecordingAll() {
+        Random random = new Random(4);
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram small = new LatencyHistogram();
+        LatencyHistogram large = new LatencyHistogram();
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextInt(100);
+            small.record(value);
+            all.record(value);
+            value = 1000000 + random.nextInt(100000000);
+            large.record(value);
+            all.record(value);
+        }
+
+        LatencyHistogram merged = new LatencyHistogram();
+        merged.add(small);
+        merged.add(large);
+        assertEquals(all.getCount(), merged.getCount());
+        assertEquals(all.getMin(), merged.getMin());
+        assertEquals(all.getMax(), merged.getMax());
+        assertEquals(all.getMean(), merged.getMean(), 0.0001);
+        for (int percentile = 0; percentile <= 100; percentile += 5) {
+            assertEquals(all.getValueAtPercentile(percentile), merged.getValueAtPercentile(percentile));
+        }
+
+        // merging into a histogram having grown further keeps its counts
+        large.add(small);
+        assertEquals(20000, large.getCount());
+        assertEquals(small.getMin(), large.getMin());
+        assertEquals(all.getValueAtPercentile(25), large.getValueAtPercentile(25));
+    }
+}
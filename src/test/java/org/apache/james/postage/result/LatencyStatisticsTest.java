@@ -0,0 +1,101 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+public class LatencyStatisticsTest {
+
+    private final long minute = System.currentTimeMillis() / 60000 * 60000;
+
+    private MailProcessingRecord createRecord(MailIdGenerator mailIdGenerator, long deliveryLatency) {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(mailIdGenerator.next());
+        record.setTimeConnectStart(this.minute + 1000);
+        record.setTimeSendStart(this.minute + 1000);
+        record.setTimeSendEnd(this.minute + 1010);
+        record.setTimeFetchEnd(this.minute + 1000 + deliveryLatency);
+        record.setReceivingQueue("inbox");
+        return record;
+    }
+
+    @Test
+    public void shardsOfOneProfileAreMerged() throws IOException {
+        LatencyStatistics statistics = new LatencyStatistics();
+        int runId = MailId.newRunId();
+        MailIdGenerator first = new MailIdGenerator(runId, 1);
+        MailIdGenerator second = new MailIdGenerator(runId, 2);
+        MailIdGenerator other = new MailIdGenerator(runId, 3);
+        statistics.registerProfile(1, "profile");
+        statistics.registerProfile(2, "profile");
+        statistics.registerProfile(3, "other");
+
+        statistics.recordMatched(createRecord(first, 100));
+        statistics.recordMatched(createRecord(second, 200));
+        statistics.recordMatched(createRecord(other, 300));
+        statistics.recordSent(createRecord(first, 100));
+
+        assertEquals(3, statistics.getTotal(LatencyStatistics.METRIC_DELIVERY).getCount());
+        assertEquals(1, statistics.getTotal(LatencyStatistics.METRIC_SEND).getCount());
+        assertNull(statistics.getTotal(LatencyStatistics.METRIC_FETCH_LAG));
+        assertNull(statistics.getTotal("unknown metric"));
+
+        LatencyHistogram profile = statistics.getHistogram(LatencyStatistics.METRIC_DELIVERY, "profile", "inbox", this.minute);
+        assertEquals(2, profile.getCount());
+        assertEquals(100, profile.getMin());
+        assertEquals(200, profile.getMax());
+        assertEquals(3, statistics.getHistogram(LatencyStatistics.METRIC_DELIVERY, LatencyStatistics.ALL, LatencyStatistics.ALL, this.minute).getCount());
+        assertNull(statistics.getHistogram(LatencyStatistics.METRIC_DELIVERY, "profile", "outbox", this.minute));
+        assertEquals(3, statistics.getRecent(LatencyStatistics.METRIC_DELIVERY, 2).getCount());
+
+        StringWriter writer = new StringWriter();
+        statistics.writeData(writer);
+        String data = writer.toString();
+        assertTrue(data.indexOf("delivery,profile,inbox," + this.minute + ",2,") >= 0);
+        assertTrue(data.indexOf("delivery,profile,inbox,all,2,") >= 0);
+        assertTrue(data.indexOf("delivery,other,inbox," + this.minute + ",1,") >= 0);
+        assertTrue(data.indexOf("delivery,all,all," + this.minute + ",3,") >= 0);
+        assertTrue(data.indexOf("send,profile,all,all,1,") >= 0);
+        // one line per profile, not per shard
+        assertEquals(data.indexOf("delivery,profile,inbox,all"), data.lastIndexOf("delivery,profile,inbox,all"));
+        assertTrue(data.indexOf("delivery,all") < data.indexOf("send,all"));
+    }
+
+    @Test
+    public void unregisteredShardIsUnknown() throws IOException {
+        LatencyStatistics statistics = new LatencyStatistics();
+        MailProcessingRecord record = createRecord(new MailIdGenerator(MailId.newRunId(), 7), 50);
+        record.setReceivingQueue(null);
+        statistics.recordMatched(record);
+
+        assertEquals("unknown", statistics.getProfileName(record.getMailId()));
+        assertEquals(1, statistics.getHistogram(LatencyStatistics.METRIC_DELIVERY, "unknown", "unknown", -1).getCount());
+        StringWriter writer = new StringWriter();
+        statistics.writeData(writer);
+        assertTrue(writer.toString().indexOf("delivery,unknown,unknown,all,1,") >= 0);
+    }
+}
@@ -0,0 +1,119 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.james.postage.mail.HeaderConstants;
+import org.junit.Test;
+
+public class MailIdTest {
+
+    @Test
+    public void layoutKeepsRunShardAndSequence() {
+        long mailId = MailId.create(0x123456, 0xab, 0xcafebabeL);
+        assertEquals(0x123456abcafebabeL, mailId);
+        assertEquals(0x123456, MailId.getRunId(mailId));
+        assertEquals(0xab, MailId.getShard(mailId));
+        assertEquals(0xcafebabeL, MailId.getSequence(mailId));
+    }
+
+    @Test
+    public void layoutUsesAllBits() {
+        long mailId = MailId.create(MailId.MAX_RUN_ID, MailId.MAX_SHARD, MailId.MAX_SEQUENCE);
+        assertEquals(-1L, mailId);
+        assertEquals(MailId.MAX_RUN_ID, MailId.getRunId(mailId));
+        assertEquals(MailId.MAX_SHARD, MailId.getShard(mailId));
+        assertEquals(MailId.MAX_SEQUENCE, MailId.getSequence(mailId));
+    }
+
+    @Test
+    public void newRunIdIsNeverZero() {
+        int runId = MailId.newRunId();
+        assertTrue(runId > 0);
+        assertTrue(runId <= MailId.MAX_RUN_ID);
+        long mailId = MailId.create(runId, 0, 0);
+        assertTrue(mailId != MailId.NONE && mailId != MailId.STARTUP_CHECK);
+    }
+
+    @Test
+    public void tokenRoundTrip() {
+        long[] mailIds = {MailId.STARTUP_CHECK, 31, 32, Long.MAX_VALUE, Long.MIN_VALUE, -1L,
+                          MailId.create(MailId.newRunId(), 7, 42)};
+        for (int i = 0; i < mailIds.length; i++) {
+            String token = MailId.toToken(mailIds[i]);
+            assertTrue(token.length() <= 13);
+            assertEquals(mailIds[i], MailId.parseToken(token));
+            assertEquals(mailIds[i], MailId.parseToken(token.toUpperCase()));
+        }
+
+        Random random = new Random(19);
+        for (int i = 0; i < 10000; i++) {
+            long mailId = random.nextLong();
+            assertEquals(mailId, MailId.parseToken(MailId.toToken(mailId)));
+        }
+    }
+
+    @Test
+    public void invalidTokensAreNone() {
+        assertEquals(MailId.NONE, MailId.parseToken(null));
+        assertEquals(MailId.NONE, MailId.parseToken(""));
+        assertEquals(MailId.NONE, MailId.parseToken("abc-def"));
+        assertEquals(MailId.NONE, MailId.parseToken("0123456789abcd"));
+        assertEquals(MailId.NONE, MailId.parseToken("g000000000000")); // more than 64 bits
+        assertEquals(MailId.NONE, MailId.parseToken("abc\u00e9"));
+    }
+
+    @Test
+    public void headerValueRoundTrip() {
+        assertEquals(HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID, MailId.toHeaderValue(MailId.STARTUP_CHECK));
+        assertEquals(MailId.STARTUP_CHECK, MailId.parseHeaderValue(HeaderConstants.JAMES_POSTAGE_STARTUPCHECK_HEADER_ID));
+
+        long mailId = MailId.create(MailId.newRunId(), 3, 1000);
+        assertEquals(mailId, MailId.parseHeaderValue(" " + MailId.toHeaderValue(mailId) + " "));
+        assertEquals(MailId.NONE, MailId.parseHeaderValue(null));
+    }
+
+    @Test
+    public void generatorsOfDifferentShardsDoNotCollide() {
+        int runId = MailId.newRunId();
+        Set<Long> mailIds = new HashSet<Long>();
+        for (int shard = 0; shard <= MailId.MAX_SHARD; shard++) {
+            MailIdGenerator generator = new MailIdGenerator(runId, shard);
+            assertEquals(shard, generator.getShard());
+            for (int i = 0; i < 10; i++) {
+                long mailId = generator.next();
+                assertEquals(runId, MailId.getRunId(mailId));
+                assertEquals(shard, MailId.getShard(mailId));
+                assertTrue(mailIds.add(Long.valueOf(mailId)));
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardOutOfRangeIsRejected() {
+        new MailIdGenerator(MailId.newRunId(), MailId.MAX_SHARD + 1);
+    }
+}
@@ -0,0 +1,164 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class MailRecordStoreTest {
+
+    private final MailIdGenerator mailIdGenerator = new MailIdGenerator(MailId.newRunId(), 0);
+
+    private final long now = System.currentTimeMillis();
+
+    private MailProcessingRecord createRecord() {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(this.mailIdGenerator.next());
+        record.setTimeConnectStart(this.now - 5);
+        record.setTimeSendStart(this.now + 10);
+        record.setTimeSendEnd(this.now + 20);
+        record.setTimeReceived(this.now + 1000);
+        record.setByteSendText(100);
+        record.setByteReceivedTotal(5L * Integer.MAX_VALUE);
+        record.setErrorNumberSending(2);
+        record.setSender("sender");
+        record.setReceiver("receiver");
+        record.setReceiverMailAddress("receiver@example.org");
+        record.setSubject("subject");
+        record.setReceivingQueue("inbox");
+        record.setTimedOut();
+        return record;
+    }
+
+    @Test
+    public void rowKeepsRecord() {
+        MailRecordStore store = new MailRecordStore();
+        MailProcessingRecord record = createRecord();
+        int row = store.add(record);
+
+        MailProcessingRecord read = store.read(row);
+        assertEquals(record.getMailId(), read.getMailId());
+        assertEquals(record.getMailId(), store.getMailId(row));
+        assertEquals(this.now - 5, read.getTimeConnectStart());
+        assertEquals(this.now + 10, read.getTimeSendStart());
+        assertEquals(this.now + 20, read.getTimeSendEnd());
+        assertEquals(this.now + 1000, read.getTimeReceived());
+        assertEquals(0, read.getTimeFetchStart());
+        assertEquals(100, read.getByteSendText());
+        assertEquals(Integer.MAX_VALUE, read.getByteReceivedTotal());
+        assertEquals(2, read.getErrorNumberSending());
+        assertEquals("sender", read.getSender());
+        assertNull(read.getSenderMailAddress());
+        assertEquals("receiver@example.org", read.getReceiverMailAddress());
+        assertEquals("subject", read.getSubject());
+        assertEquals("inbox", read.getReceivingQueue());
+        assertTrue(read.isTimedOut());
+        assertFalse(read.isMatchedSentAndReceived());
+        assertEquals(this.now + 10, store.getTimeSent(row));
+    }
+
+    @Test
+    public void freedRowIsReused() {
+        MailRecordStore store = new MailRecordStore();
+        int first = store.add(createRecord());
+        int second = store.add(createRecord());
+        assertEquals(2, store.size());
+
+        store.free(first);
+        assertEquals(MailId.NONE, store.getMailId(first));
+        assertEquals(1, store.size());
+        assertEquals(first, store.add(createRecord()));
+        assertEquals(2, store.size());
+        assertTrue(first != second);
+    }
+
+    @Test
+    public void manyRowsSpanPages() {
+        MailRecordStore store = new MailRecordStore();
+        long[] mailIds = new long[50000];
+        int[] rows = new int[mailIds.length];
+        for (int i = 0; i < mailIds.length; i++) {
+            MailProcessingRecord record = createRecord();
+            mailIds[i] = record.getMailId();
+            rows[i] = store.add(record);
+        }
+        assertEquals(mailIds.length, store.size());
+        for (int i = 0; i < mailIds.length; i++) {
+            assertEquals(mailIds[i], store.read(rows[i]).getMailId());
+        }
+    }
+
+    @Test
+    public void timeOutOfRangeIsRejected() {
+        MailRecordStore store = new MailRecordStore();
+        MailProcessingRecord record = createRecord();
+        record.setTimeReceived(this.now + 30L * 24 * 60 * 60 * 1000);
+        try {
+            store.add(record);
+            fail("time more than 24 days after the store was created must not be packed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fanOutIsRejected() {
+        MailRecordStore store = new MailRecordStore();
+        MailProcessingRecord record = createRecord();
+        record.setFanOutReceivers(new String[] {"a", "b"}, new String[] {"a@example.org", "b@example.org"});
+        store.add(record);
+    }
+
+    @Test
+    public void errorTextsAreReducedToClasses() {
+        MailRecordStore store = new MailRecordStore();
+        MailProcessingRecord first = createRecord();
+        first.setErrorTextSending("451 4.3.0 queue 1234ABC full, try 10.0.0.1:25");
+        MailProcessingRecord second = createRecord();
+        second.setErrorTextSending("451 4.3.0 queue 98ABC full, try 10.0.0.2:25");
+
+        assertEquals("# #.#.# queue #ABC full, try #.#.#.#:#", store.read(store.add(first)).getErrorTextSending());
+        assertEquals("# #.#.# queue #ABC full, try #.#.#.#:#", store.read(store.add(second)).getErrorTextSending());
+    }
+
+    @Test
+    public void errorClassesAreBounded() {
+        MailRecordStore store = new MailRecordStore();
+        int row = -1;
+        for (int i = 0; i < ErrorClassDictionary.MAX_ERROR_CLASSES + 10; i++) {
+            MailProcessingRecord record = createRecord();
+            record.setErrorTextSending("error " + (char)('a' + i % 26) + (char)('a' + i / 26 % 26) + (char)('a' + i / 676));
+            row = store.add(record);
+            store.free(row);
+        }
+        assertEquals(ErrorClassDictionary.OTHER_ERROR_CLASS, store.read(row).getErrorTextSending());
+
+        StringBuffer longText = new StringBuffer();
+        for (int i = 0; i < 1000; i++) longText.append('x');
+        assertEquals(ErrorClassDictionary.MAX_ERROR_CLASS_LENGTH, ErrorClassDictionary.getErrorClass(longText.toString()).length());
+        assertNull(ErrorClassDictionary.getErrorClass(null));
+    }
+}
@@ -0,0 +1,212 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MailResultJournalTest {
+
+    private final MailIdGenerator mailIdGenerator = new MailIdGenerator(MailId.newRunId(), 0);
+
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        this.file = File.createTempFile("postage-journal", ".bin");
+    }
+
+    @After
+    public void deleteFile() {
+        this.file.delete();
+    }
+
+    private MailProcessingRecord createRecord(int i) {
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(this.mailIdGenerator.next());
+        record.setTimeConnectStart(1000000L + i);
+        record.setTimeSendStart(1000010L + i);
+        record.setTimeSendEnd(1000020L + i);
+        record.setTimeReceived(1005000L + i);
+        record.setByteSendText(100 + i);
+        record.setByteReceivedTotal(5L * Integer.MAX_VALUE);
+        record.setSender("sender" + (i % 10));
+        record.setReceiver("receiver");
+        record.setReceiverMailAddress("receiver@example.org");
+        record.setSubject("subject \u00e4\u00f6\u00fc");
+        if (i % 2 == 0) record.setValid();
+        return record;
+    }
+
+    private List<MailProcessingRecord> readAll() throws IOException {
+        final List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+        MailResultJournal.read(this.file.getPath(), new MailResultJournal.RecordHandler() {
+            public void handle(MailProcessingRecord record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    @Test
+    public void recordsAreReadBack() throws IOException {
+        MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        List<MailProcessingRecord> written = new ArrayList<MailProcessingRecord>();
+        for (int i = 0; i < 1000; i++) {
+            MailProcessingRecord record = createRecord(i);
+            written.add(record);
+            journal.append(record);
+        }
+        assertEquals(1000, journal.getRecordCount());
+        journal.close();
+
+        List<MailProcessingRecord> read = readAll();
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < read.size(); i++) {
+            MailProcessingRecord expected = written.get(i);
+            MailProcessingRecord actual = read.get(i);
+            assertEquals(expected.getMailId(), actual.getMailId());
+            assertEquals(expected.getTimeConnectStart(), actual.getTimeConnectStart());
+            assertEquals(expected.getTimeSendEnd(), actual.getTimeSendEnd());
+            assertEquals(expected.getTimeReceived(), actual.getTimeReceived());
+            assertEquals(0, actual.getTimeFetchStart());
+            assertEquals(expected.getByteSendText(), actual.getByteSendText());
+            assertEquals(expected.getByteReceivedTotal(), actual.getByteReceivedTotal());
+            assertEquals(expected.getSender(), actual.getSender());
+            assertNull(actual.getSenderMailAddress());
+            assertEquals(expected.getReceiverMailAddress(), actual.getReceiverMailAddress());
+            assertEquals(expected.getSubject(), actual.getSubject());
+            assertEquals(expected.isReceivedValid(), actual.isReceivedValid());
+            assertFalse(actual.isMatchedSentAndReceived());
+        }
+    }
+
+    @Test
+    public void recordsSpanningSeveralFlushesAreReadBack() throws IOException {
+        MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        for (int i = 0; i < 20000; i++) {
+            journal.append(createRecord(i));
+            if (i % 5000 == 0) journal.flush();
+        }
+        journal.close();
+        assertEquals(20000, readAll().size());
+    }
+
+    @Test
+    public void truncatedTailIsSkipped() throws IOException {
+        MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        for (int i = 0; i < 10; i++) journal.append(createRecord(i));
+        journal.close();
+
+        RandomAccessFile truncated = new RandomAccessFile(this.file, "rw");
+        truncated.setLength(truncated.length() - 5);
+        truncated.close();
+
+        List<MailProcessingRecord> read = readAll();
+        assertEquals(9, read.size());
+        assertEquals("sender8", read.get(8).getSender());
+    }
+
+    @Test
+    public void errorTextsAreKeptAsErrorClasses() throws IOException {
+        MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        for (int i = 0; i < ErrorClassDictionary.MAX_ERROR_CLASSES + 10; i++) {
+            MailProcessingRecord record = createRecord(i);
+            record.setErrorTextSending("452 queue " + i + " full");
+            journal.append(record);
+        }
+        journal.close();
+
+        List<MailProcessingRecord> read = readAll();
+        assertEquals("# queue # full", read.get(0).getErrorTextSending());
+        assertEquals("# queue # full", read.get(read.size() - 1).getErrorTextSending());
+    }
+
+    @Test
+    public void closingWhileFlushingKeepsAllRecords() throws Exception {
+        final MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        Thread appender = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = 0; true; i++) {
+                        journal.append(createRecord(i));
+                        if (i % 100 == 0) Thread.sleep(1);
+                    }
+                } catch (IOException e) {
+                    ; // closed
+                } catch (InterruptedException e) {
+                    ;
+                }
+            }
+        });
+        appender.start();
+        // the background flusher first writes after one second
+        Thread.sleep(1050);
+        journal.close();
+        appender.join();
+
+        assertTrue(journal.getRecordCount() > 0);
+        assertEquals(journal.getRecordCount(), readAll().size());
+        File csv = File.createTempFile("postage-journal", ".csv");
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(new FileOutputStream(csv), "UTF-8");
+            assertEquals(journal.getRecordCount(), MailResultJournal.exportCSV(this.file.getPath(), writer));
+            writer.close();
+        } finally {
+            csv.delete();
+        }
+    }
+
+    @Test
+    public void appendAfterCloseFails() throws IOException {
+        MailResultJournal journal = new MailResultJournal(this.file.getPath());
+        journal.close();
+        try {
+            journal.append(createRecord(0));
+            fail("closed journal must not take more records");
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(readAll().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFileIsRejected() throws IOException {
+        FileOutputStream output = new FileOutputStream(this.file);
+        output.write("Mail-Id,subject".getBytes("US-ASCII"));
+        output.close();
+        readAll();
+    }
+}
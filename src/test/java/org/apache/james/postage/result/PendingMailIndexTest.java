@@ -0,0 +1,299 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.Test;
+
+public class PendingMailIndexTest {
+
+    private final MailIdGenerator mailIdGenerator = new MailIdGenerator(MailId.newRunId(), 0);
+
+    private final long now = System.currentTimeMillis();
+
+    /**
+     * @param timeSent milliseconds from now
+     */
+    private MailProcessingRecord createRecord(long timeSent) {
+        timeSent += this.now;
+        MailProcessingRecord record = new MailProcessingRecord();
+        record.setMailId(this.mailIdGenerator.next());
+        record.setTimeConnectStart(timeSent);
+        record.setTimeSendStart(timeSent);
+        record.setTimeSendEnd(timeSent + 10);
+        record.setSender("sender");
+        record.setSenderMailAddress("sender@example.org");
+        record.setReceiver("receiver");
+        record.setReceiverMailAddress("receiver@example.org");
+        record.setSubject("subject");
+        return record;
+    }
+
+    @Test
+    public void claimTakesPackedRecord() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        MailProcessingRecord record = createRecord(1000);
+        assertTrue(index.add(record));
+        index.pack(record);
+        assertTrue(index.contains(record.getMailId()));
+        assertEquals(1, index.size());
+
+        MailProcessingRecord claimed = index.claim(record.getMailId(), "receiver@example.org");
+        assertNotNull(claimed);
+        assertEquals(record.getMailId(), claimed.getMailId());
+        assertEquals(this.now + 1000, claimed.getTimeSendStart());
+        assertEquals(this.now + 1010, claimed.getTimeSendEnd());
+        assertEquals("sender@example.org", claimed.getSenderMailAddress());
+        assertEquals("subject", claimed.getSubject());
+
+        assertFalse(index.contains(record.getMailId()));
+        assertNull(index.claim(record.getMailId(), "receiver@example.org"));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void sameIdIsAddedOnce() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        MailProcessingRecord record = createRecord(1000);
+        assertTrue(index.add(record));
+        assertFalse(index.add(record));
+        assertFalse(index.add(new MailProcessingRecord())); // without id
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void manyMailsArePutAndRemoved() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+        for (int i = 0; i < 100000; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            records.add(record);
+            assertTrue(index.add(record));
+            if (i % 2 == 0) index.pack(record); // unpacked records are the ones still being sent
+        }
+        assertEquals(100000, index.size());
+        assertEquals(100000, index.values().size());
+
+        // remove every other one, the rest must still be found
+        for (int i = 0; i < records.size(); i += 2) {
+            assertNotNull(index.claim(records.get(i).getMailId(), null));
+        }
+        for (int i = 0; i < records.size(); i++) {
+            assertEquals(i % 2 == 1, index.contains(records.get(i).getMailId()));
+        }
+        for (int i = 1; i < records.size(); i += 2) {
+            MailProcessingRecord claimed = index.claim(records.get(i).getMailId(), null);
+            assertEquals(this.now + 1000 + i, claimed.getTimeSendStart());
+        }
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void fanOutStaysPendingUntilEveryRecipientIsClaimed() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        MailProcessingRecord record = createRecord(1000);
+        record.setFanOutReceivers(new String[] {"a", "b"}, new String[] {"a@example.org", "b@example.org"});
+        index.add(record);
+        index.pack(record); // fan-out records stay unpacked
+
+        MailProcessingRecord claimedB = index.claim(record.getMailId(), "b@example.org");
+        assertEquals("b@example.org", claimedB.getReceiverMailAddress());
+        assertNull(index.claim(record.getMailId(), "b@example.org"));
+        assertTrue(index.contains(record.getMailId()));
+
+        MailProcessingRecord claimedA = index.claim(record.getMailId(), "A@example.org");
+        assertEquals("a@example.org", claimedA.getReceiverMailAddress());
+        assertFalse(index.contains(record.getMailId()));
+    }
+
+    @Test
+    public void rejectKeepsPendingMails() {
+        PendingMailIndex index = new PendingMailIndex(1, PendingMailIndex.OVERFLOW_REJECT);
+        List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+        int rejected = 0;
+        for (int i = 0; i < 10000; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            records.add(record);
+            if (!index.add(record)) rejected++;
+        }
+        assertTrue(rejected > 0);
+        assertEquals(rejected, index.getOverflowCount());
+        assertEquals(10000 - rejected, index.size());
+
+        List<MailProcessingRecord> overflow = index.takeOverflowRecords();
+        assertEquals(rejected, overflow.size());
+        for (int i = 0; i < overflow.size(); i++) {
+            assertFalse(index.contains(overflow.get(i).getMailId()));
+        }
+        assertTrue(index.takeOverflowRecords().isEmpty());
+    }
+
+    @Test
+    public void evictOldestDropsTheOldest() {
+        PendingMailIndex index = new PendingMailIndex(1, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+        for (int i = 0; i < 10000; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            records.add(record);
+            assertTrue(index.add(record));
+            index.pack(record);
+        }
+        List<MailProcessingRecord> overflow = index.takeOverflowRecords();
+        assertEquals(10000 - index.size(), overflow.size());
+        assertEquals(overflow.size(), index.getOverflowCount());
+
+        // the newest mail is always kept
+        assertTrue(index.contains(records.get(records.size() - 1).getMailId()));
+        for (int i = 0; i < overflow.size(); i++) {
+            assertFalse(index.contains(overflow.get(i).getMailId()));
+            assertTrue(overflow.get(i).getTimeSendStart() < this.now + 1000 + 10000);
+        }
+    }
+
+    @Test
+    public void takeSentBeforeKeepsYoungerMails() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        for (int i = 0; i < 1000; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            index.add(record);
+            if (i != 10) index.pack(record); // mail 10 is still being sent
+        }
+        List<MailProcessingRecord> taken = index.takeSentBefore(this.now + 1500);
+        assertEquals(499, taken.size());
+        for (int i = 0; i < taken.size(); i++) {
+            assertTrue(taken.get(i).getTimeSent() < this.now + 1500);
+        }
+        assertEquals(501, index.size());
+        assertTrue(index.takeSentBefore(this.now + 1500).isEmpty());
+    }
+
+    @Test
+    public void oldestTimeSentSkipsMailsBeingSent() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        assertEquals(0, index.getOldestTimeSent());
+
+        MailProcessingRecord beingSent = createRecord(1000);
+        index.add(beingSent);
+        assertEquals(0, index.getOldestTimeSent());
+
+        for (int i = 1; i <= 100; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            index.add(record);
+            index.pack(record);
+        }
+        assertEquals(this.now + 1001, index.getOldestTimeSent());
+
+        index.pack(beingSent);
+        assertEquals(this.now + 1000, index.getOldestTimeSent());
+    }
+
+    @Test
+    public void oldestTimeSentFollowsClaims() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        List<MailProcessingRecord> records = new ArrayList<MailProcessingRecord>();
+        for (int i = 0; i < 1000; i++) {
+            MailProcessingRecord record = createRecord(1000 + i);
+            index.add(record);
+            index.pack(record);
+            records.add(record);
+        }
+        for (int i = 0; i < 999; i++) {
+            assertEquals(this.now + 1000 + i, index.getOldestTimeSent());
+            assertNotNull(index.claim(records.get(i).getMailId(), null));
+        }
+        assertEquals(this.now + 1999, index.getOldestTimeSent());
+        index.claim(records.get(999).getMailId(), null);
+        assertEquals(0, index.getOldestTimeSent());
+    }
+
+    @Test
+    public void recordsNotPackedAreTakenWhenSent() {
+        PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        // more than 24 days before the store was created, so the record cannot be packed
+        MailProcessingRecord unpackable = createRecord(-30L * 24 * 60 * 60 * 1000);
+        index.add(unpackable);
+        assertTrue(index.takeSentBefore(this.now).isEmpty()); // still being sent
+        assertEquals(0, index.getOldestTimeSent());
+
+        index.pack(unpackable);
+        assertEquals(unpackable.getTimeSent(), index.getOldestTimeSent());
+        List<MailProcessingRecord> taken = index.takeSentBefore(this.now);
+        assertEquals(1, taken.size());
+        assertSame(unpackable, taken.get(0));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void concurrentSendersAndReceiversMatchEveryMailOnce() throws Exception {
+        final PendingMailIndex index = new PendingMailIndex(0, PendingMailIndex.OVERFLOW_EVICT_OLDEST);
+        final int threads = 4;
+        final int mailsPerThread = 20000;
+        final long[] mailIds = new long[threads * mailsPerThread];
+        final AtomicLongArray published = new AtomicLongArray(mailIds.length);
+        final AtomicInteger claimed = new AtomicInteger(0);
+        final AtomicInteger duplicateClaims = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(threads * 2);
+
+        int runId = MailId.newRunId();
+        for (int t = 0; t < threads; t++) {
+            final int first = t * mailsPerThread;
+            final MailIdGenerator generator = new MailIdGenerator(runId, t + 1);
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = first; i < first + mailsPerThread; i++) {
+                        MailProcessingRecord record = createRecord(1000 + i);
+                        record.setMailId(generator.next());
+                        index.add(record);
+                        index.pack(record);
+                        published.set(i, record.getMailId());
+                    }
+                    done.countDown();
+                }
+            }).start();
+            new Thread(new Runnable() {
+                public void run() {
+                    for (int i = first; i < first + mailsPerThread; i++) {
+                        long mailId;
+                        while ((mailId = published.get(i)) == 0) Thread.yield();
+                        if (index.claim(mailId, null) != null) claimed.incrementAndGet();
+                        if (index.claim(mailId, null) != null) duplicateClaims.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+
+        assertEquals(mailIds.length, claimed.get());
+        assertEquals(0, duplicateClaims.get());
+        assertEquals(0, index.size());
+    }
+}
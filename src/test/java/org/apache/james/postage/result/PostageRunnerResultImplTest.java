@@ -0,0 +1,83 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+public class PostageRunnerResultImplTest {
+
+    private final MailIdGenerator mailIdGenerator = new MailIdGenerator(MailId.newRunId(), 0);
+
+    @Test
+    public void lostMailDeliveredLaterIsLate() throws Exception {
+        PostageRunnerResultImpl results = new PostageRunnerResultImpl();
+        long timeSent = System.currentTimeMillis() - 10000;
+        MailProcessingRecord sent = new MailProcessingRecord();
+        sent.setMailId(this.mailIdGenerator.next());
+        sent.setTimeConnectStart(timeSent);
+        sent.setTimeSendStart(timeSent);
+        sent.setTimeSendEnd(timeSent + 10);
+        sent.setReceiverMailAddress("receiver@example.org");
+        results.addNewMailRecord(sent);
+        results.recordSendCompleted(sent);
+
+        results.setDeliveryTimeout(1000);
+        results.reapPendingMails(timeSent + 500);
+        assertEquals(0, results.getLostMails());
+        assertEquals(1, results.getUnmatchedMails());
+
+        results.reapPendingMails(timeSent + 2000);
+        assertEquals(1, results.getLostMails());
+        assertEquals(0, results.getUnmatchedMails());
+
+        MailProcessingRecord received = new MailProcessingRecord();
+        received.setMailId(sent.getMailId());
+        received.setReceiverMailAddress("receiver@example.org");
+        received.setTimeFetchEnd(System.currentTimeMillis());
+        MailProcessingRecord match = results.matchMailRecord(received);
+        assertNotNull(match);
+        assertTrue(match.isMatchedSentAndReceived());
+        assertEquals(MailProcessingRecord.STATUS_LATE, match.getDeliveryStatus());
+        assertEquals(0, results.getLostMails());
+        assertEquals(1, results.getLateMails());
+        assertEquals(1, results.getMatchedMails());
+    }
+
+    @Test
+    public void errorsAreCountedAfterBeingWritten() throws Exception {
+        PostageRunnerResultImpl results = new PostageRunnerResultImpl();
+        results.addError(1, "first");
+        results.addError(2, "second");
+        File file = File.createTempFile("postage-errors", ".csv");
+        try {
+            results.writeErrors(file.getPath());
+        } finally {
+            file.delete();
+        }
+        results.addError(3, "third");
+        assertEquals(3, results.getErrorCount());
+    }
+}
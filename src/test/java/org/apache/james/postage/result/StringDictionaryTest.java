@@ -0,0 +1,73 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.postage.result;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class StringDictionaryTest {
+
+    @Test
+    public void sameStringSameCode() {
+        StringDictionary dictionary = new StringDictionary();
+        int code = dictionary.encode("user1");
+        assertEquals(code, dictionary.encode(new String("user1")));
+        assertEquals("user1", dictionary.decode(code));
+        assertEquals(1, dictionary.size());
+    }
+
+    @Test
+    public void nullIsZero() {
+        StringDictionary dictionary = new StringDictionary();
+        assertEquals(0, dictionary.encode(null));
+        assertNull(dictionary.decode(0));
+        assertEquals(0, dictionary.size());
+    }
+
+    @Test
+    public void growsBeyondInitialCapacity() {
+        StringDictionary dictionary = new StringDictionary();
+        int[] codes = new int[1000];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = dictionary.encode("user" + i);
+        }
+        assertEquals(1000, dictionary.size());
+        for (int i = 0; i < codes.length; i++) {
+            assertEquals("user" + i, dictionary.decode(codes[i]));
+        }
+    }
+
+    @Test
+    public void boundedKeepsOverflowValue() {
+        StringDictionary dictionary = new StringDictionary(3, "other");
+        int first = dictionary.encode("a");
+        int second = dictionary.encode("b");
+        int overflow = dictionary.encode("c");
+        assertEquals(3, dictionary.size());
+        assertEquals("a", dictionary.decode(first));
+        assertEquals("b", dictionary.decode(second));
+        assertEquals("other", dictionary.decode(overflow));
+        assertEquals(overflow, dictionary.encode("d"));
+        assertEquals(first, dictionary.encode("a"));
+        assertEquals(3, dictionary.size());
+    }
+}